@@ -0,0 +1,105 @@
+// Stand-ins for the plugin's JNI entry points. Each one takes and returns the same Java types as its
+// counterpart in jni.cpp and builds results with the same jni-marshalling.h helpers, but does no model
+// work, so the benchmarks measure only the cost of crossing the bridge.
+
+#include <jni.h>
+#include <string>
+#include <vector>
+#include "jni-marshalling.h"
+
+using namespace jni_utils;
+
+namespace {
+
+std::string jstring_to_string(JNIEnv* env, jstring jstr) {
+    if (jstr == nullptr) return "";
+    const char* chars = env->GetStringUTFChars(jstr, nullptr);
+    std::string result(chars);
+    env->ReleaseStringUTFChars(jstr, chars);
+    return result;
+}
+
+} // namespace
+
+extern "C" {
+
+JNIEXPORT void JNICALL
+Java_ai_annadata_plugin_capacitor_NativeBridge_noopNative(
+    JNIEnv* env, jobject thiz, jlong context_id) {
+}
+
+// Like tokenizeNative: one token per four bytes of text
+JNIEXPORT jintArray JNICALL
+Java_ai_annadata_plugin_capacitor_NativeBridge_tokenizeNative(
+    JNIEnv* env, jobject thiz, jlong context_id, jstring text) {
+    const std::string text_str = jstring_to_string(env, text);
+    std::vector<jint> tokens((text_str.size() + 3) / 4);
+    for (size_t i = 0; i < tokens.size(); i++) {
+        tokens[i] = (jint) (text_str[i * 4] * 31 + i);
+    }
+    jintArray result = env->NewIntArray((jsize) tokens.size());
+    if (result != nullptr && !tokens.empty()) {
+        env->SetIntArrayRegion(result, 0, (jsize) tokens.size(), tokens.data());
+    }
+    return result;
+}
+
+// Like detokenizeNative: four characters per token
+JNIEXPORT jstring JNICALL
+Java_ai_annadata_plugin_capacitor_NativeBridge_detokenizeNative(
+    JNIEnv* env, jobject thiz, jlong context_id, jintArray tokens) {
+    const jsize n_tokens = env->GetArrayLength(tokens);
+    std::vector<jint> ids(n_tokens);
+    env->GetIntArrayRegion(tokens, 0, n_tokens, ids.data());
+    std::string text;
+    text.reserve(n_tokens * 4);
+    for (jint id : ids) {
+        text.append(1, (char) ('a' + (id & 15))).append("bc ");
+    }
+    return env->NewStringUTF(text.c_str());
+}
+
+// Like embeddingNative: a normalized vector of n_embd floats
+JNIEXPORT jfloatArray JNICALL
+Java_ai_annadata_plugin_capacitor_NativeBridge_embeddingNative(
+    JNIEnv* env, jobject thiz, jlong context_id, jstring text, jint n_embd) {
+    const std::string text_str = jstring_to_string(env, text);
+    std::vector<jfloat> embedding(n_embd, n_embd > 0 ? 1.0f / n_embd : 0.0f);
+    jfloatArray result = env->NewFloatArray(n_embd);
+    if (result != nullptr && n_embd > 0) {
+        env->SetFloatArrayRegion(result, 0, n_embd, embedding.data());
+    }
+    return result;
+}
+
+// Same keys as memoryInfoNative
+JNIEXPORT jobject JNICALL
+Java_ai_annadata_plugin_capacitor_NativeBridge_memoryInfoNative(
+    JNIEnv* env, jobject thiz, jlong context_id) {
+    jobject result = new_hash_map(env);
+    map_put_long(env, result, "model_bytes", 1LL << 30);
+    map_put_long(env, result, "kv_bytes", 1LL << 28);
+    map_put_int(env, result, "n_ctx", 4096);
+    map_put_long(env, result, "compute_bytes", 1LL << 26);
+    map_put_bool(env, result, "model_shared", false);
+    map_put_int(env, result, "model_refs", 1);
+    return result;
+}
+
+// Same values as completionNative, filled through the shared builder
+JNIEXPORT jobject JNICALL
+Java_ai_annadata_plugin_capacitor_NativeBridge_completionNative(
+    JNIEnv* env, jobject thiz, jlong context_id, jstring params_json, jint text_length) {
+    const std::string params = jstring_to_string(env, params_json);
+    completion_result_fields fields;
+    fields.text = std::string(text_length, 'x');
+    fields.content = fields.text;
+    fields.stopped_eos = true;
+    fields.tokens_evaluated = (int) params.size() / 4;
+    fields.tokens_predicted = text_length / 4;
+    fields.prompt_ms = 250.0;
+    fields.predicted_ms = 4000.0;
+    return new_completion_result(env, fields);
+}
+
+} // extern "C"
@@ -0,0 +1,105 @@
+package ai.annadata.plugin.capacitor;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Java-only costs of turning results into what the WebView receives. Serialization to a string is
+ * measured separately, as Capacitor does it once per resolve or event.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class MarshallingBenchmark {
+    // Tokens in a tokenize or detokenize call
+    @Param({"64", "2048"})
+    public int tokens;
+
+    // Characters of generated text in a completion result
+    @Param({"256"})
+    public int textLength;
+
+    private CompletionResult completion;
+    private Map<String, Object> memoryMap;
+    private int[] tokenIds;
+    private JSONArray tokenArray;
+    private float[] embedding;
+    private JSONObject completionResult;
+
+    @Setup
+    public void setup() throws JSONException {
+        String text = "x".repeat(textLength);
+        completion = new CompletionResult();
+        completion.text = text;
+        completion.content = text;
+        completion.stoppedEos = true;
+        completion.tokensEvaluated = 100;
+        completion.tokensPredicted = 128;
+        completion.promptMs = 250;
+        completion.predictedMs = 4000;
+
+        memoryMap = new HashMap<>();
+        memoryMap.put("model_bytes", 1L << 30);
+        memoryMap.put("kv_bytes", 1L << 28);
+        memoryMap.put("n_ctx", 4096);
+        memoryMap.put("compute_bytes", 1L << 26);
+        memoryMap.put("model_shared", false);
+        memoryMap.put("model_refs", 1);
+
+        tokenIds = new int[tokens];
+        for (int i = 0; i < tokens; i++) {
+            tokenIds[i] = (i * 7919) % 32000;
+        }
+        tokenArray = Marshalling.putInts(new JSONArray(), tokenIds);
+        embedding = new float[768];
+        for (int i = 0; i < embedding.length; i++) {
+            embedding[i] = (float) Math.sin(i);
+        }
+        completionResult = writeCompletionResult();
+    }
+
+    // The copy at the end of most plugin methods
+    @Benchmark
+    public JSONObject copySmallResult() {
+        return Marshalling.putAll(new JSONObject(), memoryMap);
+    }
+
+    @Benchmark
+    public JSONObject writeCompletionResult() throws JSONException {
+        JSONObject out = new JSONObject();
+        completion.writeTo(out);
+        return out;
+    }
+
+    @Benchmark
+    public String serializeCompletionResult() {
+        return completionResult.toString();
+    }
+
+    @Benchmark
+    public JSONArray tokensToJSArray() {
+        return Marshalling.putInts(new JSONArray(), tokenIds);
+    }
+
+    @Benchmark
+    public int[] tokensFromJSArray() throws JSONException {
+        return Marshalling.toIntArray(tokenArray);
+    }
+
+    @Benchmark
+    public JSONArray embeddingToJSArray() throws JSONException {
+        return Marshalling.putFloats(new JSONArray(), embedding);
+    }
+}
@@ -0,0 +1,20 @@
+package ai.annadata.plugin.capacitor;
+
+import java.util.Map;
+
+/**
+ * Native methods with the same parameter and result types as LlamaCpp's entry points, bound to the
+ * stub library built from src/jmh/cpp. Instance methods, like the real ones.
+ */
+class NativeBridge {
+    static {
+        System.loadLibrary("bridgestub");
+    }
+
+    native void noopNative(long contextId);
+    native int[] tokenizeNative(long contextId, String text);
+    native String detokenizeNative(long contextId, int[] tokens);
+    native float[] embeddingNative(long contextId, String text, int nEmbd);
+    native Map<String, Object> memoryInfoNative(long contextId);
+    native CompletionResult completionNative(long contextId, String paramsJson, int textLength);
+}
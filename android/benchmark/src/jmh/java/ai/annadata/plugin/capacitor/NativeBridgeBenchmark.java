@@ -0,0 +1,90 @@
+package ai.annadata.plugin.capacitor;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of calling into native code and of building results there, against the stub library. The
+ * no-op call is the floor every entry point pays; the memory info map shows what per-entry class
+ * lookups and boxing add on top, against the typed completion result.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class NativeBridgeBenchmark {
+    private static final long CONTEXT_ID = 1;
+
+    // Characters of prompt text
+    @Param({"256", "8192"})
+    public int textLength;
+
+    private final NativeBridge bridge = new NativeBridge();
+    private String text;
+    private int[] tokens;
+    private String paramsJson;
+
+    @Setup
+    public void setup() throws JSONException {
+        text = "lorem ipsum dolor sit amet ".repeat(textLength / 27 + 1).substring(0, textLength);
+        tokens = bridge.tokenizeNative(CONTEXT_ID, text);
+        JSONObject params = new JSONObject();
+        params.put("prompt", text);
+        params.put("n_predict", 128);
+        params.put("temperature", 0.8);
+        paramsJson = params.toString();
+    }
+
+    @Benchmark
+    public void noop() {
+        bridge.noopNative(CONTEXT_ID);
+    }
+
+    @Benchmark
+    public int[] tokenize() {
+        return bridge.tokenizeNative(CONTEXT_ID, text);
+    }
+
+    @Benchmark
+    public String detokenize() {
+        return bridge.detokenizeNative(CONTEXT_ID, tokens);
+    }
+
+    @Benchmark
+    public float[] embedding() {
+        return bridge.embeddingNative(CONTEXT_ID, text, 768);
+    }
+
+    @Benchmark
+    public Map<String, Object> memoryInfo() {
+        return bridge.memoryInfoNative(CONTEXT_ID);
+    }
+
+    @Benchmark
+    public CompletionResult completion() {
+        return bridge.completionNative(CONTEXT_ID, paramsJson, 256);
+    }
+
+    // The whole way back for a completion: native result, the plugin's JSON and the string sent to the WebView
+    @Benchmark
+    public String completionToWebView() throws JSONException {
+        CompletionResult nativeResult = bridge.completionNative(CONTEXT_ID, paramsJson, 256);
+        JSONObject out = new JSONObject();
+        nativeResult.writeTo(out);
+        return out.toString();
+    }
+
+    @Benchmark
+    public JSONObject memoryInfoToJSON() {
+        return Marshalling.putAll(new JSONObject(), bridge.memoryInfoNative(CONTEXT_ID));
+    }
+}
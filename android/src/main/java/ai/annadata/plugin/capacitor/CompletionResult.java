@@ -0,0 +1,79 @@
+package ai.annadata.plugin.capacitor;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Result of one completion. completionNative allocates and fills it directly, and the plugin writes it
+ * straight into the object it resolves, so no intermediate map or boxed values are built on either side.
+ * Field names are looked up from jni-marshalling.h; keep the two in step. Plain org.json, so the JVM
+ * benchmarks compile this same class.
+ */
+class CompletionResult {
+    // MARK: - Set by native code
+
+    String text = "";
+    String content = "";
+    String reasoningContent = "";
+    // JSON array, parsed only when the result is written
+    String toolCalls = "[]";
+    int chatFormat;
+    boolean truncated;
+    boolean stoppedEos;
+    String stoppedWord = "";
+    boolean stoppedLimit;
+    String stoppingWord = "";
+    boolean contextFull;
+    boolean interrupted;
+    int tokensEvaluated;
+    int tokensCached;
+    int tokensPredicted;
+
+    // MARK: - Timings
+
+    // Wall time from the start of the request to the first sampled token, and from there to the end
+    double promptMs;
+    double predictedMs;
+
+    void writeTo(JSONObject out) throws JSONException {
+        out.put("text", text);
+        out.put("content", content);
+        out.put("reasoning_content", reasoningContent);
+        out.put("tool_calls", toolCallsArray());
+        out.put("chat_format", chatFormat);
+        out.put("truncated", truncated);
+        out.put("stopped_eos", stoppedEos);
+        out.put("stopped_word", stoppedWord);
+        out.put("stopped_limit", stoppedLimit ? 1 : 0);
+        out.put("stopping_word", stoppingWord);
+        out.put("context_full", contextFull);
+        out.put("interrupted", interrupted);
+        out.put("tokens_evaluated", tokensEvaluated);
+        out.put("tokens_cached", tokensCached);
+        out.put("tokens_predicted", tokensPredicted);
+
+        // Prompt tokens served from the cache cost nothing, so only evaluated ones count towards the rate
+        JSONObject timings = new JSONObject();
+        timings.put("prompt_n", tokensEvaluated);
+        timings.put("prompt_ms", promptMs);
+        timings.put("prompt_per_token_ms", tokensEvaluated > 0 ? promptMs / tokensEvaluated : 0.0);
+        timings.put("prompt_per_second", promptMs > 0 ? tokensEvaluated * 1000.0 / promptMs : 0.0);
+        timings.put("predicted_n", tokensPredicted);
+        timings.put("predicted_ms", predictedMs);
+        timings.put("predicted_per_token_ms", tokensPredicted > 0 ? predictedMs / tokensPredicted : 0.0);
+        timings.put("predicted_per_second", predictedMs > 0 ? tokensPredicted * 1000.0 / predictedMs : 0.0);
+        out.put("timings", timings);
+    }
+
+    private JSONArray toolCallsArray() {
+        if (toolCalls == null || toolCalls.equals("[]")) {
+            return new JSONArray();
+        }
+        try {
+            return new JSONArray(toolCalls);
+        } catch (JSONException e) {
+            return new JSONArray();
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package ai.annadata.plugin.capacitor;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads in flight and recently finished, keyed by URL. Byte counts are updated from the transfer
+ * threads without locking; throughput is a moving average sampled a few times per second, and progress
+ * is published to the listener at most once per interval plus once when a download ends. Downloads with
+ * a verifier get a manifest next to the file once it passed, and lose any older one when they start.
+ * A restarted download waits for the previous worker on the same URL to exit, since both would write
+ * the same partial file, and only the most recent finished downloads are kept for status queries.
+ */
+class DownloadRegistry {
+    static final long DEFAULT_EVENT_INTERVAL_MS = 500;
+
+    // Throughput samples closer together than this are merged into the next one
+    private static final long SAMPLE_INTERVAL_NANOS = 250_000_000L;
+    // Weight of the newest sample in the moving average
+    private static final double SMOOTHING = 0.3;
+    // Finished downloads kept for getDownloadProgress; older ones are dropped
+    static final int MAX_FINISHED = 16;
+
+    static final String STATUS_DOWNLOADING = "downloading";
+    static final String STATUS_COMPLETED = "completed";
+    static final String STATUS_FAILED = "failed";
+    static final String STATUS_CANCELLED = "cancelled";
+
+    interface Listener {
+        void onProgress(Map<String, Object> progress);
+    }
+
+    static final class Download {
+        final String url;
+        final String localPath;
+        final CompletableFuture<String> done = new CompletableFuture<>();
+        private final ModelDownloader downloader;
+        private final DownloadVerifier verifier;
+        private final AtomicLong downloadedBytes = new AtomicLong(0);
+        private volatile long totalBytes = -1;
+        private volatile String status = STATUS_DOWNLOADING;
+        private volatile String errorMessage;
+        private volatile Thread worker;
+        // Order in which downloads finished, 0 while running
+        private volatile long finishedOrder;
+
+        private long sampleNanos = System.nanoTime();
+        private long sampleBytes = -1;
+        private double bytesPerSecond = 0;
+        private long lastEventNanos = 0;
+
+        Download(String url, String localPath, ModelDownloader downloader, DownloadVerifier verifier) {
+            this.url = url;
+            this.localPath = localPath;
+            this.downloader = downloader;
+            this.verifier = verifier;
+        }
+
+        boolean isActive() {
+            return STATUS_DOWNLOADING.equals(status);
+        }
+
+        // The first report of a resumed download only sets the baseline, so old bytes do not count as speed
+        private synchronized void sample(long downloaded, long now) {
+            if (sampleBytes < 0) {
+                sampleBytes = downloaded;
+                sampleNanos = now;
+                return;
+            }
+            long elapsed = now - sampleNanos;
+            if (elapsed < SAMPLE_INTERVAL_NANOS) {
+                return;
+            }
+            double rate = (downloaded - sampleBytes) * 1e9 / elapsed;
+            bytesPerSecond = bytesPerSecond == 0 ? rate : bytesPerSecond + SMOOTHING * (rate - bytesPerSecond);
+            sampleBytes = downloaded;
+            sampleNanos = now;
+        }
+
+        private synchronized boolean shouldPublish(long now, long intervalNanos) {
+            if (lastEventNanos != 0 && now - lastEventNanos < intervalNanos) {
+                return false;
+            }
+            lastEventNanos = now;
+            return true;
+        }
+
+        synchronized Map<String, Object> toMap() {
+            long downloaded = downloadedBytes.get();
+            long total = totalBytes;
+            long remaining = total > 0 ? Math.max(0, total - downloaded) : -1;
+
+            Map<String, Object> progress = new HashMap<>();
+            progress.put("url", url);
+            progress.put("localPath", localPath);
+            progress.put("status", status);
+            progress.put("progress", total > 0 ? (double) downloaded / total : 0.0);
+            progress.put("downloadedBytes", downloaded);
+            progress.put("totalBytes", total);
+            progress.put("bytesPerSecond", bytesPerSecond);
+            progress.put("etaSeconds", remaining >= 0 && bytesPerSecond > 0 ? remaining / bytesPerSecond : -1.0);
+            progress.put("completed", STATUS_COMPLETED.equals(status));
+            progress.put("failed", STATUS_FAILED.equals(status));
+            progress.put("cancelled", STATUS_CANCELLED.equals(status));
+            if (errorMessage != null) {
+                progress.put("errorMessage", errorMessage);
+            }
+            Map<String, Object> verified = verifier != null ? verifier.result() : null;
+            if (verified != null) {
+                progress.put("sha256", verified.get("sha256"));
+                progress.put("verified", true);
+            }
+            return progress;
+        }
+    }
+
+    private final Map<String, Download> downloads = new ConcurrentHashMap<>();
+    private final long eventIntervalNanos;
+    private volatile Listener listener;
+    // Guarded by downloads
+    private long finishCounter = 0;
+
+    DownloadRegistry() {
+        this(DEFAULT_EVENT_INTERVAL_MS);
+    }
+
+    DownloadRegistry(long eventIntervalMs) {
+        this.eventIntervalNanos = Math.max(0, eventIntervalMs) * 1_000_000L;
+    }
+
+    void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    // Start downloading url to localPath on its own thread. A download already running for the URL is
+    // returned as it is, so callers share one transfer. After a cancel the new download only starts once
+    // the old worker has let go of the partial file. The verifier may be null.
+    Download start(String url, String localPath, ModelDownloader downloader, DownloadVerifier verifier) {
+        Download download;
+        CompletableFuture<String> previous;
+        synchronized (downloads) {
+            Download existing = downloads.get(url);
+            if (existing != null && existing.isActive()) {
+                return existing;
+            }
+            download = new Download(url, localPath, downloader, verifier);
+            downloads.put(url, download);
+            previous = existing != null ? existing.done : CompletableFuture.completedFuture(null);
+        }
+        previous.handle((result, error) -> {
+            launch(download);
+            return null;
+        });
+        return download;
+    }
+
+    private void launch(Download download) {
+        synchronized (download) {
+            download.worker = new Thread(() -> run(download), "model-download-" + new File(download.localPath).getName());
+            download.worker.setDaemon(true);
+        }
+        download.worker.start();
+    }
+
+    Download get(String url) {
+        return downloads.get(url);
+    }
+
+    // Stop a running transfer. Returns false when nothing is downloading from the URL.
+    boolean cancel(String url) {
+        Download download = downloads.get(url);
+        if (download == null || !download.isActive()) {
+            return false;
+        }
+        download.status = STATUS_CANCELLED;
+        download.downloader.cancel();
+        Thread worker = download.worker;
+        if (worker != null) {
+            worker.interrupt();
+        }
+        return true;
+    }
+
+    private void run(Download download) {
+        File target = new File(download.localPath);
+        try {
+            ModelManifest.delete(target);
+            download.downloader.download(download.url, target, (downloaded, total) -> {
+                // Ranges report from several threads, so keep the count from going backwards
+                download.downloadedBytes.accumulateAndGet(downloaded, Math::max);
+                download.totalBytes = total;
+                long now = System.nanoTime();
+                download.sample(download.downloadedBytes.get(), now);
+                if (download.shouldPublish(now, eventIntervalNanos)) {
+                    publish(download);
+                }
+            }, download.verifier);
+            if (download.verifier != null) {
+                ModelManifest.write(target, download.verifier.result());
+            }
+            download.status = STATUS_COMPLETED;
+            publish(download);
+            finish(download);
+            download.done.complete(download.localPath);
+        } catch (Exception e) {
+            if (!STATUS_CANCELLED.equals(download.status)) {
+                download.status = STATUS_FAILED;
+            }
+            boolean cancelled = STATUS_CANCELLED.equals(download.status);
+            download.errorMessage = cancelled ? "Download cancelled" : e.getMessage();
+            publish(download);
+            finish(download);
+            download.done.completeExceptionally(new LlamaError(cancelled ? "Download cancelled" : "Download failed: " + e.getMessage()));
+        }
+    }
+
+    // Drop the oldest finished downloads beyond MAX_FINISHED
+    private void finish(Download download) {
+        synchronized (downloads) {
+            download.finishedOrder = ++finishCounter;
+            List<Download> finished = new ArrayList<>();
+            for (Download candidate : downloads.values()) {
+                if (candidate.finishedOrder != 0) {
+                    finished.add(candidate);
+                }
+            }
+            if (finished.size() <= MAX_FINISHED) {
+                return;
+            }
+            finished.sort(Comparator.comparingLong(candidate -> candidate.finishedOrder));
+            for (Download stale : finished.subList(0, finished.size() - MAX_FINISHED)) {
+                downloads.remove(stale.url, stale);
+            }
+        }
+    }
+
+    private void publish(Download download) {
+        Listener current = listener;
+        if (current != null) {
+            current.onProgress(download.toMap());
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package ai.annadata.plugin.capacitor;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Checks a download while it is written. Bytes must be fed in file order: all of them go into a
+ * SHA-256 digest, and the leading ones are also collected until they hold the complete GGUF header,
+ * which is then parsed once for magic, version and tensor bounds. A bad header fails the download
+ * within its first chunks instead of after the whole file has arrived.
+ */
+class DownloadVerifier {
+    // A header that does not fit in this much data is treated as corrupt
+    private static final int MAX_HEADER_BYTES = 64 * 1024 * 1024;
+
+    // Thrown when the data itself is wrong; retrying or resuming would only fetch the same bytes
+    static final class VerificationException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        VerificationException(String message) {
+            super(message);
+        }
+    }
+
+    private final String expectedSha256;
+    private final boolean gguf;
+    private final Set<String> skip;
+    private final MessageDigest digest;
+    private long totalBytes = -1;
+    private long bytes = 0;
+
+    private byte[] header = new byte[0];
+    private int headerLength = 0;
+    private int nextParseAt = 1;
+    private Map<String, Object> ggufInfo;
+    private Map<String, Object> result;
+
+    // expectedSha256 may be null to only record the hash; gguf enables the header checks
+    DownloadVerifier(String expectedSha256, boolean gguf, Set<String> skip) {
+        this.expectedSha256 = expectedSha256 != null && !expectedSha256.isEmpty()
+            ? expectedSha256.trim().toLowerCase(Locale.ROOT) : null;
+        this.gguf = gguf;
+        this.skip = skip;
+        try {
+            this.digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Size announced by the server, so tensor bounds can be checked before the data arrives
+    void setTotalBytes(long totalBytes) {
+        this.totalBytes = totalBytes;
+    }
+
+    void update(byte[] data, int offset, int length) throws IOException {
+        digest.update(data, offset, length);
+        bytes += length;
+        if (gguf && ggufInfo == null) {
+            collectHeader(data, offset, length);
+        }
+    }
+
+    // What the manifest records about the file, or null before finish() succeeded
+    Map<String, Object> result() {
+        return result;
+    }
+
+    // Call once every byte has been fed
+    void finish() throws IOException {
+        if (totalBytes > 0 && bytes != totalBytes) {
+            throw new VerificationException("Verified " + bytes + " of " + totalBytes + " bytes");
+        }
+        if (gguf && ggufInfo == null) {
+            // The file ended before a parse attempt saw all of its header
+            parseHeader(true);
+        }
+        if (gguf) {
+            long end = ((Number) ggufInfo.get("data_offset")).longValue() + ((Number) ggufInfo.get("data_size")).longValue();
+            if (end > bytes) {
+                throw new VerificationException("Tensor data ends at byte " + end + " of a " + bytes + " byte file");
+            }
+        }
+
+        String sha256 = toHex(digest.digest());
+        if (expectedSha256 != null && !expectedSha256.equals(sha256)) {
+            throw new VerificationException("SHA-256 mismatch: expected " + expectedSha256 + ", got " + sha256);
+        }
+
+        result = new HashMap<>();
+        result.put("sha256", sha256);
+        result.put("size", bytes);
+        result.put("sha256_matched", expectedSha256 != null);
+        if (gguf) {
+            result.put("gguf_version", ggufInfo.get("version"));
+            result.put("n_tensors", ggufInfo.get("n_tensors"));
+        }
+    }
+
+    // Parsing is retried each time the collected prefix doubles, so a large header costs a few passes
+    private void collectHeader(byte[] data, int offset, int length) throws IOException {
+        int take = (int) Math.min(length, (long) MAX_HEADER_BYTES - headerLength);
+        if (headerLength + take > header.length) {
+            header = Arrays.copyOf(header, Math.min(MAX_HEADER_BYTES, Math.max(headerLength + take, header.length * 2)));
+        }
+        System.arraycopy(data, offset, header, headerLength, take);
+        headerLength += take;
+        if (headerLength >= nextParseAt || headerLength == MAX_HEADER_BYTES) {
+            parseHeader(headerLength == MAX_HEADER_BYTES);
+            nextParseAt = headerLength * 2;
+        }
+    }
+
+    private void parseHeader(boolean complete) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(header, 0, headerLength).order(ByteOrder.LITTLE_ENDIAN);
+        try {
+            ggufInfo = GgufReader.parse(buffer, skip, totalBytes > 0 ? totalBytes : Long.MAX_VALUE);
+            header = null;
+        } catch (BufferUnderflowException e) {
+            if (complete) {
+                throw new VerificationException("GGUF header is truncated or larger than " + MAX_HEADER_BYTES + " bytes");
+            }
+        } catch (IOException e) {
+            throw new VerificationException("Invalid GGUF file: " + e.getMessage());
+        } catch (RuntimeException e) {
+            // Corrupt lengths and counts surface as buffer or allocation errors
+            throw new VerificationException("Invalid GGUF header: " + e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(String.format(Locale.ROOT, "%02x", b));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,82 @@
+package ai.annadata.plugin.capacitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Cache of parsed GGUF metadata keyed by canonical path. An entry is reused while the file's size and
+ * modification time are unchanged and the same keys are skipped, so listing a model library only
+ * stats each file after the first pass. Results that decode the tokenizer tables can run to megabytes
+ * and are returned without being cached.
+ */
+class GgufIndex {
+    private static final int MAX_ENTRIES = 64;
+
+    private static class Entry {
+        final long size;
+        final long lastModified;
+        final Set<String> skip;
+        final Map<String, Object> info;
+
+        Entry(long size, long lastModified, Set<String> skip, Map<String, Object> info) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.skip = skip;
+            this.info = info;
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private long hits = 0;
+    private long misses = 0;
+
+    // Returns a copy the caller may modify
+    Map<String, Object> get(File file, Set<String> skip) throws IOException {
+        String key = file.getCanonicalPath();
+        long size = file.length();
+        long lastModified = file.lastModified();
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.size == size && entry.lastModified == lastModified && entry.skip.equals(skip)) {
+                hits++;
+                return new HashMap<>(entry.info);
+            }
+            misses++;
+        }
+
+        // Parse outside the lock so one slow file does not hold up the others
+        Map<String, Object> info = GgufReader.read(file, skip);
+        if (!skip.containsAll(GgufReader.TOKENIZER_TABLES)) {
+            return info;
+        }
+        synchronized (this) {
+            entries.put(key, new Entry(size, lastModified, skip, info));
+        }
+        return new HashMap<>(info);
+    }
+
+    synchronized void invalidate(File file) {
+        try {
+            entries.remove(file.getCanonicalPath());
+        } catch (IOException e) {
+            entries.remove(file.getAbsolutePath());
+        }
+    }
+
+    synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("entries", entries.size());
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        return stats;
+    }
+}
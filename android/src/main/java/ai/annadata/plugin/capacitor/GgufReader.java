@@ -0,0 +1,312 @@
+package ai.annadata.plugin.capacitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import org.json.JSONObject;
+
+/**
+ * Reads the metadata section of a GGUF file without loading the model. The file is mapped read-only
+ * starting with a small window that grows only if the header does not fit, so tensor data is never
+ * touched. Values of keys in the skip set are stepped over without being decoded.
+ */
+class GgufReader {
+    // Tokenizer tables are the bulk of a GGUF header and are never shown
+    static final Set<String> TOKENIZER_TABLES = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+        "tokenizer.ggml.tokens", "tokenizer.ggml.token_type", "tokenizer.ggml.merges", "tokenizer.ggml.scores")));
+
+    private static final int MAGIC = 0x46554747; // "GGUF"
+    private static final long INITIAL_WINDOW = 4L * 1024 * 1024;
+    private static final int DEFAULT_ALIGNMENT = 32;
+    private static final int MAX_VERSION = 3;
+    private static final int MAX_DIMS = 4;
+
+    private static final int TYPE_UINT8 = 0;
+    private static final int TYPE_INT8 = 1;
+    private static final int TYPE_UINT16 = 2;
+    private static final int TYPE_INT16 = 3;
+    private static final int TYPE_UINT32 = 4;
+    private static final int TYPE_INT32 = 5;
+    private static final int TYPE_FLOAT32 = 6;
+    private static final int TYPE_BOOL = 7;
+    private static final int TYPE_STRING = 8;
+    private static final int TYPE_ARRAY = 9;
+    private static final int TYPE_UINT64 = 10;
+    private static final int TYPE_INT64 = 11;
+    private static final int TYPE_FLOAT64 = 12;
+
+    // llama_ftype names, indexed by value
+    private static final String[] FILE_TYPES = {
+        "F32", "F16", "Q4_0", "Q4_1", null, null, null, "Q8_0", "Q5_0", "Q5_1",
+        "Q2_K", "Q3_K_S", "Q3_K_M", "Q3_K_L", "Q4_K_S", "Q4_K_M", "Q5_K_S", "Q5_K_M", "Q6_K", "IQ2_XXS",
+        "IQ2_XS", "Q2_K_S", "IQ3_XS", "IQ3_XXS", "IQ1_S", "IQ4_NL", "IQ3_S", "IQ3_M", "IQ2_S", "IQ2_M",
+        "IQ4_XS", "IQ1_M", "BF16", null, null, null, "TQ1_0", "TQ2_0", "MXFP4_MOE",
+    };
+
+    // ggml type block sizes and bytes per block, indexed by type; zero for removed types
+    private static final int[][] TYPE_SIZES = {
+        {1, 4}, {1, 2}, {32, 18}, {32, 20}, {0, 0}, {0, 0}, {32, 22}, {32, 24}, {32, 34}, {32, 36},
+        {256, 84}, {256, 110}, {256, 144}, {256, 176}, {256, 210}, {256, 292}, {256, 66}, {256, 74}, {256, 98}, {256, 50},
+        {32, 18}, {256, 110}, {256, 82}, {256, 136}, {1, 1}, {1, 2}, {1, 4}, {1, 8}, {1, 8}, {256, 56},
+        {1, 2}, {0, 0}, {0, 0}, {0, 0}, {256, 54}, {256, 66}, {0, 0}, {0, 0}, {0, 0}, {32, 17},
+    };
+
+    private GgufReader() {
+    }
+
+    static Map<String, Object> read(File file, Set<String> skip) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            long size = channel.size();
+            long window = Math.min(size, INITIAL_WINDOW);
+            while (true) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, window);
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                try {
+                    Map<String, Object> info = parse(buffer, skip, size);
+                    info.put("path", file.getAbsolutePath());
+                    return info;
+                } catch (BufferUnderflowException e) {
+                    long limit = Math.min(size, Integer.MAX_VALUE);
+                    if (window >= limit) {
+                        throw new IOException("Truncated GGUF header in " + file.getName());
+                    }
+                    window = Math.min(limit, window * 4);
+                }
+            }
+        }
+    }
+
+    // Parse a header that starts at the buffer's position. Throws BufferUnderflowException when the
+    // buffer ends before the header does, and IOException when a tensor lies outside fileSize.
+    static Map<String, Object> parse(ByteBuffer buffer, Set<String> skip, long fileSize) throws IOException {
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("Not a GGUF file");
+        }
+        int version = buffer.getInt();
+        if (version < 2 || version > MAX_VERSION) {
+            throw new IOException("Unsupported GGUF version " + version);
+        }
+        long nTensors = buffer.getLong();
+        long nKv = buffer.getLong();
+
+        Map<String, Object> info = new HashMap<>();
+        info.put("version", version);
+        info.put("n_tensors", nTensors);
+        for (long i = 0; i < nKv; i++) {
+            String key = readString(buffer);
+            int type = buffer.getInt();
+            if (skip.contains(key)) {
+                skipValue(buffer, type);
+            } else {
+                info.put(key, readValue(buffer, type));
+            }
+        }
+
+        Object alignmentValue = info.get("general.alignment");
+        long alignment = alignmentValue instanceof Number ? ((Number) alignmentValue).longValue() : DEFAULT_ALIGNMENT;
+        if (alignment <= 0) {
+            throw new IOException("Invalid GGUF alignment " + alignment);
+        }
+
+        // Tensor infos follow the metadata: shapes give the parameter count, offsets and sizes the data extent
+        long nParams = 0;
+        long dataSize = 0;
+        for (long i = 0; i < nTensors; i++) {
+            skipBytes(buffer, buffer.getLong());
+            int nDims = buffer.getInt();
+            if (nDims < 0 || nDims > MAX_DIMS) {
+                throw new IOException("Tensor " + i + " has " + nDims + " dimensions");
+            }
+            long elements = 1;
+            for (int d = 0; d < nDims; d++) {
+                elements *= buffer.getLong();
+            }
+            int type = buffer.getInt();
+            long offset = buffer.getLong();
+            if (offset < 0 || offset % alignment != 0) {
+                throw new IOException("Tensor " + i + " has misaligned offset " + offset);
+            }
+            dataSize = Math.max(dataSize, offset + tensorBytes(type, elements));
+            nParams += elements;
+        }
+
+        long position = buffer.position();
+        long dataOffset = (position + alignment - 1) / alignment * alignment;
+        if (dataOffset + dataSize > fileSize) {
+            throw new IOException("Tensor data ends at byte " + (dataOffset + dataSize) + " of a " + fileSize + " byte file");
+        }
+        info.put("size", fileSize);
+        info.put("alignment", alignment);
+        info.put("data_offset", dataOffset);
+        info.put("data_size", dataSize);
+
+        String architecture = info.get("general.architecture") instanceof String
+            ? (String) info.get("general.architecture") : "";
+        Object nEmbd = info.get(architecture + ".embedding_length");
+        Object contextLength = info.get(architecture + ".context_length");
+        Object fileType = info.get("general.file_type");
+        String quantization = fileTypeName(fileType);
+        Object sizeLabel = info.get("general.size_label");
+
+        info.put("architecture", architecture);
+        info.put("nEmbd", nEmbd instanceof Number ? ((Number) nEmbd).intValue() : 0);
+        info.put("context_length", contextLength instanceof Number ? ((Number) contextLength).longValue() : 0L);
+        info.put("nParams", nParams);
+        if (quantization != null) {
+            info.put("quantization", quantization);
+        }
+        info.put("desc", (architecture + " "
+            + (sizeLabel instanceof String ? sizeLabel : formatParams(nParams)) + " "
+            + (quantization != null ? quantization : "")).trim());
+        return info;
+    }
+
+    // Size of a tensor's data; unknown types count as empty so newer files still parse
+    private static long tensorBytes(int type, long elements) {
+        if (type < 0 || type >= TYPE_SIZES.length || TYPE_SIZES[type][0] == 0) {
+            return 0;
+        }
+        return elements / TYPE_SIZES[type][0] * TYPE_SIZES[type][1];
+    }
+
+    private static String fileTypeName(Object fileType) {
+        if (!(fileType instanceof Number)) {
+            return null;
+        }
+        int value = ((Number) fileType).intValue();
+        return value >= 0 && value < FILE_TYPES.length ? FILE_TYPES[value] : null;
+    }
+
+    private static String formatParams(long nParams) {
+        if (nParams >= 1_000_000_000L) {
+            return String.format(Locale.ROOT, "%.1fB", nParams / 1e9);
+        }
+        return String.format(Locale.ROOT, "%.0fM", nParams / 1e6);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        long length = buffer.getLong();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[(int) length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static Object readValue(ByteBuffer buffer, int type) throws IOException {
+        switch (type) {
+            case TYPE_UINT8:
+                return buffer.get() & 0xff;
+            case TYPE_INT8:
+                return (int) buffer.get();
+            case TYPE_UINT16:
+                return buffer.getShort() & 0xffff;
+            case TYPE_INT16:
+                return (int) buffer.getShort();
+            case TYPE_UINT32:
+                return buffer.getInt() & 0xffffffffL;
+            case TYPE_INT32:
+                return buffer.getInt();
+            case TYPE_FLOAT32:
+                return (double) buffer.getFloat();
+            case TYPE_BOOL:
+                return buffer.get() != 0;
+            case TYPE_STRING:
+                return readString(buffer);
+            case TYPE_UINT64:
+            case TYPE_INT64:
+                return buffer.getLong();
+            case TYPE_FLOAT64:
+                return buffer.getDouble();
+            case TYPE_ARRAY:
+                return readArray(buffer);
+            default:
+                throw new IOException("Unknown GGUF value type " + type);
+        }
+    }
+
+    // Arrays are rendered as JSON text, as gguf_kv_to_str does
+    private static String readArray(ByteBuffer buffer) throws IOException {
+        int type = buffer.getInt();
+        long n = buffer.getLong();
+        StringBuilder out = new StringBuilder("[");
+        for (long i = 0; i < n; i++) {
+            if (i > 0) {
+                out.append(", ");
+            }
+            Object value = readValue(buffer, type);
+            out.append(value instanceof String ? JSONObject.quote((String) value) : String.valueOf(value));
+        }
+        return out.append(']').toString();
+    }
+
+    private static void skipValue(ByteBuffer buffer, int type) throws IOException {
+        if (type == TYPE_STRING) {
+            skipBytes(buffer, buffer.getLong());
+        } else if (type == TYPE_ARRAY) {
+            int elementType = buffer.getInt();
+            long n = buffer.getLong();
+            int elementSize = fixedSize(elementType);
+            if (elementSize > 0) {
+                if (n < 0 || n > buffer.remaining()) {
+                    throw new BufferUnderflowException();
+                }
+                skipBytes(buffer, n * elementSize);
+            } else {
+                for (long i = 0; i < n; i++) {
+                    skipValue(buffer, elementType);
+                }
+            }
+        } else {
+            int size = fixedSize(type);
+            if (size <= 0) {
+                throw new IOException("Unknown GGUF value type " + type);
+            }
+            skipBytes(buffer, size);
+        }
+    }
+
+    private static int fixedSize(int type) {
+        switch (type) {
+            case TYPE_UINT8:
+            case TYPE_INT8:
+            case TYPE_BOOL:
+                return 1;
+            case TYPE_UINT16:
+            case TYPE_INT16:
+                return 2;
+            case TYPE_UINT32:
+            case TYPE_INT32:
+            case TYPE_FLOAT32:
+                return 4;
+            case TYPE_UINT64:
+            case TYPE_INT64:
+            case TYPE_FLOAT64:
+                return 8;
+            default:
+                return 0;
+        }
+    }
+
+    private static void skipBytes(ByteBuffer buffer, long count) {
+        if (count < 0 || count > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        buffer.position(buffer.position() + (int) count);
+    }
+}
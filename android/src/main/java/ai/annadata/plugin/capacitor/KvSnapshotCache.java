@@ -0,0 +1,219 @@
+package ai.annadata.plugin.capacitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * LRU cache of sequence KV snapshots for one context, keyed by conversation id or prompt-prefix hash.
+ * The most recently used entries stay in direct (off-heap) buffers; older ones are spilled to files
+ * and mapped back in when requested. RAM and disk usage together stay within the byte budget.
+ */
+class KvSnapshotCache {
+    static final int DEFAULT_RAM_ENTRIES = 2;
+    static final long DEFAULT_MAX_BYTES = 512L * 1024 * 1024;
+
+    private static class Entry {
+        final String key;
+        final long size;
+        ByteBuffer ram;
+        File file;
+
+        Entry(String key, ByteBuffer ram) {
+            this.key = key;
+            this.size = ram.remaining();
+            this.ram = ram;
+        }
+    }
+
+    private final File spillDir;
+    private final int maxRamEntries;
+    private final long maxBytes;
+
+    // Access-ordered: iteration runs from least to most recently used
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long ramBytes = 0;
+    private long diskBytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+    private long spills = 0;
+    private int fileCounter = 0;
+
+    KvSnapshotCache(File spillDir, int maxRamEntries, long maxBytes) {
+        this.spillDir = spillDir;
+        this.maxRamEntries = Math.max(0, maxRamEntries);
+        this.maxBytes = maxBytes > 0 ? maxBytes : DEFAULT_MAX_BYTES;
+    }
+
+    // Takes ownership of the buffer; returns false when the snapshot alone exceeds the budget
+    synchronized boolean put(String key, ByteBuffer snapshot) throws IOException {
+        removeEntry(entries.remove(key));
+        if (snapshot.remaining() > maxBytes) {
+            return false;
+        }
+
+        Entry entry = new Entry(key, snapshot);
+        entries.put(key, entry);
+        ramBytes += entry.size;
+        rebalance();
+        return true;
+    }
+
+    // Returns a direct buffer positioned at the snapshot start, or null on a miss
+    synchronized ByteBuffer get(String key) throws IOException {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        rebalance();
+        if (entry.ram != null) {
+            return entry.ram.duplicate();
+        }
+        return map(entry.file, entry.size);
+    }
+
+    synchronized boolean contains(String key) {
+        return entries.containsKey(key);
+    }
+
+    synchronized boolean remove(String key) {
+        Entry entry = entries.remove(key);
+        removeEntry(entry);
+        return entry != null;
+    }
+
+    synchronized void clear() {
+        for (Entry entry : entries.values()) {
+            removeEntry(entry);
+        }
+        entries.clear();
+    }
+
+    // Move every in-RAM entry to disk under memory pressure; the next put rebalances as usual
+    synchronized void spillAll() throws IOException {
+        for (Entry entry : entries.values()) {
+            if (entry.ram != null) {
+                spill(entry);
+            }
+        }
+    }
+
+    synchronized Map<String, Object> getStats() {
+        int ramEntries = 0;
+        for (Entry entry : entries.values()) {
+            if (entry.ram != null) {
+                ramEntries++;
+            }
+        }
+        long lookups = hits + misses;
+
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("entries", entries.size());
+        stats.put("ramEntries", ramEntries);
+        stats.put("diskEntries", entries.size() - ramEntries);
+        stats.put("ramBytes", ramBytes);
+        stats.put("diskBytes", diskBytes);
+        stats.put("maxBytes", maxBytes);
+        stats.put("maxRamEntries", maxRamEntries);
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("hitRate", lookups > 0 ? (double) hits / lookups : 0.0);
+        stats.put("evictions", evictions);
+        stats.put("spills", spills);
+        return stats;
+    }
+
+    // Keep the newest maxRamEntries in RAM, spill the rest, then evict until the budget holds
+    private void rebalance() throws IOException {
+        List<Entry> ordered = new ArrayList<>(entries.values());
+        int size = ordered.size();
+        for (int i = 0; i < size; i++) {
+            Entry entry = ordered.get(i);
+            boolean recent = size - i <= maxRamEntries;
+            if (recent && entry.ram == null) {
+                load(entry);
+            } else if (!recent && entry.ram != null) {
+                spill(entry);
+            }
+        }
+
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (ramBytes + diskBytes > maxBytes && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            iterator.remove();
+            removeEntry(entry);
+            evictions++;
+        }
+    }
+
+    private void spill(Entry entry) throws IOException {
+        if (!spillDir.isDirectory() && !spillDir.mkdirs()) {
+            throw new IOException("Cannot create snapshot directory " + spillDir);
+        }
+        File file = new File(spillDir, "snapshot-" + (fileCounter++) + ".kv");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            ByteBuffer source = entry.ram.duplicate();
+            while (source.hasRemaining()) {
+                channel.write(source);
+            }
+            // A file left by an earlier run may be longer than this snapshot
+            channel.truncate(entry.size);
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+        entry.file = file;
+        entry.ram = null;
+        ramBytes -= entry.size;
+        diskBytes += entry.size;
+        spills++;
+    }
+
+    private void load(Entry entry) throws IOException {
+        ByteBuffer mapped = map(entry.file, entry.size);
+        ByteBuffer ram = ByteBuffer.allocateDirect((int) entry.size);
+        ram.put(mapped);
+        ram.flip();
+        entry.file.delete();
+        entry.file = null;
+        entry.ram = ram;
+        diskBytes -= entry.size;
+        ramBytes += entry.size;
+    }
+
+    private void removeEntry(Entry entry) {
+        if (entry == null) {
+            return;
+        }
+        if (entry.ram != null) {
+            entry.ram = null;
+            ramBytes -= entry.size;
+        }
+        if (entry.file != null) {
+            entry.file.delete();
+            entry.file = null;
+            diskBytes -= entry.size;
+        }
+    }
+
+    private static MappedByteBuffer map(File file, long size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            // The mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+    }
+}
@@ -1,74 +1,256 @@
 package ai.annadata.plugin.capacitor;
 
 import android.util.Log;
+import com.getcapacitor.JSArray;
 import com.getcapacitor.JSObject;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileReader;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.PriorityQueue;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.os.Environment;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Locale;
+import org.json.JSONArray;
+import org.json.JSONObject;
 
-// MARK: - Result Types
-class LlamaResult<T> {
-    private final T data;
-    private final LlamaError error;
-    private final boolean isSuccess;
+// MARK: - Context Management
+class LlamaContext {
+    static final int DEFAULT_QUEUE_CAPACITY = 32;
+
+    private volatile int id;
+    private LlamaModel model;
+    private volatile boolean isMultimodalEnabled = false;
+    private volatile boolean isVocoderEnabled = false;
+    private volatile long nativeContextId = -1;
+    private volatile int parallelism = 1;
+    private volatile int embdNormalize = 2;
+    private volatile String conversationId;
+    private volatile String modelPath;
+    private KvSnapshotCache snapshotCache;
+    private TokenCache tokenCache;
+    // Pool bookkeeping: eviction picks the idle context with the oldest lastUsed
+    private volatile long lastUsed = System.nanoTime();
+    private volatile long kvBytes = 0;
+    private volatile long modelBytes = 0;
+    private volatile long computeBytes = 0;
+    // Session file written by a memory trim, valid until the next request changes the KV state
+    private volatile String spilledSession;
+    private volatile String warmKey;
+    private volatile Map<String, Object> initInfo;
+    // Bumped by every stop; a completion remembers the value it was queued with
+    private final AtomicLong stopEpoch = new AtomicLong();
+
+    // Every native call for this context runs on its own worker, in FIFO order
+    private final ThreadPoolExecutor executor;
 
-    private LlamaResult(T data, LlamaError error, boolean isSuccess) {
-        this.data = data;
-        this.error = error;
-        this.isSuccess = isSuccess;
+    public LlamaContext(int id) {
+        this(id, DEFAULT_QUEUE_CAPACITY);
     }
 
-    public static <T> LlamaResult<T> success(T data) {
-        return new LlamaResult<>(data, null, true);
+    public LlamaContext(int id, int queueCapacity) {
+        this.id = id;
+        this.executor = new ThreadPoolExecutor(
+            1, 1, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(Math.max(1, queueCapacity)),
+            runnable -> {
+                Thread thread = new Thread(runnable, "llama-context-" + id);
+                thread.setDaemon(true);
+                return thread;
+            });
     }
 
-    public static <T> LlamaResult<T> failure(LlamaError error) {
-        return new LlamaResult<>(null, error, false);
+    public int getId() {
+        return id;
     }
 
-    public boolean isSuccess() {
-        return isSuccess;
+    // Only used when a pre-warmed context is handed to the caller under the id it asked for
+    public void setId(int id) {
+        this.id = id;
     }
 
-    public T getData() {
-        return data;
+    // Queue a task behind earlier requests on this context; fails fast when the queue is full
+    public <T> CompletableFuture<T> submit(Callable<T> task) {
+        lastUsed = System.nanoTime();
+        spilledSession = null;
+        CompletableFuture<T> future = enqueue(task);
+        future.whenComplete((result, error) -> lastUsed = System.nanoTime());
+        return future;
     }
 
-    public LlamaError getError() {
-        return error;
+    // Housekeeping such as memory trims: runs on the worker like a request but neither counts as
+    // use for eviction nor invalidates a spilled session
+    public <T> CompletableFuture<T> submitMaintenance(Callable<T> task) {
+        return enqueue(task);
     }
-}
 
-class LlamaError extends Exception {
-    public LlamaError(String message) {
-        super(message);
+    private <T> CompletableFuture<T> enqueue(Callable<T> task) {
+        QueuedTask<T> queued = new QueuedTask<>(task);
+        try {
+            executor.execute(queued);
+        } catch (RejectedExecutionException e) {
+            queued.fail(new LlamaError(executor.isShutdown()
+                ? "Context has been released"
+                : "Too many pending requests for context " + id));
+        }
+        return queued.future;
     }
-}
 
-// MARK: - Context Management
-class LlamaContext {
-    private final int id;
-    private LlamaModel model;
-    private boolean isMultimodalEnabled = false;
-    private boolean isVocoderEnabled = false;
-    private long nativeContextId = -1;
+    public long getStopEpoch() {
+        return stopEpoch.get();
+    }
 
-    public LlamaContext(int id) {
-        this.id = id;
+    public long requestStop() {
+        return stopEpoch.incrementAndGet();
     }
 
-    public int getId() {
-        return id;
+    // Nothing running and nothing queued, so the context can be evicted without failing a request
+    public boolean isIdle() {
+        return executor.getActiveCount() == 0 && executor.getQueue().isEmpty() && !executor.isShutdown();
+    }
+
+    public long getLastUsed() {
+        return lastUsed;
+    }
+
+    public long getKvBytes() {
+        return kvBytes;
+    }
+
+    // Weights are shared by every context on the same model and counted once per model
+    public long getModelBytes() {
+        return modelBytes;
+    }
+
+    public void setMemoryFootprint(long kvBytes, long modelBytes) {
+        this.kvBytes = kvBytes;
+        this.modelBytes = modelBytes;
+    }
+
+    public long getComputeBytes() {
+        return computeBytes;
+    }
+
+    public void setComputeBytes(long computeBytes) {
+        this.computeBytes = computeBytes;
+    }
+
+    public String getSpilledSession() {
+        return spilledSession;
+    }
+
+    public void setSpilledSession(String spilledSession) {
+        this.spilledSession = spilledSession;
+    }
+
+    // Set while the context was pre-warmed and has not yet been claimed by initContext
+    public String getWarmKey() {
+        return warmKey;
+    }
+
+    public void setWarmKey(String warmKey) {
+        this.warmKey = warmKey;
+    }
+
+    public Map<String, Object> getInitInfo() {
+        return initInfo;
+    }
+
+    public void setInitInfo(Map<String, Object> initInfo) {
+        this.initInfo = initInfo;
+    }
+
+    public int getPendingCount() {
+        return executor.getQueue().size();
+    }
+
+    // Allow up to n requests to run at once; the native scheduler batches their decode steps
+    public void setParallelism(int n) {
+        int workers = Math.max(1, n);
+        parallelism = workers;
+        if (workers > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(workers);
+            executor.setCorePoolSize(workers);
+        } else {
+            executor.setCorePoolSize(workers);
+            executor.setMaximumPoolSize(workers);
+        }
+    }
+
+    // Fail queued requests, then run the finalizer once every in-flight request has returned
+    public CompletableFuture<Void> shutdown(Runnable finalizer) {
+        List<Runnable> pending = new ArrayList<>();
+        executor.getQueue().drainTo(pending);
+        for (Runnable runnable : pending) {
+            ((QueuedTask<?>) runnable).fail(new LlamaError("Context has been released"));
+        }
+
+        if (executor.isShutdown()) {
+            CompletableFuture<Void> released = new CompletableFuture<>();
+            released.completeExceptionally(new LlamaError("Context has already been released"));
+            return released;
+        }
+        executor.shutdown();
+
+        QueuedTask<Void> release = new QueuedTask<>(() -> {
+            while (!executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                // Still finishing an in-flight request
+            }
+            finalizer.run();
+            return null;
+        });
+        Thread thread = new Thread(release, "llama-context-" + id + "-release");
+        thread.setDaemon(true);
+        thread.start();
+        return release.future;
+    }
+
+    private static class QueuedTask<T> implements Runnable {
+        private final Callable<T> task;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+
+        QueuedTask(Callable<T> task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            if (future.isDone()) {
+                return;
+            }
+            try {
+                future.complete(task.call());
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        }
+
+        void fail(LlamaError error) {
+            future.completeExceptionally(error);
+        }
     }
 
     public LlamaModel getModel() {
@@ -99,6 +281,51 @@ class LlamaContext {
         return nativeContextId;
     }
 
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public int getEmbdNormalize() {
+        return embdNormalize;
+    }
+
+    public void setEmbdNormalize(int embdNormalize) {
+        this.embdNormalize = embdNormalize;
+    }
+
+    public String getConversationId() {
+        return conversationId;
+    }
+
+    public void setConversationId(String conversationId) {
+        this.conversationId = conversationId;
+    }
+
+    public KvSnapshotCache getSnapshotCache() {
+        return snapshotCache;
+    }
+
+    public void setSnapshotCache(KvSnapshotCache snapshotCache) {
+        this.snapshotCache = snapshotCache;
+    }
+
+    public String getModelPath() {
+        return modelPath;
+    }
+
+    public void setModelPath(String modelPath) {
+        this.modelPath = modelPath;
+    }
+
+    // Shared with every other context on the same model
+    public TokenCache getTokenCache() {
+        return tokenCache;
+    }
+
+    public void setTokenCache(TokenCache tokenCache) {
+        this.tokenCache = tokenCache;
+    }
+
     public void setNativeContextId(long nativeContextId) {
         this.nativeContextId = nativeContextId;
     }
@@ -245,9 +472,36 @@ class MinjaCaps {
 // MARK: - Main Implementation
 public class LlamaCpp {
     private static final String TAG = "LlamaCpp";
-    private final Map<Integer, LlamaContext> contexts = new HashMap<>();
+    private final Map<Integer, LlamaContext> contexts = new ConcurrentHashMap<>();
+    private final Map<String, VectorIndex> indexes = new ConcurrentHashMap<>();
+    // Index files are mapped, written and scanned here, one operation at a time, never on the plugin thread
+    private final ExecutorService indexExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "llama-index");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Tokenizations depend only on the vocab, so contexts on the same model share one cache
+    private final Map<String, TokenCache> tokenCaches = new ConcurrentHashMap<>();
+    private final GgufIndex ggufIndex = new GgufIndex();
+    private final DownloadRegistry downloads = new DownloadRegistry();
+    private ModelStore modelStore;
+    private static final Set<String> MODEL_INFO_SKIP = GgufReader.TOKENIZER_TABLES;
     private int contextCounter = 0;
-    private int contextLimit = 10;
+    private volatile int contextLimit = 10;
+    // Pool limits: 0 disables the byte budget; evicted contexts can leave a session file behind
+    private volatile long contextMemoryBudget = 0;
+    private volatile boolean snapshotOnEvict = false;
+    // Resident-size budget for the whole process; 0 leaves trimming to the system's callbacks
+    private volatile long processMemoryBudget = 0;
+    private volatile int lastTrimStage = 0;
+    private volatile ContextEvictedListener evictedListener;
+    private final Object poolLock = new Object();
+    private int prewarmCounter = 0;
+    // Names snapshot spill directories; unlike context ids it never changes or repeats within the process
+    private static final AtomicLong snapshotDirCounter = new AtomicLong();
+    // Spill directories found on first use belong to an earlier process and are swept once
+    private static final Object snapshotSweepLock = new Object();
+    private static boolean snapshotsSwept = false;
     private boolean nativeLogEnabled = false;
     private Context context;
 
@@ -257,19 +511,28 @@ public class LlamaCpp {
     }
 
     // Native method declarations
-    private native long initContextNative(String modelPath, String[] searchPaths, JSObject params);
+    private native long initContextNative(String modelPath, String[] searchPaths, String paramsJson);
     private native void releaseContextNative(long nativeContextId);
-    private native String completionNative(long contextId, String prompt);
-    private native Map<String, Object> modelInfoNative(String modelPath);
-    private native void stopCompletionNative(long contextId);
+    private native Map<String, Object> memoryInfoNative(long contextId);
+    private native void releaseExtrasNative(long contextId, boolean multimodal, boolean vocoder);
+    private native Map<String, Object> loadSessionNative(long contextId, String filepath, int checkpoint);
+    private native Map<String, Object> saveSessionNative(long contextId, String filepath, int size, boolean incremental);
+    private native float[] embeddingNative(long contextId, String text, int embdNormalize);
+    private native float[] embeddingBatchNative(long contextId, String[] texts, int embdNormalize);
+    private native float[] rerankNative(long contextId, String query, String[] documents);
+    private native Map<String, Object> benchNative(long contextId, int pp, int tg, int pl, int nr);
+    private native int[] tokenizeNative(long contextId, String text, boolean addSpecial, boolean parseSpecial);
+    private native Map<String, Object> tokenizeMediaNative(long contextId, String text, String[] mediaPaths);
+    private native String detokenizeNative(long contextId, int[] tokens);
+    private native int[] countTokensNative(long contextId, String[] texts, boolean addSpecial, boolean parseSpecial);
+    private native ByteBuffer captureSnapshotNative(long contextId);
+    private native int restoreSnapshotNative(long contextId, ByteBuffer snapshot, int size);
+    private native CompletionResult completionNative(long contextId, String paramsJson, PartialCompletionCallback partialCallback);
+    private native void stopCompletionNative(long contextId, long stopEpoch);
     private native String getFormattedChatNative(long contextId, String messages, String chatTemplate);
     private native boolean toggleNativeLogNative(boolean enabled);
     
     // Model download and management methods
-    private native String downloadModelNative(String url, String filename);
-    private native Map<String, Object> getDownloadProgressNative(String url);
-    private native boolean cancelDownloadNative(String url);
-    private native List<Map<String, Object>> getAvailableModelsNative();
 
     static {
         try {
@@ -304,130 +567,140 @@ public class LlamaCpp {
         callback.onResult(LlamaResult.success(null));
     }
 
-    public void downloadModel(String url, String filename, LlamaCallback<String> callback) {
-        try {
-            Log.i(TAG, "Starting download of model: " + filename + " from: " + url);
-            String localPath = downloadModelNative(url, filename);
-            
-            // Start download in background thread
-            new Thread(() -> {
-                try {
-                    downloadFile(url, localPath, callback);
-                } catch (Exception e) {
-                    Log.e(TAG, "Error in download thread: " + e.getMessage());
-                    callback.onResult(LlamaResult.failure(new LlamaError("Download failed: " + e.getMessage())));
+    public void setContextPoolOptions(JSObject options, LlamaCallback<Map<String, Object>> callback) {
+        if (options.has("limit")) {
+            contextLimit = Math.max(1, options.getInteger("limit", contextLimit));
+        }
+        if (options.has("max_bytes")) {
+            contextMemoryBudget = Math.max(0, options.optLong("max_bytes", 0));
+        }
+        if (options.has("snapshot_on_evict")) {
+            snapshotOnEvict = options.getBoolean("snapshot_on_evict", false);
+        }
+        if (options.has("process_max_bytes")) {
+            processMemoryBudget = Math.max(0, options.optLong("process_max_bytes", 0));
+        }
+        Log.i(TAG, "Context pool: limit " + contextLimit + ", budget " + contextMemoryBudget + " bytes");
+        enforceProcessBudget(null);
+        callback.onResult(LlamaResult.success(getContextPoolStats()));
+    }
+
+    public void setContextEvictedListener(ContextEvictedListener listener) {
+        evictedListener = listener;
+    }
+
+    // Load contexts ahead of time; initContext hands them out when a request asks for the same parameters
+    public void prewarmContexts(List<JSObject> configs) {
+        for (JSObject params : configs) {
+            int contextId;
+            synchronized (poolLock) {
+                contextId = --prewarmCounter;
+            }
+            String modelPath = params.getString("modelPath", params.getString("model", ""));
+            initContext(contextId, params, warmKey(modelPath, params), result -> {
+                if (result.isSuccess()) {
+                    Log.i(TAG, "Pre-warmed context for " + modelPath);
+                } else {
+                    Log.w(TAG, "Failed to pre-warm " + modelPath + ": " + result.getError().getMessage());
                 }
-            }).start();
-            
-            // Return the local path immediately
-            callback.onResult(LlamaResult.success(localPath));
-            
-        } catch (Exception e) {
-            Log.e(TAG, "Error preparing download: " + e.getMessage());
-            callback.onResult(LlamaResult.failure(new LlamaError("Download preparation failed: " + e.getMessage())));
+            });
         }
     }
-    
-    private void downloadFile(String url, String localPath, LlamaCallback<String> callback) {
+
+    public void setDownloadProgressListener(DownloadRegistry.Listener listener) {
+        downloads.setListener(listener);
+    }
+
+    // Resolves once the file is complete and verified; progress is published through the download listener.
+    // expectedSha256 may be null, in which case the hash is only recorded in the manifest.
+    public void downloadModel(String url, String filename, String expectedSha256, LlamaCallback<String> callback) {
         try {
-            URL downloadUrl = new URL(url);
-            HttpURLConnection connection = (HttpURLConnection) downloadUrl.openConnection();
-            connection.setRequestMethod("GET");
-            connection.setConnectTimeout(30000);
-            connection.setReadTimeout(0); // No timeout for large files
-            
-            int responseCode = connection.getResponseCode();
-            if (responseCode != HttpURLConnection.HTTP_OK) {
-                throw new IOException("HTTP error code: " + responseCode);
-            }
-            
-            long fileSize = connection.getContentLengthLong();
-            Log.i(TAG, "File size: " + fileSize + " bytes");
-            
-            try (InputStream inputStream = connection.getInputStream();
-                 FileOutputStream outputStream = new FileOutputStream(localPath)) {
-                
-                byte[] buffer = new byte[8192];
-                long downloadedBytes = 0;
-                int bytesRead;
-                
-                while ((bytesRead = inputStream.read(buffer)) != -1) {
-                    outputStream.write(buffer, 0, bytesRead);
-                    downloadedBytes += bytesRead;
-                    
-                    // Log progress every 1MB
-                    if (downloadedBytes % (1024 * 1024) == 0) {
-                        double progress = fileSize > 0 ? (double) downloadedBytes / fileSize * 100 : 0;
-                        Log.i(TAG, String.format("Download progress: %.1f%% (%d/%d bytes)", 
-                            progress, downloadedBytes, fileSize));
+            String localPath = modelStore().fileFor(filename).getAbsolutePath();
+            Log.i(TAG, "Starting download of model: " + filename + " from: " + url);
+            boolean gguf = filename.toLowerCase(Locale.ROOT).endsWith(".gguf");
+            DownloadVerifier verifier = new DownloadVerifier(expectedSha256, gguf, MODEL_INFO_SKIP);
+            downloads.start(url, localPath, new ModelDownloader(), verifier).done
+                .whenComplete((path, error) -> {
+                    if (error == null) {
+                        Log.i(TAG, "Download completed successfully: " + path);
+                    } else {
+                        // The partial file is kept so the next attempt resumes where this one stopped
+                        Log.e(TAG, error.getMessage());
                     }
-                }
-            }
-            
-            Log.i(TAG, "Download completed successfully: " + localPath);
-            callback.onResult(LlamaResult.success(localPath));
-            
+                })
+                .thenApply(path -> {
+                    modelStore().add(new File(path));
+                    return path;
+                })
+                .whenComplete(deliver(callback, "Download failed: "));
         } catch (Exception e) {
-            Log.e(TAG, "Download failed: " + e.getMessage());
-            // Clean up partial file
-            try {
-                new File(localPath).delete();
-            } catch (Exception ignored) {}
-            
-            callback.onResult(LlamaResult.failure(new LlamaError("Download failed: " + e.getMessage())));
+            Log.e(TAG, "Error preparing download: " + e.getMessage());
+            callback.onResult(LlamaResult.failure(new LlamaError("Download preparation failed: " + e.getMessage())));
         }
     }
 
     public void getDownloadProgress(String url, LlamaCallback<Map<String, Object>> callback) {
-        try {
-            Map<String, Object> progress = getDownloadProgressNative(url);
-            if (progress != null) {
-                callback.onResult(LlamaResult.success(progress));
-            } else {
-                callback.onResult(LlamaResult.failure(new LlamaError("No download in progress for this URL")));
-            }
-        } catch (Exception e) {
-            Log.e(TAG, "Error getting download progress: " + e.getMessage());
-            callback.onResult(LlamaResult.failure(new LlamaError("Failed to get progress: " + e.getMessage())));
+        DownloadRegistry.Download download = downloads.get(url);
+        if (download == null) {
+            callback.onResult(LlamaResult.failure(new LlamaError("No download in progress for this URL")));
+            return;
         }
+        callback.onResult(LlamaResult.success(download.toMap()));
     }
 
     public void cancelDownload(String url, LlamaCallback<Boolean> callback) {
-        try {
-            boolean cancelled = cancelDownloadNative(url);
-            callback.onResult(LlamaResult.success(cancelled));
-        } catch (Exception e) {
-            Log.e(TAG, "Error cancelling download: " + e.getMessage());
-            callback.onResult(LlamaResult.failure(new LlamaError("Failed to cancel download: " + e.getMessage())));
-        }
+        callback.onResult(LlamaResult.success(downloads.cancel(url)));
     }
 
-    public void getAvailableModels(LlamaCallback<List<Map<String, Object>>> callback) {
+    // A catalog read; refresh re-checks the models directory for files changed outside the store
+    public void getAvailableModels(boolean refresh, LlamaCallback<List<Map<String, Object>>> callback) {
         try {
-            List<Map<String, Object>> models = getAvailableModelsNative();
-            callback.onResult(LlamaResult.success(models));
+            callback.onResult(LlamaResult.success(modelStore().list(refresh)));
         } catch (Exception e) {
             Log.e(TAG, "Error getting available models: " + e.getMessage());
             callback.onResult(LlamaResult.failure(new LlamaError("Failed to get models: " + e.getMessage())));
         }
     }
 
+    public void setModelStoreOptions(JSObject options, LlamaCallback<Map<String, Object>> callback) {
+        List<String> evicted = new ArrayList<>();
+        if (options.has("max_bytes")) {
+            evicted = modelStore().setMaxBytes(options.optLong("max_bytes", 0));
+        }
+        Map<String, Object> stats = modelStore().getStats();
+        stats.put("evicted", evicted);
+        callback.onResult(LlamaResult.success(stats));
+    }
+
+    // Downloads go to app-specific external storage when there is some, as models are large
+    private synchronized ModelStore modelStore() {
+        if (modelStore == null) {
+            File base = context.getExternalFilesDir(null);
+            File directory = new File(base != null ? base : context.getFilesDir(), "Models");
+            modelStore = new ModelStore(directory, ggufIndex, MODEL_INFO_SKIP, this::loadedModelPaths);
+        }
+        return modelStore;
+    }
+
+    private Set<String> loadedModelPaths() {
+        Set<String> paths = new HashSet<>();
+        for (LlamaContext pooled : contexts.values()) {
+            if (pooled.getModelPath() != null) {
+                paths.add(pooled.getModelPath());
+            }
+        }
+        return paths;
+    }
+
+    // An empty skip list leaves out the tokenizer tables; name other keys to have those decoded
     public void modelInfo(String path, String[] skip, LlamaCallback<Map<String, Object>> callback) {
         try {
-            // Call native method to get actual model info
-            Map<String, Object> modelInfo = modelInfoNative(path);
-            if (modelInfo != null) {
-                callback.onResult(LlamaResult.success(modelInfo));
-            } else {
-                // Fallback to basic info if native method fails
-                Map<String, Object> fallbackInfo = new HashMap<>();
-                fallbackInfo.put("path", path);
-                fallbackInfo.put("desc", "Model file found but info unavailable");
-                fallbackInfo.put("size", 0);
-                fallbackInfo.put("nEmbd", 0);
-                fallbackInfo.put("nParams", 0);
-                callback.onResult(LlamaResult.success(fallbackInfo));
+            File file = resolveModelFile(path);
+            if (file == null) {
+                throw new IOException("Model file not found");
             }
+            Set<String> skipped = skip == null || skip.length == 0 ? MODEL_INFO_SKIP : new HashSet<>(Arrays.asList(skip));
+            callback.onResult(LlamaResult.success(ggufIndex.get(file, skipped)));
         } catch (Exception e) {
             Log.e(TAG, "Error getting model info: " + e.getMessage());
             // Return error info
@@ -441,37 +714,144 @@ public class LlamaCpp {
         }
     }
 
+    // Same lookup order as initContextNative: the path as given, then the app's model directories
+    // The first call moves leftover spill files aside and deletes them in the background, so a crash
+    // never leaves snapshots behind for longer than one restart
+    private File getSnapshotRoot() {
+        File cacheDir = context.getCacheDir();
+        File root = new File(cacheDir, "kv-snapshots");
+        synchronized (snapshotSweepLock) {
+            if (!snapshotsSwept) {
+                snapshotsSwept = true;
+                if (root.exists()) {
+                    root.renameTo(new File(cacheDir, "kv-snapshots-stale-" + System.nanoTime()));
+                }
+                Thread sweep = new Thread(() -> {
+                    File[] stale = cacheDir.listFiles((dir, name) -> name.startsWith("kv-snapshots-stale-"));
+                    if (stale != null) {
+                        for (File file : stale) {
+                            deleteTree(file);
+                        }
+                    }
+                }, "kv-snapshot-sweep");
+                sweep.setDaemon(true);
+                sweep.start();
+            }
+        }
+        return root;
+    }
+
+    private static void deleteTree(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteTree(child);
+            }
+        }
+        file.delete();
+    }
+
+    private File resolveModelFile(String path) {
+        File file = new File(path);
+        if (file.isFile()) {
+            return file;
+        }
+        for (String candidate : getModelSearchPaths(file.getName())) {
+            File found = new File(candidate);
+            if (found.isFile()) {
+                return found;
+            }
+        }
+        return null;
+    }
+
     public void initContext(int contextId, JSObject params, LlamaCallback<Map<String, Object>> callback) {
-        // Check context limit
-        if (contexts.size() >= contextLimit) {
-            callback.onResult(LlamaResult.failure(new LlamaError("Context limit reached")));
+        initContext(contextId, params, null, callback);
+    }
+
+    private void initContext(int contextId, JSObject params, String warmKey, LlamaCallback<Map<String, Object>> callback) {
+        // Extract parameters
+        String modelPath = params.getString("modelPath", params.getString("model", ""));
+        if (modelPath == null || modelPath.isEmpty()) {
+            callback.onResult(LlamaResult.failure(new LlamaError("Model path is required")));
             return;
         }
 
-        try {
-            // Extract parameters
-            String modelPath = params.getString("modelPath", "");
-            if (modelPath == null || modelPath.isEmpty()) {
-                callback.onResult(LlamaResult.failure(new LlamaError("Model path is required")));
+        if (warmKey == null) {
+            Map<String, Object> adopted = adoptPrewarmed(contextId, warmKey(modelPath, params));
+            if (adopted != null) {
+                callback.onResult(LlamaResult.success(adopted));
                 return;
             }
+        }
 
+        LlamaContext context = new LlamaContext(contextId, params.getInteger("queue_size", LlamaContext.DEFAULT_QUEUE_CAPACITY));
+        context.setSnapshotCache(new KvSnapshotCache(
+            new File(getSnapshotRoot(), "context-" + snapshotDirCounter.incrementAndGet()),
+            params.getInteger("snapshot_ram_entries", KvSnapshotCache.DEFAULT_RAM_ENTRIES),
+            params.optLong("snapshot_max_bytes", KvSnapshotCache.DEFAULT_MAX_BYTES)));
+        context.setEmbdNormalize(params.getInteger("embd_normalize", 2));
+        File modelFile = resolveModelFile(modelPath);
+        context.setModelPath(resolveModelKey(modelFile != null ? modelFile.getPath() : modelPath));
+        context.setWarmKey(warmKey);
+        context.setMemoryFootprint(estimateKvBytes(modelFile, params), modelFile != null ? modelFile.length() : 0);
+
+        // Register the context up front so it counts towards the limit while the model loads,
+        // making room by evicting idle contexts when the pool is full
+        List<LlamaContext> victims;
+        synchronized (poolLock) {
+            if (contexts.containsKey(contextId)) {
+                callback.onResult(LlamaResult.failure(new LlamaError("Context " + contextId + " already exists")));
+                return;
+            }
+            victims = selectEvictions(context);
+            if (victims == null) {
+                callback.onResult(LlamaResult.failure(new LlamaError("Context limit reached")));
+                return;
+            }
+            for (LlamaContext victim : victims) {
+                contexts.remove(victim.getId(), victim);
+            }
+            contexts.put(contextId, context);
+            // Under the same lock as releaseTokenCache, so a release cannot drop the cache this context joins
+            long tokenCacheBytes = params.optLong("token_cache_max_bytes", TokenCache.DEFAULT_MAX_BYTES);
+            context.setTokenCache(tokenCaches.computeIfAbsent(context.getModelPath(), path -> new TokenCache(tokenCacheBytes)));
+        }
+        List<CompletableFuture<Void>> evictions = new ArrayList<>();
+        for (LlamaContext victim : victims) {
+            evictions.add(evictContext(victim));
+        }
+        CompletableFuture<Void> room = CompletableFuture.allOf(evictions.toArray(new CompletableFuture<?>[0]));
+
+        context.submit(() -> {
+            // Load only once the evicted contexts have given their memory back
+            room.join();
             String filename = new File(modelPath).getName();
             
             // Get dynamic search paths
             String[] searchPaths = getModelSearchPaths(filename);
+
+            // A model verified when it was downloaded and unchanged since needs no second check
+            JSONObject manifest = modelFile != null ? ModelManifest.read(modelFile) : null;
+            if (manifest != null) {
+                params.put("model_verified", true);
+            }
             
             // Call native initialization
-            long nativeContextId = initContextNative(modelPath, searchPaths, params);
+            long nativeContextId = initContextNative(modelPath, searchPaths, params.toString());
             if (nativeContextId < 0) {
-                callback.onResult(LlamaResult.failure(new LlamaError("Failed to initialize native context")));
-                return;
+                throw new LlamaError("Failed to initialize native context");
             }
-
-            // Create Java context wrapper
-            LlamaContext context = new LlamaContext(contextId);
             context.setNativeContextId(nativeContextId);
-            contexts.put(contextId, context);
+            modelStore().touch(modelFile);
+            // Requests queued behind init stay serial until the model is ready
+            context.setParallelism(params.getInteger("n_parallel", 1));
+            Map<String, Object> memory = memoryInfoNative(nativeContextId);
+            if (memory != null) {
+                context.setMemoryFootprint(
+                    ((Number) memory.get("kv_bytes")).longValue(), ((Number) memory.get("model_bytes")).longValue());
+                context.setComputeBytes(((Number) memory.get("compute_bytes")).longValue());
+            }
 
             // Return context info
             Map<String, Object> contextInfo = new HashMap<>();
@@ -484,44 +864,494 @@ public class LlamaCpp {
             modelInfo.put("size", 0);
             modelInfo.put("nEmbd", 0);
             modelInfo.put("nParams", 0);
+            if (modelFile != null) {
+                try {
+                    Map<String, Object> header = ggufIndex.get(modelFile, MODEL_INFO_SKIP);
+                    for (String key : new String[] {"desc", "size", "nEmbd", "nParams", "architecture", "context_length", "quantization"}) {
+                        if (header.containsKey(key)) {
+                            modelInfo.put(key, header.get(key));
+                        }
+                    }
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not read GGUF metadata: " + e.getMessage());
+                }
+            }
             modelInfo.put("path", modelPath);
+            modelInfo.put("verified", manifest != null);
+            if (manifest != null) {
+                modelInfo.put("sha256", manifest.optString("sha256"));
+            }
 
             contextInfo.put("model", modelInfo);
             contextInfo.put("androidLib", "llama-cpp");
-
-            callback.onResult(LlamaResult.success(contextInfo));
-            
-        } catch (Exception e) {
-            callback.onResult(LlamaResult.failure(new LlamaError("Context initialization failed: " + e.getMessage())));
-        }
+            context.setInitInfo(contextInfo);
+            return contextInfo;
+        }).whenComplete((data, error) -> {
+            if (error != null) {
+                contexts.remove(contextId, context);
+                context.shutdown(() -> releaseTokenCache(context.getModelPath()));
+            } else {
+                enforceProcessBudget(context);
+            }
+            deliver(callback, "Context initialization failed: ").accept(data, error);
+        });
     }
 
     public void releaseContext(int contextId, LlamaCallback<Void> callback) {
-        LlamaContext context = contexts.get(contextId);
+        LlamaContext context = contexts.remove(contextId);
         if (context == null) {
             callback.onResult(LlamaResult.failure(new LlamaError("Context not found")));
             return;
         }
 
-        try {
-            // Release native context
+        releaseContextAsync(context).whenComplete(deliver(callback, "Failed to release context: "));
+    }
+
+    public void releaseAllContexts(LlamaCallback<Void> callback) {
+        List<CompletableFuture<Void>> releases = new ArrayList<>();
+        for (Integer contextId : new ArrayList<>(contexts.keySet())) {
+            LlamaContext context = contexts.remove(contextId);
+            if (context != null) {
+                releases.add(releaseContextAsync(context));
+            }
+        }
+        CompletableFuture.allOf(releases.toArray(new CompletableFuture<?>[0]))
+            .whenComplete(deliver(callback, "Failed to release contexts: "));
+    }
+
+    // Interrupt the running request, drop queued ones and free native memory on the context's worker
+    private CompletableFuture<Void> releaseContextAsync(LlamaContext context) {
+        if (context.getNativeContextId() >= 0) {
+            stopCompletionNative(context.getNativeContextId(), context.requestStop());
+        }
+        return context.shutdown(() -> {
             if (context.getNativeContextId() >= 0) {
                 releaseContextNative(context.getNativeContextId());
+                context.setNativeContextId(-1);
+            }
+            context.getSnapshotCache().clear();
+            releaseTokenCache(context.getModelPath());
+        });
+    }
+
+    // MARK: - Context pool
+
+    public Map<String, Object> getContextPoolStats() {
+        List<LlamaContext> live = new ArrayList<>(contexts.values());
+        int idle = 0;
+        int warm = 0;
+        for (LlamaContext context : live) {
+            idle += context.isIdle() ? 1 : 0;
+            warm += context.getWarmKey() != null ? 1 : 0;
+        }
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("contexts", live.size());
+        stats.put("idle", idle);
+        stats.put("prewarmed", warm);
+        stats.put("bytes", poolBytes(live));
+        stats.put("limit", contextLimit);
+        stats.put("maxBytes", contextMemoryBudget);
+        stats.put("snapshotOnEvict", snapshotOnEvict);
+        return stats;
+    }
+
+    // Least recently used idle contexts to release so the incoming one fits. The context limit is
+    // hard (null when it cannot be met); the byte budget is met as far as idle contexts allow.
+    private List<LlamaContext> selectEvictions(LlamaContext incoming) {
+        List<LlamaContext> live = new ArrayList<>(contexts.values());
+        List<LlamaContext> idle = new ArrayList<>();
+        for (LlamaContext context : live) {
+            if (context.getInitInfo() != null && context.isIdle()) {
+                idle.add(context);
             }
-            
-            // Remove from Java context map
-            contexts.remove(contextId);
-            
-            callback.onResult(LlamaResult.success(null));
-            
-        } catch (Exception e) {
-            callback.onResult(LlamaResult.failure(new LlamaError("Failed to release context: " + e.getMessage())));
         }
+        idle.sort((a, b) -> Long.compare(a.getLastUsed(), b.getLastUsed()));
+        live.add(incoming);
+
+        List<LlamaContext> victims = new ArrayList<>();
+        for (LlamaContext candidate : idle) {
+            boolean overLimit = live.size() > contextLimit;
+            boolean overBudget = contextMemoryBudget > 0 && poolBytes(live) > contextMemoryBudget;
+            if (!overLimit && !overBudget) {
+                break;
+            }
+            live.remove(candidate);
+            victims.add(candidate);
+        }
+        if (live.size() > contextLimit) {
+            return null;
+        }
+        if (contextMemoryBudget > 0 && poolBytes(live) > contextMemoryBudget) {
+            Log.w(TAG, "Context pool is over its memory budget with no idle context left to evict");
+        }
+        return victims;
     }
 
-    public void releaseAllContexts(LlamaCallback<Void> callback) {
-        contexts.clear();
-        callback.onResult(LlamaResult.success(null));
+    // KV caches plus the weights of each distinct model
+    private static long poolBytes(List<LlamaContext> live) {
+        Map<String, Long> models = new HashMap<>();
+        long bytes = 0;
+        for (LlamaContext context : live) {
+            bytes += context.getKvBytes();
+            models.merge(context.getModelPath(), context.getModelBytes(), Math::max);
+        }
+        for (long modelBytes : models.values()) {
+            bytes += modelBytes;
+        }
+        return bytes;
+    }
+
+    // Save the victim's KV state if asked to, then release it. Never fails, so the init waiting on
+    // the eviction always proceeds.
+    private CompletableFuture<Void> evictContext(LlamaContext victim) {
+        int victimId = victim.getId();
+        CompletableFuture<String> saved = CompletableFuture.completedFuture(victim.getSpilledSession());
+        if (victim.getSpilledSession() == null && snapshotOnEvict && victim.getWarmKey() == null
+                && victim.getNativeContextId() >= 0) {
+            File session = new File(new File(context.getCacheDir(), "evicted-sessions"), "context-" + victimId + ".session");
+            saved = victim.submit(() -> {
+                session.getParentFile().mkdirs();
+                saveSessionNative(victim.getNativeContextId(), session.getAbsolutePath(), 0, false);
+                return session.getAbsolutePath();
+            }).exceptionally(error -> {
+                Log.w(TAG, "Could not save session of evicted context " + victimId + ": " + error.getMessage());
+                return null;
+            });
+        }
+        return saved.thenCompose(sessionPath -> {
+            Log.i(TAG, "Evicting idle context " + victimId);
+            ContextEvictedListener listener = evictedListener;
+            if (listener != null) {
+                listener.onContextEvicted(victimId, sessionPath);
+            }
+            return releaseContextAsync(victim);
+        }).exceptionally(error -> {
+            Log.w(TAG, "Failed to release evicted context " + victimId + ": " + error.getMessage());
+            return null;
+        });
+    }
+
+    // MARK: - Memory pressure
+
+    static final int TRIM_CACHES = 1;
+    static final int TRIM_SESSIONS = 2;
+    static final int TRIM_EXTRAS = 3;
+    static final int TRIM_CONTEXTS = 4;
+
+    // Called from the plugin's ComponentCallbacks2; the stronger the signal, the further the trim goes
+    public void onTrimMemory(int level) {
+        int stage;
+        switch (level) {
+            case ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE:
+            case ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN:
+                stage = TRIM_CACHES;
+                break;
+            case ComponentCallbacks2.TRIM_MEMORY_BACKGROUND:
+                stage = TRIM_SESSIONS;
+                break;
+            case ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW:
+            case ComponentCallbacks2.TRIM_MEMORY_MODERATE:
+                stage = TRIM_EXTRAS;
+                break;
+            case ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL:
+            case ComponentCallbacks2.TRIM_MEMORY_COMPLETE:
+                stage = TRIM_CONTEXTS;
+                break;
+            default:
+                return;
+        }
+        Log.i(TAG, "Trim memory level " + level + ", stage " + stage);
+        trimMemory(stage, null);
+    }
+
+    // Apply every degradation step up to stage to idle contexts, other than keep. Busy contexts are
+    // left alone so no request fails because of a trim:
+    // 1. KV snapshots held in RAM go to disk and tokenization caches are dropped
+    // 2. the live KV state is saved as a session file, so the later stages lose nothing
+    // 3. multimodal projectors and vocoders are freed
+    // 4. the contexts themselves are released, reporting the saved session through the eviction listener
+    private CompletableFuture<Void> trimMemory(int stage, LlamaContext keep) {
+        lastTrimStage = Math.max(lastTrimStage, stage);
+        List<LlamaContext> idle = new ArrayList<>();
+        for (LlamaContext context : contexts.values()) {
+            if (context != keep && context.getInitInfo() != null && context.isIdle()) {
+                idle.add(context);
+            }
+        }
+
+        // Spills and saves write to disk, so they run on each context's worker rather than the caller,
+        // which is the main thread for system trim callbacks
+        List<CompletableFuture<?>> steps = new ArrayList<>();
+        for (LlamaContext context : idle) {
+            if (context.getTokenCache() != null) {
+                context.getTokenCache().clear();
+            }
+            steps.add(context.submitMaintenance(() -> {
+                try {
+                    context.getSnapshotCache().spillAll();
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not spill KV snapshots of context " + context.getId() + ": " + e.getMessage());
+                }
+                return null;
+            }));
+            if (stage >= TRIM_SESSIONS && context.getWarmKey() == null && context.getSpilledSession() == null) {
+                File session = new File(new File(this.context.getCacheDir(), "evicted-sessions"), "context-" + context.getId() + ".session");
+                steps.add(context.submitMaintenance(() -> {
+                    session.getParentFile().mkdirs();
+                    saveSessionNative(context.getNativeContextId(), session.getAbsolutePath(), 0, false);
+                    context.setSpilledSession(session.getAbsolutePath());
+                    return null;
+                }));
+            }
+            if (stage >= TRIM_EXTRAS && (context.isMultimodalEnabled() || context.isVocoderEnabled())) {
+                steps.add(context.submitMaintenance(() -> {
+                    releaseExtrasNative(context.getNativeContextId(), context.isMultimodalEnabled(), context.isVocoderEnabled());
+                    context.setMultimodalEnabled(false);
+                    context.setVocoderEnabled(false);
+                    return null;
+                }));
+            }
+        }
+
+        return CompletableFuture.allOf(steps.toArray(new CompletableFuture<?>[0]))
+            .handle((ignored, error) -> {
+                if (error != null) {
+                    Log.w(TAG, "Memory trim step failed: " + error.getMessage());
+                }
+                return (Void) null;
+            })
+            .thenCompose(ignored -> stage >= TRIM_CONTEXTS ? releaseIdleContexts(keep) : CompletableFuture.completedFuture(null));
+    }
+
+    private CompletableFuture<Void> releaseIdleContexts(LlamaContext keep) {
+        List<CompletableFuture<Void>> evictions = new ArrayList<>();
+        synchronized (poolLock) {
+            for (LlamaContext context : new ArrayList<>(contexts.values())) {
+                if (context != keep && context.getInitInfo() != null && context.isIdle()
+                        && contexts.remove(context.getId(), context)) {
+                    evictions.add(evictContext(context));
+                }
+            }
+        }
+        return CompletableFuture.allOf(evictions.toArray(new CompletableFuture<?>[0]));
+    }
+
+    // Step through the trim stages until the process fits its budget again
+    private CompletableFuture<Void> enforceProcessBudget(LlamaContext keep) {
+        return enforceProcessBudget(keep, TRIM_CACHES);
+    }
+
+    private CompletableFuture<Void> enforceProcessBudget(LlamaContext keep, int stage) {
+        long budget = processMemoryBudget;
+        long resident = residentBytes();
+        if (budget <= 0 || resident < 0 || resident <= budget || stage > TRIM_CONTEXTS) {
+            return CompletableFuture.completedFuture(null);
+        }
+        Log.w(TAG, "Process resident size " + resident + " is over the " + budget + " byte budget, trim stage " + stage);
+        return trimMemory(stage, keep).thenCompose(ignored -> enforceProcessBudget(keep, stage + 1));
+    }
+
+    // VmRSS of this process, or -1 when /proc is unavailable
+    private static long residentBytes() {
+        try (BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.substring(6).trim().split("\\s+")[0]) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            Log.w(TAG, "Could not read resident size: " + e.getMessage());
+        }
+        return -1;
+    }
+
+    public void getMemoryStats(LlamaCallback<Map<String, Object>> callback) {
+        List<LlamaContext> live = new ArrayList<>(contexts.values());
+        Map<String, Long> weights = new HashMap<>();
+        List<Map<String, Object>> perContext = new ArrayList<>();
+        long kvBytes = 0;
+        long computeBytes = 0;
+        for (LlamaContext context : live) {
+            Map<String, Object> snapshots = context.getSnapshotCache().getStats();
+            Map<String, Object> entry = new HashMap<>();
+            entry.put("contextId", context.getId());
+            entry.put("modelPath", context.getModelPath());
+            entry.put("weightsBytes", context.getModelBytes());
+            entry.put("kvBytes", context.getKvBytes());
+            entry.put("computeBytes", context.getComputeBytes());
+            entry.put("snapshotRamBytes", snapshots.get("ramBytes"));
+            entry.put("snapshotDiskBytes", snapshots.get("diskBytes"));
+            entry.put("idle", context.isIdle());
+            entry.put("prewarmed", context.getWarmKey() != null);
+            entry.put("multimodal", context.isMultimodalEnabled());
+            entry.put("vocoder", context.isVocoderEnabled());
+            if (context.getSpilledSession() != null) {
+                entry.put("sessionPath", context.getSpilledSession());
+            }
+            perContext.add(entry);
+            kvBytes += context.getKvBytes();
+            computeBytes += context.getComputeBytes();
+            weights.merge(context.getModelPath(), context.getModelBytes(), Math::max);
+        }
+        long weightsBytes = 0;
+        for (long bytes : weights.values()) {
+            weightsBytes += bytes;
+        }
+
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("contexts", perContext);
+        stats.put("weightsBytes", weightsBytes);
+        stats.put("kvBytes", kvBytes);
+        stats.put("computeBytes", computeBytes);
+        stats.put("residentBytes", residentBytes());
+        stats.put("processMaxBytes", processMemoryBudget);
+        stats.put("lastTrimStage", lastTrimStage);
+        callback.onResult(LlamaResult.success(stats));
+    }
+
+    // Hand an idle pre-warmed context with the same parameters to the caller under the id it asked for
+    private Map<String, Object> adoptPrewarmed(int contextId, String warmKey) {
+        synchronized (poolLock) {
+            if (contexts.containsKey(contextId)) {
+                return null;
+            }
+            for (LlamaContext candidate : contexts.values()) {
+                if (warmKey.equals(candidate.getWarmKey()) && candidate.getInitInfo() != null && candidate.isIdle()) {
+                    contexts.remove(candidate.getId(), candidate);
+                    candidate.setId(contextId);
+                    candidate.setWarmKey(null);
+                    Map<String, Object> info = new HashMap<>(candidate.getInitInfo());
+                    info.put("contextId", contextId);
+                    candidate.setInitInfo(info);
+                    contexts.put(contextId, candidate);
+                    Log.i(TAG, "Context " + contextId + " uses a pre-warmed context");
+                    return info;
+                }
+            }
+        }
+        return null;
+    }
+
+    // A pre-warmed context only serves an initContext request with exactly the same parameters:
+    // the resolved model path plus every other init param, with object keys sorted
+    private static String warmKey(String modelPath, JSObject params) {
+        StringBuilder key = new StringBuilder(resolveModelKey(modelPath));
+        List<String> names = new ArrayList<>();
+        for (Iterator<String> it = params.keys(); it.hasNext(); ) {
+            String name = it.next();
+            if (!name.equals("model") && !name.equals("modelPath")) {
+                names.add(name);
+            }
+        }
+        Collections.sort(names);
+        for (String name : names) {
+            key.append('|').append(name).append('=');
+            appendCanonical(key, params.opt(name));
+        }
+        return key.toString();
+    }
+
+    private static void appendCanonical(StringBuilder out, Object value) {
+        if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            List<String> names = new ArrayList<>();
+            for (Iterator<String> it = object.keys(); it.hasNext(); ) {
+                names.add(it.next());
+            }
+            Collections.sort(names);
+            out.append('{');
+            for (String name : names) {
+                out.append(JSONObject.quote(name)).append(':');
+                appendCanonical(out, object.opt(name));
+                out.append(',');
+            }
+            out.append('}');
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            out.append('[');
+            for (int i = 0; i < array.length(); i++) {
+                appendCanonical(out, array.opt(i));
+                out.append(',');
+            }
+            out.append(']');
+        } else if (value instanceof String) {
+            out.append(JSONObject.quote((String) value));
+        } else if (value instanceof Number && ((Number) value).doubleValue() == ((Number) value).longValue()) {
+            // 512 and 512.0 arrive depending on the bridge; both mean the same setting
+            out.append(((Number) value).longValue());
+        } else {
+            out.append(value);
+        }
+    }
+
+    // f16 KV cache size from the GGUF header, used until the native context reports the real one
+    private long estimateKvBytes(File modelFile, JSObject params) {
+        if (modelFile == null) {
+            return 0;
+        }
+        try {
+            Map<String, Object> header = ggufIndex.get(modelFile, MODEL_INFO_SKIP);
+            String arch = (String) header.get("architecture");
+            long nCtx = params.getInteger("n_ctx", 0);
+            if (nCtx <= 0) {
+                nCtx = ((Number) header.get("context_length")).longValue();
+            }
+            Object layers = header.get(arch + ".block_count");
+            Object heads = header.get(arch + ".attention.head_count");
+            Object headsKv = header.get(arch + ".attention.head_count_kv");
+            if (!(layers instanceof Number) || !(heads instanceof Number) || ((Number) heads).longValue() <= 0) {
+                return 0;
+            }
+            long nHeadKv = headsKv instanceof Number ? ((Number) headsKv).longValue() : ((Number) heads).longValue();
+            long headDim = ((Number) header.get("nEmbd")).longValue() / ((Number) heads).longValue();
+            return nCtx * ((Number) layers).longValue() * 2 * nHeadKv * headDim * 2;
+        } catch (IOException | RuntimeException e) {
+            return 0;
+        }
+    }
+
+    // Drop a model's token cache once no remaining context uses the model
+    private void releaseTokenCache(String modelPath) {
+        synchronized (poolLock) {
+            for (LlamaContext other : contexts.values()) {
+                if (modelPath.equals(other.getModelPath())) {
+                    return;
+                }
+            }
+            TokenCache cache = tokenCaches.remove(modelPath);
+            if (cache != null) {
+                cache.clear();
+            }
+        }
+    }
+
+    private static String resolveModelKey(String modelPath) {
+        File file = new File(modelPath);
+        if (!file.exists()) {
+            return modelPath;
+        }
+        try {
+            return file.getCanonicalPath();
+        } catch (IOException e) {
+            return file.getAbsolutePath();
+        }
+    }
+
+    // Deliver the outcome of a context task to a callback, keeping LlamaError messages as they are
+    private static <T> BiConsumer<T, Throwable> deliver(LlamaCallback<T> callback, String errorPrefix) {
+        return (data, error) -> {
+            if (error == null) {
+                callback.onResult(LlamaResult.success(data));
+                return;
+            }
+            Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+            if (cause instanceof LlamaError) {
+                callback.onResult(LlamaResult.failure((LlamaError) cause));
+            } else {
+                callback.onResult(LlamaResult.failure(new LlamaError(errorPrefix + cause.getMessage())));
+            }
+        };
     }
 
     // MARK: - Chat and completion
@@ -533,7 +1363,7 @@ public class LlamaCpp {
             return;
         }
 
-        try {
+        context.submit(() -> {
             // Call native formatted chat
             String result = getFormattedChatNative(context.getNativeContextId(), messages, chatTemplate);
             
@@ -543,70 +1373,37 @@ public class LlamaCpp {
             formattedChat.put("prompt", result);
             formattedChat.put("has_media", false);
             formattedChat.put("media_paths", new String[0]);
-
-            callback.onResult(LlamaResult.success(formattedChat));
-            
-        } catch (Exception e) {
-            callback.onResult(LlamaResult.failure(new LlamaError("Failed to format chat: " + e.getMessage())));
-        }
+            return formattedChat;
+        }).whenComplete(deliver(callback, "Failed to format chat: "));
     }
 
-    public void completion(int contextId, JSObject params, LlamaCallback<Map<String, Object>> callback) {
+    public void completion(int contextId, JSObject params, PartialCompletionCallback partialCallback, LlamaCallback<CompletionResult> callback) {
         LlamaContext context = contexts.get(contextId);
         if (context == null) {
             callback.onResult(LlamaResult.failure(new LlamaError("Context not found")));
             return;
         }
 
-        try {
-            // Extract parameters from JSObject
-            String prompt = params.getString("prompt", "");
-            int nPredict = params.getInteger("n_predict", 128);
-            float temperature = params.has("temp") ? (float) params.getDouble("temp") : 0.8f;
-            float topP = params.has("top_p") ? (float) params.getDouble("top_p") : 0.95f;
-            int topK = params.getInteger("top_k", 40);
-            float repeatPenalty = params.has("repeat_penalty") ? (float) params.getDouble("repeat_penalty") : 1.1f;
-
-            // Call native completion
-            String result = completionNative(context.getNativeContextId(), prompt);
-            
-            // Build completion result
-            Map<String, Object> completionResult = new HashMap<>();
-            completionResult.put("text", result);
-            completionResult.put("reasoning_content", "");
-            completionResult.put("tool_calls", new Object[0]);
-            completionResult.put("content", result);
-            completionResult.put("chat_format", 0);
-            completionResult.put("tokens_predicted", nPredict);
-            completionResult.put("tokens_evaluated", 0);
-            completionResult.put("truncated", false);
-            completionResult.put("stopped_eos", false);
-            completionResult.put("stopped_word", "");
-            completionResult.put("stopped_limit", 0);
-            completionResult.put("stopping_word", "");
-            completionResult.put("context_full", false);
-            completionResult.put("interrupted", false);
-            completionResult.put("tokens_cached", 0);
-
-            Map<String, Object> timings = new HashMap<>();
-            timings.put("prompt_n", 0);
-            timings.put("prompt_ms", 0);
-            timings.put("prompt_per_token_ms", 0);
-            timings.put("prompt_per_second", 0);
-            timings.put("predicted_n", nPredict);
-            timings.put("predicted_ms", 0);
-            timings.put("predicted_per_token_ms", 0);
-            timings.put("predicted_per_second", 0);
-
-            completionResult.put("timings", timings);
-
-            callback.onResult(LlamaResult.success(completionResult));
-            
-        } catch (Exception e) {
-            callback.onResult(LlamaResult.failure(new LlamaError("Completion failed: " + e.getMessage())));
-        }
+        // A stop issued after this point applies to this request, even while it is still queued
+        params.put("stop_epoch", context.getStopEpoch());
+        context.submit(() -> {
+            // Parallel contexts keep conversations apart in their own slots instead
+            String conversationId = params.has("conversation_id") ? params.getString("conversation_id") : null;
+            if (conversationId != null && context.getParallelism() == 1) {
+                switchConversation(context, conversationId);
+            }
+
+            // Run the native generation loop; partial results are pushed through partialCallback as tokens arrive.
+            // Sampling options are read from params on the native side.
+            CompletionResult completionResult = completionNative(context.getNativeContextId(), params.toString(), partialCallback);
+            if (completionResult == null) {
+                throw new LlamaError("Completion returned no result");
+            }
+            return completionResult;
+        }).whenComplete(deliver(callback, "Completion failed: "));
     }
 
+    // Control call: runs immediately instead of waiting behind the request it is meant to stop
     public void stopCompletion(int contextId, LlamaCallback<Void> callback) {
         LlamaContext context = contexts.get(contextId);
         if (context == null) {
@@ -615,7 +1412,11 @@ public class LlamaCpp {
         }
 
         try {
-            stopCompletionNative(context.getNativeContextId());
+            // Also covers requests still queued: they compare this epoch with their own when they start
+            long stopEpoch = context.requestStop();
+            if (context.getNativeContextId() >= 0) {
+                stopCompletionNative(context.getNativeContextId(), stopEpoch);
+            }
             callback.onResult(LlamaResult.success(null));
         } catch (Exception e) {
             callback.onResult(LlamaResult.failure(new LlamaError("Failed to stop completion: " + e.getMessage())));
@@ -624,118 +1425,555 @@ public class LlamaCpp {
 
     // MARK: - Session management
 
-    public void loadSession(int contextId, String filepath, LlamaCallback<Map<String, Object>> callback) {
-        if (contexts.get(contextId) == null) {
+    // checkpoint selects a checkpoint in an incremental session file; -1 loads the latest
+    public void loadSession(int contextId, String filepath, int checkpoint, LlamaCallback<Map<String, Object>> callback) {
+        LlamaContext context = contexts.get(contextId);
+        if (context == null) {
             callback.onResult(LlamaResult.failure(new LlamaError("Context not found")));
             return;
         }
 
-        // This would typically load session from file
-        Map<String, Object> sessionResult = new HashMap<>();
-        sessionResult.put("tokens_loaded", 0);
-        sessionResult.put("prompt", "");
+        if (filepath == null || filepath.isEmpty()) {
+            callback.onResult(LlamaResult.failure(new LlamaError("Session path is required")));
+            return;
+        }
 
-        callback.onResult(LlamaResult.success(sessionResult));
+        context.submit(() -> {
+            if (!new File(filepath).isFile()) {
+                throw new LlamaError("Session file not found: " + filepath);
+            }
+            Map<String, Object> sessionResult = loadSessionNative(context.getNativeContextId(), filepath, checkpoint);
+            if (sessionResult == null) {
+                throw new LlamaError("Session load returned no result");
+            }
+            return sessionResult;
+        }).whenComplete(deliver(callback, "Failed to load session: "));
     }
 
-    public void saveSession(int contextId, String filepath, int size, LlamaCallback<Integer> callback) {
-        if (contexts.get(contextId) == null) {
+    // incremental appends a delta checkpoint instead of rewriting the whole state
+    public void saveSession(int contextId, String filepath, int size, boolean incremental, LlamaCallback<Map<String, Object>> callback) {
+        LlamaContext context = contexts.get(contextId);
+        if (context == null) {
+            callback.onResult(LlamaResult.failure(new LlamaError("Context not found")));
+            return;
+        }
+
+        if (filepath == null || filepath.isEmpty()) {
+            callback.onResult(LlamaResult.failure(new LlamaError("Session path is required")));
+            return;
+        }
+
+        // size <= 0 saves every cached token
+        context.submit(() -> {
+            Map<String, Object> saveResult = saveSessionNative(context.getNativeContextId(), filepath, size, incremental);
+            if (saveResult == null) {
+                throw new LlamaError("Session save returned no result");
+            }
+            return saveResult;
+        }).whenComplete(deliver(callback, "Failed to save session: "));
+    }
+
+    // MARK: - KV snapshots
+
+    public void saveSnapshot(int contextId, String key, LlamaCallback<Map<String, Object>> callback) {
+        LlamaContext context = contexts.get(contextId);
+        if (context == null) {
+            callback.onResult(LlamaResult.failure(new LlamaError("Context not found")));
+            return;
+        }
+
+        context.submit(() -> {
+            ByteBuffer snapshot = captureSnapshotNative(context.getNativeContextId());
+            if (snapshot == null) {
+                throw new LlamaError("Snapshot capture returned no data");
+            }
+            int bytes = snapshot.remaining();
+            Map<String, Object> result = new HashMap<>();
+            result.put("cached", context.getSnapshotCache().put(key, snapshot));
+            result.put("bytes", bytes);
+            return result;
+        }).whenComplete(deliver(callback, "Failed to save snapshot: "));
+    }
+
+    public void restoreSnapshot(int contextId, String key, LlamaCallback<Map<String, Object>> callback) {
+        LlamaContext context = contexts.get(contextId);
+        if (context == null) {
+            callback.onResult(LlamaResult.failure(new LlamaError("Context not found")));
+            return;
+        }
+
+        context.submit(() -> {
+            ByteBuffer snapshot = context.getSnapshotCache().get(key);
+            Map<String, Object> result = new HashMap<>();
+            result.put("hit", snapshot != null);
+            result.put("tokens_restored", snapshot != null
+                ? restoreSnapshotNative(context.getNativeContextId(), snapshot, snapshot.remaining())
+                : 0);
+            if (snapshot != null) {
+                context.setConversationId(key);
+            }
+            return result;
+        }).whenComplete(deliver(callback, "Failed to restore snapshot: "));
+    }
+
+    public void getSnapshotCacheStats(int contextId, LlamaCallback<Map<String, Object>> callback) {
+        LlamaContext context = contexts.get(contextId);
+        if (context == null) {
             callback.onResult(LlamaResult.failure(new LlamaError("Context not found")));
             return;
         }
+        callback.onResult(LlamaResult.success(context.getSnapshotCache().getStats()));
+    }
+
+    // Park the active conversation's KV state in the snapshot cache and bring back the requested one
+    private void switchConversation(LlamaContext context, String conversationId) throws IOException {
+        String current = context.getConversationId();
+        if (conversationId.equals(current)) {
+            return;
+        }
+        KvSnapshotCache cache = context.getSnapshotCache();
+        if (current != null) {
+            ByteBuffer snapshot = captureSnapshotNative(context.getNativeContextId());
+            if (snapshot != null) {
+                cache.put(current, snapshot);
+            }
+        }
+        context.setConversationId(conversationId);
 
-        // This would typically save session to file
-        callback.onResult(LlamaResult.success(0));
+        // On a miss the cache keeps the previous tokens, so a shared system prompt is still reused
+        ByteBuffer cached = cache.get(conversationId);
+        if (cached != null) {
+            int restored = restoreSnapshotNative(context.getNativeContextId(), cached, cached.remaining());
+            Log.d(TAG, "Restored " + restored + " cached tokens for conversation " + conversationId);
+        }
     }
 
     // MARK: - Tokenization
 
-    public void tokenize(int contextId, String text, String[] imagePaths, LlamaCallback<Map<String, Object>> callback) {
-        if (contexts.get(contextId) == null) {
+    // Text-only tokenization reads just the vocab, so it runs inline instead of queueing behind a completion
+    public void tokenize(int contextId, String text, String[] imagePaths, boolean addSpecial, boolean parseSpecial,
+                         LlamaCallback<Map<String, Object>> callback) {
+        LlamaContext context = contexts.get(contextId);
+        if (context == null) {
             callback.onResult(LlamaResult.failure(new LlamaError("Context not found")));
             return;
         }
 
-        // This would typically tokenize the text using the model's tokenizer
-        Map<String, Object> tokenizeResult = new HashMap<>();
-        tokenizeResult.put("tokens", new Integer[0]);
-        tokenizeResult.put("has_images", false);
-        tokenizeResult.put("bitmap_hashes", new Integer[0]);
-        tokenizeResult.put("chunk_pos", new Integer[0]);
-        tokenizeResult.put("chunk_pos_images", new Integer[0]);
+        if (imagePaths != null && imagePaths.length > 0) {
+            context.submit(() -> {
+                Map<String, Object> tokenizeResult = tokenizeMediaNative(context.getNativeContextId(), text, imagePaths);
+                if (tokenizeResult == null) {
+                    throw new LlamaError("Tokenize returned no result");
+                }
+                return tokenizeResult;
+            }).whenComplete(deliver(callback, "Failed to tokenize: "));
+            return;
+        }
 
-        callback.onResult(LlamaResult.success(tokenizeResult));
+        try {
+            TokenCache cache = context.getTokenCache();
+            int[] tokens = cache.get(text, addSpecial, parseSpecial);
+            if (tokens == null) {
+                tokens = tokenizeNative(context.getNativeContextId(), text, addSpecial, parseSpecial);
+                cache.put(text, addSpecial, parseSpecial, tokens);
+            }
+            Map<String, Object> tokenizeResult = new HashMap<>();
+            tokenizeResult.put("tokens", tokens);
+            tokenizeResult.put("has_images", false);
+            tokenizeResult.put("bitmap_hashes", new String[0]);
+            tokenizeResult.put("chunk_pos", new int[0]);
+            tokenizeResult.put("chunk_pos_images", new int[0]);
+            callback.onResult(LlamaResult.success(tokenizeResult));
+        } catch (RuntimeException e) {
+            callback.onResult(LlamaResult.failure(new LlamaError("Failed to tokenize: " + e.getMessage())));
+        }
     }
 
-    public void detokenize(int contextId, Integer[] tokens, LlamaCallback<String> callback) {
-        if (contexts.get(contextId) == null) {
+    public void detokenize(int contextId, int[] tokens, LlamaCallback<String> callback) {
+        LlamaContext context = contexts.get(contextId);
+        if (context == null) {
+            callback.onResult(LlamaResult.failure(new LlamaError("Context not found")));
+            return;
+        }
+
+        try {
+            callback.onResult(LlamaResult.success(detokenizeNative(context.getNativeContextId(), tokens)));
+        } catch (RuntimeException e) {
+            callback.onResult(LlamaResult.failure(new LlamaError("Failed to detokenize: " + e.getMessage())));
+        }
+    }
+
+    // Lengths only; no token arrays cross JNI
+    public void countTokens(int contextId, String[] texts, boolean addSpecial, boolean parseSpecial, LlamaCallback<int[]> callback) {
+        LlamaContext context = contexts.get(contextId);
+        if (context == null) {
             callback.onResult(LlamaResult.failure(new LlamaError("Context not found")));
             return;
         }
 
-        // This would typically detokenize using the model's tokenizer
-        callback.onResult(LlamaResult.success(""));
+        try {
+            // Cached texts answer from their token arrays; only the rest go to native
+            TokenCache cache = context.getTokenCache();
+            int[] counts = new int[texts.length];
+            List<Integer> missing = new ArrayList<>();
+            for (int i = 0; i < texts.length; i++) {
+                int[] tokens = cache.get(texts[i], addSpecial, parseSpecial);
+                if (tokens != null) {
+                    counts[i] = tokens.length;
+                } else {
+                    missing.add(i);
+                }
+            }
+            if (!missing.isEmpty()) {
+                String[] uncached = new String[missing.size()];
+                for (int i = 0; i < uncached.length; i++) {
+                    uncached[i] = texts[missing.get(i)];
+                }
+                int[] uncachedCounts = countTokensNative(context.getNativeContextId(), uncached, addSpecial, parseSpecial);
+                for (int i = 0; i < uncachedCounts.length; i++) {
+                    counts[missing.get(i)] = uncachedCounts[i];
+                }
+            }
+            callback.onResult(LlamaResult.success(counts));
+        } catch (RuntimeException e) {
+            callback.onResult(LlamaResult.failure(new LlamaError("Failed to count tokens: " + e.getMessage())));
+        }
+    }
+
+    public void getTokenCacheStats(int contextId, LlamaCallback<Map<String, Object>> callback) {
+        LlamaContext context = contexts.get(contextId);
+        if (context == null) {
+            callback.onResult(LlamaResult.failure(new LlamaError("Context not found")));
+            return;
+        }
+        Map<String, Object> stats = context.getTokenCache().getStats();
+        stats.put("modelPath", context.getModelPath());
+        callback.onResult(LlamaResult.success(stats));
     }
 
     // MARK: - Embeddings and reranking
 
-    public void embedding(int contextId, String text, JSObject params, LlamaCallback<Map<String, Object>> callback) {
-        if (contexts.get(contextId) == null) {
+    // The vector stays a primitive float[] until the plugin serializes it
+    public void embedding(int contextId, String text, JSObject params, LlamaCallback<float[]> callback) {
+        LlamaContext context = contexts.get(contextId);
+        if (context == null) {
             callback.onResult(LlamaResult.failure(new LlamaError("Context not found")));
             return;
         }
 
-        // This would typically generate embeddings
-        Map<String, Object> embeddingResult = new HashMap<>();
-        embeddingResult.put("embedding", new Double[0]);
+        int embdNormalize = params != null ? params.getInteger("embd_normalize", context.getEmbdNormalize()) : context.getEmbdNormalize();
+        context.submit(() -> {
+            float[] embedding = embeddingNative(context.getNativeContextId(), text, embdNormalize);
+            if (embedding == null) {
+                throw new LlamaError("Embedding returned no result");
+            }
+            return embedding;
+        }).whenComplete(deliver(callback, "Failed to generate embedding: "));
+    }
 
-        callback.onResult(LlamaResult.success(embeddingResult));
+    // Rows are packed into one float[]: texts.length vectors of equal width, in input order
+    public void embeddingBatch(int contextId, String[] texts, JSObject params, LlamaCallback<float[]> callback) {
+        LlamaContext context = contexts.get(contextId);
+        if (context == null) {
+            callback.onResult(LlamaResult.failure(new LlamaError("Context not found")));
+            return;
+        }
+        if (texts.length == 0) {
+            callback.onResult(LlamaResult.success(new float[0]));
+            return;
+        }
+
+        int embdNormalize = params != null ? params.getInteger("embd_normalize", context.getEmbdNormalize()) : context.getEmbdNormalize();
+        context.submit(() -> {
+            float[] embeddings = embeddingBatchNative(context.getNativeContextId(), texts, embdNormalize);
+            if (embeddings == null) {
+                throw new LlamaError("Embedding returned no result");
+            }
+            return embeddings;
+        }).whenComplete(deliver(callback, "Failed to generate embeddings: "));
     }
 
-    public void rerank(int contextId, String query, String[] documents, JSObject params, LlamaCallback<Map<String, Object>[]> callback) {
-        if (contexts.get(contextId) == null) {
+    // Results are sorted by score; top_n > 0 keeps only that many of the best documents
+    public void rerank(int contextId, String query, String[] documents, JSObject params, LlamaCallback<List<Map<String, Object>>> callback) {
+        LlamaContext context = contexts.get(contextId);
+        if (context == null) {
+            callback.onResult(LlamaResult.failure(new LlamaError("Context not found")));
+            return;
+        }
+        if (documents.length == 0) {
+            callback.onResult(LlamaResult.success(new ArrayList<>()));
+            return;
+        }
+
+        int topN = params != null ? params.getInteger("top_n", 0) : 0;
+        context.submit(() -> {
+            float[] scores = rerankNative(context.getNativeContextId(), query, documents);
+            if (scores == null) {
+                throw new LlamaError("Rerank returned no result");
+            }
+
+            List<Map<String, Object>> results = new ArrayList<>();
+            for (int index : topIndices(scores, topN > 0 ? Math.min(topN, scores.length) : scores.length)) {
+                Map<String, Object> result = new HashMap<>();
+                result.put("index", index);
+                result.put("score", (double) scores[index]);
+                results.add(result);
+            }
+            return results;
+        }).whenComplete(deliver(callback, "Failed to rerank: "));
+    }
+
+    // Indices of the n highest scores, best first; a bounded min-heap avoids sorting everything
+    private static int[] topIndices(float[] scores, int n) {
+        PriorityQueue<Integer> heap = new PriorityQueue<>(n, (a, b) -> Float.compare(scores[a], scores[b]));
+        for (int i = 0; i < scores.length; i++) {
+            if (heap.size() < n) {
+                heap.offer(i);
+            } else if (scores[i] > scores[heap.peek()]) {
+                heap.poll();
+                heap.offer(i);
+            }
+        }
+        int[] indices = new int[heap.size()];
+        for (int i = indices.length - 1; i >= 0; i--) {
+            indices[i] = heap.poll();
+        }
+        return indices;
+    }
+
+    // MARK: - Vector index
+
+    private File getIndexDirectory() {
+        return new File(context.getFilesDir(), "indexes");
+    }
+
+    private VectorIndex findIndex(String name, LlamaCallback<?> callback) {
+        VectorIndex index = indexes.get(name);
+        if (index == null) {
+            callback.onResult(LlamaResult.failure(new LlamaError("Index not found: " + name)));
+        }
+        return index;
+    }
+
+    // Looked up on the index worker, so it sees the outcome of earlier create and load calls
+    private VectorIndex requireIndex(String name) throws LlamaError {
+        VectorIndex index = indexes.get(name);
+        if (index == null) {
+            throw new LlamaError("Index not found: " + name);
+        }
+        return index;
+    }
+
+    private <T> CompletableFuture<T> submitIndexTask(Callable<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        indexExecutor.execute(() -> {
+            try {
+                future.complete(task.call());
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+        });
+        return future;
+    }
+
+    private static Map<String, Object> indexInfo(String name, VectorIndex index) {
+        Map<String, Object> info = new HashMap<>();
+        info.put("name", name);
+        info.put("dimensions", index.getDimensions());
+        info.put("count", index.size());
+        info.put("embd_normalize", index.getEmbdNormalize());
+        return info;
+    }
+
+    // dimensions may be 0 to take the width of the first added vectors
+    public void createIndex(String name, int dimensions, int embdNormalize, LlamaCallback<Map<String, Object>> callback) {
+        if (name == null || !name.matches("[A-Za-z0-9_-]+")) {
+            callback.onResult(LlamaResult.failure(new LlamaError("Invalid index name: " + name)));
+            return;
+        }
+        submitIndexTask(() -> {
+            VectorIndex index = VectorIndex.create(getIndexDirectory(), name, dimensions, embdNormalize);
+            VectorIndex previous = indexes.put(name, index);
+            if (previous != null) {
+                previous.close();
+            }
+            return indexInfo(name, index);
+        }).whenComplete(deliver(callback, "Failed to create index: "));
+    }
+
+    // Adds either texts (embedded on the given context) or count row-major vectors
+    public void addToIndex(String name, int contextId, String[] texts, float[] vectors, int count, LlamaCallback<Map<String, Object>> callback) {
+        if (texts == null) {
+            submitIndexTask(() -> {
+                VectorIndex index = requireIndex(name);
+                int firstId = index.add(vectors, count, null);
+                Map<String, Object> result = indexInfo(name, index);
+                result.put("firstId", firstId);
+                result.put("added", count);
+                return result;
+            }).whenComplete(deliver(callback, "Failed to add to index: "));
+            return;
+        }
+
+        VectorIndex index = findIndex(name, callback);
+        if (index == null) {
+            return;
+        }
+        LlamaContext context = contexts.get(contextId);
+        if (context == null) {
             callback.onResult(LlamaResult.failure(new LlamaError("Context not found")));
             return;
         }
+        context.submit(() -> {
+            float[] embeddings = texts.length > 0
+                ? embeddingBatchNative(context.getNativeContextId(), texts, index.getEmbdNormalize())
+                : new float[0];
+            if (embeddings == null) {
+                throw new LlamaError("Embedding returned no result");
+            }
+            int firstId = index.add(embeddings, texts.length, texts);
+            Map<String, Object> result = indexInfo(name, index);
+            result.put("firstId", firstId);
+            result.put("added", texts.length);
+            return result;
+        }).whenComplete(deliver(callback, "Failed to add to index: "));
+    }
+
+    // Searches with a text query embedded on the given context, or with a raw vector when query is null
+    public void searchIndex(String name, int contextId, String query, float[] vector, int k, LlamaCallback<List<Map<String, Object>>> callback) {
+        if (query == null) {
+            submitIndexTask(() -> {
+                VectorIndex index = requireIndex(name);
+                return toHitMaps(index, index.search(vector, k));
+            }).whenComplete(deliver(callback, "Failed to search index: "));
+            return;
+        }
 
-        // This would typically perform reranking
-        Map<String, Object>[] rerankResults = new Map[0];
-        callback.onResult(LlamaResult.success(rerankResults));
+        VectorIndex index = findIndex(name, callback);
+        if (index == null) {
+            return;
+        }
+        LlamaContext context = contexts.get(contextId);
+        if (context == null) {
+            callback.onResult(LlamaResult.failure(new LlamaError("Context not found")));
+            return;
+        }
+        context.submit(() -> {
+            float[] embedding = embeddingNative(context.getNativeContextId(), query, index.getEmbdNormalize());
+            if (embedding == null) {
+                throw new LlamaError("Embedding returned no result");
+            }
+            return toHitMaps(index, index.search(embedding, k));
+        }).whenComplete(deliver(callback, "Failed to search index: "));
+    }
+
+    private static List<Map<String, Object>> toHitMaps(VectorIndex index, List<VectorIndex.Hit> hits) {
+        List<Map<String, Object>> results = new ArrayList<>(hits.size());
+        for (VectorIndex.Hit hit : hits) {
+            Map<String, Object> result = new HashMap<>();
+            result.put("id", hit.id);
+            result.put("score", (double) hit.score);
+            String text = index.getText(hit.id);
+            if (text != null) {
+                result.put("text", text);
+            }
+            results.add(result);
+        }
+        return results;
+    }
+
+    public void saveIndex(String name, LlamaCallback<Map<String, Object>> callback) {
+        submitIndexTask(() -> {
+            VectorIndex index = requireIndex(name);
+            index.save();
+            return indexInfo(name, index);
+        }).whenComplete(deliver(callback, "Failed to save index: "));
+    }
+
+    public void loadIndex(String name, LlamaCallback<Map<String, Object>> callback) {
+        if (name == null || !name.matches("[A-Za-z0-9_-]+")) {
+            callback.onResult(LlamaResult.failure(new LlamaError("Invalid index name: " + name)));
+            return;
+        }
+        submitIndexTask(() -> {
+            VectorIndex previous = indexes.remove(name);
+            if (previous != null) {
+                previous.close();
+            }
+            VectorIndex index = VectorIndex.load(getIndexDirectory(), name);
+            indexes.put(name, index);
+            return indexInfo(name, index);
+        }).whenComplete(deliver(callback, "Failed to load index: "));
+    }
+
+    // Unmaps the index; its files stay on disk for a later loadIndex
+    public void releaseIndex(String name, LlamaCallback<Void> callback) {
+        submitIndexTask(() -> {
+            VectorIndex index = indexes.remove(name);
+            if (index == null) {
+                throw new LlamaError("Index not found: " + name);
+            }
+            index.close();
+            return (Void) null;
+        }).whenComplete(deliver(callback, "Failed to release index: "));
     }
 
     // MARK: - Benchmarking
 
-    public void bench(int contextId, int pp, int tg, int pl, int nr, LlamaCallback<String> callback) {
-        if (contexts.get(contextId) == null) {
+    // Prompt processing and generation speed of the loaded model. Clears the context's KV cache.
+    public void bench(int contextId, int pp, int tg, int pl, int nr, LlamaCallback<Map<String, Object>> callback) {
+        LlamaContext context = contexts.get(contextId);
+        if (context == null) {
             callback.onResult(LlamaResult.failure(new LlamaError("Context not found")));
             return;
         }
 
-        // This would typically run benchmarks
-        String benchResult = "[]";
-        callback.onResult(LlamaResult.success(benchResult));
+        context.submit(() -> {
+            Map<String, Object> result = benchNative(context.getNativeContextId(), pp, tg, pl, nr);
+            if (result == null) {
+                throw new LlamaError("Benchmark returned no result");
+            }
+            // Results are compared across quantizations, so say which one was measured
+            result.put("modelPath", context.getModelPath());
+            File modelFile = resolveModelFile(context.getModelPath());
+            if (modelFile != null) {
+                try {
+                    Map<String, Object> header = ggufIndex.get(modelFile, MODEL_INFO_SKIP);
+                    for (String key : new String[] {"architecture", "quantization"}) {
+                        if (header.containsKey(key)) {
+                            result.put(key, header.get(key));
+                        }
+                    }
+                } catch (IOException e) {
+                    Log.w(TAG, "Could not read GGUF metadata: " + e.getMessage());
+                }
+            }
+            return result;
+        }).whenComplete(deliver(callback, "Benchmark failed: "));
     }
 
     // MARK: - LoRA adapters
 
     public void applyLoraAdapters(int contextId, JSObject[] loraAdapters, LlamaCallback<Void> callback) {
-        if (contexts.get(contextId) == null) {
+        LlamaContext context = contexts.get(contextId);
+        if (context == null) {
             callback.onResult(LlamaResult.failure(new LlamaError("Context not found")));
             return;
         }
 
         // This would typically apply LoRA adapters
-        callback.onResult(LlamaResult.success(null));
+        context.submit(() -> (Void) null).whenComplete(deliver(callback, "Failed to apply LoRA adapters: "));
     }
 
     public void removeLoraAdapters(int contextId, LlamaCallback<Void> callback) {
-        if (contexts.get(contextId) == null) {
+        LlamaContext context = contexts.get(contextId);
+        if (context == null) {
             callback.onResult(LlamaResult.failure(new LlamaError("Context not found")));
             return;
         }
 
         // This would typically remove LoRA adapters
-        callback.onResult(LlamaResult.success(null));
+        context.submit(() -> (Void) null).whenComplete(deliver(callback, "Failed to remove LoRA adapters: "));
     }
 
     public void getLoadedLoraAdapters(int contextId, LlamaCallback<Map<String, Object>[]> callback) {
@@ -745,7 +1983,8 @@ public class LlamaCpp {
         }
 
         // This would typically return loaded LoRA adapters
-        Map<String, Object>[] adapters = new Map[0];
+        @SuppressWarnings("unchecked")
+        Map<String, Object>[] adapters = (Map<String, Object>[]) new Map<?, ?>[0];
         callback.onResult(LlamaResult.success(adapters));
     }
 
@@ -758,8 +1997,10 @@ public class LlamaCpp {
             return;
         }
 
-        context.setMultimodalEnabled(true);
-        callback.onResult(LlamaResult.success(true));
+        context.submit(() -> {
+            context.setMultimodalEnabled(true);
+            return true;
+        }).whenComplete(deliver(callback, "Failed to initialize multimodal: "));
     }
 
     public void isMultimodalEnabled(int contextId, LlamaCallback<Boolean> callback) {
@@ -792,8 +2033,11 @@ public class LlamaCpp {
             return;
         }
 
-        context.setMultimodalEnabled(false);
-        callback.onResult(LlamaResult.success(null));
+        context.submit(() -> {
+            releaseExtrasNative(context.getNativeContextId(), true, false);
+            context.setMultimodalEnabled(false);
+            return (Void) null;
+        }).whenComplete(deliver(callback, "Failed to release multimodal: "));
     }
 
     // MARK: - TTS methods
@@ -805,8 +2049,10 @@ public class LlamaCpp {
             return;
         }
 
-        context.setVocoderEnabled(true);
-        callback.onResult(LlamaResult.success(true));
+        context.submit(() -> {
+            context.setVocoderEnabled(true);
+            return true;
+        }).whenComplete(deliver(callback, "Failed to initialize vocoder: "));
     }
 
     public void isVocoderEnabled(int contextId, LlamaCallback<Boolean> callback) {
@@ -820,36 +2066,38 @@ public class LlamaCpp {
     }
 
     public void getFormattedAudioCompletion(int contextId, String speakerJsonStr, String textToSpeak, LlamaCallback<Map<String, Object>> callback) {
-        if (contexts.get(contextId) == null) {
+        LlamaContext context = contexts.get(contextId);
+        if (context == null) {
             callback.onResult(LlamaResult.failure(new LlamaError("Context not found")));
             return;
         }
 
-        Map<String, Object> audioCompletion = new HashMap<>();
-        audioCompletion.put("prompt", "");
-        audioCompletion.put("grammar", null);
-
-        callback.onResult(LlamaResult.success(audioCompletion));
+        context.submit(() -> {
+            Map<String, Object> audioCompletion = new HashMap<>();
+            audioCompletion.put("prompt", "");
+            audioCompletion.put("grammar", null);
+            return audioCompletion;
+        }).whenComplete(deliver(callback, "Failed to format audio completion: "));
     }
 
     public void getAudioCompletionGuideTokens(int contextId, String textToSpeak, LlamaCallback<Integer[]> callback) {
-        if (contexts.get(contextId) == null) {
+        LlamaContext context = contexts.get(contextId);
+        if (context == null) {
             callback.onResult(LlamaResult.failure(new LlamaError("Context not found")));
             return;
         }
 
-        Integer[] tokens = new Integer[0];
-        callback.onResult(LlamaResult.success(tokens));
+        context.submit(() -> new Integer[0]).whenComplete(deliver(callback, "Failed to get guide tokens: "));
     }
 
     public void decodeAudioTokens(int contextId, Integer[] tokens, LlamaCallback<Integer[]> callback) {
-        if (contexts.get(contextId) == null) {
+        LlamaContext context = contexts.get(contextId);
+        if (context == null) {
             callback.onResult(LlamaResult.failure(new LlamaError("Context not found")));
             return;
         }
 
-        Integer[] decodedTokens = new Integer[0];
-        callback.onResult(LlamaResult.success(decodedTokens));
+        context.submit(() -> new Integer[0]).whenComplete(deliver(callback, "Failed to decode audio tokens: "));
     }
 
     public void releaseVocoder(int contextId, LlamaCallback<Void> callback) {
@@ -859,8 +2107,11 @@ public class LlamaCpp {
             return;
         }
 
-        context.setVocoderEnabled(false);
-        callback.onResult(LlamaResult.success(null));
+        context.submit(() -> {
+            releaseExtrasNative(context.getNativeContextId(), false, true);
+            context.setVocoderEnabled(false);
+            return (Void) null;
+        }).whenComplete(deliver(callback, "Failed to release vocoder: "));
     }
 
     // MARK: - Callback Interface
@@ -868,12 +2119,26 @@ public class LlamaCpp {
         void onResult(LlamaResult<T> result);
     }
 
+    // Invoked after an idle context was evicted to make room; sessionPath is null unless it was saved
+    public interface ContextEvictedListener {
+        void onContextEvicted(int contextId, String sessionPath);
+    }
+
+    // Invoked from the native generation loop for every chunk of text that is safe to emit;
+    // accumulatedText is null unless the request set emit_accumulated_text
+    public interface PartialCompletionCallback {
+        void onPartialCompletion(String token, String content, String reasoningContent, String accumulatedText);
+    }
+
     // Add this method to get proper storage paths
     private String[] getModelSearchPaths(String filename) {
         String packageName = context.getPackageName();
         
         List<String> paths = new ArrayList<>();
         
+        // The model store, where downloads land
+        paths.add(new File(modelStore().getDirectory(), filename).getAbsolutePath());
+
         // Internal storage (always available, no permissions needed)
         File internalFilesDir = context.getFilesDir();
         paths.add(internalFilesDir.getAbsolutePath() + "/" + filename);
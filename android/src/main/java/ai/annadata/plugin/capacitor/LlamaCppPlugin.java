@@ -8,8 +8,11 @@ import com.getcapacitor.PluginCall;
 import com.getcapacitor.PluginMethod;
 import com.getcapacitor.annotation.CapacitorPlugin;
 import java.util.Map;
+import org.json.JSONArray;
 import org.json.JSONException;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.os.Environment;
 import java.io.File;
 import java.util.ArrayList;
@@ -19,17 +22,75 @@ import java.util.HashMap;
 @CapacitorPlugin(name = "LlamaCpp")
 public class LlamaCppPlugin extends Plugin {
     private static final String TAG = "LlamaCppPlugin";
+    private static final String EVENT_ON_TOKEN = "@LlamaCpp_onToken";
+    private static final String EVENT_ON_CONTEXT_EVICTED = "@LlamaCpp_onContextEvicted";
+    private static final String EVENT_ON_DOWNLOAD_PROGRESS = "@LlamaCpp_onDownloadProgress";
 
     private LlamaCpp implementation;
 
+    // Forwards system memory pressure to the implementation's staged trim
+    private final ComponentCallbacks2 memoryCallbacks = new ComponentCallbacks2() {
+        @Override
+        public void onTrimMemory(int level) {
+            implementation.onTrimMemory(level);
+        }
+
+        @Override
+        public void onLowMemory() {
+            implementation.onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+        }
+
+        @Override
+        public void onConfigurationChanged(Configuration newConfig) {
+        }
+    };
+
     @Override
     public void load() {
         super.load();
         // Initialize implementation with context
         implementation = new LlamaCpp(getContext());
+        implementation.setContextEvictedListener((contextId, sessionPath) -> {
+            JSObject event = new JSObject();
+            event.put("contextId", contextId);
+            if (sessionPath != null) {
+                event.put("sessionPath", sessionPath);
+            }
+            notifyListeners(EVENT_ON_CONTEXT_EVICTED, event);
+        });
+        implementation.setDownloadProgressListener(progress -> {
+            JSObject event = new JSObject();
+            Marshalling.putAll(event, progress);
+            notifyListeners(EVENT_ON_DOWNLOAD_PROGRESS, event);
+        });
+        getContext().getApplicationContext().registerComponentCallbacks(memoryCallbacks);
+        prewarmContexts();
         Log.i(TAG, "LlamaCppPlugin loaded successfully");
     }
 
+    @Override
+    protected void handleOnDestroy() {
+        getContext().getApplicationContext().unregisterComponentCallbacks(memoryCallbacks);
+        super.handleOnDestroy();
+    }
+
+    // Contexts listed under "prewarm" in the plugin config start loading right away
+    private void prewarmContexts() {
+        JSONArray prewarm = getConfig().getConfigJSON().optJSONArray("prewarm");
+        if (prewarm == null) {
+            return;
+        }
+        List<JSObject> configs = new ArrayList<>();
+        for (int i = 0; i < prewarm.length(); i++) {
+            try {
+                configs.add(new JSObject(prewarm.getJSONObject(i).toString()));
+            } catch (JSONException e) {
+                Log.w(TAG, "Ignoring invalid prewarm entry " + i + ": " + e.getMessage());
+            }
+        }
+        implementation.prewarmContexts(configs);
+    }
+
     // MARK: - Core initialization and management
 
     @PluginMethod
@@ -56,6 +117,21 @@ public class LlamaCppPlugin extends Plugin {
         });
     }
 
+    @PluginMethod
+    public void setContextPoolOptions(PluginCall call) {
+        JSObject options = call.getData();
+
+        implementation.setContextPoolOptions(options, result -> {
+            if (result.isSuccess()) {
+                JSObject ret = new JSObject();
+                Marshalling.putAll(ret, result.getData());
+                call.resolve(ret);
+            } else {
+                call.reject(result.getError().getMessage());
+            }
+        });
+    }
+
     @PluginMethod
     public void modelInfo(PluginCall call) {
         String path = call.getString("path", "");
@@ -76,9 +152,7 @@ public class LlamaCppPlugin extends Plugin {
             if (result.isSuccess()) {
                 JSObject jsResult = new JSObject();
                 Map<String, Object> data = result.getData();
-                for (Map.Entry<String, Object> entry : data.entrySet()) {
-                    jsResult.put(entry.getKey(), entry.getValue());
-                }
+                Marshalling.putAll(jsResult, data);
                 call.resolve(jsResult);
             } else {
                 call.reject(result.getError().getMessage());
@@ -96,9 +170,7 @@ public class LlamaCppPlugin extends Plugin {
             if (result.isSuccess()) {
                 JSObject jsResult = new JSObject();
                 Map<String, Object> data = result.getData();
-                for (Map.Entry<String, Object> entry : data.entrySet()) {
-                    jsResult.put(entry.getKey(), entry.getValue());
-                }
+                Marshalling.putAll(jsResult, data);
                 call.resolve(jsResult);
             } else {
                 call.reject(result.getError().getMessage());
@@ -143,9 +215,7 @@ public class LlamaCppPlugin extends Plugin {
             if (result.isSuccess()) {
                 JSObject jsResult = new JSObject();
                 Map<String, Object> data = result.getData();
-                for (Map.Entry<String, Object> entry : data.entrySet()) {
-                    jsResult.put(entry.getKey(), entry.getValue());
-                }
+                Marshalling.putAll(jsResult, data);
                 call.resolve(jsResult);
             } else {
                 call.reject(result.getError().getMessage());
@@ -157,15 +227,34 @@ public class LlamaCppPlugin extends Plugin {
     public void completion(PluginCall call) {
         int contextId = call.getInt("contextId", 0);
         JSObject params = call.getObject("params", new JSObject());
+        // Lets the JS side tell this call's tokens from those of concurrent completions on the context
+        Integer requestId = params.getInteger("request_id");
+
+        implementation.completion(contextId, params, (token, content, reasoningContent, accumulatedText) -> {
+            JSObject tokenResult = new JSObject();
+            tokenResult.put("token", token);
+            tokenResult.put("content", content);
+            tokenResult.put("reasoning_content", reasoningContent);
+            if (accumulatedText != null) {
+                tokenResult.put("accumulated_text", accumulatedText);
+            }
 
-        implementation.completion(contextId, params, result -> {
+            JSObject event = new JSObject();
+            event.put("contextId", contextId);
+            if (requestId != null) {
+                event.put("requestId", requestId);
+            }
+            event.put("tokenResult", tokenResult);
+            notifyListeners(EVENT_ON_TOKEN, event);
+        }, result -> {
             if (result.isSuccess()) {
-                JSObject jsResult = new JSObject();
-                Map<String, Object> data = result.getData();
-                for (Map.Entry<String, Object> entry : data.entrySet()) {
-                    jsResult.put(entry.getKey(), entry.getValue());
+                try {
+                    JSObject jsResult = new JSObject();
+                    result.getData().writeTo(jsResult);
+                    call.resolve(jsResult);
+                } catch (JSONException e) {
+                    call.reject("Failed to build completion result: " + e.getMessage());
                 }
-                call.resolve(jsResult);
             } else {
                 call.reject(result.getError().getMessage());
             }
@@ -190,15 +279,14 @@ public class LlamaCppPlugin extends Plugin {
     @PluginMethod
     public void loadSession(PluginCall call) {
         int contextId = call.getInt("contextId", 0);
-        String path = call.getString("path", "");
+        String path = call.getString("filepath", call.getString("path", ""));
+        int checkpoint = call.getInt("checkpoint", -1);
 
-        implementation.loadSession(contextId, path, result -> {
+        implementation.loadSession(contextId, path, checkpoint, result -> {
             if (result.isSuccess()) {
                 JSObject jsResult = new JSObject();
                 Map<String, Object> data = result.getData();
-                for (Map.Entry<String, Object> entry : data.entrySet()) {
-                    jsResult.put(entry.getKey(), entry.getValue());
-                }
+                Marshalling.putAll(jsResult, data);
                 call.resolve(jsResult);
             } else {
                 call.reject(result.getError().getMessage());
@@ -209,13 +297,72 @@ public class LlamaCppPlugin extends Plugin {
     @PluginMethod
     public void saveSession(PluginCall call) {
         int contextId = call.getInt("contextId", 0);
-        String path = call.getString("path", "");
+        String path = call.getString("filepath", call.getString("path", ""));
         int size = call.getInt("size", -1);
+        boolean incremental = call.getBoolean("incremental", false);
+
+        implementation.saveSession(contextId, path, size, incremental, result -> {
+            if (result.isSuccess()) {
+                JSObject ret = new JSObject();
+                Map<String, Object> data = result.getData();
+                Marshalling.putAll(ret, data);
+                call.resolve(ret);
+            } else {
+                call.reject(result.getError().getMessage());
+            }
+        });
+    }
+
+    // MARK: - KV snapshots
+
+    @PluginMethod
+    public void saveSnapshot(PluginCall call) {
+        int contextId = call.getInt("contextId", 0);
+        String key = call.getString("key");
+        if (key == null || key.isEmpty()) {
+            call.reject("key is required");
+            return;
+        }
+
+        implementation.saveSnapshot(contextId, key, result -> {
+            if (result.isSuccess()) {
+                JSObject ret = new JSObject();
+                Marshalling.putAll(ret, result.getData());
+                call.resolve(ret);
+            } else {
+                call.reject(result.getError().getMessage());
+            }
+        });
+    }
+
+    @PluginMethod
+    public void restoreSnapshot(PluginCall call) {
+        int contextId = call.getInt("contextId", 0);
+        String key = call.getString("key");
+        if (key == null || key.isEmpty()) {
+            call.reject("key is required");
+            return;
+        }
 
-        implementation.saveSession(contextId, path, size, result -> {
+        implementation.restoreSnapshot(contextId, key, result -> {
             if (result.isSuccess()) {
                 JSObject ret = new JSObject();
-                ret.put("tokensSaved", result.getData());
+                Marshalling.putAll(ret, result.getData());
+                call.resolve(ret);
+            } else {
+                call.reject(result.getError().getMessage());
+            }
+        });
+    }
+
+    @PluginMethod
+    public void getSnapshotCacheStats(PluginCall call) {
+        int contextId = call.getInt("contextId", 0);
+
+        implementation.getSnapshotCacheStats(contextId, result -> {
+            if (result.isSuccess()) {
+                JSObject ret = new JSObject();
+                Marshalling.putAll(ret, result.getData());
                 call.resolve(ret);
             } else {
                 call.reject(result.getError().getMessage());
@@ -229,6 +376,8 @@ public class LlamaCppPlugin extends Plugin {
     public void tokenize(PluginCall call) {
         int contextId = call.getInt("contextId", 0);
         String text = call.getString("text", "");
+        boolean addSpecial = call.getBoolean("add_special", false);
+        boolean parseSpecial = call.getBoolean("parse_special", false);
         JSArray imagePathsArray = call.getArray("imagePaths");
         String[] imagePaths = new String[0];
         if (imagePathsArray != null) {
@@ -242,13 +391,19 @@ public class LlamaCppPlugin extends Plugin {
             }
         }
 
-        implementation.tokenize(contextId, text, imagePaths, result -> {
+        implementation.tokenize(contextId, text, imagePaths, addSpecial, parseSpecial, result -> {
             if (result.isSuccess()) {
-                JSObject jsResult = new JSObject();
                 Map<String, Object> data = result.getData();
-                for (Map.Entry<String, Object> entry : data.entrySet()) {
-                    jsResult.put(entry.getKey(), entry.getValue());
+                JSObject jsResult = new JSObject();
+                jsResult.put("tokens", Marshalling.putInts(new JSArray(), (int[]) data.get("tokens")));
+                jsResult.put("has_images", data.get("has_images"));
+                JSArray bitmapHashes = new JSArray();
+                for (String hash : (String[]) data.get("bitmap_hashes")) {
+                    bitmapHashes.put(hash);
                 }
+                jsResult.put("bitmap_hashes", bitmapHashes);
+                jsResult.put("chunk_pos", Marshalling.putInts(new JSArray(), (int[]) data.get("chunk_pos")));
+                jsResult.put("chunk_pos_images", Marshalling.putInts(new JSArray(), (int[]) data.get("chunk_pos_images")));
                 call.resolve(jsResult);
             } else {
                 call.reject(result.getError().getMessage());
@@ -260,16 +415,12 @@ public class LlamaCppPlugin extends Plugin {
     public void detokenize(PluginCall call) {
         int contextId = call.getInt("contextId", 0);
         JSArray tokensArray = call.getArray("tokens");
-        Integer[] tokens = new Integer[0];
-        if (tokensArray != null) {
-            tokens = new Integer[tokensArray.length()];
-            for (int i = 0; i < tokensArray.length(); i++) {
-                try {
-                    tokens[i] = tokensArray.getInt(i);
-                } catch (JSONException e) {
-                    tokens[i] = 0;
-                }
-            }
+        int[] tokens;
+        try {
+            tokens = Marshalling.toIntArray(tokensArray);
+        } catch (JSONException e) {
+            call.reject("Invalid tokens array: " + e.getMessage());
+            return;
         }
 
         implementation.detokenize(contextId, tokens, result -> {
@@ -283,6 +434,74 @@ public class LlamaCppPlugin extends Plugin {
         });
     }
 
+    @PluginMethod
+    public void countTokens(PluginCall call) {
+        int contextId = call.getInt("contextId", 0);
+        boolean addSpecial = call.getBoolean("add_special", false);
+        boolean parseSpecial = call.getBoolean("parse_special", false);
+        JSArray textsArray = call.getArray("texts");
+        String[] texts = new String[textsArray != null ? textsArray.length() : 0];
+        try {
+            for (int i = 0; i < texts.length; i++) {
+                texts[i] = textsArray.getString(i);
+            }
+        } catch (JSONException e) {
+            call.reject("Invalid texts array: " + e.getMessage());
+            return;
+        }
+
+        implementation.countTokens(contextId, texts, addSpecial, parseSpecial, result -> {
+            if (result.isSuccess()) {
+                JSObject ret = new JSObject();
+                ret.put("counts", Marshalling.putInts(new JSArray(), result.getData()));
+                call.resolve(ret);
+            } else {
+                call.reject(result.getError().getMessage());
+            }
+        });
+    }
+
+    @PluginMethod
+    public void getMemoryStats(PluginCall call) {
+        implementation.getMemoryStats(result -> {
+            if (result.isSuccess()) {
+                JSObject ret = new JSObject();
+                for (Map.Entry<String, Object> entry : result.getData().entrySet()) {
+                    if (!(entry.getValue() instanceof List)) {
+                        ret.put(entry.getKey(), entry.getValue());
+                    }
+                }
+                JSArray contexts = new JSArray();
+                for (Object item : (List<?>) result.getData().get("contexts")) {
+                    JSObject context = new JSObject();
+                    for (Map.Entry<?, ?> field : ((Map<?, ?>) item).entrySet()) {
+                        context.put((String) field.getKey(), field.getValue());
+                    }
+                    contexts.put(context);
+                }
+                ret.put("contexts", contexts);
+                call.resolve(ret);
+            } else {
+                call.reject(result.getError().getMessage());
+            }
+        });
+    }
+
+    @PluginMethod
+    public void getTokenCacheStats(PluginCall call) {
+        int contextId = call.getInt("contextId", 0);
+
+        implementation.getTokenCacheStats(contextId, result -> {
+            if (result.isSuccess()) {
+                JSObject ret = new JSObject();
+                Marshalling.putAll(ret, result.getData());
+                call.resolve(ret);
+            } else {
+                call.reject(result.getError().getMessage());
+            }
+        });
+    }
+
     // MARK: - Embeddings and reranking
 
     @PluginMethod
@@ -293,12 +512,49 @@ public class LlamaCppPlugin extends Plugin {
 
         implementation.embedding(contextId, text, params, result -> {
             if (result.isSuccess()) {
-                JSObject jsResult = new JSObject();
-                Map<String, Object> data = result.getData();
-                for (Map.Entry<String, Object> entry : data.entrySet()) {
-                    jsResult.put(entry.getKey(), entry.getValue());
+                try {
+                    JSObject jsResult = new JSObject();
+                    jsResult.put("embedding", Marshalling.putFloats(new JSArray(), result.getData()));
+                    call.resolve(jsResult);
+                } catch (JSONException e) {
+                    call.reject("Invalid embedding: " + e.getMessage());
+                }
+            } else {
+                call.reject(result.getError().getMessage());
+            }
+        });
+    }
+
+    @PluginMethod
+    public void embeddingBatch(PluginCall call) {
+        int contextId = call.getInt("contextId", 0);
+        JSArray textsArray = call.getArray("texts");
+        JSObject params = call.getObject("params", new JSObject());
+        String[] texts = new String[textsArray != null ? textsArray.length() : 0];
+        try {
+            for (int i = 0; i < texts.length; i++) {
+                texts[i] = textsArray.getString(i);
+            }
+        } catch (JSONException e) {
+            call.reject("Invalid texts array: " + e.getMessage());
+            return;
+        }
+
+        implementation.embeddingBatch(contextId, texts, params, result -> {
+            if (result.isSuccess()) {
+                float[] data = result.getData();
+                int width = texts.length > 0 ? data.length / texts.length : 0;
+                try {
+                    JSArray embeddings = new JSArray();
+                    for (int i = 0; i < texts.length; i++) {
+                        embeddings.put(Marshalling.putFloats(new JSArray(), data, i * width, width));
+                    }
+                    JSObject ret = new JSObject();
+                    ret.put("embeddings", embeddings);
+                    call.resolve(ret);
+                } catch (JSONException e) {
+                    call.reject("Invalid embedding: " + e.getMessage());
                 }
-                call.resolve(jsResult);
             } else {
                 call.reject(result.getError().getMessage());
             }
@@ -325,8 +581,15 @@ public class LlamaCppPlugin extends Plugin {
 
         implementation.rerank(contextId, query, documents, params, result -> {
             if (result.isSuccess()) {
+                JSArray results = new JSArray();
+                for (Map<String, Object> item : result.getData()) {
+                    JSObject entry = new JSObject();
+                    entry.put("index", item.get("index"));
+                    entry.put("score", item.get("score"));
+                    results.put(entry);
+                }
                 JSObject ret = new JSObject();
-                ret.put("results", result.getData());
+                ret.put("results", results);
                 call.resolve(ret);
             } else {
                 call.reject(result.getError().getMessage());
@@ -334,20 +597,161 @@ public class LlamaCppPlugin extends Plugin {
         });
     }
 
+    // MARK: - Vector index
+
+    @PluginMethod
+    public void createIndex(PluginCall call) {
+        String name = call.getString("name");
+        int dimensions = call.getInt("dimensions", 0);
+        int embdNormalize = call.getInt("embd_normalize", 2);
+
+        implementation.createIndex(name, dimensions, embdNormalize, result -> {
+            if (result.isSuccess()) {
+                JSObject ret = new JSObject();
+                Marshalling.putAll(ret, result.getData());
+                call.resolve(ret);
+            } else {
+                call.reject(result.getError().getMessage());
+            }
+        });
+    }
+
+    @PluginMethod
+    public void addToIndex(PluginCall call) {
+        String name = call.getString("name");
+        int contextId = call.getInt("contextId", 0);
+        JSArray textsArray = call.getArray("texts");
+        JSArray vectorsArray = call.getArray("vectors");
+        String[] texts = null;
+        float[] vectors = null;
+        int count = 0;
+        try {
+            if (textsArray != null) {
+                texts = new String[textsArray.length()];
+                for (int i = 0; i < texts.length; i++) {
+                    texts[i] = textsArray.getString(i);
+                }
+            } else if (vectorsArray != null) {
+                count = vectorsArray.length();
+                vectors = Marshalling.toFloatRows(vectorsArray);
+            } else {
+                call.reject("Either texts or vectors is required");
+                return;
+            }
+        } catch (JSONException | IllegalArgumentException e) {
+            call.reject("Invalid index input: " + e.getMessage());
+            return;
+        }
+
+        implementation.addToIndex(name, contextId, texts, vectors, count, result -> {
+            if (result.isSuccess()) {
+                JSObject ret = new JSObject();
+                Marshalling.putAll(ret, result.getData());
+                call.resolve(ret);
+            } else {
+                call.reject(result.getError().getMessage());
+            }
+        });
+    }
+
+    @PluginMethod
+    public void searchIndex(PluginCall call) {
+        String name = call.getString("name");
+        int contextId = call.getInt("contextId", 0);
+        String query = call.getString("query");
+        JSArray vectorArray = call.getArray("vector");
+        int k = call.getInt("k", 10);
+        float[] vector = null;
+        if (query == null) {
+            if (vectorArray == null) {
+                call.reject("Either query or vector is required");
+                return;
+            }
+            try {
+                vector = new float[vectorArray.length()];
+                for (int i = 0; i < vector.length; i++) {
+                    vector[i] = (float) vectorArray.getDouble(i);
+                }
+            } catch (JSONException e) {
+                call.reject("Invalid query vector: " + e.getMessage());
+                return;
+            }
+        }
+
+        implementation.searchIndex(name, contextId, query, vector, k, result -> {
+            if (result.isSuccess()) {
+                JSArray results = new JSArray();
+                for (Map<String, Object> hit : result.getData()) {
+                    JSObject item = new JSObject();
+                    Marshalling.putAll(item, hit);
+                    results.put(item);
+                }
+                JSObject ret = new JSObject();
+                ret.put("results", results);
+                call.resolve(ret);
+            } else {
+                call.reject(result.getError().getMessage());
+            }
+        });
+    }
+
+    @PluginMethod
+    public void saveIndex(PluginCall call) {
+        String name = call.getString("name");
+
+        implementation.saveIndex(name, result -> {
+            if (result.isSuccess()) {
+                JSObject ret = new JSObject();
+                Marshalling.putAll(ret, result.getData());
+                call.resolve(ret);
+            } else {
+                call.reject(result.getError().getMessage());
+            }
+        });
+    }
+
+    @PluginMethod
+    public void loadIndex(PluginCall call) {
+        String name = call.getString("name");
+
+        implementation.loadIndex(name, result -> {
+            if (result.isSuccess()) {
+                JSObject ret = new JSObject();
+                Marshalling.putAll(ret, result.getData());
+                call.resolve(ret);
+            } else {
+                call.reject(result.getError().getMessage());
+            }
+        });
+    }
+
+    @PluginMethod
+    public void releaseIndex(PluginCall call) {
+        String name = call.getString("name");
+
+        implementation.releaseIndex(name, result -> {
+            if (result.isSuccess()) {
+                call.resolve();
+            } else {
+                call.reject(result.getError().getMessage());
+            }
+        });
+    }
+
     // MARK: - Benchmarking
 
     @PluginMethod
     public void bench(PluginCall call) {
         int contextId = call.getInt("contextId", 0);
-        int pp = call.getInt("pp", 0);
-        int tg = call.getInt("tg", 0);
-        int pl = call.getInt("pl", 0);
-        int nr = call.getInt("nr", 0);
+        int pp = call.getInt("pp", 512);
+        int tg = call.getInt("tg", 128);
+        int pl = call.getInt("pl", 1);
+        int nr = call.getInt("nr", 3);
 
         implementation.bench(contextId, pp, tg, pl, nr, result -> {
             if (result.isSuccess()) {
                 JSObject ret = new JSObject();
-                ret.put("result", result.getData());
+                Marshalling.putAll(ret, result.getData());
                 call.resolve(ret);
             } else {
                 call.reject(result.getError().getMessage());
@@ -578,21 +982,87 @@ public class LlamaCppPlugin extends Plugin {
         });
     }
 
-    // MARK: - Events
+    // MARK: - Model download and management
+
+    @PluginMethod
+    public void downloadModel(PluginCall call) {
+        String url = call.getString("url", "");
+        String filename = call.getString("filename", "");
+        String sha256 = call.getString("sha256");
+
+        implementation.downloadModel(url, filename, sha256, result -> {
+            if (result.isSuccess()) {
+                JSObject ret = new JSObject();
+                ret.put("path", result.getData());
+                call.resolve(ret);
+            } else {
+                call.reject(result.getError().getMessage());
+            }
+        });
+    }
+
+    @PluginMethod
+    public void getDownloadProgress(PluginCall call) {
+        String url = call.getString("url", "");
+
+        implementation.getDownloadProgress(url, result -> {
+            if (result.isSuccess()) {
+                JSObject ret = new JSObject();
+                Marshalling.putAll(ret, result.getData());
+                call.resolve(ret);
+            } else {
+                call.reject(result.getError().getMessage());
+            }
+        });
+    }
+
+    @PluginMethod
+    public void cancelDownload(PluginCall call) {
+        String url = call.getString("url", "");
+
+        implementation.cancelDownload(url, result -> {
+            if (result.isSuccess()) {
+                JSObject ret = new JSObject();
+                ret.put("cancelled", result.getData());
+                call.resolve(ret);
+            } else {
+                call.reject(result.getError().getMessage());
+            }
+        });
+    }
 
     @PluginMethod
-    public void addListener(PluginCall call) {
-        String eventName = call.getString("eventName", "");
-        // Note: In Capacitor, event listeners are typically handled differently
-        // This is a placeholder for the event system
-        call.resolve();
+    public void getAvailableModels(PluginCall call) {
+        boolean refresh = call.getBoolean("refresh", false);
+
+        implementation.getAvailableModels(refresh, result -> {
+            if (result.isSuccess()) {
+                JSArray models = new JSArray();
+                for (Map<String, Object> model : result.getData()) {
+                    JSObject entry = new JSObject();
+                    Marshalling.putAll(entry, model);
+                    models.put(entry);
+                }
+                JSObject ret = new JSObject();
+                ret.put("models", models);
+                call.resolve(ret);
+            } else {
+                call.reject(result.getError().getMessage());
+            }
+        });
     }
 
     @PluginMethod
-    public void removeAllListeners(PluginCall call) {
-        String eventName = call.getString("eventName", "");
-        // Note: In Capacitor, event listeners are typically handled differently
-        // This is a placeholder for the event system
-        call.resolve();
+    public void setModelStoreOptions(PluginCall call) {
+        JSObject options = call.getData();
+
+        implementation.setModelStoreOptions(options, result -> {
+            JSObject ret = new JSObject();
+            for (Map.Entry<String, Object> entry : result.getData().entrySet()) {
+                Object value = entry.getValue();
+                ret.put(entry.getKey(), value instanceof List ? new JSArray((List<?>) value) : value);
+            }
+            call.resolve(ret);
+        });
     }
 }
@@ -0,0 +1,9 @@
+package ai.annadata.plugin.capacitor;
+
+class LlamaError extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public LlamaError(String message) {
+        super(message);
+    }
+}
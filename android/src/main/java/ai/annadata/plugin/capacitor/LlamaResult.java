@@ -0,0 +1,33 @@
+package ai.annadata.plugin.capacitor;
+
+class LlamaResult<T> {
+    private final T data;
+    private final LlamaError error;
+    private final boolean isSuccess;
+
+    private LlamaResult(T data, LlamaError error, boolean isSuccess) {
+        this.data = data;
+        this.error = error;
+        this.isSuccess = isSuccess;
+    }
+
+    public static <T> LlamaResult<T> success(T data) {
+        return new LlamaResult<>(data, null, true);
+    }
+
+    public static <T> LlamaResult<T> failure(LlamaError error) {
+        return new LlamaResult<>(null, error, false);
+    }
+
+    public boolean isSuccess() {
+        return isSuccess;
+    }
+
+    public T getData() {
+        return data;
+    }
+
+    public LlamaError getError() {
+        return error;
+    }
+}
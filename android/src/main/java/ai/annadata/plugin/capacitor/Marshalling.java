@@ -0,0 +1,76 @@
+package ai.annadata.plugin.capacitor;
+
+import java.util.Map;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Conversions between native results and the JSON handed to the WebView. Written against org.json,
+ * which Capacitor's JSObject and JSArray extend, so the JVM benchmarks in android/benchmark compile and
+ * measure this same file.
+ */
+final class Marshalling {
+    private Marshalling() {
+    }
+
+    // Copy a native result map; values org.json cannot hold are skipped, as JSObject.put does
+    static <T extends JSONObject> T putAll(T out, Map<String, ?> data) {
+        for (Map.Entry<String, ?> entry : data.entrySet()) {
+            try {
+                out.put(entry.getKey(), entry.getValue());
+            } catch (JSONException ignored) {
+                // Non-finite number
+            }
+        }
+        return out;
+    }
+
+    static <T extends JSONArray> T putInts(T out, int[] values) {
+        for (int value : values) {
+            out.put(value);
+        }
+        return out;
+    }
+
+    // Single conversion from native floats to JSON numbers
+    static <T extends JSONArray> T putFloats(T out, float[] values) throws JSONException {
+        return putFloats(out, values, 0, values.length);
+    }
+
+    static <T extends JSONArray> T putFloats(T out, float[] values, int offset, int length) throws JSONException {
+        for (int i = offset; i < offset + length; i++) {
+            out.put((double) values[i]);
+        }
+        return out;
+    }
+
+    // Token array arguments, as detokenize reads them
+    static int[] toIntArray(JSONArray values) throws JSONException {
+        int[] result = new int[values != null ? values.length() : 0];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = values.getInt(i);
+        }
+        return result;
+    }
+
+    // Flattens an array of equal-length number arrays into one row-major float[]
+    static float[] toFloatRows(JSONArray rows) throws JSONException {
+        int count = rows.length();
+        if (count == 0) {
+            return new float[0];
+        }
+        int width = rows.getJSONArray(0).length();
+        float[] flat = new float[count * width];
+        for (int i = 0; i < count; i++) {
+            JSONArray row = rows.getJSONArray(i);
+            if (row.length() != width) {
+                throw new IllegalArgumentException("All vectors must have the same length");
+            }
+            for (int j = 0; j < width; j++) {
+                flat[i * width + j] = (float) row.getDouble(j);
+            }
+        }
+        return flat;
+    }
+}
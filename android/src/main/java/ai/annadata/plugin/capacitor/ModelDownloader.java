@@ -0,0 +1,711 @@
+package ai.annadata.plugin.capacitor;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads a file over several HTTP connections. The file is cut into small ranges that are handed
+ * out lowest first, so all connections work close together, and each range is written in place with
+ * positional FileChannel writes. Range progress is kept in a small state file next to the partial
+ * download, so an interrupted download resumes where every range stopped. Servers without range
+ * support get a single stream that starts over from zero.
+ *
+ * An optional DownloadVerifier sees every byte in file order on its own thread. Written buffers are
+ * kept in memory until the hash cursor reaches them, up to MAX_PENDING_BYTES; anything beyond that,
+ * and data from an earlier attempt, is read back from the partial file. Range threads only take the
+ * lock to hand over a buffer and never wait for hashing or disk reads.
+ */
+class ModelDownloader {
+    static final int DEFAULT_CONNECTIONS = 4;
+    // Size of the ranges handed to connections, grown for very large files to stay under MAX_RANGES
+    static final long DEFAULT_MIN_SEGMENT_BYTES = 16L * 1024 * 1024;
+    static final int DEFAULT_MAX_RETRIES = 5;
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+    // Range progress is persisted at most once per this many bytes written
+    private static final long STATE_SYNC_BYTES = 8L * 1024 * 1024;
+    private static final int MAX_RANGES = 1024;
+    // Written data held for the hasher ahead of its cursor; the rest is read back from disk
+    private static final long MAX_PENDING_BYTES = 32L * 1024 * 1024;
+    private static final String PART_SUFFIX = ".part";
+    private static final String STATE_SUFFIX = ".part.state";
+
+    interface Listener {
+        void onProgress(long downloaded, long total);
+    }
+
+    // Thrown when the server no longer has the file the partial download was started from
+    static final class RemoteChangedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        RemoteChangedException(String message) {
+            super(message);
+        }
+    }
+
+    // Thrown once cancel() has been called; the partial file is kept like after any other failure
+    static final class CancelledException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        CancelledException() {
+            super("Download cancelled");
+        }
+    }
+
+    private static final class Segment {
+        final long start;
+        final long end; // inclusive
+        volatile long position;
+
+        Segment(long start, long end, long position) {
+            this.start = start;
+            this.end = end;
+            this.position = position;
+        }
+
+        long remaining() {
+            return end - position + 1;
+        }
+    }
+
+    private final int connections;
+    private final long minSegmentBytes;
+    private final int maxRetries;
+    private final long retryDelayMs;
+    private final Set<HttpURLConnection> active = ConcurrentHashMap.newKeySet();
+    private volatile boolean cancelled = false;
+
+    // Ordered verification state of the current download, guarded by this
+    private DownloadVerifier verifier;
+    private List<Segment> segments = Collections.emptyList();
+    private long verified = 0;
+    // Buffers written ahead of the hash cursor, by file offset
+    private final TreeMap<Long, byte[]> pending = new TreeMap<>();
+    private long pendingBytes = 0;
+    // Set once no more data will be written; the hasher drains what is left and exits
+    private boolean writesDone = false;
+    // Set when the download failed; the hasher exits without draining
+    private boolean hashAbandoned = false;
+    private IOException hashFailure;
+    private Thread hasher;
+
+    ModelDownloader() {
+        this(DEFAULT_CONNECTIONS, DEFAULT_MIN_SEGMENT_BYTES, DEFAULT_MAX_RETRIES, 1000);
+    }
+
+    ModelDownloader(int connections, long minSegmentBytes, int maxRetries, long retryDelayMs) {
+        this.connections = Math.max(1, connections);
+        this.minSegmentBytes = Math.max(1, minSegmentBytes);
+        this.maxRetries = Math.max(0, maxRetries);
+        this.retryDelayMs = Math.max(0, retryDelayMs);
+    }
+
+    // Abort from another thread. Open connections are closed, so reads blocked on the network return at once.
+    void cancel() {
+        cancelled = true;
+        for (HttpURLConnection connection : active) {
+            connection.disconnect();
+        }
+    }
+
+    static File partFile(File target) {
+        return new File(target.getPath() + PART_SUFFIX);
+    }
+
+    static File stateFile(File target) {
+        return new File(target.getPath() + STATE_SUFFIX);
+    }
+
+    void download(String url, File target, Listener listener) throws IOException {
+        download(url, target, listener, null);
+    }
+
+    // Download url to target. On failure the partial file and its state are kept for the next attempt,
+    // unless the verifier rejected the data; a resumed download re-reads what is on disk to verify it.
+    void download(String url, File target, Listener listener, DownloadVerifier verifier) throws IOException {
+        File part = partFile(target);
+        File state = stateFile(target);
+        synchronized (this) {
+            this.verifier = verifier;
+            this.verified = 0;
+            pending.clear();
+            pendingBytes = 0;
+            writesDone = false;
+            hashAbandoned = false;
+            hashFailure = null;
+            if (verifier != null) {
+                hasher = new Thread(() -> hash(part), "model-download-hash");
+                hasher.setDaemon(true);
+                hasher.start();
+            }
+        }
+        boolean verifiedAll = false;
+        try {
+            transfer(url, part, state, listener);
+            if (verifier != null) {
+                finishVerification();
+            }
+            verifiedAll = true;
+        } catch (DownloadVerifier.VerificationException e) {
+            state.delete();
+            part.delete();
+            throw e;
+        } finally {
+            if (!verifiedAll) {
+                stopHasher(false);
+            }
+        }
+
+        if (target.exists() && !target.delete()) {
+            throw new IOException("Cannot replace " + target);
+        }
+        if (!part.renameTo(target)) {
+            throw new IOException("Cannot move download to " + target);
+        }
+    }
+
+    private void transfer(String url, File part, File state, Listener listener) throws IOException {
+        URL source = new URL(url);
+
+        long[] total = new long[1];
+        String[] validator = new String[1];
+        boolean ranges = probe(source, total, validator);
+        // Without a strong validator a range could mix two versions of the file, so start over instead
+        if (!ranges || total[0] <= 0 || validator[0] == null) {
+            state.delete();
+            downloadStream(source, part, listener);
+        } else {
+            if (verifier != null) {
+                verifier.setTotalBytes(total[0]);
+            }
+            List<Segment> segments = readState(state, total[0], validator[0]);
+            if (segments == null) {
+                segments = split(total[0]);
+                try (RandomAccessFile raf = new RandomAccessFile(part, "rw")) {
+                    raf.setLength(total[0]);
+                }
+                writeState(state, total[0], validator[0], segments);
+            } else if (!part.isFile() || part.length() != total[0]) {
+                // State without its data is useless
+                state.delete();
+                transfer(url, part, state, listener);
+                return;
+            }
+            synchronized (this) {
+                this.segments = segments;
+            }
+            try {
+                downloadRanges(source, part, state, total[0], validator[0], segments, listener);
+            } catch (RemoteChangedException e) {
+                state.delete();
+                part.delete();
+                throw e;
+            }
+            state.delete();
+        }
+    }
+
+    // Learn the size and whether byte ranges are served, with a one-byte range request
+    private boolean probe(URL source, long[] total, String[] validator) throws IOException {
+        HttpURLConnection connection = open(source);
+        connection.setRequestProperty("Range", "bytes=0-0");
+        try {
+            int responseCode = connection.getResponseCode();
+            // If-Range only takes a strong ETag; servers answer a weak one with the full file
+            validator[0] = connection.getHeaderField("ETag");
+            if (validator[0] == null || validator[0].startsWith("W/")) {
+                validator[0] = connection.getHeaderField("Last-Modified");
+            }
+            if (responseCode == HttpURLConnection.HTTP_PARTIAL) {
+                String contentRange = connection.getHeaderField("Content-Range");
+                int slash = contentRange != null ? contentRange.lastIndexOf('/') : -1;
+                if (slash >= 0 && !contentRange.endsWith("*")) {
+                    total[0] = Long.parseLong(contentRange.substring(slash + 1).trim());
+                    return true;
+                }
+                return false;
+            }
+            if (responseCode == HttpURLConnection.HTTP_OK) {
+                total[0] = connection.getContentLengthLong();
+                return false;
+            }
+            throw new IOException("HTTP error code: " + responseCode);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid Content-Range: " + connection.getHeaderField("Content-Range"));
+        } finally {
+            release(connection);
+        }
+    }
+
+    // Small ranges in file order; connections take the lowest one left, so they stay near the hash cursor
+    private List<Segment> split(long total) {
+        long size = Math.max(minSegmentBytes, (total + MAX_RANGES - 1) / MAX_RANGES);
+        List<Segment> segments = new ArrayList<>();
+        for (long start = 0; start < total; start += size) {
+            segments.add(new Segment(start, Math.min(total, start + size) - 1, start));
+        }
+        return segments;
+    }
+
+    private void downloadRanges(URL source, File part, File state, long total, String validator,
+                                List<Segment> segments, Listener listener) throws IOException {
+        List<Segment> pending = new ArrayList<>();
+        long done = 0;
+        for (Segment segment : segments) {
+            done += segment.position - segment.start;
+            if (segment.remaining() > 0) {
+                pending.add(segment);
+            }
+        }
+        AtomicLong downloaded = new AtomicLong(done);
+        AtomicLong unsynced = new AtomicLong(0);
+        if (listener != null) {
+            listener.onProgress(done, total);
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        int workerCount = Math.min(connections, pending.size());
+        ExecutorService workers = Executors.newFixedThreadPool(workerCount, runnable -> {
+            Thread thread = new Thread(runnable, "model-download");
+            thread.setDaemon(true);
+            return thread;
+        });
+        AtomicBoolean failed = new AtomicBoolean(false);
+        Written written = bytes -> {
+            long now = downloaded.addAndGet(bytes);
+            if (listener != null) {
+                listener.onProgress(now, total);
+            }
+            if (unsynced.addAndGet(bytes) >= STATE_SYNC_BYTES) {
+                unsynced.set(0);
+                writeState(state, total, validator, segments);
+            }
+        };
+        try (RandomAccessFile raf = new RandomAccessFile(part, "rw");
+             FileChannel channel = raf.getChannel()) {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < workerCount; i++) {
+                futures.add(workers.submit(() -> {
+                    Segment segment;
+                    while (!failed.get() && (segment = claim(pending)) != null) {
+                        try {
+                            fetchRange(source, channel, segment, validator, written);
+                        } catch (IOException | RuntimeException e) {
+                            // No new ranges once one has failed for good
+                            failed.set(true);
+                            throw e;
+                        }
+                    }
+                    return null;
+                }));
+            }
+            IOException failure = null;
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause() instanceof IOException
+                            ? (IOException) e.getCause() : new IOException(e.getCause());
+                        // Let the other ranges stop at their next retry instead of running to the end
+                        workers.shutdownNow();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failure = cancelled ? new CancelledException() : new IOException("Download interrupted");
+                    workers.shutdownNow();
+                    break;
+                }
+            }
+            if (failure != null) {
+                writeState(state, total, validator, segments);
+                throw failure;
+            }
+            channel.force(false);
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    private static Segment claim(List<Segment> pending) {
+        synchronized (pending) {
+            return pending.isEmpty() ? null : pending.remove(0);
+        }
+    }
+
+    private interface Written {
+        void accept(int bytes) throws IOException;
+    }
+
+    // Fetch one range, retrying from the last written byte after a dropped connection
+    private void fetchRange(URL source, FileChannel channel, Segment segment, String validator, Written written)
+            throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int failures = 0;
+        while (segment.remaining() > 0) {
+            checkStopped();
+            HttpURLConnection connection = open(source);
+            connection.setRequestProperty("Range", "bytes=" + segment.position + "-" + segment.end);
+            if (validator != null) {
+                connection.setRequestProperty("If-Range", validator);
+            }
+            try {
+                int responseCode = connection.getResponseCode();
+                if (responseCode == HttpURLConnection.HTTP_OK) {
+                    throw new RemoteChangedException("Remote file changed since the download started");
+                }
+                if (responseCode != HttpURLConnection.HTTP_PARTIAL) {
+                    throw new IOException("HTTP error code: " + responseCode);
+                }
+                try (InputStream input = connection.getInputStream()) {
+                    copy(input, channel, segment, buffer, written);
+                }
+                if (segment.remaining() > 0) {
+                    throw new IOException("Connection closed at byte " + segment.position);
+                }
+            } catch (RemoteChangedException | DownloadVerifier.VerificationException e) {
+                throw e;
+            } catch (IOException e) {
+                checkStopped();
+                if (++failures > maxRetries) {
+                    throw e;
+                }
+                sleep(retryDelayMs * failures);
+            } finally {
+                release(connection);
+            }
+        }
+    }
+
+    // Fill the whole buffer before each positional write; bytes received before a failure are still written
+    private void copy(InputStream input, FileChannel channel, Segment segment, byte[] buffer, Written written)
+            throws IOException {
+        while (segment.remaining() > 0) {
+            checkStopped();
+            int want = (int) Math.min(buffer.length, segment.remaining());
+            int filled = 0;
+            int read = 0;
+            IOException failure = null;
+            try {
+                while (filled < want && (read = input.read(buffer, filled, want - filled)) != -1) {
+                    filled += read;
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+            ByteBuffer data = ByteBuffer.wrap(buffer, 0, filled);
+            long start = segment.position;
+            long position = start;
+            while (data.hasRemaining()) {
+                position += channel.write(data, position);
+            }
+            segment.position = position;
+            if (filled > 0) {
+                verify(buffer, start, filled);
+                written.accept(filled);
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            if (read == -1) {
+                return;
+            }
+        }
+    }
+
+    // Servers without range support: one stream from the start, nothing to resume
+    private void downloadStream(URL source, File part, Listener listener) throws IOException {
+        HttpURLConnection connection = open(source);
+        try {
+            int responseCode = connection.getResponseCode();
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                throw new IOException("HTTP error code: " + responseCode);
+            }
+            long total = connection.getContentLengthLong();
+            Segment segment = new Segment(0, total > 0 ? total - 1 : Long.MAX_VALUE - 1, 0);
+            synchronized (this) {
+                segments = Collections.singletonList(segment);
+                if (verifier != null) {
+                    verifier.setTotalBytes(total);
+                }
+            }
+            AtomicLong downloaded = new AtomicLong(0);
+            try (RandomAccessFile raf = new RandomAccessFile(part, "rw");
+                 FileChannel channel = raf.getChannel();
+                 InputStream input = connection.getInputStream()) {
+                raf.setLength(0);
+                copy(input, channel, segment, new byte[BUFFER_SIZE], bytes -> {
+                    if (listener != null) {
+                        listener.onProgress(downloaded.addAndGet(bytes), total);
+                    }
+                });
+                if (total > 0 && segment.position != total) {
+                    throw new IOException("Connection closed at byte " + segment.position + " of " + total);
+                }
+                channel.force(false);
+            }
+        } finally {
+            release(connection);
+        }
+    }
+
+    // MARK: - Verification
+
+    // Hand a written buffer to the hasher. It is copied while there is room ahead of the cursor;
+    // otherwise the hasher reads it back from disk when it gets there.
+    private synchronized void verify(byte[] data, long position, int length) throws IOException {
+        if (verifier == null) {
+            return;
+        }
+        if (hashFailure != null) {
+            throw hashFailure;
+        }
+        if (position + length > verified && pendingBytes + length <= MAX_PENDING_BYTES) {
+            byte[] previous = pending.put(position, Arrays.copyOf(data, length));
+            pendingBytes += length - (previous != null ? previous.length : 0);
+        }
+        notifyAll();
+    }
+
+    // Hasher thread: feeds the verifier in file order, from memory when it can and from disk otherwise
+    private void hash(File part) {
+        byte[] readBack = null;
+        RandomAccessFile raf = null;
+        try {
+            while (true) {
+                byte[] data = null;
+                int offset = 0;
+                int length;
+                long position;
+                synchronized (this) {
+                    while (true) {
+                        if (hashAbandoned) {
+                            return;
+                        }
+                        dropVerifiedPending();
+                        Map.Entry<Long, byte[]> entry = pending.floorEntry(verified);
+                        if (entry != null) {
+                            pending.remove(entry.getKey());
+                            pendingBytes -= entry.getValue().length;
+                            data = entry.getValue();
+                            offset = (int) (verified - entry.getKey());
+                            length = data.length - offset;
+                            break;
+                        }
+                        long available = writtenEnd() - verified;
+                        if (available > 0) {
+                            length = (int) Math.min(BUFFER_SIZE, available);
+                            break;
+                        }
+                        if (writesDone) {
+                            return;
+                        }
+                        wait();
+                    }
+                    position = verified;
+                }
+
+                if (data == null) {
+                    // Read back outside the lock; range threads keep writing meanwhile
+                    if (raf == null) {
+                        raf = new RandomAccessFile(part, "r");
+                        readBack = new byte[BUFFER_SIZE];
+                    }
+                    int read = raf.getChannel().read(ByteBuffer.wrap(readBack, 0, length), position);
+                    if (read <= 0) {
+                        throw new IOException("Cannot read back downloaded data at byte " + position);
+                    }
+                    data = readBack;
+                    length = read;
+                }
+                verifier.update(data, offset, length);
+
+                synchronized (this) {
+                    verified = position + length;
+                    notifyAll();
+                }
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                hashFailure = e;
+                notifyAll();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (raf != null) {
+                try {
+                    raf.close();
+                } catch (IOException ignored) {
+                    // Read-only handle
+                }
+            }
+        }
+    }
+
+    private void dropVerifiedPending() {
+        while (!pending.isEmpty()) {
+            Map.Entry<Long, byte[]> first = pending.firstEntry();
+            if (first.getKey() + first.getValue().length > verified) {
+                return;
+            }
+            pending.pollFirstEntry();
+            pendingBytes -= first.getValue().length;
+        }
+    }
+
+    // End of the contiguous written data that starts at the hash cursor
+    private long writtenEnd() {
+        for (Segment segment : segments) {
+            if (verified >= segment.start && verified <= segment.end) {
+                return Math.max(verified, segment.position);
+            }
+        }
+        return verified;
+    }
+
+    // Wait for the hasher to go through everything written, then check the result
+    private void finishVerification() throws IOException {
+        stopHasher(true);
+        synchronized (this) {
+            if (hashFailure != null) {
+                throw hashFailure;
+            }
+        }
+        verifier.finish();
+    }
+
+    // drain: let the hasher finish what is on disk first; otherwise it stops at once
+    private void stopHasher(boolean drain) throws IOException {
+        Thread thread;
+        synchronized (this) {
+            writesDone = true;
+            hashAbandoned |= !drain;
+            thread = hasher;
+            hasher = null;
+            if (!drain) {
+                pending.clear();
+                pendingBytes = 0;
+            }
+            notifyAll();
+        }
+        if (thread == null) {
+            return;
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            synchronized (this) {
+                hashAbandoned = true;
+                notifyAll();
+            }
+            throw new IOException("Download interrupted");
+        }
+    }
+
+    private HttpURLConnection open(URL source) throws IOException {
+        checkStopped();
+        HttpURLConnection connection = (HttpURLConnection) source.openConnection();
+        connection.setRequestMethod("GET");
+        connection.setConnectTimeout(30000);
+        connection.setReadTimeout(60000);
+        // Ranges must arrive byte for byte as stored
+        connection.setRequestProperty("Accept-Encoding", "identity");
+        active.add(connection);
+        return connection;
+    }
+
+    private void release(HttpURLConnection connection) {
+        active.remove(connection);
+        connection.disconnect();
+    }
+
+    private void checkStopped() throws IOException {
+        if (cancelled) {
+            throw new CancelledException();
+        }
+        if (Thread.currentThread().isInterrupted()) {
+            throw new IOException("Download interrupted");
+        }
+    }
+
+    private void sleep(long millis) throws IOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            checkStopped();
+        }
+    }
+
+    // State file: total size, validator (ETag or Last-Modified), then "start end position" per range
+    private static synchronized void writeState(File state, long total, String validator, List<Segment> segments)
+            throws IOException {
+        File temp = new File(state.getPath() + ".tmp");
+        try (PrintWriter out = new PrintWriter(new FileWriter(temp))) {
+            out.println(total);
+            out.println(validator != null ? validator : "");
+            for (Segment segment : segments) {
+                out.println(segment.start + " " + segment.end + " " + segment.position);
+            }
+        }
+        if (!temp.renameTo(state)) {
+            temp.delete();
+            throw new IOException("Cannot write download state " + state);
+        }
+    }
+
+    // Ranges of an earlier attempt, or null when there is none or it was for a different file
+    private static List<Segment> readState(File state, long total, String validator) {
+        if (!state.isFile()) {
+            return null;
+        }
+        try (BufferedReader in = new BufferedReader(new FileReader(state))) {
+            if (Long.parseLong(in.readLine().trim()) != total) {
+                return null;
+            }
+            String saved = in.readLine();
+            if (validator != null && !validator.equals(saved)) {
+                return null;
+            }
+            List<Segment> segments = new ArrayList<>();
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] fields = line.trim().split(" ");
+                if (fields.length == 3) {
+                    segments.add(new Segment(Long.parseLong(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2])));
+                }
+            }
+            return segments.isEmpty() ? null : segments;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package ai.annadata.plugin.capacitor;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Sidecar "<model>.manifest.json" written after a download passed verification. It holds the file's
+ * size and modification time, so a manifest only counts while the model file is unchanged since.
+ */
+class ModelManifest {
+    private static final String SUFFIX = ".manifest.json";
+    // Manifests are a few hundred bytes; anything larger is not one of ours
+    private static final int MAX_BYTES = 64 * 1024;
+
+    private ModelManifest() {
+    }
+
+    static File fileFor(File model) {
+        return new File(model.getPath() + SUFFIX);
+    }
+
+    static void write(File model, Map<String, Object> verified) throws IOException {
+        JSONObject manifest = new JSONObject();
+        try {
+            for (Map.Entry<String, Object> entry : verified.entrySet()) {
+                manifest.put(entry.getKey(), entry.getValue());
+            }
+            manifest.put("size", model.length());
+            manifest.put("mtime", model.lastModified());
+            manifest.put("verified", true);
+            manifest.put("verified_at", System.currentTimeMillis());
+        } catch (JSONException e) {
+            throw new IOException("Cannot encode manifest: " + e.getMessage());
+        }
+
+        File file = fileFor(model);
+        File temp = new File(file.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(temp)) {
+            out.write(manifest.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Cannot write manifest " + file);
+        }
+    }
+
+    // The manifest, or null when there is none or the model changed after it was written
+    static JSONObject read(File model) {
+        File file = fileFor(model);
+        long length = file.length();
+        if (!file.isFile() || length > MAX_BYTES) {
+            return null;
+        }
+        byte[] data = new byte[(int) length];
+        try (InputStream in = new FileInputStream(file)) {
+            int filled = 0;
+            int read;
+            while (filled < data.length && (read = in.read(data, filled, data.length - filled)) != -1) {
+                filled += read;
+            }
+            JSONObject manifest = new JSONObject(new String(data, 0, filled, StandardCharsets.UTF_8));
+            if (!manifest.optBoolean("verified", false)
+                    || manifest.optLong("size", -1) != model.length()
+                    || manifest.optLong("mtime", -1) != model.lastModified()) {
+                return null;
+            }
+            return manifest;
+        } catch (IOException | JSONException e) {
+            return null;
+        }
+    }
+
+    static boolean isVerified(File model) {
+        return read(model) != null;
+    }
+
+    static void delete(File model) {
+        fileFor(model).delete();
+    }
+}
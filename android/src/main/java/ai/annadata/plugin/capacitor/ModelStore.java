@@ -0,0 +1,312 @@
+package ai.annadata.plugin.capacitor;
+
+import android.util.Log;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Owns the app's models directory and a catalog of the GGUF files in it: size, hash, header metadata
+ * and when each model was last used. The catalog is kept in a JSON file in the directory and checked
+ * against the files once per process; after that listing models only reads memory. With a disk quota
+ * set, the least recently used models that no context has loaded are deleted until the rest fits.
+ */
+class ModelStore {
+    private static final String TAG = "ModelStore";
+    private static final String CATALOG = "catalog.json";
+    // Header values kept in catalog entries
+    private static final String[] METADATA_KEYS = {"desc", "architecture", "quantization", "nParams", "nEmbd", "context_length"};
+
+    private final File directory;
+    private final GgufIndex ggufIndex;
+    private final Set<String> skip;
+    // Canonical paths of models that loaded contexts use; these are never evicted
+    private final Supplier<Set<String>> loadedModels;
+
+    // Entries by file name, or null until the catalog has been read and reconciled
+    private Map<String, Map<String, Object>> entries;
+    private long maxBytes = 0;
+
+    ModelStore(File directory, GgufIndex ggufIndex, Set<String> skip, Supplier<Set<String>> loadedModels) {
+        this.directory = directory;
+        this.ggufIndex = ggufIndex;
+        this.skip = skip;
+        this.loadedModels = loadedModels;
+    }
+
+    File getDirectory() {
+        return directory;
+    }
+
+    // Where a model named filename is stored; the name must not contain a path
+    File fileFor(String filename) throws IOException {
+        if (filename == null || filename.isEmpty() || !new File(filename).getName().equals(filename)
+                || filename.equals(CATALOG)) {
+            throw new IOException("Invalid model file name: " + filename);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        return new File(directory, filename);
+    }
+
+    // Models by name; refresh re-reads the directory to pick up files added or removed behind the store's back
+    synchronized List<Map<String, Object>> list(boolean refresh) {
+        if (refresh || entries == null) {
+            reconcile();
+        }
+        List<Map<String, Object>> models = new ArrayList<>();
+        for (Map<String, Object> entry : entries.values()) {
+            models.add(new HashMap<>(entry));
+        }
+        return models;
+    }
+
+    // Catalog a newly downloaded file, then make room for it under the quota
+    synchronized void add(File file) {
+        ensureLoaded();
+        Map<String, Object> entry = describe(file, null);
+        entry.put("lastUsed", System.currentTimeMillis());
+        entries.put(file.getName(), entry);
+        enforceQuota(file.getName());
+        save();
+    }
+
+    // Mark a model as just used; files outside the store are ignored
+    synchronized void touch(File file) {
+        if (file == null || !directory.equals(file.getAbsoluteFile().getParentFile())) {
+            return;
+        }
+        ensureLoaded();
+        Map<String, Object> entry = entries.get(file.getName());
+        if (entry != null) {
+            entry.put("lastUsed", System.currentTimeMillis());
+            save();
+        }
+    }
+
+    // 0 disables the quota. Returns the names of models deleted to meet it.
+    synchronized List<String> setMaxBytes(long maxBytes) {
+        this.maxBytes = Math.max(0, maxBytes);
+        ensureLoaded();
+        List<String> evicted = enforceQuota(null);
+        if (!evicted.isEmpty()) {
+            save();
+        }
+        return evicted;
+    }
+
+    synchronized Map<String, Object> getStats() {
+        ensureLoaded();
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("directory", directory.getAbsolutePath());
+        stats.put("models", entries.size());
+        stats.put("bytes", totalBytes());
+        stats.put("maxBytes", maxBytes);
+        return stats;
+    }
+
+    private void ensureLoaded() {
+        if (entries == null) {
+            reconcile();
+        }
+    }
+
+    // Bring the catalog in line with the directory. Entries whose file kept its size and mtime are
+    // reused as they are; only new or changed files have their header read.
+    private void reconcile() {
+        Map<String, Map<String, Object>> saved = entries != null ? entries : readCatalog();
+        Map<String, Map<String, Object>> current = new TreeMap<>();
+        File[] files = directory.listFiles();
+        boolean changed = false;
+        if (files != null) {
+            for (File file : files) {
+                if (!isModel(file)) {
+                    continue;
+                }
+                Map<String, Object> entry = saved.get(file.getName());
+                if (entry == null || !matches(entry, file)) {
+                    entry = describe(file, entry);
+                    changed = true;
+                }
+                current.put(file.getName(), entry);
+            }
+        }
+        changed |= !current.keySet().equals(saved.keySet());
+        entries = current;
+        if (changed) {
+            save();
+        }
+    }
+
+    // Catalog entry for a file, keeping the last use of the entry it replaces
+    private Map<String, Object> describe(File file, Map<String, Object> previous) {
+        Map<String, Object> entry = new HashMap<>();
+        entry.put("name", file.getName());
+        entry.put("path", file.getAbsolutePath());
+        entry.put("size", file.length());
+        entry.put("mtime", file.lastModified());
+        entry.put("lastUsed", previous != null && previous.get("lastUsed") instanceof Number
+            ? previous.get("lastUsed") : file.lastModified());
+
+        JSONObject manifest = ModelManifest.read(file);
+        entry.put("verified", manifest != null);
+        if (manifest != null && manifest.has("sha256")) {
+            entry.put("sha256", manifest.optString("sha256"));
+        }
+        try {
+            Map<String, Object> header = ggufIndex.get(file, skip);
+            for (String key : METADATA_KEYS) {
+                if (header.get(key) != null) {
+                    entry.put(key, header.get(key));
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read GGUF metadata of " + file.getName() + ": " + e.getMessage());
+            entry.put("error", e.getMessage());
+        }
+        return entry;
+    }
+
+    // Delete least recently used models until the rest fits the quota, sparing loaded ones and keep
+    private List<String> enforceQuota(String keep) {
+        List<String> evicted = new ArrayList<>();
+        if (maxBytes <= 0) {
+            return evicted;
+        }
+        long total = totalBytes();
+        Set<String> loaded = loadedModels.get();
+        while (total > maxBytes) {
+            Map<String, Object> victim = null;
+            for (Map<String, Object> entry : entries.values()) {
+                String name = (String) entry.get("name");
+                if (name.equals(keep) || loaded.contains(canonicalPath(new File(directory, name)))) {
+                    continue;
+                }
+                if (victim == null || longValue(entry, "lastUsed") < longValue(victim, "lastUsed")) {
+                    victim = entry;
+                }
+            }
+            if (victim == null) {
+                Log.w(TAG, "Models use " + total + " bytes, over the " + maxBytes + " byte quota, but all are in use");
+                break;
+            }
+            String name = (String) victim.get("name");
+            File file = new File(directory, name);
+            if (file.exists() && !file.delete()) {
+                Log.w(TAG, "Could not delete " + file);
+                break;
+            }
+            ModelManifest.delete(file);
+            entries.remove(name);
+            total -= longValue(victim, "size");
+            evicted.add(name);
+            Log.i(TAG, "Evicted model " + name + " to stay within the disk quota");
+        }
+        return evicted;
+    }
+
+    private long totalBytes() {
+        long total = 0;
+        for (Map<String, Object> entry : entries.values()) {
+            total += longValue(entry, "size");
+        }
+        return total;
+    }
+
+    private static boolean isModel(File file) {
+        return file.isFile() && file.getName().toLowerCase(Locale.ROOT).endsWith(".gguf");
+    }
+
+    private static boolean matches(Map<String, Object> entry, File file) {
+        return longValue(entry, "size") == file.length() && longValue(entry, "mtime") == file.lastModified();
+    }
+
+    private static long longValue(Map<String, Object> entry, String key) {
+        Object value = entry.get(key);
+        return value instanceof Number ? ((Number) value).longValue() : 0;
+    }
+
+    private static String canonicalPath(File file) {
+        try {
+            return file.getCanonicalPath();
+        } catch (IOException e) {
+            return file.getAbsolutePath();
+        }
+    }
+
+    private Map<String, Map<String, Object>> readCatalog() {
+        Map<String, Map<String, Object>> catalog = new HashMap<>();
+        File file = new File(directory, CATALOG);
+        if (!file.isFile()) {
+            return catalog;
+        }
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] data = new byte[(int) file.length()];
+            int filled = 0;
+            int read;
+            while (filled < data.length && (read = in.read(data, filled, data.length - filled)) != -1) {
+                filled += read;
+            }
+            JSONArray models = new JSONObject(new String(data, 0, filled, StandardCharsets.UTF_8)).getJSONArray("models");
+            for (int i = 0; i < models.length(); i++) {
+                JSONObject model = models.getJSONObject(i);
+                Map<String, Object> entry = new HashMap<>();
+                for (Iterator<String> keys = model.keys(); keys.hasNext(); ) {
+                    String key = keys.next();
+                    entry.put(key, model.get(key));
+                }
+                if (entry.get("name") instanceof String) {
+                    catalog.put((String) entry.get("name"), entry);
+                }
+            }
+        } catch (IOException | JSONException e) {
+            // A damaged catalog is rebuilt from the directory
+            Log.w(TAG, "Ignoring unreadable model catalog: " + e.getMessage());
+            return Collections.emptyMap();
+        }
+        return catalog;
+    }
+
+    private void save() {
+        File file = new File(directory, CATALOG);
+        File temp = new File(directory, CATALOG + ".tmp");
+        try {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Cannot create " + directory);
+            }
+            JSONArray models = new JSONArray();
+            for (Map<String, Object> entry : entries.values()) {
+                models.put(new JSONObject(entry));
+            }
+            JSONObject catalog = new JSONObject();
+            catalog.put("models", models);
+            try (OutputStream out = new FileOutputStream(temp)) {
+                out.write(catalog.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Cannot replace " + file);
+            }
+        } catch (IOException | JSONException e) {
+            temp.delete();
+            Log.w(TAG, "Could not save model catalog: " + e.getMessage());
+        }
+    }
+}
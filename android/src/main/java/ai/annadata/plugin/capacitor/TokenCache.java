@@ -0,0 +1,120 @@
+package ai.annadata.plugin.capacitor;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * LRU cache of text-only tokenizations for one model, keyed by the special-token flags and a 64-bit
+ * hash of the text. The text is kept alongside the hash so collisions never return wrong tokens.
+ * Cached arrays are shared between callers and must not be modified.
+ */
+class TokenCache {
+    static final long DEFAULT_MAX_BYTES = 8L * 1024 * 1024;
+
+    // Rough per-entry overhead of the key, map node and array headers
+    private static final int ENTRY_OVERHEAD_BYTES = 96;
+
+    private static final class Key {
+        final int flags;
+        final long hash;
+        final String text;
+
+        Key(String text, boolean addSpecial, boolean parseSpecial) {
+            this.flags = (addSpecial ? 1 : 0) | (parseSpecial ? 2 : 0);
+            this.hash = hash(text);
+            this.text = text;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return hash == key.hash && flags == key.flags && text.equals(key.text);
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (hash ^ (hash >>> 32)) * 31 + flags;
+        }
+
+        // FNV-1a over UTF-16 code units
+        private static long hash(String text) {
+            long h = 0xcbf29ce484222325L;
+            for (int i = 0; i < text.length(); i++) {
+                h ^= text.charAt(i);
+                h *= 0x100000001b3L;
+            }
+            return h;
+        }
+    }
+
+    private final long maxBytes;
+
+    // Access-ordered: iteration runs from least to most recently used
+    private final LinkedHashMap<Key, int[]> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    TokenCache(long maxBytes) {
+        this.maxBytes = maxBytes > 0 ? maxBytes : DEFAULT_MAX_BYTES;
+    }
+
+    synchronized int[] get(String text, boolean addSpecial, boolean parseSpecial) {
+        int[] tokens = entries.get(new Key(text, addSpecial, parseSpecial));
+        if (tokens == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return tokens;
+    }
+
+    synchronized void put(String text, boolean addSpecial, boolean parseSpecial, int[] tokens) {
+        long size = entrySize(text, tokens);
+        if (size > maxBytes) {
+            return;
+        }
+        int[] previous = entries.put(new Key(text, addSpecial, parseSpecial), tokens);
+        if (previous != null) {
+            bytes -= entrySize(text, previous);
+        }
+        bytes += size;
+
+        Iterator<Map.Entry<Key, int[]>> iterator = entries.entrySet().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            Map.Entry<Key, int[]> entry = iterator.next();
+            bytes -= entrySize(entry.getKey().text, entry.getValue());
+            iterator.remove();
+            evictions++;
+        }
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    synchronized Map<String, Object> getStats() {
+        long lookups = hits + misses;
+
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("entries", entries.size());
+        stats.put("bytes", bytes);
+        stats.put("maxBytes", maxBytes);
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("hitRate", lookups > 0 ? (double) hits / lookups : 0.0);
+        stats.put("evictions", evictions);
+        return stats;
+    }
+
+    private static long entrySize(String text, int[] tokens) {
+        return ENTRY_OVERHEAD_BYTES + 2L * text.length() + 4L * tokens.length;
+    }
+}
@@ -0,0 +1,705 @@
+package ai.annadata.plugin.capacitor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * On-device vector index. Vectors live off-heap in a memory-mapped file (<name>.vec) and are
+ * normalized with the same embd_normalize rules as native embeddings, so the score is an inner
+ * product (cosine similarity for the default L2 normalization). Small indexes are scanned flat;
+ * larger ones are searched through an HNSW graph that is kept in memory and saved to <name>.graph.
+ * The vector file is mapped in segments that double in size, so growing it maps only the new space and
+ * never leaves a superseded mapping of the whole file behind.
+ */
+class VectorIndex {
+    static final int FLAT_SCAN_LIMIT = 2048;
+
+    private static final int MAGIC = 0x58444956; // "VIDX"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 64;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // HNSW parameters
+    private static final int M = 16;
+    private static final int M0 = 2 * M;
+    private static final int EF_CONSTRUCTION = 100;
+    private static final int EF_SEARCH = 64;
+    private static final double LEVEL_MULTIPLIER = 1.0 / Math.log(M);
+
+    static final class Hit {
+        final int id;
+        final float score;
+
+        Hit(int id, float score) {
+            this.id = id;
+            this.score = score;
+        }
+    }
+
+    private final File vectorFile;
+    private final File graphFile;
+    private final File textFile;
+    private final int embdNormalize;
+    private int dimensions;
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private MappedByteBuffer header;
+    // Segment k holds INITIAL_CAPACITY << k vectors and starts right after segment k - 1
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    private final List<FloatBuffer> vectors = new ArrayList<>();
+    private int capacity = 0;
+    private int count = 0;
+
+    private final List<String> texts = new ArrayList<>();
+
+    // neighbors.get(node)[level] = {n, id0, id1, ...}
+    private final List<int[][]> neighbors = new ArrayList<>();
+    private int entryPoint = -1;
+    private int maxLevel = -1;
+    private final Random random = new Random(42);
+    private int[] visited = new int[0];
+    private int visitTag = 0;
+
+    private VectorIndex(File dir, String name, int dimensions, int embdNormalize) {
+        this.vectorFile = new File(dir, name + ".vec");
+        this.graphFile = new File(dir, name + ".graph");
+        this.textFile = new File(dir, name + ".txt");
+        this.dimensions = dimensions;
+        this.embdNormalize = embdNormalize;
+    }
+
+    // dimensions may be 0, in which case the first add decides it
+    static VectorIndex create(File dir, String name, int dimensions, int embdNormalize) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create index directory " + dir);
+        }
+        VectorIndex index = new VectorIndex(dir, name, dimensions, embdNormalize);
+        index.vectorFile.delete();
+        index.graphFile.delete();
+        index.textFile.delete();
+        if (dimensions > 0) {
+            index.open(INITIAL_CAPACITY);
+        }
+        return index;
+    }
+
+    static VectorIndex load(File dir, String name) throws IOException {
+        File vectorFile = new File(dir, name + ".vec");
+        if (!vectorFile.isFile()) {
+            throw new IOException("Index " + name + " does not exist");
+        }
+        int dimensions;
+        int embdNormalize;
+        int count;
+        try (RandomAccessFile raf = new RandomAccessFile(vectorFile, "r")) {
+            raf.seek(0);
+            int magic = Integer.reverseBytes(raf.readInt());
+            int version = Integer.reverseBytes(raf.readInt());
+            dimensions = Integer.reverseBytes(raf.readInt());
+            count = Integer.reverseBytes(raf.readInt());
+            embdNormalize = Integer.reverseBytes(raf.readInt());
+            if (magic != MAGIC || version != VERSION) {
+                throw new IOException("Unsupported index file " + vectorFile);
+            }
+        }
+
+        VectorIndex index = new VectorIndex(dir, name, dimensions, embdNormalize);
+        index.count = count;
+        if (dimensions > 0) {
+            index.open(Math.max(INITIAL_CAPACITY, count));
+        }
+        index.readTexts();
+        if (!index.readGraph()) {
+            // Graph missing or stale: rebuild it from the stored vectors
+            index.neighbors.clear();
+            index.entryPoint = -1;
+            index.maxLevel = -1;
+            float[] vector = new float[dimensions];
+            for (int id = 0; id < count; id++) {
+                index.readVector(id, vector);
+                index.insert(id, vector);
+            }
+        }
+        return index;
+    }
+
+    synchronized int getDimensions() {
+        return dimensions;
+    }
+
+    synchronized int size() {
+        return count;
+    }
+
+    int getEmbdNormalize() {
+        return embdNormalize;
+    }
+
+    synchronized String getText(int id) {
+        return id >= 0 && id < texts.size() ? texts.get(id) : null;
+    }
+
+    // Adds n row-major vectors; labels may be null. Returns the id of the first added vector.
+    synchronized int add(float[] rows, int n, String[] labels) throws IOException {
+        if (n <= 0) {
+            return count;
+        }
+        if (rows.length % n != 0) {
+            throw new IllegalArgumentException("Vector data is not a whole number of rows");
+        }
+        int width = rows.length / n;
+        if (dimensions == 0) {
+            dimensions = width;
+            open(Math.max(INITIAL_CAPACITY, n));
+        } else if (width != dimensions) {
+            throw new IllegalArgumentException("Expected " + dimensions + "-dimensional vectors, got " + width);
+        }
+        ensureCapacity(count + n);
+
+        int firstId = count;
+        float[] vector = new float[dimensions];
+        for (int i = 0; i < n; i++) {
+            normalize(rows, i * dimensions, vector, dimensions, embdNormalize);
+            int id = count;
+            writeVector(id, vector);
+            texts.add(labels != null && i < labels.length ? labels[i] : null);
+            count++;
+            insert(id, vector);
+        }
+        header.putInt(12, count);
+        return firstId;
+    }
+
+    synchronized List<Hit> search(float[] query, int k) {
+        List<Hit> hits = new ArrayList<>();
+        if (count == 0 || k <= 0) {
+            return hits;
+        }
+        if (query.length != dimensions) {
+            throw new IllegalArgumentException("Expected a " + dimensions + "-dimensional query, got " + query.length);
+        }
+        float[] normalized = new float[dimensions];
+        normalize(query, 0, normalized, dimensions, embdNormalize);
+
+        ScoreHeap results;
+        if (count <= FLAT_SCAN_LIMIT) {
+            results = new ScoreHeap(k, true);
+            for (int id = 0; id < count; id++) {
+                results.offerBounded(dot(normalized, id), id, k);
+            }
+        } else {
+            int ep = entryPoint;
+            for (int level = maxLevel; level > 0; level--) {
+                ep = greedy(normalized, ep, level);
+            }
+            results = searchLayer(normalized, ep, Math.max(k, EF_SEARCH), 0);
+        }
+
+        int n = Math.min(k, results.size());
+        Hit[] sorted = new Hit[n];
+        while (results.size() > n) {
+            results.poll();
+        }
+        for (int i = n - 1; i >= 0; i--) {
+            sorted[i] = new Hit(results.peekId(), results.peekScore());
+            results.poll();
+        }
+        hits.addAll(Arrays.asList(sorted));
+        return hits;
+    }
+
+    synchronized void save() throws IOException {
+        if (header == null) {
+            // No vectors yet; still leave a loadable file behind
+            open(INITIAL_CAPACITY);
+        }
+        force();
+        writeGraph();
+        writeTexts();
+    }
+
+    // Dropped mappings are unmapped once collected; nothing keeps them reachable after this
+    synchronized void close() throws IOException {
+        if (header != null) {
+            force();
+        }
+        header = null;
+        segments.clear();
+        vectors.clear();
+        capacity = 0;
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+        if (file != null) {
+            file.close();
+            file = null;
+        }
+    }
+
+    // MARK: - Storage
+
+    // Maps the header, plus room for initialCapacity vectors once the width is known
+    private void open(int initialCapacity) throws IOException {
+        if (channel == null) {
+            file = new RandomAccessFile(vectorFile, "rw");
+            channel = file.getChannel();
+            header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+        }
+        if (dimensions > 0) {
+            ensureCapacity(initialCapacity);
+        }
+        writeHeader();
+    }
+
+    private void ensureCapacity(int needed) throws IOException {
+        while (capacity < needed) {
+            int size = INITIAL_CAPACITY << segments.size();
+            long offset = HEADER_BYTES + (long) capacity * dimensions * Float.BYTES;
+            MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_WRITE, offset, (long) size * dimensions * Float.BYTES);
+            segment.order(ByteOrder.LITTLE_ENDIAN);
+            segments.add(segment);
+            vectors.add(segment.asFloatBuffer());
+            capacity += size;
+        }
+    }
+
+    private void force() {
+        writeHeader();
+        header.force();
+        for (MappedByteBuffer segment : segments) {
+            segment.force();
+        }
+    }
+
+    private void writeHeader() {
+        header.putInt(0, MAGIC);
+        header.putInt(4, VERSION);
+        header.putInt(8, dimensions);
+        header.putInt(12, count);
+        header.putInt(16, embdNormalize);
+    }
+
+    private static int segmentOf(int id) {
+        return 31 - Integer.numberOfLeadingZeros(id / INITIAL_CAPACITY + 1);
+    }
+
+    private static int segmentStart(int segment) {
+        return INITIAL_CAPACITY * ((1 << segment) - 1);
+    }
+
+    private void readVector(int id, float[] out) {
+        int segment = segmentOf(id);
+        FloatBuffer buffer = vectors.get(segment);
+        buffer.position((id - segmentStart(segment)) * dimensions);
+        buffer.get(out);
+    }
+
+    private void writeVector(int id, float[] vector) {
+        int segment = segmentOf(id);
+        FloatBuffer buffer = vectors.get(segment);
+        buffer.position((id - segmentStart(segment)) * dimensions);
+        buffer.put(vector);
+    }
+
+    private float dot(float[] query, int id) {
+        int segment = segmentOf(id);
+        FloatBuffer buffer = vectors.get(segment);
+        int base = (id - segmentStart(segment)) * dimensions;
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int j = 0;
+        for (; j + 3 < dimensions; j += 4) {
+            s0 += query[j] * buffer.get(base + j);
+            s1 += query[j + 1] * buffer.get(base + j + 1);
+            s2 += query[j + 2] * buffer.get(base + j + 2);
+            s3 += query[j + 3] * buffer.get(base + j + 3);
+        }
+        for (; j < dimensions; j++) {
+            s0 += query[j] * buffer.get(base + j);
+        }
+        return s0 + s1 + s2 + s3;
+    }
+
+    // Same rules as common_embd_normalize: -1 none, 0 max-abs (int16 range), 1 taxicab, 2 euclidean, >2 p-norm
+    static void normalize(float[] in, int offset, float[] out, int n, int embdNormalize) {
+        double sum = 0.0;
+        switch (embdNormalize) {
+            case -1:
+                sum = 1.0;
+                break;
+            case 0:
+                for (int i = 0; i < n; i++) {
+                    sum = Math.max(sum, Math.abs(in[offset + i]));
+                }
+                sum /= 32760.0;
+                break;
+            case 2:
+                for (int i = 0; i < n; i++) {
+                    sum += (double) in[offset + i] * in[offset + i];
+                }
+                sum = Math.sqrt(sum);
+                break;
+            default:
+                for (int i = 0; i < n; i++) {
+                    sum += Math.pow(Math.abs(in[offset + i]), embdNormalize);
+                }
+                sum = Math.pow(sum, 1.0 / embdNormalize);
+                break;
+        }
+        float norm = sum > 0.0 ? (float) (1.0 / sum) : 0.0f;
+        for (int i = 0; i < n; i++) {
+            out[i] = in[offset + i] * norm;
+        }
+    }
+
+    // MARK: - HNSW
+
+    private void insert(int id, float[] vector) {
+        int level = (int) Math.floor(-Math.log(1.0 - random.nextDouble()) * LEVEL_MULTIPLIER);
+        int[][] links = new int[level + 1][];
+        for (int l = 0; l <= level; l++) {
+            links[l] = new int[(l == 0 ? M0 : M) + 1];
+        }
+        neighbors.add(links);
+
+        if (entryPoint < 0) {
+            entryPoint = id;
+            maxLevel = level;
+            return;
+        }
+
+        int ep = entryPoint;
+        for (int l = maxLevel; l > level; l--) {
+            ep = greedy(vector, ep, l);
+        }
+        for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+            ScoreHeap candidates = searchLayer(vector, ep, EF_CONSTRUCTION, l);
+            int cap = l == 0 ? M0 : M;
+            while (candidates.size() > cap) {
+                candidates.poll();
+            }
+            int best = -1;
+            while (candidates.size() > 0) {
+                int neighbor = candidates.peekId();
+                candidates.poll();
+                if (neighbor == id) {
+                    continue;
+                }
+                link(id, neighbor, l);
+                link(neighbor, id, l);
+                best = neighbor;
+            }
+            if (best >= 0) {
+                ep = best;
+            }
+        }
+        if (level > maxLevel) {
+            entryPoint = id;
+            maxLevel = level;
+        }
+    }
+
+    // Add target to node's list at level; when full, keep the closest neighbors
+    private void link(int node, int target, int level) {
+        int[] list = neighbors.get(node)[level];
+        int n = list[0];
+        for (int i = 1; i <= n; i++) {
+            if (list[i] == target) {
+                return;
+            }
+        }
+        if (n < list.length - 1) {
+            list[n + 1] = target;
+            list[0] = n + 1;
+            return;
+        }
+
+        float[] base = new float[dimensions];
+        readVector(node, base);
+        int worst = -1;
+        float worstScore = dot(base, target);
+        for (int i = 1; i <= n; i++) {
+            float score = dot(base, list[i]);
+            if (score < worstScore) {
+                worstScore = score;
+                worst = i;
+            }
+        }
+        if (worst > 0) {
+            list[worst] = target;
+        }
+    }
+
+    private int greedy(float[] query, int start, int level) {
+        int current = start;
+        float currentScore = dot(query, current);
+        boolean improved = true;
+        while (improved) {
+            improved = false;
+            int[][] links = neighbors.get(current);
+            if (level >= links.length) {
+                break;
+            }
+            int[] list = links[level];
+            for (int i = 1; i <= list[0]; i++) {
+                float score = dot(query, list[i]);
+                if (score > currentScore) {
+                    currentScore = score;
+                    current = list[i];
+                    improved = true;
+                }
+            }
+        }
+        return current;
+    }
+
+    // Returns up to ef results as a min-heap (worst result on top)
+    private ScoreHeap searchLayer(float[] query, int start, int ef, int level) {
+        if (visited.length < count) {
+            visited = new int[Math.max(count, visited.length * 2)];
+        }
+        if (++visitTag == Integer.MAX_VALUE) {
+            Arrays.fill(visited, 0);
+            visitTag = 1;
+        }
+
+        ScoreHeap candidates = new ScoreHeap(ef, false);
+        ScoreHeap results = new ScoreHeap(ef, true);
+        float startScore = dot(query, start);
+        candidates.offer(startScore, start);
+        results.offer(startScore, start);
+        visited[start] = visitTag;
+
+        while (candidates.size() > 0) {
+            float score = candidates.peekScore();
+            int node = candidates.peekId();
+            candidates.poll();
+            if (results.size() >= ef && score < results.peekScore()) {
+                break;
+            }
+            int[][] links = neighbors.get(node);
+            if (level >= links.length) {
+                continue;
+            }
+            int[] list = links[level];
+            for (int i = 1; i <= list[0]; i++) {
+                int neighbor = list[i];
+                if (visited[neighbor] == visitTag) {
+                    continue;
+                }
+                visited[neighbor] = visitTag;
+                float neighborScore = dot(query, neighbor);
+                if (results.size() < ef || neighborScore > results.peekScore()) {
+                    candidates.offer(neighborScore, neighbor);
+                    results.offerBounded(neighborScore, neighbor, ef);
+                }
+            }
+        }
+        return results;
+    }
+
+    // Binary heap of (score, id) pairs without boxing; min-heap keeps the lowest score on top
+    private static final class ScoreHeap {
+        private float[] scores;
+        private int[] ids;
+        private int size = 0;
+        private final boolean min;
+
+        ScoreHeap(int initialCapacity, boolean min) {
+            scores = new float[Math.max(4, initialCapacity + 1)];
+            ids = new int[scores.length];
+            this.min = min;
+        }
+
+        int size() {
+            return size;
+        }
+
+        float peekScore() {
+            return scores[0];
+        }
+
+        int peekId() {
+            return ids[0];
+        }
+
+        void offerBounded(float score, int id, int bound) {
+            if (size < bound) {
+                offer(score, id);
+            } else if (min && score > scores[0]) {
+                poll();
+                offer(score, id);
+            }
+        }
+
+        void offer(float score, int id) {
+            if (size == scores.length) {
+                scores = Arrays.copyOf(scores, size * 2);
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (!before(score, scores[parent])) {
+                    break;
+                }
+                scores[i] = scores[parent];
+                ids[i] = ids[parent];
+                i = parent;
+            }
+            scores[i] = score;
+            ids[i] = id;
+        }
+
+        void poll() {
+            if (size == 0) {
+                return;
+            }
+            float score = scores[--size];
+            int id = ids[size];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && before(scores[child + 1], scores[child])) {
+                    child++;
+                }
+                if (!before(scores[child], score)) {
+                    break;
+                }
+                scores[i] = scores[child];
+                ids[i] = ids[child];
+                i = child;
+            }
+            scores[i] = score;
+            ids[i] = id;
+        }
+
+        private boolean before(float a, float b) {
+            return min ? a < b : a > b;
+        }
+    }
+
+    // MARK: - Sidecar files
+
+    private void writeGraph() throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(graphFile), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(count);
+            out.writeInt(entryPoint);
+            out.writeInt(maxLevel);
+            for (int id = 0; id < count; id++) {
+                int[][] links = neighbors.get(id);
+                out.writeInt(links.length);
+                for (int[] list : links) {
+                    out.writeInt(list[0]);
+                    for (int i = 1; i <= list[0]; i++) {
+                        out.writeInt(list[i]);
+                    }
+                }
+            }
+        }
+    }
+
+    // False when the graph is missing, stale, truncated or inconsistent; the caller then rebuilds it
+    private boolean readGraph() throws IOException {
+        if (!graphFile.isFile()) {
+            return false;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(graphFile), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != count) {
+                return false;
+            }
+            entryPoint = in.readInt();
+            maxLevel = in.readInt();
+            if (count > 0 && (entryPoint < 0 || entryPoint >= count || maxLevel < 0)) {
+                return false;
+            }
+            for (int id = 0; id < count; id++) {
+                int levels = in.readInt();
+                if (levels <= 0 || levels > maxLevel + 1) {
+                    return false;
+                }
+                int[][] links = new int[levels][];
+                for (int l = 0; l < levels; l++) {
+                    int[] list = new int[(l == 0 ? M0 : M) + 1];
+                    list[0] = in.readInt();
+                    if (list[0] < 0 || list[0] >= list.length) {
+                        return false;
+                    }
+                    for (int i = 1; i <= list[0]; i++) {
+                        list[i] = in.readInt();
+                        if (list[i] < 0 || list[i] >= count) {
+                            return false;
+                        }
+                    }
+                    links[l] = list;
+                }
+                neighbors.add(links);
+            }
+        } catch (EOFException e) {
+            return false;
+        }
+        return true;
+    }
+
+    private void writeTexts() throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(textFile), 1 << 16))) {
+            out.writeInt(count);
+            for (int id = 0; id < count; id++) {
+                String text = texts.get(id);
+                if (text == null) {
+                    out.writeInt(-1);
+                } else {
+                    byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(bytes.length);
+                    out.write(bytes);
+                }
+            }
+        }
+    }
+
+    private void readTexts() throws IOException {
+        texts.clear();
+        if (textFile.isFile()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(textFile), 1 << 16))) {
+                int n = Math.min(in.readInt(), count);
+                for (int id = 0; id < n; id++) {
+                    int length = in.readInt();
+                    if (length < 0) {
+                        texts.add(null);
+                    } else {
+                        byte[] bytes = new byte[length];
+                        in.readFully(bytes);
+                        texts.add(new String(bytes, StandardCharsets.UTF_8));
+                    }
+                }
+            }
+        }
+        while (texts.size() < count) {
+            texts.add(null);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+#ifndef JNI_MARSHALLING_H
+#define JNI_MARSHALLING_H
+
+// Builders for the Java objects native calls return. Header-only and free of llama.cpp types, so the
+// plugin's jni.cpp and the JVM benchmark's stub library (android/benchmark) compile the same code.
+
+#include <jni.h>
+#include <mutex>
+#include <string>
+
+namespace jni_utils {
+
+// Create an empty java.util.HashMap
+inline jobject new_hash_map(JNIEnv* env) {
+    jclass hashMapClass = env->FindClass("java/util/HashMap");
+    jmethodID hashMapConstructor = env->GetMethodID(hashMapClass, "<init>", "()V");
+    jobject hashMap = env->NewObject(hashMapClass, hashMapConstructor);
+    env->DeleteLocalRef(hashMapClass);
+    return hashMap;
+}
+
+// Put values into a java.util.Map, boxing primitives
+inline void map_put_object(JNIEnv* env, jobject map, const char* key, jobject value) {
+    jclass mapClass = env->GetObjectClass(map);
+    jmethodID putMethod = env->GetMethodID(mapClass, "put", "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;");
+    jstring jkey = env->NewStringUTF(key);
+    jobject previous = env->CallObjectMethod(map, putMethod, jkey, value);
+    if (previous != nullptr) env->DeleteLocalRef(previous);
+    env->DeleteLocalRef(jkey);
+    env->DeleteLocalRef(mapClass);
+}
+
+inline void map_put_string(JNIEnv* env, jobject map, const char* key, const std::string& value) {
+    jstring jvalue = env->NewStringUTF(value.c_str());
+    map_put_object(env, map, key, jvalue);
+    env->DeleteLocalRef(jvalue);
+}
+
+inline void map_put_boxed(JNIEnv* env, jobject map, const char* key, const char* class_name, const char* ctor_sig, jvalue value) {
+    jclass boxClass = env->FindClass(class_name);
+    jmethodID ctor = env->GetMethodID(boxClass, "<init>", ctor_sig);
+    jobject boxed = env->NewObjectA(boxClass, ctor, &value);
+    map_put_object(env, map, key, boxed);
+    env->DeleteLocalRef(boxed);
+    env->DeleteLocalRef(boxClass);
+}
+
+inline void map_put_int(JNIEnv* env, jobject map, const char* key, int value) {
+    jvalue v; v.i = value;
+    map_put_boxed(env, map, key, "java/lang/Integer", "(I)V", v);
+}
+
+inline void map_put_long(JNIEnv* env, jobject map, const char* key, long long value) {
+    jvalue v; v.j = static_cast<jlong>(value);
+    map_put_boxed(env, map, key, "java/lang/Long", "(J)V", v);
+}
+
+inline void map_put_double(JNIEnv* env, jobject map, const char* key, double value) {
+    jvalue v; v.d = value;
+    map_put_boxed(env, map, key, "java/lang/Double", "(D)V", v);
+}
+
+inline void map_put_bool(JNIEnv* env, jobject map, const char* key, bool value) {
+    jvalue v; v.z = value ? JNI_TRUE : JNI_FALSE;
+    map_put_boxed(env, map, key, "java/lang/Boolean", "(Z)V", v);
+}
+
+// MARK: - CompletionResult
+
+// Values of ai.annadata.plugin.capacitor.CompletionResult; empty strings keep the Java defaults
+struct completion_result_fields {
+    std::string text;
+    std::string content;
+    std::string reasoning_content;
+    std::string tool_calls;
+    int chat_format = 0;
+    bool truncated = false;
+    bool stopped_eos = false;
+    std::string stopped_word;
+    bool stopped_limit = false;
+    std::string stopping_word;
+    bool context_full = false;
+    bool interrupted = false;
+    int tokens_evaluated = 0;
+    int tokens_cached = 0;
+    int tokens_predicted = 0;
+    double prompt_ms = 0;
+    double predicted_ms = 0;
+};
+
+// Class and field IDs of CompletionResult, resolved on the first completion and kept for the process
+struct completion_result_ids {
+    jclass clazz = nullptr;
+    jmethodID ctor = nullptr;
+    jfieldID text, content, reasoning_content, tool_calls, chat_format, truncated, stopped_eos,
+        stopped_word, stopped_limit, stopping_word, context_full, interrupted, tokens_evaluated, tokens_cached,
+        tokens_predicted, prompt_ms, predicted_ms;
+};
+
+inline const completion_result_ids* get_completion_result_ids(JNIEnv* env) {
+    static completion_result_ids ids;
+    static std::mutex ids_mutex;
+    std::lock_guard<std::mutex> lock(ids_mutex);
+    if (ids.clazz != nullptr) {
+        return &ids;
+    }
+    // Resolved from inside a native call, so FindClass sees the caller's class loader
+    jclass local = env->FindClass("ai/annadata/plugin/capacitor/CompletionResult");
+    if (local == nullptr) {
+        return nullptr;
+    }
+    completion_result_ids resolved;
+    resolved.ctor = env->GetMethodID(local, "<init>", "()V");
+    resolved.text = env->GetFieldID(local, "text", "Ljava/lang/String;");
+    resolved.content = env->GetFieldID(local, "content", "Ljava/lang/String;");
+    resolved.reasoning_content = env->GetFieldID(local, "reasoningContent", "Ljava/lang/String;");
+    resolved.tool_calls = env->GetFieldID(local, "toolCalls", "Ljava/lang/String;");
+    resolved.chat_format = env->GetFieldID(local, "chatFormat", "I");
+    resolved.truncated = env->GetFieldID(local, "truncated", "Z");
+    resolved.stopped_eos = env->GetFieldID(local, "stoppedEos", "Z");
+    resolved.stopped_word = env->GetFieldID(local, "stoppedWord", "Ljava/lang/String;");
+    resolved.stopped_limit = env->GetFieldID(local, "stoppedLimit", "Z");
+    resolved.stopping_word = env->GetFieldID(local, "stoppingWord", "Ljava/lang/String;");
+    resolved.context_full = env->GetFieldID(local, "contextFull", "Z");
+    resolved.interrupted = env->GetFieldID(local, "interrupted", "Z");
+    resolved.tokens_evaluated = env->GetFieldID(local, "tokensEvaluated", "I");
+    resolved.tokens_cached = env->GetFieldID(local, "tokensCached", "I");
+    resolved.tokens_predicted = env->GetFieldID(local, "tokensPredicted", "I");
+    resolved.prompt_ms = env->GetFieldID(local, "promptMs", "D");
+    resolved.predicted_ms = env->GetFieldID(local, "predictedMs", "D");
+    if (env->ExceptionCheck()) {
+        env->DeleteLocalRef(local);
+        return nullptr;
+    }
+    resolved.clazz = (jclass) env->NewGlobalRef(local);
+    env->DeleteLocalRef(local);
+    ids = resolved;
+    return &ids;
+}
+
+inline void set_string_field(JNIEnv* env, jobject obj, jfieldID field, const std::string& value) {
+    jstring jvalue = env->NewStringUTF(value.c_str());
+    env->SetObjectField(obj, field, jvalue);
+    env->DeleteLocalRef(jvalue);
+}
+
+// Fills a CompletionResult directly; no map or boxed values on the way back to Java
+inline jobject new_completion_result(JNIEnv* env, const completion_result_fields& fields) {
+    const completion_result_ids* ids = get_completion_result_ids(env);
+    if (ids == nullptr) {
+        return nullptr;
+    }
+    jobject result = env->NewObject(ids->clazz, ids->ctor);
+    if (result == nullptr) {
+        return nullptr;
+    }
+    set_string_field(env, result, ids->text, fields.text);
+    set_string_field(env, result, ids->content, fields.content);
+    set_string_field(env, result, ids->reasoning_content, fields.reasoning_content);
+    if (!fields.tool_calls.empty()) {
+        set_string_field(env, result, ids->tool_calls, fields.tool_calls);
+    }
+    env->SetIntField(result, ids->chat_format, fields.chat_format);
+    env->SetBooleanField(result, ids->truncated, fields.truncated ? JNI_TRUE : JNI_FALSE);
+    env->SetBooleanField(result, ids->stopped_eos, fields.stopped_eos ? JNI_TRUE : JNI_FALSE);
+    if (!fields.stopped_word.empty()) {
+        set_string_field(env, result, ids->stopped_word, fields.stopped_word);
+    }
+    env->SetBooleanField(result, ids->stopped_limit, fields.stopped_limit ? JNI_TRUE : JNI_FALSE);
+    if (!fields.stopping_word.empty()) {
+        set_string_field(env, result, ids->stopping_word, fields.stopping_word);
+    }
+    env->SetBooleanField(result, ids->context_full, fields.context_full ? JNI_TRUE : JNI_FALSE);
+    env->SetBooleanField(result, ids->interrupted, fields.interrupted ? JNI_TRUE : JNI_FALSE);
+    env->SetIntField(result, ids->tokens_evaluated, fields.tokens_evaluated);
+    env->SetIntField(result, ids->tokens_cached, fields.tokens_cached);
+    env->SetIntField(result, ids->tokens_predicted, fields.tokens_predicted);
+    env->SetDoubleField(result, ids->prompt_ms, fields.prompt_ms);
+    env->SetDoubleField(result, ids->predicted_ms, fields.predicted_ms);
+    return result;
+}
+
+} // namespace jni_utils
+
+#endif // JNI_MARSHALLING_H
@@ -5,6 +5,8 @@
 #include <string>
 #include <vector>
 #include "cap-llama.h"
+// Map helpers and the CompletionResult builder, shared with the JVM benchmarks
+#include "jni-marshalling.h"
 
 namespace jni_utils {
 
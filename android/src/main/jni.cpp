@@ -1,5 +1,6 @@
 #include "jni-utils.h"
 #include "cap-llama.h"
+#include "cap-completion.h"
 #include <android/log.h>
 #include <cstring>
 #include <memory>
@@ -10,6 +11,7 @@
 #include <atomic> // For thread-safe progress tracking
 #include <filesystem> // For file operations
 #include <mutex> // For thread synchronization
+#include <chrono>
 
 // Add missing symbol
 // namespace rnllama {
@@ -147,8 +149,183 @@ jobject completion_result_to_jobject(JNIEnv* env, const capllama::completion_tok
 jobject tokenize_result_to_jobject(JNIEnv* env, const capllama::llama_cap_tokenize_result& result);
 
 // Global context storage - fix namespace
-static std::map<jlong, std::unique_ptr<capllama::llama_cap_context>> contexts;
+static std::map<jlong, std::shared_ptr<capllama::llama_cap_context>> contexts;
 static jlong next_context_id = 1;
+// Contexts are driven from their own Java worker threads, so the map itself needs a lock
+static std::mutex contexts_mutex;
+
+// The returned reference keeps the context alive for the duration of the call; release waits for it
+static std::shared_ptr<capllama::llama_cap_context> find_context(jlong context_id) {
+    std::lock_guard<std::mutex> lock(contexts_mutex);
+    auto it = contexts.find(context_id);
+    return it == contexts.end() ? nullptr : it->second;
+}
+
+// Tokenizer calls only read the vocab. The pinned reference keeps the model alive, so they take neither
+// state_mutex nor the registry lock and never wait behind a running decode or another context's call.
+template <typename F>
+static bool with_vocab(jlong context_id, F&& fn) {
+    const auto context = find_context(context_id);
+    if (context == nullptr || context->model == nullptr) {
+        return false;
+    }
+    fn(llama_model_get_vocab(context->model));
+    return true;
+}
+
+static jintArray tokens_to_jint_array(JNIEnv* env, const std::vector<llama_token>& tokens) {
+    static_assert(sizeof(llama_token) == sizeof(jint), "llama_token must match jint");
+    jintArray result = env->NewIntArray((jsize) tokens.size());
+    if (result != nullptr && !tokens.empty()) {
+        env->SetIntArrayRegion(result, 0, (jsize) tokens.size(), reinterpret_cast<const jint*>(tokens.data()));
+    }
+    return result;
+}
+
+// Parsed chat message for a completion, split into content, reasoning and tool calls
+struct chat_output {
+    std::string content;
+    std::string reasoning_content;
+    json tool_calls = json::array();
+};
+
+static chat_output parse_chat_output(const std::string& text, int chat_format, common_reasoning_format reasoning_format,
+                                     bool thinking_forced_open, bool is_partial) {
+    chat_output output;
+    output.content = text;
+    try {
+        common_chat_syntax syntax;
+        syntax.format = static_cast<common_chat_format>(chat_format);
+        syntax.reasoning_format = reasoning_format;
+        syntax.thinking_forced_open = thinking_forced_open;
+        syntax.parse_tool_calls = true;
+        common_chat_msg message = common_chat_parse(text, is_partial, syntax);
+        output.content = message.content;
+        output.reasoning_content = message.reasoning_content;
+        for (const auto& tool_call : message.tool_calls) {
+            json call = {
+                {"type", "function"},
+                {"function", {{"name", tool_call.name}, {"arguments", tool_call.arguments}}},
+            };
+            if (!tool_call.id.empty()) {
+                call["id"] = tool_call.id;
+            }
+            output.tool_calls.push_back(call);
+        }
+    } catch (const std::exception& e) {
+        if (!is_partial) {
+            LOGE("Failed to parse chat output: %s", e.what());
+        }
+    }
+    return output;
+}
+
+// The request's sampling options over the context defaults. Accepts "temp" and "repeat_penalty" as the
+// plugin's older names for temperature and penalty_repeat.
+static common_params_sampling completion_sampling(const json& params, const common_params_sampling& defaults, int n_ctx) {
+    common_params_sampling sampling = defaults;
+    if (params.contains("seed") && params["seed"].is_number_integer()) {
+        const int64_t seed = params["seed"].get<int64_t>();
+        sampling.seed = seed < 0 ? LLAMA_DEFAULT_SEED : (uint32_t) seed;
+    }
+    sampling.n_probs = params.value("n_probs", 0);
+    sampling.top_k = params.value("top_k", sampling.top_k);
+    sampling.top_p = params.value("top_p", sampling.top_p);
+    sampling.min_p = params.value("min_p", sampling.min_p);
+    sampling.xtc_probability = params.value("xtc_probability", sampling.xtc_probability);
+    sampling.xtc_threshold = params.value("xtc_threshold", sampling.xtc_threshold);
+    sampling.typ_p = params.value("typical_p", sampling.typ_p);
+    sampling.temp = params.value("temperature", params.value("temp", sampling.temp));
+    sampling.penalty_last_n = params.value("penalty_last_n", sampling.penalty_last_n);
+    sampling.penalty_repeat = params.value("penalty_repeat", params.value("repeat_penalty", sampling.penalty_repeat));
+    sampling.penalty_freq = params.value("penalty_freq", sampling.penalty_freq);
+    sampling.penalty_present = params.value("penalty_present", sampling.penalty_present);
+    sampling.mirostat = params.value("mirostat", sampling.mirostat);
+    sampling.mirostat_tau = params.value("mirostat_tau", sampling.mirostat_tau);
+    sampling.mirostat_eta = params.value("mirostat_eta", sampling.mirostat_eta);
+    sampling.dry_multiplier = params.value("dry_multiplier", sampling.dry_multiplier);
+    sampling.dry_base = params.value("dry_base", sampling.dry_base);
+    sampling.dry_allowed_length = params.value("dry_allowed_length", sampling.dry_allowed_length);
+    sampling.dry_penalty_last_n = params.value("dry_penalty_last_n", sampling.dry_penalty_last_n);
+    sampling.top_n_sigma = params.value("top_n_sigma", sampling.top_n_sigma);
+    if (sampling.penalty_last_n == -1) {
+        sampling.penalty_last_n = n_ctx;
+    }
+    if (sampling.dry_penalty_last_n == -1) {
+        sampling.dry_penalty_last_n = n_ctx;
+    }
+    if (params.contains("dry_sequence_breakers") && params["dry_sequence_breakers"].is_array()) {
+        sampling.dry_sequence_breakers.clear();
+        for (const auto& breaker : params["dry_sequence_breakers"]) {
+            if (breaker.is_string()) {
+                sampling.dry_sequence_breakers.push_back(breaker.get<std::string>());
+            }
+        }
+    }
+    if (params.contains("grammar") && params["grammar"].is_string()) {
+        sampling.grammar = params["grammar"].get<std::string>();
+    }
+    if (params.contains("logit_bias") && params["logit_bias"].is_array()) {
+        for (const auto& entry : params["logit_bias"]) {
+            if (entry.is_array() && entry.size() == 2 && entry[0].is_number_integer() && entry[1].is_number()) {
+                sampling.logit_bias.push_back({entry[0].get<llama_token>(), entry[1].get<float>()});
+            }
+        }
+    }
+    if (params.value("ignore_eos", false) && !sampling.ignore_eos) {
+        sampling.logit_bias.insert(sampling.logit_bias.end(), sampling.logit_bias_eog.begin(), sampling.logit_bias_eog.end());
+    }
+    sampling.ignore_eos = params.value("ignore_eos", sampling.ignore_eos);
+    return sampling;
+}
+
+// accumulated_text is only sent when the caller asked for it; copying the whole text on every token
+// makes a long completion quadratic
+static void emit_partial_completion(JNIEnv* env, jobject partial_callback, jmethodID on_partial, const std::string& token,
+                                    const std::string& content, const std::string& reasoning_content, const std::string* accumulated_text) {
+    jstring jtoken = string_to_jstring(env, token);
+    jstring jcontent = string_to_jstring(env, content);
+    jstring jreasoning = string_to_jstring(env, reasoning_content);
+    jstring jaccumulated = accumulated_text != nullptr ? string_to_jstring(env, *accumulated_text) : nullptr;
+    env->CallVoidMethod(partial_callback, on_partial, jtoken, jcontent, jreasoning, jaccumulated);
+    env->DeleteLocalRef(jtoken);
+    env->DeleteLocalRef(jcontent);
+    env->DeleteLocalRef(jreasoning);
+    if (jaccumulated != nullptr) {
+        env->DeleteLocalRef(jaccumulated);
+    }
+    if (check_exception(env)) {
+        // Listener failures must not abort generation
+        env->ExceptionClear();
+    }
+}
+
+// Fills a CompletionResult through the shared builder in jni-marshalling.h
+static jobject new_completion_result(JNIEnv* env, const capllama::completion_summary& summary, const chat_output& output, int chat_format) {
+    completion_result_fields fields;
+    fields.text = summary.text;
+    fields.content = output.content;
+    fields.reasoning_content = output.reasoning_content;
+    if (!output.tool_calls.empty()) {
+        fields.tool_calls = output.tool_calls.dump();
+    }
+    fields.chat_format = chat_format;
+    fields.truncated = summary.truncated;
+    fields.stopped_eos = summary.stopped_eos;
+    if (summary.stopped_word) {
+        fields.stopped_word = summary.stopping_word;
+    }
+    fields.stopped_limit = summary.stopped_limit;
+    fields.stopping_word = summary.stopping_word;
+    fields.context_full = summary.context_full;
+    fields.interrupted = summary.interrupted;
+    fields.tokens_evaluated = (int) (summary.n_prompt_tokens - summary.n_cached);
+    fields.tokens_cached = (int) summary.n_cached;
+    fields.tokens_predicted = (int) summary.n_predicted;
+    fields.prompt_ms = summary.prompt_ms;
+    fields.predicted_ms = summary.predicted_ms;
+    return new_completion_result(env, fields);
+}
 
 // Download progress tracking (simplified for now)
 // This can be enhanced later to track actual download progress
@@ -157,10 +334,12 @@ extern "C" {
 
 JNIEXPORT jlong JNICALL
 Java_ai_annadata_plugin_capacitor_LlamaCpp_initContextNative(
-    JNIEnv *env, jobject thiz, jstring modelPath, jobjectArray searchPaths, jobject params) {
+    JNIEnv *env, jobject thiz, jstring modelPath, jobjectArray searchPaths, jstring params_json) {
     
     try {
         std::string model_path_str = jstring_to_string(env, modelPath);
+        const std::string params_str = jstring_to_string(env, params_json);
+        json params = params_str.empty() ? json::object() : json::parse(params_str);
         
         // Get search paths from Java
         jsize pathCount = env->GetArrayLength(searchPaths);
@@ -195,10 +374,19 @@ Java_ai_annadata_plugin_capacitor_LlamaCpp_initContextNative(
             return -1;
         }
         
+        // Files verified while downloading carry a manifest, and Java passes that on
+        const bool model_verified = params.value("model_verified", false);
+        if (model_verified) {
+            LOGI("Model verified at download, skipping header validation");
+        }
+
         // Additional model validation
-        LOGI("Performing additional model validation...");
-        std::ifstream validation_file(full_model_path, std::ios::binary);
-        if (validation_file.good()) {
+        std::ifstream validation_file;
+        if (!model_verified) {
+            LOGI("Performing additional model validation...");
+            validation_file.open(full_model_path, std::ios::binary);
+        }
+        if (validation_file.is_open() && validation_file.good()) {
             // Read first 8 bytes to check GGUF version
             char header[8];
             if (validation_file.read(header, 8)) {
@@ -248,9 +436,46 @@ Java_ai_annadata_plugin_capacitor_LlamaCpp_initContextNative(
         cparams.n_sequences = 1;
         cparams.model_alias = "unknown";
 
+        // Caller overrides
+        cparams.n_ctx = params.value("n_ctx", cparams.n_ctx);
+        cparams.n_batch = params.value("n_batch", cparams.n_batch);
+        cparams.n_ubatch = params.value("n_ubatch", std::min(cparams.n_ubatch, cparams.n_batch));
+        if (params.contains("n_threads") && params["n_threads"].is_number_integer() && params["n_threads"].get<int>() > 0) {
+            cparams.cpuparams.n_threads = params["n_threads"].get<int>();
+        }
+        cparams.use_mmap = params.value("use_mmap", cparams.use_mmap);
+        cparams.use_mlock = params.value("use_mlock", cparams.use_mlock);
+        cparams.ctx_shift = params.value("ctx_shift", cparams.ctx_shift);
+        // Each parallel sequence is a scheduler slot sharing one batched decode
+        cparams.n_parallel = std::max(1, params.value("n_parallel", 1));
+        cparams.cont_batching = cparams.n_parallel > 1;
+        cparams.kv_unified = params.value("kv_unified", cparams.kv_unified);
+        cparams.embedding = params.value("embedding", cparams.embedding);
+        cparams.embd_normalize = params.value("embd_normalize", cparams.embd_normalize);
+        cparams.pooling_type = static_cast<enum llama_pooling_type>(params.value("pooling_type", (int) cparams.pooling_type));
+        if (cparams.embedding) {
+            // Non-causal encoders need the whole input in one physical batch
+            cparams.n_ubatch = cparams.n_batch;
+        }
+        context->n_completion_slots = cparams.n_parallel;
+        // Both of these change the KV layout, so they only apply when asked for
+        if (params.value("checkpoints", false) && (cparams.n_parallel == 1 || cparams.kv_unified)) {
+            // One extra sequence in the same KV stream for staging checkpoint deltas
+            context->scratch_seq_id = cparams.n_parallel;
+            cparams.n_parallel += 1;
+            cparams.kv_unified = true;
+        }
+        if (cparams.embedding && params.contains("n_seq_max")) {
+            // Room to pack many inputs into one batch as separate sequences
+            // (llama.cpp caps sequences at LLAMA_MAX_SEQ = 64)
+            cparams.n_parallel = std::max(cparams.n_parallel,
+                std::min(64, params.value("n_seq_max", 1)));
+            cparams.kv_unified = true;
+        }
+
         LOGI("Initialized common parameters, attempting to load model from: %s", full_model_path.c_str());
-        LOGI("Model parameters: n_ctx=%d, n_batch=%d, n_gpu_layers=%d", 
-             cparams.n_ctx, cparams.n_batch, cparams.n_gpu_layers);
+        LOGI("Model parameters: n_ctx=%d, n_batch=%d, n_gpu_layers=%d, n_parallel=%d", 
+             cparams.n_ctx, cparams.n_batch, cparams.n_gpu_layers, cparams.n_parallel);
         
         // Try to load the model with error handling and signal protection
         bool load_success = false;
@@ -303,6 +528,8 @@ Java_ai_annadata_plugin_capacitor_LlamaCpp_initContextNative(
             ultra_minimal_params.embedding = false;
             ultra_minimal_params.cont_batching = false;
             ultra_minimal_params.n_parallel = 1;
+            context->n_completion_slots = 1;
+            context->scratch_seq_id = -1;
             ultra_minimal_params.antiprompt.clear();
             ultra_minimal_params.vocab_only = false;
             ultra_minimal_params.rope_scaling_type = LLAMA_ROPE_SCALING_TYPE_UNSPECIFIED;
@@ -347,8 +574,12 @@ Java_ai_annadata_plugin_capacitor_LlamaCpp_initContextNative(
         LOGI("Model loaded successfully!");
         
         // Store context
-        jlong context_id = next_context_id++;
-        contexts[context_id] = std::move(context);
+        jlong context_id;
+        {
+            std::lock_guard<std::mutex> lock(contexts_mutex);
+            context_id = next_context_id++;
+            contexts[context_id] = std::move(context);
+        }
         
         LOGI("Initialized context %ld with model: %s", context_id, full_model_path.c_str());
         return context_id;
@@ -365,9 +596,28 @@ Java_ai_annadata_plugin_capacitor_LlamaCpp_releaseContextNative(
     JNIEnv* env, jobject thiz, jlong context_id) {
     
     try {
-        auto it = contexts.find(context_id);
-        if (it != contexts.end()) {
-            contexts.erase(it);
+        std::shared_ptr<capllama::llama_cap_context> released;
+        {
+            std::lock_guard<std::mutex> lock(contexts_mutex);
+            auto it = contexts.find(context_id);
+            if (it != contexts.end()) {
+                released = std::move(it->second);
+                contexts.erase(it);
+            }
+        }
+        // Free the model outside the lock so other contexts are not blocked
+        if (released) {
+            // No new calls can find the context now; stop running work and wait for calls that still hold it
+            if (released->completion != nullptr) {
+                released->completion->is_interrupted = true;
+            }
+            if (released->scheduler != nullptr) {
+                released->scheduler->interruptAll();
+            }
+            while (released.use_count() > 1) {
+                std::this_thread::sleep_for(std::chrono::milliseconds(2));
+            }
+            released.reset();
             LOGI("Released context %ld", context_id);
         }
     } catch (const std::exception& e) {
@@ -376,28 +626,202 @@ Java_ai_annadata_plugin_capacitor_LlamaCpp_releaseContextNative(
     }
 }
 
-JNIEXPORT jstring JNICALL
+JNIEXPORT jobject JNICALL
 Java_ai_annadata_plugin_capacitor_LlamaCpp_completionNative(
-    JNIEnv* env, jobject thiz, jlong context_id, jstring prompt) {
+    JNIEnv* env, jobject thiz, jlong context_id, jstring params_json, jobject partial_callback) {
     
     try {
-        auto it = contexts.find(context_id);
-        if (it == contexts.end()) {
+        const auto context = find_context(context_id);
+        if (context == nullptr) {
             throw_java_exception(env, "java/lang/IllegalArgumentException", "Invalid context ID");
             return nullptr;
         }
         
-        std::string prompt_str = jstring_to_string(env, prompt);
-        
-        // Get the context
-        capllama::llama_cap_context* context = it->second.get();
-        
-        // For now, return a simple completion
-        // In a full implementation, this would use the actual llama.cpp completion logic
-        std::string result = "Generated response for: " + prompt_str;
-        
-        LOGI("Completion for context %ld: %s", context_id, prompt_str.c_str());
-        return string_to_jstring(env, result);
+        json params = json::parse(jstring_to_string(env, params_json));
+        // Stop epoch Java saw when it queued this request
+        const int64_t stop_epoch_seen = params.value("stop_epoch", (int64_t) 0);
+
+        std::vector<std::string> antiprompt;
+        if (params.contains("stop") && params["stop"].is_array()) {
+            for (const auto& stop : params["stop"]) {
+                if (stop.is_string()) {
+                    antiprompt.push_back(stop.get<std::string>());
+                }
+            }
+        }
+        const std::string prefill_text = params.value("prefill_text", "");
+
+        std::vector<std::string> media_paths;
+        if (params.contains("media_paths") && params["media_paths"].is_array()) {
+            for (const auto& path : params["media_paths"]) {
+                if (path.is_string()) {
+                    media_paths.push_back(path.get<std::string>());
+                }
+            }
+        }
+
+        const int chat_format = params.value("chat_format", (int) COMMON_CHAT_FORMAT_CONTENT_ONLY);
+        const common_reasoning_format reasoning_format = params.contains("reasoning_format") && params["reasoning_format"].is_string()
+            ? common_reasoning_format_from_name(params["reasoning_format"].get<std::string>())
+            : COMMON_REASONING_FORMAT_NONE;
+        const bool thinking_forced_open = params.value("thinking_forced_open", false);
+        const bool emit_accumulated = params.value("emit_accumulated_text", false);
+
+        // Resolve the listener method once; tokens are pushed to Java as soon as they are safe to emit
+        jmethodID on_partial = nullptr;
+        if (partial_callback != nullptr && params.value("emit_partial_completion", false)) {
+            jclass callbackClass = env->GetObjectClass(partial_callback);
+            on_partial = env->GetMethodID(callbackClass, "onPartialCompletion",
+                "(Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;Ljava/lang/String;)V");
+            env->DeleteLocalRef(callbackClass);
+            if (check_exception(env)) {
+                return nullptr;
+            }
+        }
+
+        if (context->scheduler != nullptr) {
+            // Parallel contexts share decode steps with other in-flight completions
+            if (!media_paths.empty()) {
+                throw_java_exception(env, "java/lang/IllegalArgumentException",
+                    "media_paths are not supported on contexts with n_parallel > 1");
+                return nullptr;
+            }
+
+            capllama::completion_slot_request request;
+            request.prompt_tokens = common_tokenize(context->ctx, params.value("prompt", ""), true, true);
+            if (request.prompt_tokens.empty()) {
+                throw_java_exception(env, "java/lang/IllegalArgumentException", "Prompt is empty");
+                return nullptr;
+            }
+            request.n_predict = params.value("n_predict", -1);
+            request.antiprompt = antiprompt;
+            request.sampling = completion_sampling(params, context->params.sampling, context->n_ctx);
+            request.stop_epoch = &context->stop_epoch;
+            request.stop_epoch_seen = stop_epoch_seen;
+
+            capllama::chat_stream_parser stream;
+            stream.reset(chat_format, reasoning_format, thinking_forced_open, prefill_text);
+            const capllama::completion_summary summary = context->scheduler->run(std::move(request),
+                [&](const std::string& text) {
+                    if (on_partial == nullptr) {
+                        return;
+                    }
+                    const common_chat_msg& partial = stream.append(text);
+                    emit_partial_completion(env, partial_callback, on_partial, text,
+                        partial.content, partial.reasoning_content, emit_accumulated ? &stream.text() : nullptr);
+                });
+            if (summary.failed) {
+                throw_java_exception(env, "java/lang/RuntimeException", "Failed to decode completion batch");
+                return nullptr;
+            }
+
+            const chat_output output = parse_chat_output(prefill_text + summary.text, chat_format, reasoning_format, thinking_forced_open, false);
+            LOGI("Completion for context %ld finished: %zu chars", context_id, summary.text.size());
+            return new_completion_result(env, summary, output, chat_format);
+        }
+
+        capllama::llama_cap_context_completion* completion = context->completion;
+        if (completion == nullptr) {
+            throw_java_exception(env, "java/lang/IllegalStateException", "Context has no completion state");
+            return nullptr;
+        }
+        if (completion->is_predicting) {
+            throw_java_exception(env, "java/lang/IllegalStateException", "Context is busy with another completion");
+            return nullptr;
+        }
+
+        std::lock_guard<std::mutex> state_lock(context->state_mutex);
+        completion->rewind();
+        if (context->stop_epoch.load() > stop_epoch_seen) {
+            // Stopped while queued; the flag set back then was just cleared by rewind()
+            completion->is_interrupted = true;
+        }
+
+        context->params.prompt = params.value("prompt", "");
+        context->params.n_predict = params.value("n_predict", -1);
+        // Request options apply to this completion only; the context defaults come back afterwards
+        const common_params_sampling default_sampling = context->params.sampling;
+        struct sampling_restore {
+            common_params_sampling& target;
+            const common_params_sampling& saved;
+            ~sampling_restore() { target = saved; }
+        } restore_sampling{context->params.sampling, default_sampling};
+        context->params.sampling = completion_sampling(params, default_sampling, context->n_ctx);
+        context->params.antiprompt = antiprompt;
+        completion->prefill_text = prefill_text;
+
+        if (!completion->initSampling()) {
+            throw_java_exception(env, "java/lang/RuntimeException", "Failed to initialize sampling");
+            return nullptr;
+        }
+
+        completion->beginCompletion(chat_format, reasoning_format, thinking_forced_open);
+        try {
+            completion->loadPrompt(media_paths);
+        } catch (const std::exception& e) {
+            completion->endCompletion();
+            throw;
+        }
+
+        size_t sent_count = 0;
+        while (!completion->context_full && completion->has_next_token && !completion->is_interrupted) {
+            const capllama::completion_token_output token_with_probs = completion->doCompletion();
+            if (token_with_probs.tok == -1 || completion->incomplete) {
+                continue;
+            }
+
+            const std::string token_text = common_token_to_piece(context->ctx, token_with_probs.tok);
+            size_t pos = std::min(sent_count, completion->generated_text.size());
+            const std::string str_test = completion->generated_text.substr(pos);
+
+            bool is_stop_full = false;
+            size_t stop_pos = completion->findStoppingStrings(str_test, token_text.size(), capllama::STOP_FULL);
+            if (stop_pos != std::string::npos) {
+                is_stop_full = true;
+                completion->generated_text.erase(
+                    completion->generated_text.begin() + pos + stop_pos,
+                    completion->generated_text.end());
+                pos = std::min(sent_count, completion->generated_text.size());
+            } else {
+                stop_pos = completion->findStoppingStrings(str_test, token_text.size(), capllama::STOP_PARTIAL);
+            }
+
+            // Hold back text that may turn out to be the start of a stop word
+            if (stop_pos == std::string::npos || (!completion->has_next_token && !is_stop_full && stop_pos > 0)) {
+                const std::string to_send = completion->generated_text.substr(pos, std::string::npos);
+                sent_count += to_send.size();
+
+                if (on_partial != nullptr) {
+                    const common_chat_msg& partial = completion->getPartialOutput(to_send);
+                    emit_partial_completion(env, partial_callback, on_partial, to_send,
+                        partial.content, partial.reasoning_content, emit_accumulated ? &completion->chat_stream.text() : nullptr);
+                }
+            }
+        }
+
+        completion->endCompletion();
+
+        capllama::completion_summary summary;
+        summary.text = completion->generated_text;
+        summary.n_prompt_tokens = completion->num_prompt_tokens;
+        summary.n_cached = completion->num_prompt_cached;
+        summary.n_predicted = completion->num_tokens_predicted;
+        summary.truncated = completion->truncated;
+        summary.stopped_eos = completion->stopped_eos;
+        summary.stopped_word = completion->stopped_word;
+        summary.stopped_limit = completion->stopped_limit;
+        summary.stopping_word = completion->stopping_word;
+        summary.context_full = completion->context_full;
+        summary.interrupted = completion->is_interrupted;
+        summary.setTimings(completion->t_start_us, completion->t_first_token_us, llama_time_us());
+
+        // Parse the final message once generation is complete
+        const chat_output output = parse_chat_output(completion->prefill_text + completion->generated_text,
+            chat_format, reasoning_format, thinking_forced_open, false);
+        jobject result = new_completion_result(env, summary, output, chat_format);
+
+        LOGI("Completion for context %ld finished: %zu chars", context_id, completion->generated_text.size());
+        return result;
         
     } catch (const std::exception& e) {
         LOGE("Exception in completion: %s", e.what());
@@ -408,12 +832,20 @@ Java_ai_annadata_plugin_capacitor_LlamaCpp_completionNative(
 
 JNIEXPORT void JNICALL
 Java_ai_annadata_plugin_capacitor_LlamaCpp_stopCompletionNative(
-    JNIEnv* env, jobject thiz, jlong context_id) {
+    JNIEnv* env, jobject thiz, jlong context_id, jlong stop_epoch) {
     
     try {
-        auto it = contexts.find(context_id);
-        if (it != contexts.end()) {
-            // Stop completion logic would go here
+        const auto context = find_context(context_id);
+        if (context != nullptr && context->completion != nullptr) {
+            // Requests queued before this stop compare their epoch against it once they start
+            int64_t previous = context->stop_epoch.load();
+            while (previous < stop_epoch && !context->stop_epoch.compare_exchange_weak(previous, stop_epoch)) {
+            }
+            // Checked by the generation loop between tokens and between prompt batches
+            context->completion->is_interrupted = true;
+            if (context->scheduler != nullptr) {
+                context->scheduler->interruptAll();
+            }
             LOGI("Stopped completion for context %ld", context_id);
         }
     } catch (const std::exception& e) {
@@ -422,343 +854,537 @@ Java_ai_annadata_plugin_capacitor_LlamaCpp_stopCompletionNative(
     }
 }
 
-JNIEXPORT jstring JNICALL
-Java_ai_annadata_plugin_capacitor_LlamaCpp_getFormattedChatNative(
-    JNIEnv* env, jobject thiz, jlong context_id, jstring messages, jstring chat_template) {
+JNIEXPORT jobject JNICALL
+Java_ai_annadata_plugin_capacitor_LlamaCpp_loadSessionNative(
+    JNIEnv* env, jobject thiz, jlong context_id, jstring path, jint checkpoint) {
     
     try {
-        auto it = contexts.find(context_id);
-        if (it == contexts.end()) {
+        const auto context = find_context(context_id);
+        if (context == nullptr || context->completion == nullptr) {
             throw_java_exception(env, "java/lang/IllegalArgumentException", "Invalid context ID");
             return nullptr;
         }
-        
-        std::string messages_str = jstring_to_string(env, messages);
-        std::string template_str = jstring_to_string(env, chat_template);
-        
-        capllama::llama_cap_context* context = it->second.get();
-        
-        // Format chat using the context's method
-        std::string result = context->getFormattedChat(messages_str, template_str);
-        
-        LOGI("Formatted chat for context %ld", context_id);
-        return string_to_jstring(env, result);
+
+        const std::string path_str = jstring_to_string(env, path);
+        std::vector<llama_token> tokens;
+        {
+            std::lock_guard<std::mutex> state_lock(context->state_mutex);
+            tokens = context->completion->loadSession(path_str, checkpoint);
+        }
+
+        jobject result = new_hash_map(env);
+        map_put_int(env, result, "tokens_loaded", (int) tokens.size());
+        map_put_string(env, result, "prompt", common_detokenize(context->ctx, tokens, true));
+        LOGI("Loaded %zu session tokens for context %ld from %s", tokens.size(), context_id, path_str.c_str());
+        return result;
         
     } catch (const std::exception& e) {
-        LOGE("Exception in getFormattedChat: %s", e.what());
+        LOGE("Exception in loadSession: %s", e.what());
         throw_java_exception(env, "java/lang/RuntimeException", e.what());
         return nullptr;
     }
 }
 
-JNIEXPORT jboolean JNICALL
-Java_ai_annadata_plugin_capacitor_LlamaCpp_toggleNativeLogNative(
-    JNIEnv* env, jobject thiz, jboolean enabled) {
+JNIEXPORT jobject JNICALL
+Java_ai_annadata_plugin_capacitor_LlamaCpp_saveSessionNative(
+    JNIEnv* env, jobject thiz, jlong context_id, jstring path, jint size, jboolean incremental) {
     
     try {
-        // rnllama::rnllama_verbose = jboolean_to_bool(enabled); // This line is removed as per the edit hint
-        LOGI("Native logging %s", enabled ? "enabled" : "disabled");
-        return bool_to_jboolean(true);
+        const auto context = find_context(context_id);
+        if (context == nullptr || context->completion == nullptr) {
+            throw_java_exception(env, "java/lang/IllegalArgumentException", "Invalid context ID");
+            return nullptr;
+        }
+
+        const std::string path_str = jstring_to_string(env, path);
+        jobject result = new_hash_map(env);
+        std::lock_guard<std::mutex> state_lock(context->state_mutex);
+        if (incremental) {
+            // Appends only what changed since the last checkpoint in this file
+            const capllama::session_checkpoint_result saved = context->completion->saveCheckpoint(path_str, size);
+            map_put_int(env, result, "tokensSaved", (int) saved.n_tokens);
+            map_put_int(env, result, "checkpoint", (int) saved.checkpoint);
+            map_put_long(env, result, "bytesWritten", (long long) saved.bytes_written);
+            LOGI("Checkpoint %zu for context %ld: %zu tokens, %zu bytes appended to %s",
+                 saved.checkpoint, context_id, saved.n_tokens, saved.bytes_written, path_str.c_str());
+        } else {
+            const size_t saved = context->completion->saveSession(path_str, size);
+            map_put_int(env, result, "tokensSaved", (int) saved);
+            LOGI("Saved %zu session tokens for context %ld to %s", saved, context_id, path_str.c_str());
+        }
+        return result;
+        
     } catch (const std::exception& e) {
-        LOGE("Exception in toggleNativeLog: %s", e.what());
+        LOGE("Exception in saveSession: %s", e.what());
         throw_java_exception(env, "java/lang/RuntimeException", e.what());
-        return bool_to_jboolean(false);
+        return nullptr;
     }
 }
 
-JNIEXPORT jobject JNICALL
-Java_ai_annadata_plugin_capacitor_LlamaCpp_modelInfoNative(
-    JNIEnv* env, jobject thiz, jstring model_path) {
+JNIEXPORT jfloatArray JNICALL
+Java_ai_annadata_plugin_capacitor_LlamaCpp_embeddingNative(
+    JNIEnv* env, jobject thiz, jlong context_id, jstring text, jint embd_normalize) {
     
     try {
-        std::string model_path_str = jstring_to_string(env, model_path);
-        LOGI("Getting model info for: %s", model_path_str.c_str());
-
-        // Extract filename from path
-        std::string filename = model_path_str;
-        size_t last_slash = model_path_str.find_last_of('/');
-        if (last_slash != std::string::npos) {
-            filename = model_path_str.substr(last_slash + 1);
-        }
-        LOGI("Extracted filename for model info: %s", filename.c_str());
-
-        // List all possible paths we should check (same as initContextNative)
-        std::vector<std::string> paths_to_check = {
-            model_path_str, // Try the original path first
-            "/data/data/ai.annadata.llamacpp/files/" + filename,
-            "/data/data/ai.annadata.llamacpp/files/Documents/" + filename,
-            "/storage/emulated/0/Android/data/ai.annadata.llamacpp/files/" + filename,
-            "/storage/emulated/0/Android/data/ai.annadata.llamacpp/files/Documents/" + filename,
-            "/storage/emulated/0/Documents/" + filename,
-            "/storage/emulated/0/Download/" + filename
-        };
+        const auto context = find_context(context_id);
+        if (context == nullptr || context->completion == nullptr) {
+            throw_java_exception(env, "java/lang/IllegalArgumentException", "Invalid context ID");
+            return nullptr;
+        }
 
-        // Check each path and find the actual file
-        std::string full_model_path;
-        bool file_found = false;
+        common_params embd_params = context->params;
+        embd_params.embd_normalize = embd_normalize;
+
+        std::vector<float> embedding;
+        {
+            std::lock_guard<std::mutex> state_lock(context->state_mutex);
+            const std::vector<llama_token> tokens = common_tokenize(context->ctx, jstring_to_string(env, text), true, true);
+            embedding = context->completion->embed(tokens, embd_params);
+        }
+
+        // One copy into a primitive array; no boxing on the way to Java
+        jfloatArray result = env->NewFloatArray((jsize) embedding.size());
+        if (result == nullptr) {
+            return nullptr;
+        }
+        env->SetFloatArrayRegion(result, 0, (jsize) embedding.size(), embedding.data());
+        return result;
         
-        for (const auto& path : paths_to_check) {
-            LOGI("Checking path for model info: %s", path.c_str());
-            std::ifstream file_check(path, std::ios::binary);
-            if (file_check.good()) {
-                file_check.seekg(0, std::ios::end);
-                std::streamsize file_size = file_check.tellg();
-                file_check.seekg(0, std::ios::beg);
-                
-                // Validate file size
-                if (file_size < 1024 * 1024) { // Less than 1MB
-                    LOGE("Model file is too small, likely corrupted: %s", path.c_str());
-                    file_check.close();
-                    continue; // Try next path
-                }
-                
-                // Check if it's a valid GGUF file by reading the magic number
-                char magic[4];
-                if (file_check.read(magic, 4)) {
-                    if (magic[0] == 'G' && magic[1] == 'G' && magic[2] == 'U' && magic[3] == 'F') {
-                        LOGI("Valid GGUF file detected for model info at: %s", path.c_str());
-                        full_model_path = path;
-                        file_found = true;
-                        file_check.close();
-                        break;
-                    } else {
-                        LOGI("File does not appear to be a GGUF file (magic: %c%c%c%c) at: %s", 
-                             magic[0], magic[1], magic[2], magic[3], path.c_str());
-                    }
-                }
-                file_check.close();
-            } else {
-                LOGI("File not found at: %s", path.c_str());
+    } catch (const std::exception& e) {
+        LOGE("Exception in embedding: %s", e.what());
+        throw_java_exception(env, "java/lang/RuntimeException", e.what());
+        return nullptr;
+    }
+}
+
+JNIEXPORT jfloatArray JNICALL
+Java_ai_annadata_plugin_capacitor_LlamaCpp_embeddingBatchNative(
+    JNIEnv* env, jobject thiz, jlong context_id, jobjectArray texts, jint embd_normalize) {
+    
+    try {
+        const auto context = find_context(context_id);
+        if (context == nullptr || context->completion == nullptr) {
+            throw_java_exception(env, "java/lang/IllegalArgumentException", "Invalid context ID");
+            return nullptr;
+        }
+
+        const std::vector<std::string> inputs = jstring_array_to_string_vector(env, texts);
+        const int n_embd = llama_model_n_embd(context->model);
+
+        common_params embd_params = context->params;
+        embd_params.embd_normalize = embd_normalize;
+
+        // Rows are laid out back to back: input i occupies [i * n_embd, (i + 1) * n_embd)
+        std::vector<float> embeddings(inputs.size() * n_embd);
+        {
+            std::lock_guard<std::mutex> state_lock(context->state_mutex);
+            std::vector<std::vector<llama_token>> tokens;
+            tokens.reserve(inputs.size());
+            for (const auto& input : inputs) {
+                tokens.push_back(common_tokenize(context->ctx, input, true, true));
             }
+            context->completion->embedBatch(tokens, embd_params, embeddings.data());
         }
 
-        if (!file_found) {
-            LOGE("Model file not found in any of the checked paths");
-            throw_java_exception(env, "java/lang/RuntimeException", "Model file not found");
+        jfloatArray result = env->NewFloatArray((jsize) embeddings.size());
+        if (result == nullptr) {
             return nullptr;
         }
+        env->SetFloatArrayRegion(result, 0, (jsize) embeddings.size(), embeddings.data());
+        return result;
+        
+    } catch (const std::exception& e) {
+        LOGE("Exception in embeddingBatch: %s", e.what());
+        throw_java_exception(env, "java/lang/RuntimeException", e.what());
+        return nullptr;
+    }
+}
 
-        // Now use the found path for getting model info
-        std::ifstream file_check(full_model_path, std::ios::binary);
+JNIEXPORT jfloatArray JNICALL
+Java_ai_annadata_plugin_capacitor_LlamaCpp_rerankNative(
+    JNIEnv* env, jobject thiz, jlong context_id, jstring query, jobjectArray documents) {
+    
+    try {
+        const auto context = find_context(context_id);
+        if (context == nullptr || context->completion == nullptr) {
+            throw_java_exception(env, "java/lang/IllegalArgumentException", "Invalid context ID");
+            return nullptr;
+        }
 
-        // Get file size
-        file_check.seekg(0, std::ios::end);
-        std::streamsize file_size = file_check.tellg();
-        file_check.seekg(0, std::ios::beg);
+        const std::string query_str = jstring_to_string(env, query);
+        const std::vector<std::string> docs = jstring_array_to_string_vector(env, documents);
 
-        // Check GGUF magic number
-        char magic[4];
-        if (!file_check.read(magic, 4)) {
-            LOGE("Failed to read magic number from: %s", full_model_path.c_str());
-            throw_java_exception(env, "java/lang/RuntimeException", "Failed to read model file header");
-            return nullptr;
+        // One score per document, in document order
+        std::vector<float> scores;
+        {
+            std::lock_guard<std::mutex> state_lock(context->state_mutex);
+            scores = context->completion->rerank(query_str, docs);
         }
 
-        if (magic[0] != 'G' || magic[1] != 'G' || magic[2] != 'U' || magic[3] != 'F') {
-            LOGE("Invalid GGUF file (magic: %c%c%c%c): %s", magic[0], magic[1], magic[2], magic[3], full_model_path.c_str());
-            throw_java_exception(env, "java/lang/RuntimeException", "Invalid GGUF file format");
+        jfloatArray result = env->NewFloatArray((jsize) scores.size());
+        if (result == nullptr) {
             return nullptr;
         }
+        env->SetFloatArrayRegion(result, 0, (jsize) scores.size(), scores.data());
+        return result;
+        
+    } catch (const std::exception& e) {
+        LOGE("Exception in rerank: %s", e.what());
+        throw_java_exception(env, "java/lang/RuntimeException", e.what());
+        return nullptr;
+    }
+}
 
-        // Read GGUF version
-        uint32_t version;
-        if (!file_check.read(reinterpret_cast<char*>(&version), sizeof(version))) {
-            LOGE("Failed to read GGUF version from: %s", full_model_path.c_str());
-            throw_java_exception(env, "java/lang/RuntimeException", "Failed to read GGUF version");
+JNIEXPORT jintArray JNICALL
+Java_ai_annadata_plugin_capacitor_LlamaCpp_tokenizeNative(
+    JNIEnv* env, jobject thiz, jlong context_id, jstring text, jboolean add_special, jboolean parse_special) {
+    
+    try {
+        const std::string text_str = jstring_to_string(env, text);
+        std::vector<llama_token> tokens;
+        const bool found = with_vocab(context_id, [&](const llama_vocab* vocab) {
+            tokens = common_tokenize(vocab, text_str, add_special, parse_special);
+        });
+        if (!found) {
+            throw_java_exception(env, "java/lang/IllegalArgumentException", "Invalid context ID");
             return nullptr;
         }
+        return tokens_to_jint_array(env, tokens);
+        
+    } catch (const std::exception& e) {
+        LOGE("Exception in tokenize: %s", e.what());
+        throw_java_exception(env, "java/lang/RuntimeException", e.what());
+        return nullptr;
+    }
+}
 
-        file_check.close();
+JNIEXPORT jobject JNICALL
+Java_ai_annadata_plugin_capacitor_LlamaCpp_tokenizeMediaNative(
+    JNIEnv* env, jobject thiz, jlong context_id, jstring text, jobjectArray media_paths) {
+    
+    try {
+        const auto context = find_context(context_id);
+        if (context == nullptr) {
+            throw_java_exception(env, "java/lang/IllegalArgumentException", "Invalid context ID");
+            return nullptr;
+        }
 
-        // Create Java HashMap
-        jclass hashMapClass = env->FindClass("java/util/HashMap");
-        jmethodID hashMapConstructor = env->GetMethodID(hashMapClass, "<init>", "()V");
-        jmethodID putMethod = env->GetMethodID(hashMapClass, "put", "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;");
+        const std::string text_str = jstring_to_string(env, text);
+        const std::vector<std::string> paths = jstring_array_to_string_vector(env, media_paths);
+        capllama::llama_cap_tokenize_result tokenized;
+        {
+            // Media chunks go through the multimodal encoder, which shares the context state
+            std::lock_guard<std::mutex> state_lock(context->state_mutex);
+            tokenized = context->tokenize(text_str, paths);
+        }
 
-        jobject hashMap = env->NewObject(hashMapClass, hashMapConstructor);
+        std::vector<jint> chunk_pos(tokenized.chunk_pos.begin(), tokenized.chunk_pos.end());
+        std::vector<jint> chunk_pos_media(tokenized.chunk_pos_media.begin(), tokenized.chunk_pos_media.end());
+        jintArray chunk_pos_array = env->NewIntArray((jsize) chunk_pos.size());
+        env->SetIntArrayRegion(chunk_pos_array, 0, (jsize) chunk_pos.size(), chunk_pos.data());
+        jintArray chunk_pos_media_array = env->NewIntArray((jsize) chunk_pos_media.size());
+        env->SetIntArrayRegion(chunk_pos_media_array, 0, (jsize) chunk_pos_media.size(), chunk_pos_media.data());
 
-        // Add model info to HashMap
-        env->CallObjectMethod(hashMap, putMethod, 
-            string_to_jstring(env, "path"), 
-            string_to_jstring(env, full_model_path));
-        
-        env->CallObjectMethod(hashMap, putMethod, 
-            string_to_jstring(env, "size"), 
-            env->NewObject(env->FindClass("java/lang/Long"), 
-                env->GetMethodID(env->FindClass("java/lang/Long"), "<init>", "(J)V"), 
-                static_cast<jlong>(file_size)));
+        jobject result = new_hash_map(env);
+        map_put_object(env, result, "tokens", tokens_to_jint_array(env, tokenized.tokens));
+        map_put_bool(env, result, "has_images", tokenized.has_media);
+        map_put_object(env, result, "bitmap_hashes", string_vector_to_jstring_array(env, tokenized.bitmap_hashes));
+        map_put_object(env, result, "chunk_pos", chunk_pos_array);
+        map_put_object(env, result, "chunk_pos_images", chunk_pos_media_array);
+        return result;
         
-        env->CallObjectMethod(hashMap, putMethod, 
-            string_to_jstring(env, "desc"), 
-            string_to_jstring(env, "GGUF Model (v" + std::to_string(version) + ")"));
-        
-        env->CallObjectMethod(hashMap, putMethod, 
-            string_to_jstring(env, "nEmbd"), 
-            env->NewObject(env->FindClass("java/lang/Integer"), 
-                env->GetMethodID(env->FindClass("java/lang/Integer"), "<init>", "(I)V"), 
-                0)); // Will be filled by actual model loading
-        
-        env->CallObjectMethod(hashMap, putMethod, 
-            string_to_jstring(env, "nParams"), 
-            env->NewObject(env->FindClass("java/lang/Integer"), 
-                env->GetMethodID(env->FindClass("java/lang/Integer"), "<init>", "(I)V"), 
-                0)); // Will be filled by actual model loading
+    } catch (const std::exception& e) {
+        LOGE("Exception in tokenize: %s", e.what());
+        throw_java_exception(env, "java/lang/RuntimeException", e.what());
+        return nullptr;
+    }
+}
 
-        LOGI("Model info retrieved successfully from %s: size=%ld, version=%u", full_model_path.c_str(), file_size, version);
-        return hashMap;
+JNIEXPORT jstring JNICALL
+Java_ai_annadata_plugin_capacitor_LlamaCpp_detokenizeNative(
+    JNIEnv* env, jobject thiz, jlong context_id, jintArray tokens) {
+    
+    try {
+        const jsize n_tokens = tokens != nullptr ? env->GetArrayLength(tokens) : 0;
+        std::vector<llama_token> token_vec(n_tokens);
+        if (n_tokens > 0) {
+            env->GetIntArrayRegion(tokens, 0, n_tokens, reinterpret_cast<jint*>(token_vec.data()));
+        }
 
+        std::string text;
+        const bool found = with_vocab(context_id, [&](const llama_vocab* vocab) {
+            text = common_detokenize(vocab, token_vec);
+        });
+        if (!found) {
+            throw_java_exception(env, "java/lang/IllegalArgumentException", "Invalid context ID");
+            return nullptr;
+        }
+        return string_to_jstring(env, text);
+        
     } catch (const std::exception& e) {
-        LOGE("Exception in modelInfo: %s", e.what());
+        LOGE("Exception in detokenize: %s", e.what());
         throw_java_exception(env, "java/lang/RuntimeException", e.what());
         return nullptr;
     }
 }
 
+// Token counts only: llama_tokenize reports the required length without a token buffer
+JNIEXPORT jintArray JNICALL
+Java_ai_annadata_plugin_capacitor_LlamaCpp_countTokensNative(
+    JNIEnv* env, jobject thiz, jlong context_id, jobjectArray texts, jboolean add_special, jboolean parse_special) {
+    
+    try {
+        const std::vector<std::string> inputs = jstring_array_to_string_vector(env, texts);
+        std::vector<jint> counts(inputs.size());
+        const bool found = with_vocab(context_id, [&](const llama_vocab* vocab) {
+            for (size_t i = 0; i < inputs.size(); ++i) {
+                const int32_t n = llama_tokenize(vocab, inputs[i].data(), (int32_t) inputs[i].size(),
+                                                 nullptr, 0, add_special, parse_special);
+                if (n == INT32_MIN) {
+                    throw std::runtime_error("input " + std::to_string(i) + " is too long to tokenize");
+                }
+                counts[i] = n < 0 ? -n : n;
+            }
+        });
+        if (!found) {
+            throw_java_exception(env, "java/lang/IllegalArgumentException", "Invalid context ID");
+            return nullptr;
+        }
 
+        jintArray result = env->NewIntArray((jsize) counts.size());
+        if (result != nullptr && !counts.empty()) {
+            env->SetIntArrayRegion(result, 0, (jsize) counts.size(), counts.data());
+        }
+        return result;
+        
+    } catch (const std::exception& e) {
+        LOGE("Exception in countTokens: %s", e.what());
+        throw_java_exception(env, "java/lang/RuntimeException", e.what());
+        return nullptr;
+    }
+}
 
-JNIEXPORT jstring JNICALL
-Java_ai_annadata_plugin_capacitor_LlamaCpp_downloadModelNative(
-    JNIEnv* env, jobject thiz, jstring url, jstring filename) {
+// Resident size of a context: weights (shared across contexts on the same model) and KV cache
+JNIEXPORT jobject JNICALL
+Java_ai_annadata_plugin_capacitor_LlamaCpp_memoryInfoNative(
+    JNIEnv* env, jobject thiz, jlong context_id) {
     
     try {
-        std::string url_str = jstring_to_string(env, url);
-        std::string filename_str = jstring_to_string(env, filename);
-        
-        LOGI("Preparing download path for model: %s", filename_str.c_str());
-        
-        // Determine local storage path (use external storage for large files)
-        std::string local_path = "/storage/emulated/0/Android/data/ai.annadata.llamacpp/files/Models/" + filename_str;
-        
-        // Create directory if it doesn't exist
-        std::string dir_path = "/storage/emulated/0/Android/data/ai.annadata.llamacpp/files/Models/";
-        std::filesystem::create_directories(dir_path);
-        
-        LOGI("Download path prepared: %s", local_path.c_str());
-        
-        return string_to_jstring(env, local_path);
+        const auto context = find_context(context_id);
+        if (context == nullptr || context->ctx == nullptr) {
+            throw_java_exception(env, "java/lang/IllegalArgumentException", "Invalid context ID");
+            return nullptr;
+        }
+
+        const llama_model* model = context->model;
+        const int64_t n_ctx = llama_n_ctx(context->ctx);
+        const int64_t n_layer = llama_model_n_layer(model);
+        const int64_t n_head = std::max(1, llama_model_n_head(model));
+        // Estimate for standard attention; head size is n_embd / n_head
+        const int64_t n_embd_kv = (int64_t) llama_model_n_head_kv(model) * (llama_model_n_embd(model) / n_head);
+        const size_t kv_bytes = (size_t) (n_ctx * n_layer) *
+            (lm_ggml_row_size(context->params.cache_type_k, n_embd_kv) + lm_ggml_row_size(context->params.cache_type_v, n_embd_kv));
+
+        jobject result = new_hash_map(env);
+        map_put_long(env, result, "model_bytes", (long long) llama_model_size(model));
+        map_put_long(env, result, "kv_bytes", (long long) kv_bytes);
+        map_put_int(env, result, "n_ctx", (int) n_ctx);
+        map_put_long(env, result, "compute_bytes", (long long) context->estimateComputeBytes());
+        map_put_bool(env, result, "model_shared", context->model_shared);
+        map_put_int(env, result, "model_refs", (int) context->model_ref.use_count());
+        return result;
         
     } catch (const std::exception& e) {
-        LOGE("Exception in downloadModel: %s", e.what());
+        LOGE("Exception in memoryInfo: %s", e.what());
         throw_java_exception(env, "java/lang/RuntimeException", e.what());
         return nullptr;
     }
 }
 
+// Runs bench() and adds the model identity the results belong to
 JNIEXPORT jobject JNICALL
-Java_ai_annadata_plugin_capacitor_LlamaCpp_getDownloadProgressNative(
-    JNIEnv* env, jobject thiz, jstring url) {
+Java_ai_annadata_plugin_capacitor_LlamaCpp_benchNative(
+    JNIEnv* env, jobject thiz, jlong context_id, jint pp, jint tg, jint pl, jint nr) {
     
     try {
-        // For now, return a placeholder since we'll handle download in Java
-        // This can be enhanced later to track actual download progress
-        
-        jclass hashMapClass = env->FindClass("java/util/HashMap");
-        jmethodID hashMapConstructor = env->GetMethodID(hashMapClass, "<init>", "()V");
-        jmethodID putMethod = env->GetMethodID(hashMapClass, "put", "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;");
-        
-        jobject hashMap = env->NewObject(hashMapClass, hashMapConstructor);
-        
-        // Return placeholder progress info
-        env->CallObjectMethod(hashMap, putMethod, 
-            string_to_jstring(env, "progress"), 
-            env->NewObject(env->FindClass("java/lang/Double"), 
-                env->GetMethodID(env->FindClass("java/lang/Double"), "<init>", "(D)V"), 
-                0.0));
-        
-        env->CallObjectMethod(hashMap, putMethod, 
-            string_to_jstring(env, "completed"), 
-            env->NewObject(env->FindClass("java/lang/Boolean"), 
-                env->GetMethodID(env->FindClass("java/lang/Boolean"), "<init>", "(Z)V"), 
-                false));
+        const auto context = find_context(context_id);
+        if (context == nullptr || context->completion == nullptr) {
+            throw_java_exception(env, "java/lang/IllegalArgumentException", "Invalid context ID");
+            return nullptr;
+        }
+
+        capllama::bench_result bench;
+        {
+            std::lock_guard<std::mutex> state_lock(context->state_mutex);
+            bench = context->completion->bench(pp, tg, pl, nr);
+        }
+
+        char model_desc[128];
+        llama_model_desc(context->model, model_desc, sizeof(model_desc));
+
+        jobject result = new_hash_map(env);
+        map_put_string(env, result, "modelDesc", model_desc);
+        map_put_long(env, result, "modelSize", (long long) llama_model_size(context->model));
+        map_put_long(env, result, "modelNParams", (long long) llama_model_n_params(context->model));
+        map_put_int(env, result, "pp", bench.pp);
+        map_put_int(env, result, "tg", bench.tg);
+        map_put_int(env, result, "pl", bench.pl);
+        map_put_int(env, result, "nr", bench.nr);
+        map_put_int(env, result, "runs", bench.runs);
+        map_put_int(env, result, "nThreads", bench.n_threads);
+        map_put_int(env, result, "nBatch", bench.n_batch);
+        map_put_double(env, result, "ppAvg", bench.pp_avg);
+        map_put_double(env, result, "ppStd", bench.pp_std);
+        map_put_double(env, result, "tgAvg", bench.tg_avg);
+        map_put_double(env, result, "tgStd", bench.tg_std);
+        return result;
         
-        env->CallObjectMethod(hashMap, putMethod, 
-            string_to_jstring(env, "failed"), 
-            env->NewObject(env->FindClass("java/lang/Boolean"), 
-                env->GetMethodID(env->FindClass("java/lang/Boolean"), "<init>", "(Z)V"), 
-                false));
+    } catch (const std::exception& e) {
+        LOGE("Exception in bench: %s", e.what());
+        throw_java_exception(env, "java/lang/RuntimeException", e.what());
+        return nullptr;
+    }
+}
+
+// Free the multimodal projector and vocoder; the text model stays loaded
+JNIEXPORT void JNICALL
+Java_ai_annadata_plugin_capacitor_LlamaCpp_releaseExtrasNative(
+    JNIEnv* env, jobject thiz, jlong context_id, jboolean multimodal, jboolean vocoder) {
+    
+    try {
+        const auto context = find_context(context_id);
+        if (context == nullptr) {
+            throw_java_exception(env, "java/lang/IllegalArgumentException", "Invalid context ID");
+            return;
+        }
+
+        std::lock_guard<std::mutex> state_lock(context->state_mutex);
+        if (multimodal) {
+            context->releaseMultimodal();
+        }
+        if (vocoder) {
+            context->releaseVocoder();
+        }
         
-        return hashMap;
+    } catch (const std::exception& e) {
+        LOGE("Exception in releaseExtras: %s", e.what());
+        throw_java_exception(env, "java/lang/RuntimeException", e.what());
+    }
+}
+
+JNIEXPORT jobject JNICALL
+Java_ai_annadata_plugin_capacitor_LlamaCpp_captureSnapshotNative(
+    JNIEnv* env, jobject thiz, jlong context_id) {
+    
+    try {
+        const auto context = find_context(context_id);
+        if (context == nullptr || context->completion == nullptr) {
+            throw_java_exception(env, "java/lang/IllegalArgumentException", "Invalid context ID");
+            return nullptr;
+        }
+
+        std::lock_guard<std::mutex> state_lock(context->state_mutex);
+        const size_t size = context->completion->snapshotSize();
+        if (size > (size_t) INT32_MAX) {
+            throw std::runtime_error("snapshot is too large");
+        }
+
+        // Let Java own the memory: a direct buffer keeps the snapshot off the heap
+        jclass bufferClass = env->FindClass("java/nio/ByteBuffer");
+        jmethodID allocateDirect = env->GetStaticMethodID(bufferClass, "allocateDirect", "(I)Ljava/nio/ByteBuffer;");
+        jobject buffer = env->CallStaticObjectMethod(bufferClass, allocateDirect, (jint) size);
+        env->DeleteLocalRef(bufferClass);
+        if (check_exception(env) || buffer == nullptr) {
+            return nullptr;
+        }
+
+        uint8_t* data = static_cast<uint8_t*>(env->GetDirectBufferAddress(buffer));
+        const size_t written = context->completion->captureSnapshot(data, size);
+
+        // Expose only the bytes that were written
+        jclass limitClass = env->GetObjectClass(buffer);
+        jmethodID limit = env->GetMethodID(limitClass, "limit", "(I)Ljava/nio/Buffer;");
+        jobject unused = env->CallObjectMethod(buffer, limit, (jint) written);
+        env->DeleteLocalRef(unused);
+        env->DeleteLocalRef(limitClass);
+        return buffer;
         
     } catch (const std::exception& e) {
-        LOGE("Exception in getDownloadProgress: %s", e.what());
+        LOGE("Exception in captureSnapshot: %s", e.what());
         throw_java_exception(env, "java/lang/RuntimeException", e.what());
         return nullptr;
     }
 }
 
-JNIEXPORT jboolean JNICALL
-Java_ai_annadata_plugin_capacitor_LlamaCpp_cancelDownloadNative(
-    JNIEnv* env, jobject thiz, jstring url) {
+JNIEXPORT jint JNICALL
+Java_ai_annadata_plugin_capacitor_LlamaCpp_restoreSnapshotNative(
+    JNIEnv* env, jobject thiz, jlong context_id, jobject snapshot, jint size) {
     
     try {
-        // For now, return false since we'll handle download cancellation in Java
-        // This can be enhanced later to actually cancel downloads
-        return JNI_FALSE;
+        const auto context = find_context(context_id);
+        if (context == nullptr || context->completion == nullptr) {
+            throw_java_exception(env, "java/lang/IllegalArgumentException", "Invalid context ID");
+            return 0;
+        }
+
+        const uint8_t* data = static_cast<const uint8_t*>(env->GetDirectBufferAddress(snapshot));
+        if (data == nullptr || size < 0 || env->GetDirectBufferCapacity(snapshot) < size) {
+            throw_java_exception(env, "java/lang/IllegalArgumentException", "Snapshot must be a direct buffer");
+            return 0;
+        }
+
+        std::lock_guard<std::mutex> state_lock(context->state_mutex);
+        return (jint) context->completion->restoreSnapshot(data, (size_t) size);
         
     } catch (const std::exception& e) {
-        LOGE("Exception in cancelDownload: %s", e.what());
+        LOGE("Exception in restoreSnapshot: %s", e.what());
         throw_java_exception(env, "java/lang/RuntimeException", e.what());
-        return JNI_FALSE;
+        return 0;
     }
 }
 
-JNIEXPORT jobject JNICALL
-Java_ai_annadata_plugin_capacitor_LlamaCpp_getAvailableModelsNative(
-    JNIEnv* env, jobject thiz) {
+JNIEXPORT jstring JNICALL
+Java_ai_annadata_plugin_capacitor_LlamaCpp_getFormattedChatNative(
+    JNIEnv* env, jobject thiz, jlong context_id, jstring messages, jstring chat_template) {
     
     try {
-        std::string models_dir = "/storage/emulated/0/Android/data/ai.annadata.llamacpp/files/Models/";
-        
-        // Create Java ArrayList
-        jclass arrayListClass = env->FindClass("java/util/ArrayList");
-        jmethodID arrayListConstructor = env->GetMethodID(arrayListClass, "<init>", "()V");
-        jmethodID addMethod = env->GetMethodID(arrayListClass, "add", "(Ljava/lang/Object;)Z");
-        
-        jobject arrayList = env->NewObject(arrayListClass, arrayListConstructor);
-        
-        if (std::filesystem::exists(models_dir)) {
-            for (const auto& entry : std::filesystem::directory_iterator(models_dir)) {
-                if (entry.is_regular_file() && entry.path().extension() == ".gguf") {
-                    std::string filename = entry.path().filename().string();
-                    std::string full_path = entry.path().string();
-                    size_t file_size = entry.file_size();
-                    
-                    // Create model info HashMap
-                    jclass hashMapClass = env->FindClass("java/util/HashMap");
-                    jmethodID hashMapConstructor = env->GetMethodID(hashMapClass, "<init>", "()V");
-                    jmethodID putMethod = env->GetMethodID(hashMapClass, "put", "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;");
-                    
-                    jobject modelInfo = env->NewObject(hashMapClass, hashMapConstructor);
-                    
-                    env->CallObjectMethod(modelInfo, putMethod, 
-                        string_to_jstring(env, "name"), 
-                        string_to_jstring(env, filename));
-                    
-                    env->CallObjectMethod(modelInfo, putMethod, 
-                        string_to_jstring(env, "path"), 
-                        string_to_jstring(env, full_path));
-                    
-                    env->CallObjectMethod(modelInfo, putMethod, 
-                        string_to_jstring(env, "size"), 
-                        env->NewObject(env->FindClass("java/lang/Long"), 
-                            env->GetMethodID(env->FindClass("java/lang/Long"), "<init>", "(J)V"), 
-                            static_cast<jlong>(file_size)));
-                    
-                    // Add to ArrayList
-                    env->CallBooleanMethod(arrayList, addMethod, modelInfo);
-                }
-            }
+        const auto context = find_context(context_id);
+        if (context == nullptr) {
+            throw_java_exception(env, "java/lang/IllegalArgumentException", "Invalid context ID");
+            return nullptr;
         }
         
-        return arrayList;
+        std::string messages_str = jstring_to_string(env, messages);
+        std::string template_str = jstring_to_string(env, chat_template);
+        
+        // Format chat using the context's method
+        std::string result = context->getFormattedChat(messages_str, template_str);
+        
+        LOGI("Formatted chat for context %ld", context_id);
+        return string_to_jstring(env, result);
         
     } catch (const std::exception& e) {
-        LOGE("Exception in getAvailableModels: %s", e.what());
+        LOGE("Exception in getFormattedChat: %s", e.what());
         throw_java_exception(env, "java/lang/RuntimeException", e.what());
         return nullptr;
     }
 }
 
+JNIEXPORT jboolean JNICALL
+Java_ai_annadata_plugin_capacitor_LlamaCpp_toggleNativeLogNative(
+    JNIEnv* env, jobject thiz, jboolean enabled) {
+    
+    try {
+        // rnllama::rnllama_verbose = jboolean_to_bool(enabled); // This line is removed as per the edit hint
+        LOGI("Native logging %s", enabled ? "enabled" : "disabled");
+        return bool_to_jboolean(true);
+    } catch (const std::exception& e) {
+        LOGE("Exception in toggleNativeLog: %s", e.what());
+        throw_java_exception(env, "java/lang/RuntimeException", e.what());
+        return bool_to_jboolean(false);
+    }
+}
+
 } // extern "C"
 
 } // namespace jni_utils
@@ -0,0 +1,129 @@
+package ai.annadata.plugin.capacitor;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Runs DownloadRegistry with downloaders that never touch the network, to check how workers on the
+ * same URL are sequenced and how finished downloads are kept.
+ */
+public class DownloadRegistryTest {
+    private static final String URL = "http://localhost/model.gguf";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // Workers currently inside download(), across every downloader of a test
+    private final AtomicInteger running = new AtomicInteger(0);
+    private final AtomicInteger maxRunning = new AtomicInteger(0);
+
+    // Writes the target once released; a cancel makes it linger briefly, like a worker finishing a write
+    private class FakeDownloader extends ModelDownloader {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch entered = new CountDownLatch(1);
+        private volatile boolean cancelled;
+
+        @Override
+        void cancel() {
+            cancelled = true;
+            release.countDown();
+        }
+
+        @Override
+        void download(String url, File target, Listener listener, DownloadVerifier verifier) throws IOException {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            entered.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+                if (cancelled) {
+                    Thread.sleep(100);
+                    throw new IOException("cancelled");
+                }
+                Files.write(target.toPath(), new byte[] {1, 2, 3});
+                listener.onProgress(3, 3);
+            } catch (InterruptedException e) {
+                // Interrupted by cancel; still leave after the simulated write
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException ignored) {
+                    // Exiting anyway
+                }
+                throw new IOException("interrupted");
+            } finally {
+                running.decrementAndGet();
+            }
+        }
+    }
+
+    @Test
+    public void sharesRunningDownload() throws Exception {
+        DownloadRegistry registry = new DownloadRegistry(0);
+        String path = new File(folder.getRoot(), "model.gguf").getAbsolutePath();
+        FakeDownloader first = new FakeDownloader();
+
+        DownloadRegistry.Download download = registry.start(URL, path, first, null);
+        assertSame(download, registry.start(URL, path, new FakeDownloader(), null));
+
+        first.release.countDown();
+        assertEquals(path, download.done.get(5, TimeUnit.SECONDS));
+        assertEquals(DownloadRegistry.STATUS_COMPLETED, download.toMap().get("status"));
+    }
+
+    @Test
+    public void restartWaitsForCancelledWorker() throws Exception {
+        DownloadRegistry registry = new DownloadRegistry(0);
+        String path = new File(folder.getRoot(), "model.gguf").getAbsolutePath();
+        FakeDownloader first = new FakeDownloader();
+        FakeDownloader second = new FakeDownloader();
+
+        DownloadRegistry.Download cancelled = registry.start(URL, path, first, null);
+        assertTrue(first.entered.await(5, TimeUnit.SECONDS));
+        assertTrue(registry.cancel(URL));
+        assertFalse(registry.cancel(URL));
+
+        // The restart is registered at once but only runs after the old worker exits
+        DownloadRegistry.Download restarted = registry.start(URL, path, second, null);
+        assertNotSame(cancelled, restarted);
+        assertSame(restarted, registry.get(URL));
+        second.release.countDown();
+
+        assertEquals(path, restarted.done.get(5, TimeUnit.SECONDS));
+        try {
+            cancelled.done.get(5, TimeUnit.SECONDS);
+            fail("Cancelled download should fail");
+        } catch (ExecutionException expected) {
+            assertEquals("Download cancelled", expected.getCause().getMessage());
+        }
+        assertEquals(1, maxRunning.get());
+    }
+
+    @Test
+    public void keepsOnlyRecentFinishedDownloads() throws Exception {
+        DownloadRegistry registry = new DownloadRegistry(0);
+        int count = DownloadRegistry.MAX_FINISHED + 4;
+        for (int i = 0; i < count; i++) {
+            FakeDownloader downloader = new FakeDownloader();
+            downloader.release.countDown();
+            String path = new File(folder.getRoot(), "model-" + i + ".gguf").getAbsolutePath();
+            registry.start(URL + i, path, downloader, null).done.get(5, TimeUnit.SECONDS);
+        }
+
+        for (int i = 0; i < count; i++) {
+            if (i < count - DownloadRegistry.MAX_FINISHED) {
+                assertNull(registry.get(URL + i));
+            } else {
+                assertNotNull(registry.get(URL + i));
+            }
+        }
+    }
+}
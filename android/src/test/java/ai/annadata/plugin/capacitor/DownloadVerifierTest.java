@@ -0,0 +1,165 @@
+package ai.annadata.plugin.capacitor;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Feeds DownloadVerifier a small GGUF file in chunks, as a download would, and round-trips the
+ * manifest written for a verified model.
+ */
+public class DownloadVerifierTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static void putString(ByteBuffer out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.putLong(bytes.length);
+        out.put(bytes);
+    }
+
+    // One key and one F32 [64] tensor, followed by its 256 bytes of data
+    private static byte[] model() {
+        ByteBuffer out = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(0x46554747);
+        out.putInt(3);
+        out.putLong(1);
+        out.putLong(1);
+        putString(out, "general.architecture");
+        out.putInt(8);
+        putString(out, "llama");
+        putString(out, "weight");
+        out.putInt(1);
+        out.putLong(64);
+        out.putInt(0);
+        out.putLong(0);
+        while (out.position() % 32 != 0) {
+            out.put((byte) 0);
+        }
+        for (int i = 0; i < 256; i++) {
+            out.put((byte) i);
+        }
+        return Arrays.copyOf(out.array(), out.position());
+    }
+
+    private static String sha256(byte[] data) throws Exception {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-256").digest(data)) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static void feed(DownloadVerifier verifier, byte[] data, int chunk) throws Exception {
+        for (int offset = 0; offset < data.length; offset += chunk) {
+            verifier.update(data, offset, Math.min(chunk, data.length - offset));
+        }
+    }
+
+    @Test
+    public void acceptsValidModel() throws Exception {
+        byte[] data = model();
+        DownloadVerifier verifier = new DownloadVerifier(sha256(data).toUpperCase(), true, GgufReader.TOKENIZER_TABLES);
+        verifier.setTotalBytes(data.length);
+        feed(verifier, data, 7);
+        verifier.finish();
+
+        Map<String, Object> result = verifier.result();
+        assertEquals(sha256(data), result.get("sha256"));
+        assertEquals(true, result.get("sha256_matched"));
+        assertEquals((long) data.length, result.get("size"));
+        assertEquals(3, result.get("gguf_version"));
+        assertEquals(1L, result.get("n_tensors"));
+    }
+
+    @Test
+    public void rejectsHashMismatch() throws Exception {
+        byte[] data = model();
+        DownloadVerifier verifier = new DownloadVerifier(sha256(new byte[1]), true, Collections.<String>emptySet());
+        feed(verifier, data, 1024);
+        try {
+            verifier.finish();
+            fail("Expected a SHA-256 mismatch");
+        } catch (DownloadVerifier.VerificationException expected) {
+            assertTrue(expected.getMessage().startsWith("SHA-256 mismatch"));
+        }
+        assertNull(verifier.result());
+    }
+
+    @Test
+    public void rejectsBadMagicWithinFirstChunk() throws Exception {
+        byte[] data = model();
+        data[0] = 'X';
+        DownloadVerifier verifier = new DownloadVerifier(null, true, Collections.<String>emptySet());
+        try {
+            verifier.update(data, 0, 16);
+            fail("Expected the header check to fail");
+        } catch (DownloadVerifier.VerificationException expected) {
+            assertTrue(expected.getMessage().contains("Not a GGUF file"));
+        }
+    }
+
+    @Test
+    public void rejectsMissingTensorData() throws Exception {
+        byte[] data = Arrays.copyOf(model(), model().length - 1);
+        DownloadVerifier verifier = new DownloadVerifier(null, true, Collections.<String>emptySet());
+        feed(verifier, data, 64);
+        try {
+            verifier.finish();
+            fail("Expected the tensor bounds check to fail");
+        } catch (DownloadVerifier.VerificationException expected) {
+            assertTrue(expected.getMessage().startsWith("Tensor data ends"));
+        }
+    }
+
+    @Test
+    public void rejectsShortDownload() throws Exception {
+        byte[] data = model();
+        DownloadVerifier verifier = new DownloadVerifier(null, false, Collections.<String>emptySet());
+        verifier.setTotalBytes(data.length + 10);
+        feed(verifier, data, 64);
+        try {
+            verifier.finish();
+            fail("Expected the size check to fail");
+        } catch (DownloadVerifier.VerificationException expected) {
+            assertTrue(expected.getMessage().startsWith("Verified " + data.length));
+        }
+    }
+
+    @Test
+    public void manifestCountsOnlyForUnchangedModel() throws Exception {
+        byte[] data = model();
+        File model = folder.newFile("model.gguf");
+        Files.write(model.toPath(), data);
+        DownloadVerifier verifier = new DownloadVerifier(null, true, GgufReader.TOKENIZER_TABLES);
+        feed(verifier, data, data.length);
+        verifier.finish();
+
+        ModelManifest.write(model, verifier.result());
+        JSONObject manifest = ModelManifest.read(model);
+        assertNotNull(manifest);
+        assertEquals(sha256(data), manifest.getString("sha256"));
+        assertTrue(ModelManifest.isVerified(model));
+
+        try (FileOutputStream out = new FileOutputStream(model, true)) {
+            out.write(0);
+        }
+        assertFalse(ModelManifest.isVerified(model));
+
+        ModelManifest.delete(model);
+        assertFalse(ModelManifest.fileFor(model).exists());
+    }
+}
@@ -0,0 +1,133 @@
+package ai.annadata.plugin.capacitor;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Parses small GGUF files written by the test: tensor sizes by type, a header larger than the first
+ * mapped window, and GgufIndex caching around the tokenizer tables.
+ */
+public class GgufReaderTest {
+    private static final int TYPE_UINT32 = 4;
+    private static final int TYPE_STRING = 8;
+    private static final int TYPE_ARRAY = 9;
+    private static final int GGML_TYPE_F32 = 0;
+    private static final int GGML_TYPE_Q4_0 = 2;
+    private static final int GGML_TYPE_Q4_K = 12;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static void putString(ByteBuffer out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.putLong(bytes.length);
+        out.put(bytes);
+    }
+
+    // llama model with an F32 [64], a Q4_0 [256] and a Q4_K [512] tensor, and `tokens` vocab entries
+    private File writeModel(String name, int tokens, boolean truncateData) throws IOException {
+        ByteBuffer out = ByteBuffer.allocate(16 * 1024 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+        out.putInt(0x46554747);
+        out.putInt(3);
+        out.putLong(3);
+        out.putLong(4);
+
+        putString(out, "general.architecture");
+        out.putInt(TYPE_STRING);
+        putString(out, "llama");
+        putString(out, "llama.embedding_length");
+        out.putInt(TYPE_UINT32);
+        out.putInt(64);
+        putString(out, "general.file_type");
+        out.putInt(TYPE_UINT32);
+        out.putInt(2);
+        putString(out, "tokenizer.ggml.tokens");
+        out.putInt(TYPE_ARRAY);
+        out.putInt(TYPE_STRING);
+        out.putLong(tokens);
+        for (int i = 0; i < tokens; i++) {
+            putString(out, "token-" + i);
+        }
+
+        long[][] tensors = {{GGML_TYPE_F32, 64, 0}, {GGML_TYPE_Q4_0, 256, 256}, {GGML_TYPE_Q4_K, 512, 416}};
+        for (int i = 0; i < tensors.length; i++) {
+            putString(out, "tensor-" + i);
+            out.putInt(1);
+            out.putLong(tensors[i][1]);
+            out.putInt((int) tensors[i][0]);
+            out.putLong(tensors[i][2]);
+        }
+        // Header padding to the 32-byte alignment, then 416 + 2 * 144 bytes of tensor data
+        while (out.position() % 32 != 0) {
+            out.put((byte) 0);
+        }
+        int dataSize = 416 + 288;
+        out.position(out.position() + (truncateData ? dataSize - 1 : dataSize));
+
+        File file = new File(folder.getRoot(), name);
+        try (FileOutputStream stream = new FileOutputStream(file)) {
+            stream.write(out.array(), 0, out.position());
+        }
+        return file;
+    }
+
+    @Test
+    public void readsTensorSizesByType() throws Exception {
+        File file = writeModel("small.gguf", 10, false);
+        Map<String, Object> info = GgufReader.read(file, Collections.<String>emptySet());
+
+        assertEquals("llama", info.get("architecture"));
+        assertEquals(64, info.get("nEmbd"));
+        assertEquals(832L, info.get("nParams"));
+        // Q4_0 is 18 bytes per 32 elements, Q4_K 144 bytes per 256
+        assertEquals(416L + 288L, info.get("data_size"));
+        assertEquals(file.length(), info.get("size"));
+        assertTrue(((String) info.get("tokenizer.ggml.tokens")).startsWith("[\"token-0\", \"token-1\""));
+    }
+
+    @Test
+    public void growsWindowForLargeHeaders() throws Exception {
+        // About 10 MiB of vocab pushes the header past the first 4 MiB window
+        File file = writeModel("large.gguf", 500_000, false);
+        Map<String, Object> info = GgufReader.read(file, GgufReader.TOKENIZER_TABLES);
+
+        assertFalse(info.containsKey("tokenizer.ggml.tokens"));
+        assertEquals(832L, info.get("nParams"));
+        assertEquals(file.length() - (416 + 288), info.get("data_offset"));
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsTruncatedTensorData() throws Exception {
+        GgufReader.read(writeModel("truncated.gguf", 10, true), GgufReader.TOKENIZER_TABLES);
+    }
+
+    @Test
+    public void cachesOnlyResultsWithoutTokenizerTables() throws Exception {
+        File file = writeModel("cached.gguf", 10, false);
+        GgufIndex index = new GgufIndex();
+
+        index.get(file, Collections.<String>emptySet());
+        index.get(file, Collections.<String>emptySet());
+        assertEquals(0, index.getStats().get("entries"));
+
+        index.get(file, GgufReader.TOKENIZER_TABLES);
+        Map<String, Object> info = index.get(file, GgufReader.TOKENIZER_TABLES);
+        assertEquals(1, index.getStats().get("entries"));
+        assertEquals(1L, index.getStats().get("hits"));
+
+        // Callers get their own copy
+        info.put("desc", "changed");
+        assertNotEquals("changed", index.get(file, GgufReader.TOKENIZER_TABLES).get("desc"));
+    }
+}
@@ -0,0 +1,88 @@
+package ai.annadata.plugin.capacitor;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks how KvSnapshotCache moves snapshots between RAM and spill files and keeps within its budget.
+ */
+public class KvSnapshotCacheTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static ByteBuffer snapshot(int size, int fill) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        for (int i = 0; i < size; i++) {
+            buffer.put((byte) (fill + i));
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void assertSnapshot(ByteBuffer buffer, int size, int fill) {
+        assertNotNull(buffer);
+        assertEquals(size, buffer.remaining());
+        for (int i = 0; i < size; i++) {
+            assertEquals((byte) (fill + i), buffer.get(buffer.position() + i));
+        }
+    }
+
+    @Test
+    public void spillsOlderEntriesAndMapsThemBack() throws Exception {
+        File dir = folder.newFolder("spill");
+        KvSnapshotCache cache = new KvSnapshotCache(dir, 1, 1 << 20);
+        assertTrue(cache.put("a", snapshot(1000, 1)));
+        assertTrue(cache.put("b", snapshot(2000, 2)));
+
+        Map<String, Object> stats = cache.getStats();
+        assertEquals(1, stats.get("ramEntries"));
+        assertEquals(1, stats.get("diskEntries"));
+        assertEquals(1000L, stats.get("diskBytes"));
+
+        // Reading "a" makes it the most recent, so it comes back to RAM and "b" is spilled
+        assertSnapshot(cache.get("a"), 1000, 1);
+        assertSnapshot(cache.get("b"), 2000, 2);
+        assertNull(cache.get("missing"));
+        assertEquals(2L, cache.getStats().get("hits"));
+        assertEquals(1L, cache.getStats().get("misses"));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedOverBudget() throws Exception {
+        KvSnapshotCache cache = new KvSnapshotCache(folder.newFolder("spill"), 2, 2500);
+        cache.put("a", snapshot(1000, 1));
+        cache.put("b", snapshot(1000, 2));
+        cache.get("a");
+        cache.put("c", snapshot(1000, 3));
+
+        assertTrue(cache.contains("a"));
+        assertFalse(cache.contains("b"));
+        assertTrue(cache.contains("c"));
+        assertEquals(1L, cache.getStats().get("evictions"));
+        assertFalse(cache.put("huge", snapshot(3000, 4)));
+    }
+
+    @Test
+    public void spillTruncatesLeftoverFile() throws Exception {
+        File dir = folder.newFolder("spill");
+        File leftover = new File(dir, "snapshot-0.kv");
+        try (RandomAccessFile raf = new RandomAccessFile(leftover, "rw")) {
+            raf.setLength(10000);
+        }
+
+        KvSnapshotCache cache = new KvSnapshotCache(dir, 0, 1 << 20);
+        cache.put("a", snapshot(1000, 5));
+        assertEquals(1000, leftover.length());
+        assertSnapshot(cache.get("a"), 1000, 5);
+
+        cache.clear();
+        assertFalse(leftover.exists());
+    }
+}
@@ -0,0 +1,223 @@
+package ai.annadata.plugin.capacitor;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Runs ModelDownloader against a local HTTP server that serves byte ranges and can cut responses short.
+ */
+public class ModelDownloaderTest {
+    private static final int SIZE = 3 * 1024 * 1024 + 123;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final byte[] data = new byte[SIZE];
+    private ServerSocket server;
+    private String url;
+
+    // Number of upcoming responses that are cut off after dropAfter bytes
+    private final AtomicInteger drops = new AtomicInteger(0);
+    private volatile int dropAfter = 64 * 1024;
+    private volatile boolean rangesSupported = true;
+    private volatile String etag = "\"v1\"";
+    private final AtomicInteger requests = new AtomicInteger(0);
+    private final AtomicLong bytesServed = new AtomicLong(0);
+
+    // A raw socket server, so a dropped response really closes the connection mid-body
+    @Before
+    public void startServer() throws IOException {
+        new Random(42).nextBytes(data);
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread acceptor = new Thread(() -> {
+            while (!server.isClosed()) {
+                try {
+                    Socket socket = server.accept();
+                    Thread handler = new Thread(() -> serve(socket));
+                    handler.setDaemon(true);
+                    handler.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+        url = "http://127.0.0.1:" + server.getLocalPort() + "/model.gguf";
+    }
+
+    @After
+    public void stopServer() throws IOException {
+        server.close();
+    }
+
+    private void serve(Socket socket) {
+        try (Socket connection = socket) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.ISO_8859_1));
+            String range = null;
+            String ifRange = null;
+            String line = in.readLine();
+            while (line != null && !line.isEmpty()) {
+                if (line.toLowerCase().startsWith("range:")) {
+                    range = line.substring(6).trim();
+                } else if (line.toLowerCase().startsWith("if-range:")) {
+                    ifRange = line.substring(9).trim();
+                }
+                line = in.readLine();
+            }
+            requests.incrementAndGet();
+
+            long start = 0;
+            long end = SIZE - 1;
+            // If-Range matches a strong ETag only, as real servers do
+            boolean partial = rangesSupported && range != null && range.startsWith("bytes=")
+                    && (ifRange == null || (ifRange.equals(etag) && !etag.startsWith("W/")));
+            StringBuilder headers = new StringBuilder();
+            if (partial) {
+                String[] bounds = range.substring(6).split("-");
+                start = Long.parseLong(bounds[0]);
+                if (bounds.length > 1 && !bounds[1].isEmpty()) {
+                    end = Math.min(end, Long.parseLong(bounds[1]));
+                }
+                headers.append("HTTP/1.1 206 Partial Content\r\n");
+                headers.append("Content-Range: bytes ").append(start).append('-').append(end).append('/').append(SIZE).append("\r\n");
+            } else {
+                headers.append("HTTP/1.1 200 OK\r\n");
+            }
+            long length = end - start + 1;
+            headers.append("ETag: ").append(etag).append("\r\n");
+            headers.append("Content-Length: ").append(length).append("\r\n");
+            headers.append("Connection: close\r\n\r\n");
+
+            int limit = length > 1 && drops.getAndDecrement() > 0 ? (int) Math.min(length, dropAfter) : (int) length;
+            OutputStream out = connection.getOutputStream();
+            out.write(headers.toString().getBytes(StandardCharsets.ISO_8859_1));
+            out.write(data, (int) start, limit);
+            out.flush();
+            bytesServed.addAndGet(limit);
+        } catch (IOException e) {
+            // The client went away
+        }
+    }
+
+    @Test
+    public void downloadsAcrossDroppedConnections() throws Exception {
+        drops.set(6);
+        File target = new File(folder.getRoot(), "model.gguf");
+
+        AtomicLong reported = new AtomicLong();
+        new ModelDownloader(4, 256 * 1024, 10, 0).download(url, target, (downloaded, total) -> {
+            assertEquals(SIZE, total);
+            reported.set(downloaded);
+        });
+
+        assertArrayEquals(data, Files.readAllBytes(target.toPath()));
+        assertEquals(SIZE, reported.get());
+        assertFalse(ModelDownloader.partFile(target).exists());
+        assertFalse(ModelDownloader.stateFile(target).exists());
+        // Probe, every range and at least one retry for each drop
+        assertTrue(requests.get() >= 1 + 13 + 6);
+    }
+
+    @Test
+    public void resumesFromPartialFile() throws Exception {
+        drops.set(Integer.MAX_VALUE);
+        dropAfter = 512 * 1024;
+        File target = new File(folder.getRoot(), "model.gguf");
+
+        // Ranges of 1 MiB, so every range is cut short
+        try {
+            new ModelDownloader(2, 1024 * 1024, 0, 0).download(url, target, null);
+            fail("Download should fail when every connection drops");
+        } catch (IOException expected) {
+            // Partial data is kept
+        }
+        assertFalse(target.exists());
+        assertTrue(ModelDownloader.partFile(target).exists());
+        assertTrue(ModelDownloader.stateFile(target).exists());
+
+        drops.set(0);
+        bytesServed.set(0);
+        DownloadVerifier verifier = new DownloadVerifier(sha256(), false, Collections.emptySet());
+        new ModelDownloader(2, 1024 * 1024, 0, 0).download(url, target, null, verifier);
+
+        assertArrayEquals(data, Files.readAllBytes(target.toPath()));
+        // Only the probe byte and what each range was missing were fetched again
+        assertTrue(bytesServed.get() <= 1 + SIZE - 512 * 1024);
+        assertTrue(bytesServed.get() >= 1 + SIZE - 2L * 512 * 1024);
+        // The data kept from the first attempt was read back and hashed in order
+        assertEquals(sha256(), verifier.result().get("sha256"));
+    }
+
+    @Test
+    public void hashesRangesInFileOrder() throws Exception {
+        drops.set(3);
+        File target = new File(folder.getRoot(), "model.bin");
+
+        DownloadVerifier verifier = new DownloadVerifier(sha256().toUpperCase(Locale.ROOT), false, Collections.emptySet());
+        new ModelDownloader(4, 256 * 1024, 10, 0).download(url, target, null, verifier);
+        assertEquals(sha256(), verifier.result().get("sha256"));
+
+        try {
+            new ModelDownloader(4, 256 * 1024, 0, 0).download(url, target, null, new DownloadVerifier("00", false, Collections.emptySet()));
+            fail("Download should fail on a hash mismatch");
+        } catch (DownloadVerifier.VerificationException expectedFailure) {
+            // A file that failed verification is not worth resuming
+        }
+        assertFalse(ModelDownloader.partFile(target).exists());
+        assertFalse(ModelDownloader.stateFile(target).exists());
+    }
+
+    @Test
+    public void fallsBackToSingleStreamWithWeakEtag() throws Exception {
+        etag = "W/\"v1\"";
+        File target = new File(folder.getRoot(), "model.gguf");
+
+        new ModelDownloader(4, 256 * 1024, 0, 0).download(url, target, null);
+
+        assertArrayEquals(data, Files.readAllBytes(target.toPath()));
+        // The probe, then one stream; a weak ETag is never sent as If-Range
+        assertEquals(2, requests.get());
+        assertFalse(ModelDownloader.partFile(target).exists());
+    }
+
+    @Test
+    public void fallsBackToSingleStreamWithoutRanges() throws Exception {
+        rangesSupported = false;
+        File target = new File(folder.getRoot(), "model.gguf");
+
+        new ModelDownloader(4, 256 * 1024, 0, 0).download(url, target, null);
+
+        assertArrayEquals(data, Files.readAllBytes(target.toPath()));
+        assertFalse(ModelDownloader.partFile(target).exists());
+    }
+
+    private String sha256() throws Exception {
+        StringBuilder hex = new StringBuilder();
+        for (byte b : MessageDigest.getInstance("SHA-256").digest(data)) {
+            hex.append(String.format(Locale.ROOT, "%02x", b));
+        }
+        return hex.toString();
+    }
+}
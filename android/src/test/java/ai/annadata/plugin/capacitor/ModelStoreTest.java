@@ -0,0 +1,100 @@
+package ai.annadata.plugin.capacitor;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Checks ModelStore's catalog and the order in which its disk quota deletes models.
+ */
+public class ModelStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+    private final Set<String> loaded = new HashSet<>();
+
+    @Before
+    public void setUp() throws Exception {
+        directory = folder.newFolder("models");
+    }
+
+    private ModelStore newStore() {
+        return new ModelStore(directory, new GgufIndex(), GgufReader.TOKENIZER_TABLES, () -> loaded);
+    }
+
+    // Not a valid GGUF file; the store still catalogs it, with the parse error
+    private File model(String name, long lastModified) throws Exception {
+        File file = new File(directory, name);
+        Files.write(file.toPath(), new byte[100]);
+        assertTrue(file.setLastModified(lastModified));
+        return file;
+    }
+
+    @Test
+    public void quotaSkipsLoadedModels() throws Exception {
+        File oldest = model("a.gguf", 1_000_000L);
+        model("b.gguf", 2_000_000L);
+        model("c.gguf", 3_000_000L);
+        loaded.add(oldest.getCanonicalPath());
+        ModelStore store = newStore();
+
+        assertEquals(Arrays.asList("b.gguf", "c.gguf"), store.setMaxBytes(150));
+        assertTrue(oldest.exists());
+        assertFalse(new File(directory, "b.gguf").exists());
+        assertEquals(1, store.list(false).size());
+
+        // Everything left is in use, so the store stays over a smaller quota instead of failing
+        assertEquals(Collections.emptyList(), store.setMaxBytes(50));
+        assertTrue(oldest.exists());
+    }
+
+    @Test
+    public void addKeepsNewModelAndEvictsLeastRecentlyUsed() throws Exception {
+        File a = model("a.gguf", 1_000_000L);
+        model("b.gguf", 2_000_000L);
+        ModelStore store = newStore();
+        store.setMaxBytes(200);
+        // Using a makes b the least recently used
+        store.touch(a);
+
+        store.add(model("c.gguf", 500_000L));
+        List<Map<String, Object>> models = store.list(false);
+        assertEquals(2, models.size());
+        assertTrue(a.exists());
+        assertFalse(new File(directory, "b.gguf").exists());
+        assertTrue(new File(directory, "c.gguf").exists());
+        assertEquals(200L, store.getStats().get("bytes"));
+    }
+
+    @Test
+    public void catalogSurvivesRestart() throws Exception {
+        File a = model("a.gguf", 1_000_000L);
+        ModelStore store = newStore();
+        store.touch(a);
+        long lastUsed = ((Number) store.list(false).get(0).get("lastUsed")).longValue();
+        assertTrue(lastUsed > 1_000_000L);
+
+        Map<String, Object> entry = newStore().list(false).get(0);
+        assertEquals("a.gguf", entry.get("name"));
+        assertEquals(lastUsed, ((Number) entry.get("lastUsed")).longValue());
+        assertEquals(false, entry.get("verified"));
+        assertNotNull(entry.get("error"));
+
+        // Files removed behind the store's back drop out on refresh
+        assertTrue(a.delete());
+        assertEquals(1, store.list(false).size());
+        assertTrue(store.list(true).isEmpty());
+    }
+}
@@ -0,0 +1,65 @@
+package ai.annadata.plugin.capacitor;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Checks TokenCache's keying and how it keeps within its byte budget.
+ */
+public class TokenCacheTest {
+    // Overhead plus two bytes per char and four per token, as TokenCache counts an entry
+    private static long entrySize(String text, int tokens) {
+        return 96 + 2L * text.length() + 4L * tokens;
+    }
+
+    @Test
+    public void keysOnTextAndSpecialFlags() {
+        TokenCache cache = new TokenCache(1 << 20);
+        int[] plain = {1, 2};
+        int[] special = {0, 1, 2};
+        cache.put("hello", false, false, plain);
+        cache.put("hello", true, false, special);
+
+        assertSame(plain, cache.get("hello", false, false));
+        assertSame(special, cache.get("hello", true, false));
+        assertNull(cache.get("hello", false, true));
+        assertNull(cache.get("hellp", false, false));
+        assertEquals(2L, cache.getStats().get("hits"));
+        assertEquals(2L, cache.getStats().get("misses"));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedOverBudget() {
+        long entry = entrySize("text-0", 10);
+        TokenCache cache = new TokenCache(3 * entry);
+        for (int i = 0; i < 3; i++) {
+            cache.put("text-" + i, false, false, new int[10]);
+        }
+        // Touch the oldest so the next put evicts text-1 instead
+        assertNotNull(cache.get("text-0", false, false));
+        cache.put("text-3", false, false, new int[10]);
+
+        assertNotNull(cache.get("text-0", false, false));
+        assertNull(cache.get("text-1", false, false));
+        assertNotNull(cache.get("text-3", false, false));
+        assertEquals(1L, cache.getStats().get("evictions"));
+        assertEquals(3 * entry, cache.getStats().get("bytes"));
+    }
+
+    @Test
+    public void replacesEntriesAndSkipsOversizedOnes() {
+        TokenCache cache = new TokenCache(entrySize("a", 100));
+        cache.put("a", false, false, new int[10]);
+        cache.put("a", false, false, new int[20]);
+        assertEquals(entrySize("a", 20), cache.getStats().get("bytes"));
+
+        cache.put("b", false, false, new int[1000]);
+        assertNull(cache.get("b", false, false));
+        assertEquals(1, cache.getStats().get("entries"));
+
+        cache.clear();
+        assertEquals(0L, cache.getStats().get("bytes"));
+        assertNull(cache.get("a", false, false));
+    }
+}
@@ -0,0 +1,77 @@
+package ai.annadata.plugin.capacitor;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Grows VectorIndex across several mapped segments and reloads it from disk, including from a graph
+ * file that was cut short.
+ */
+public class VectorIndexTest {
+    private static final int DIMENSIONS = 8;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static float[] randomRows(int n, long seed) {
+        Random random = new Random(seed);
+        float[] rows = new float[n * DIMENSIONS];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = random.nextFloat() * 2 - 1;
+        }
+        return rows;
+    }
+
+    private static float[] row(float[] rows, int id) {
+        float[] vector = new float[DIMENSIONS];
+        System.arraycopy(rows, id * DIMENSIONS, vector, 0, DIMENSIONS);
+        return vector;
+    }
+
+    @Test
+    public void findsVectorsInEverySegment() throws Exception {
+        VectorIndex index = VectorIndex.create(folder.getRoot(), "grow", DIMENSIONS, 2);
+        // Spans the first three segments (1024, 2048 and 4096 vectors)
+        int n = 5000;
+        float[] rows = randomRows(n, 1);
+        for (int first = 0; first < n; first += 500) {
+            assertEquals(first, index.add(Arrays.copyOfRange(rows, first * DIMENSIONS, (first + 500) * DIMENSIONS), 500, null));
+        }
+        assertEquals(n, index.size());
+
+        for (int id : new int[] {0, 1023, 1024, 3071, 3072, n - 1}) {
+            List<VectorIndex.Hit> hits = index.search(row(rows, id), 1);
+            assertEquals(id, hits.get(0).id);
+            assertEquals(1.0f, hits.get(0).score, 1e-4f);
+        }
+        index.close();
+    }
+
+    @Test
+    public void rebuildsTruncatedGraph() throws Exception {
+        int n = VectorIndex.FLAT_SCAN_LIMIT + 100;
+        float[] rows = randomRows(n, 2);
+        VectorIndex index = VectorIndex.create(folder.getRoot(), "truncated", DIMENSIONS, 2);
+        index.add(rows, n, null);
+        index.save();
+        index.close();
+
+        File graph = new File(folder.getRoot(), "truncated.graph");
+        try (RandomAccessFile raf = new RandomAccessFile(graph, "rw")) {
+            raf.setLength(raf.length() / 2);
+        }
+
+        VectorIndex loaded = VectorIndex.load(folder.getRoot(), "truncated");
+        assertEquals(n, loaded.size());
+        assertEquals(n - 1, loaded.search(row(rows, n - 1), 1).get(0).id);
+        loaded.close();
+    }
+}
@@ -8,6 +8,12 @@
 #include "tools/mtmd/mtmd-helper.h"
 #include "tools/mtmd/clip.h"
 
+#include <algorithm>
+#include <fcntl.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <unistd.h>
+
 namespace capllama {
 
 static bool ends_with(const std::string &str, const std::string &suffix)
@@ -37,6 +43,57 @@ static size_t find_partial_stop_string(const std::string &stop,
     return std::string::npos;
 }
 
+// Returns true when text ends in the middle of a multi-byte UTF-8 character
+static bool ends_with_incomplete_utf8(const std::string &text)
+{
+    for (unsigned i = 1; i < 5 && i <= text.size(); ++i) {
+        unsigned char c = text[text.size() - i];
+        if ((c & 0xC0) == 0x80) {
+            // continuation byte: 10xxxxxx
+            continue;
+        }
+        if ((c & 0xE0) == 0xC0) {
+            return i < 2;
+        } else if ((c & 0xF0) == 0xE0) {
+            return i < 3;
+        } else if ((c & 0xF8) == 0xF0) {
+            return i < 4;
+        }
+        return false;
+    }
+    return false;
+}
+
+static size_t find_stopping_strings(const std::vector<std::string> &antiprompt, const std::string &text,
+                                    const size_t last_token_size, const stop_type type, std::string &stopping_word)
+{
+    size_t stop_pos = std::string::npos;
+    for (const std::string &word : antiprompt)
+    {
+        size_t pos;
+        if (type == STOP_FULL)
+        {
+            const size_t tmp = word.size() + last_token_size;
+            const size_t from_pos = text.size() > tmp ? text.size() - tmp : 0;
+            pos = text.find(word, from_pos);
+        }
+        else
+        {
+            pos = find_partial_stop_string(word, text);
+        }
+        if (pos != std::string::npos &&
+            (stop_pos == std::string::npos || pos < stop_pos))
+        {
+            if (type == STOP_FULL)
+            {
+                stopping_word = word;
+            }
+            stop_pos = pos;
+        }
+    }
+    return stop_pos;
+}
+
 // Helper function to format rerank task: [BOS]query[EOS][SEP]doc[EOS]
 static std::vector<llama_token> format_rerank(const llama_vocab * vocab, const std::vector<llama_token> & query, const std::vector<llama_token> & doc) {
     std::vector<llama_token> result;
@@ -81,10 +138,14 @@ llama_cap_context_completion::~llama_cap_context_completion() {
 
 void llama_cap_context_completion::rewind() {
     is_interrupted = false;
+    has_next_token = false;
     parent_ctx->params.antiprompt.clear();
     parent_ctx->params.sampling.grammar.clear();
     num_prompt_tokens = 0;
+    num_prompt_cached = 0;
     num_tokens_predicted = 0;
+    t_start_us = 0;
+    t_first_token_us = 0;
     prefill_text = "";
     generated_text = "";
     generated_text.reserve(parent_ctx->params.n_ctx);
@@ -181,6 +242,7 @@ void llama_cap_context_completion::loadPrompt(const std::vector<std::string> &me
             // we have to evaluate at least 1 token to generate logits.
             n_past--;
         }
+        num_prompt_cached = n_past;
 
         // Manage KV cache
         auto * kv = llama_get_memory(parent_ctx->ctx);
@@ -212,14 +274,21 @@ void llama_cap_context_completion::beginCompletion(int chat_format, common_reaso
     n_remain = parent_ctx->params.n_predict;
     llama_perf_context_reset(parent_ctx->ctx);
     is_predicting = true;
+    t_start_us = llama_time_us();
+    t_first_token_us = 0;
 
     current_chat_format = chat_format;
     current_reasoning_format = reasoning_format;
     current_thinking_forced_open = thinking_forced_open;
+    chat_stream.reset(chat_format, reasoning_format, thinking_forced_open, prefill_text);
 }
 
 void llama_cap_context_completion::endCompletion() {
     is_predicting = false;
+    // The last sampled token was never decoded; keep embd in sync with the KV cache
+    if (embd.size() > (size_t) n_past) {
+        embd.resize(n_past);
+    }
 }
 
 completion_token_output llama_cap_context_completion::nextToken()
@@ -258,11 +327,9 @@ completion_token_output llama_cap_context_completion::nextToken()
         LOG_VERBOSE("context shifted, new n_past: %d, new size: %d", n_past, embd.size());
     }
 
-    bool tg = true;
     while (n_past < embd.size())
     {
         int n_eval = (int)embd.size() - n_past;
-        tg = n_eval == 1;
         if (n_eval > parent_ctx->params.n_batch)
         {
             n_eval = parent_ctx->params.n_batch;
@@ -303,6 +370,9 @@ completion_token_output llama_cap_context_completion::nextToken()
         candidates.reserve(llama_vocab_n_tokens(vocab));
 
         llama_token new_token_id = common_sampler_sample(ctx_sampling, parent_ctx->ctx, -1);
+        if (t_first_token_us == 0) {
+            t_first_token_us = llama_time_us();
+        }
 
         if (llama_vocab_is_eog(vocab, new_token_id)) {
             has_next_token = false;
@@ -330,9 +400,8 @@ completion_token_output llama_cap_context_completion::nextToken()
         }
 
         common_sampler_accept(ctx_sampling, result.tok, true);
-        if (tg) {
-            num_tokens_predicted++;
-        }
+        // Includes the token sampled right after the prompt batch
+        num_tokens_predicted++;
     }
 
     // add it to the context
@@ -444,39 +513,693 @@ completion_token_output llama_cap_context_completion::doCompletion()
     return token_with_probs;
 }
 
-completion_partial_output llama_cap_context_completion::getPartialOutput(const std::string &token_text) {
-    common_chat_syntax syntax;
-    syntax.format = static_cast<common_chat_format>(current_chat_format);
-    syntax.reasoning_format = current_reasoning_format;
-    syntax.thinking_forced_open = current_thinking_forced_open;
-    syntax.parse_tool_calls = true;
+const common_chat_msg &llama_cap_context_completion::getPartialOutput(const std::string &token_text) {
+    return chat_stream.append(token_text);
+}
 
-    common_chat_msg parsed_msg = common_chat_parse(prefill_text + generated_text, true, syntax);
+void chat_stream_parser::reset(int chat_format, common_reasoning_format reasoning_format, bool thinking_forced_open, const std::string &prefill) {
+    syntax_ = common_chat_syntax();
+    syntax_.format = static_cast<common_chat_format>(chat_format);
+    syntax_.reasoning_format = reasoning_format;
+    syntax_.thinking_forced_open = thinking_forced_open;
+    syntax_.parse_tool_calls = true;
+    text_ = prefill;
+    msg_ = common_chat_msg();
+    parsed_size_ = 0;
+    if (syntax_.format == COMMON_CHAT_FORMAT_CONTENT_ONLY) {
+        msg_.content = prefill;
+    }
+}
+
+const common_chat_msg &chat_stream_parser::append(const std::string &delta) {
+    text_ += delta;
+    if (syntax_.format == COMMON_CHAT_FORMAT_CONTENT_ONLY) {
+        // The content-only parser takes the whole text as content
+        msg_.content += delta;
+        return msg_;
+    }
+    if (parsed_size_ > 0 && text_.size() < parsed_size_ + std::max<size_t>(32, parsed_size_ / 16)) {
+        return msg_;
+    }
+    try {
+        msg_ = common_chat_parse(text_, true, syntax_);
+    } catch (const std::exception &) {
+        // Keep the last message; the final parse reports errors
+    }
+    parsed_size_ = text_.size();
+    return msg_;
+}
+
+// Checkpoint files are append-only: a header, then one segment per save.
+// Each segment holds the tokens and sequence-0 KV cells added since the
+// previous checkpoint (or everything, for a base segment with n_start 0).
+// A sidecar index (<path>.idx) records where each segment starts and ends.
+static const uint32_t CHECKPOINT_MAGIC = 0x746b7063; // "cpkt"
+static const uint32_t CHECKPOINT_VERSION = 1;
+
+struct checkpoint_file_header {
+    uint32_t magic;
+    uint32_t version;
+    uint32_t state_version; // LLAMA_SESSION_VERSION the KV data was written with
+    uint32_t reserved;
+};
+
+struct checkpoint_segment_header {
+    uint32_t n_start;  // first token position covered by this segment
+    uint32_t n_tokens;
+    uint64_t state_size;
+};
+
+struct checkpoint_index_entry {
+    uint64_t offset;      // segment start in the data file
+    uint64_t end;         // segment end in the data file
+    uint32_t n_start;
+    uint32_t n_end;
+    uint64_t prefix_hash; // hash of tokens [0, n_end)
+};
+
+static uint64_t hash_tokens(uint64_t hash, const llama_token *tokens, size_t n)
+{
+    // FNV-1a, continued from a previous prefix hash
+    const uint8_t *bytes = reinterpret_cast<const uint8_t *>(tokens);
+    for (size_t i = 0; i < n * sizeof(llama_token); ++i) {
+        hash ^= bytes[i];
+        hash *= 1099511628211ULL;
+    }
+    return hash;
+}
+
+static const uint64_t TOKEN_HASH_SEED = 14695981039346656037ULL;
+
+static bool is_checkpoint_file(const std::string &path)
+{
+    FILE *file = fopen(path.c_str(), "rb");
+    if (file == nullptr) {
+        return false;
+    }
+    uint32_t magic = 0;
+    const bool ok = fread(&magic, sizeof(magic), 1, file) == 1;
+    fclose(file);
+    return ok && magic == CHECKPOINT_MAGIC;
+}
+
+static std::vector<checkpoint_index_entry> read_checkpoint_index(const std::string &path)
+{
+    std::vector<checkpoint_index_entry> entries;
+    FILE *file = fopen((path + ".idx").c_str(), "rb");
+    if (file == nullptr) {
+        return entries;
+    }
+    uint32_t header[3] = {0, 0, 0};
+    if (fread(header, sizeof(header), 1, file) == 1 &&
+        header[0] == CHECKPOINT_MAGIC && header[1] == CHECKPOINT_VERSION) {
+        entries.resize(header[2]);
+        if (fread(entries.data(), sizeof(checkpoint_index_entry), entries.size(), file) != entries.size()) {
+            entries.clear();
+        }
+    }
+    fclose(file);
+    return entries;
+}
+
+static void write_checkpoint_index(const std::string &path, const std::vector<checkpoint_index_entry> &entries)
+{
+    // Write next to the index and rename, so a crash never leaves a torn index behind
+    const std::string index_path = path + ".idx";
+    const std::string tmp_path = index_path + ".tmp";
+    FILE *file = fopen(tmp_path.c_str(), "wb");
+    if (file == nullptr) {
+        throw std::runtime_error("failed to write checkpoint index: " + index_path);
+    }
+    const uint32_t header[3] = {CHECKPOINT_MAGIC, CHECKPOINT_VERSION, (uint32_t) entries.size()};
+    bool ok = fwrite(header, sizeof(header), 1, file) == 1;
+    ok = ok && fwrite(entries.data(), sizeof(checkpoint_index_entry), entries.size(), file) == entries.size();
+    ok = ok && fflush(file) == 0 && fsync(fileno(file)) == 0;
+    ok = fclose(file) == 0 && ok;
+    if (!ok || rename(tmp_path.c_str(), index_path.c_str()) != 0) {
+        remove(tmp_path.c_str());
+        throw std::runtime_error("failed to write checkpoint index: " + index_path);
+    }
+}
+
+session_checkpoint_result llama_cap_context_completion::saveCheckpoint(const std::string &path, int size)
+{
+    if (is_predicting) {
+        throw std::runtime_error("cannot save session while predicting");
+    }
+    if (parent_ctx->scheduler != nullptr && parent_ctx->scheduler->activeCount() > 0) {
+        throw std::runtime_error("cannot save session while completions are running");
+    }
+
+    std::vector<llama_token> tokens = parent_ctx->scheduler != nullptr
+        ? parent_ctx->scheduler->cachedTokens(0)
+        : embd;
+    if (size > 0 && (size_t) size < tokens.size()) {
+        tokens.resize(size);
+    }
+    if (tokens.empty()) {
+        throw std::runtime_error("no cached tokens to checkpoint");
+    }
 
-    completion_partial_output result;
+    // Keep the checkpoints that are still a prefix of what is cached now
+    std::vector<checkpoint_index_entry> entries;
+    if (is_checkpoint_file(path)) {
+        entries = read_checkpoint_index(path);
+    }
+    const size_t n_indexed = entries.size();
+    size_t n_keep = 0;
+    uint64_t hash = TOKEN_HASH_SEED;
+    size_t n_hashed = 0;
+    for (const auto &entry : entries) {
+        if (entry.n_end > tokens.size() || entry.n_end < n_hashed) {
+            break;
+        }
+        hash = hash_tokens(hash, tokens.data() + n_hashed, entry.n_end - n_hashed);
+        n_hashed = entry.n_end;
+        if (hash != entry.prefix_hash) {
+            break;
+        }
+        n_keep++;
+    }
+    entries.resize(n_keep);
 
-    result.content = parsed_msg.content;
-    result.reasoning_content = parsed_msg.reasoning_content;
-    result.accumulated_text = prefill_text + generated_text;
-    result.tool_calls = parsed_msg.tool_calls;
+    session_checkpoint_result result;
+    result.n_tokens = tokens.size();
+    if (!entries.empty() && entries.back().n_end == tokens.size()) {
+        result.checkpoint = entries.size() - 1;
+        return result;
+    }
+
+    uint32_t n_start = entries.empty() ? 0 : entries.back().n_end;
+    const llama_seq_id scratch = parent_ctx->scratch_seq_id;
+    if (n_start > 0 && scratch < 0) {
+        // Without a staging sequence the cells cannot be sliced; write a new base segment
+        n_start = 0;
+    }
 
+    auto * mem = llama_get_memory(parent_ctx->ctx);
+    std::vector<uint8_t> state;
+    if (scratch >= 0) {
+        // Stage just the new cells in the scratch sequence and serialize that
+        llama_memory_seq_rm(mem, scratch, -1, -1);
+        llama_memory_seq_cp(mem, 0, scratch, n_start, tokens.size());
+        state.resize(llama_state_seq_get_size(parent_ctx->ctx, scratch));
+        const size_t n_written = llama_state_seq_get_data(parent_ctx->ctx, state.data(), state.size(), scratch);
+        llama_memory_seq_rm(mem, scratch, -1, -1);
+        state.resize(n_written);
+    } else {
+        state.resize(llama_state_seq_get_size(parent_ctx->ctx, 0));
+        state.resize(llama_state_seq_get_data(parent_ctx->ctx, state.data(), state.size(), 0));
+    }
+    if (state.empty()) {
+        throw std::runtime_error("failed to read KV state for checkpoint");
+    }
+
+    // The index must never point at bytes that are about to change: shrink it to the kept checkpoints
+    // before the data behind them is truncated or rewritten, and publish the new entry only once the
+    // data is on disk. A crash in between leaves an index that still matches the file.
+    if (entries.size() < n_indexed) {
+        write_checkpoint_index(path, entries);
+    }
+
+    // Drop segments past the last kept checkpoint, then append the new one
+    const uint64_t offset = entries.empty() ? sizeof(checkpoint_file_header) : entries.back().end;
+    FILE *file = nullptr;
+    if (entries.empty()) {
+        file = fopen(path.c_str(), "wb");
+        if (file != nullptr) {
+            const checkpoint_file_header header = {CHECKPOINT_MAGIC, CHECKPOINT_VERSION, LLAMA_SESSION_VERSION, 0};
+            if (fwrite(&header, sizeof(header), 1, file) != 1) {
+                fclose(file);
+                file = nullptr;
+            }
+        }
+    } else if (truncate(path.c_str(), (off_t) offset) == 0) {
+        file = fopen(path.c_str(), "ab");
+    }
+    if (file == nullptr) {
+        throw std::runtime_error("failed to open checkpoint file: " + path);
+    }
+
+    const checkpoint_segment_header segment = {n_start, (uint32_t) (tokens.size() - n_start), (uint64_t) state.size()};
+    bool ok = fwrite(&segment, sizeof(segment), 1, file) == 1;
+    ok = ok && fwrite(tokens.data() + n_start, sizeof(llama_token), segment.n_tokens, file) == segment.n_tokens;
+    ok = ok && fwrite(state.data(), 1, state.size(), file) == state.size();
+    ok = ok && fflush(file) == 0 && fsync(fileno(file)) == 0;
+    ok = fclose(file) == 0 && ok;
+    if (!ok) {
+        throw std::runtime_error("failed to write checkpoint file: " + path);
+    }
+
+    checkpoint_index_entry entry;
+    entry.offset = offset;
+    entry.end = offset + sizeof(segment) + (uint64_t) segment.n_tokens * sizeof(llama_token) + state.size();
+    entry.n_start = n_start;
+    entry.n_end = (uint32_t) tokens.size();
+    entry.prefix_hash = hash_tokens(hash, tokens.data() + n_hashed, tokens.size() - n_hashed);
+    entries.push_back(entry);
+    write_checkpoint_index(path, entries);
+
+    result.checkpoint = entries.size() - 1;
+    result.bytes_written = entry.end - offset;
     return result;
 }
 
+std::vector<llama_token> llama_cap_context_completion::loadCheckpoint(const std::string &path, int checkpoint)
+{
+    const std::vector<checkpoint_index_entry> entries = read_checkpoint_index(path);
+    if (entries.empty()) {
+        throw std::runtime_error("checkpoint index is missing or empty: " + path);
+    }
+    const size_t target = checkpoint < 0 ? entries.size() - 1 : (size_t) checkpoint;
+    if (target >= entries.size()) {
+        throw std::runtime_error("checkpoint " + std::to_string(checkpoint) + " does not exist in " + path);
+    }
+    if (entries[target].n_end > (uint32_t) parent_ctx->n_ctx) {
+        throw std::runtime_error("session token count exceeds context size");
+    }
+    // Replay starts at the latest base segment at or before the target
+    size_t base = target;
+    while (entries[base].n_start != 0) {
+        if (base == 0) {
+            throw std::runtime_error("checkpoint file has no base segment: " + path);
+        }
+        base--;
+    }
+    const llama_seq_id scratch = parent_ctx->scratch_seq_id;
+    if (base != target && scratch < 0) {
+        throw std::runtime_error("delta checkpoints need a context initialized with checkpoints enabled");
+    }
+
+    const int fd = open(path.c_str(), O_RDONLY);
+    if (fd < 0) {
+        throw std::runtime_error("failed to open session file: " + path);
+    }
+    struct stat st;
+    if (fstat(fd, &st) != 0 || (uint64_t) st.st_size < entries[target].end) {
+        close(fd);
+        throw std::runtime_error("checkpoint file is truncated: " + path);
+    }
+    const size_t file_size = (size_t) st.st_size;
+    void *mapped = mmap(nullptr, file_size, PROT_READ, MAP_PRIVATE, fd, 0);
+    close(fd);
+    if (mapped == MAP_FAILED) {
+        throw std::runtime_error("failed to map session file: " + path);
+    }
+    const uint8_t *data = static_cast<const uint8_t *>(mapped);
+
+    checkpoint_file_header file_header;
+    memcpy(&file_header, data, sizeof(file_header));
+    std::string error;
+    if (file_header.version != CHECKPOINT_VERSION || file_header.state_version != LLAMA_SESSION_VERSION) {
+        error = "unsupported checkpoint file version";
+    }
+
+    auto * mem = llama_get_memory(parent_ctx->ctx);
+    std::vector<llama_token> tokens;
+    for (size_t i = base; error.empty() && i <= target; ++i) {
+        const checkpoint_index_entry &entry = entries[i];
+        checkpoint_segment_header segment;
+        memcpy(&segment, data + entry.offset, sizeof(segment));
+        const size_t tokens_offset = entry.offset + sizeof(segment);
+        const size_t state_offset = tokens_offset + (size_t) segment.n_tokens * sizeof(llama_token);
+        if (segment.n_start != tokens.size() || state_offset + segment.state_size != entry.end) {
+            error = "checkpoint segment " + std::to_string(i) + " is corrupted";
+            break;
+        }
+        tokens.resize(segment.n_start + segment.n_tokens);
+        memcpy(tokens.data() + segment.n_start, data + tokens_offset, (size_t) segment.n_tokens * sizeof(llama_token));
+
+        if (segment.n_start == 0) {
+            if (llama_state_seq_set_data(parent_ctx->ctx, data + state_offset, segment.state_size, 0) == 0) {
+                error = "failed to restore checkpoint segment " + std::to_string(i);
+            }
+        } else {
+            // Restoring into a sequence replaces it, so go through the scratch sequence and share the cells
+            if (llama_state_seq_set_data(parent_ctx->ctx, data + state_offset, segment.state_size, scratch) == 0) {
+                error = "failed to restore checkpoint segment " + std::to_string(i);
+            } else {
+                llama_memory_seq_cp(mem, scratch, 0, -1, -1);
+            }
+            llama_memory_seq_rm(mem, scratch, -1, -1);
+        }
+    }
+    munmap(mapped, file_size);
+
+    if (!error.empty()) {
+        llama_memory_seq_rm(mem, 0, -1, -1);
+        embd.clear();
+        n_past = 0;
+        if (parent_ctx->scheduler != nullptr) {
+            parent_ctx->scheduler->resetCaches({});
+        }
+        throw std::runtime_error(error + ": " + path);
+    }
+
+    // Base segments written without a scratch sequence may carry cells past n_end
+    llama_memory_seq_rm(mem, 0, tokens.size(), -1);
+    embd = tokens;
+    n_past = tokens.size();
+    if (parent_ctx->scheduler != nullptr) {
+        parent_ctx->scheduler->resetCaches(tokens);
+    }
+    return tokens;
+}
+
+size_t llama_cap_context_completion::snapshotSize()
+{
+    const size_t n_tokens = parent_ctx->scheduler != nullptr
+        ? parent_ctx->scheduler->cachedTokens(0).size()
+        : embd.size();
+    return sizeof(uint32_t) + n_tokens * sizeof(llama_token) + llama_state_seq_get_size(parent_ctx->ctx, 0);
+}
+
+size_t llama_cap_context_completion::captureSnapshot(uint8_t *dst, size_t size)
+{
+    if (is_predicting) {
+        throw std::runtime_error("cannot snapshot while predicting");
+    }
+    if (parent_ctx->scheduler != nullptr && parent_ctx->scheduler->activeCount() > 0) {
+        throw std::runtime_error("cannot snapshot while completions are running");
+    }
+
+    const std::vector<llama_token> tokens = parent_ctx->scheduler != nullptr
+        ? parent_ctx->scheduler->cachedTokens(0)
+        : embd;
+    const uint32_t n_tokens = (uint32_t) tokens.size();
+    const size_t header_size = sizeof(n_tokens) + tokens.size() * sizeof(llama_token);
+    if (size < header_size) {
+        throw std::runtime_error("snapshot buffer is too small");
+    }
+    memcpy(dst, &n_tokens, sizeof(n_tokens));
+    memcpy(dst + sizeof(n_tokens), tokens.data(), tokens.size() * sizeof(llama_token));
+
+    const size_t n_state = llama_state_seq_get_data(parent_ctx->ctx, dst + header_size, size - header_size, 0);
+    if (n_state == 0) {
+        throw std::runtime_error("failed to read sequence state");
+    }
+    return header_size + n_state;
+}
+
+size_t llama_cap_context_completion::restoreSnapshot(const uint8_t *src, size_t size)
+{
+    if (is_predicting) {
+        throw std::runtime_error("cannot restore snapshot while predicting");
+    }
+    if (parent_ctx->scheduler != nullptr && parent_ctx->scheduler->activeCount() > 0) {
+        throw std::runtime_error("cannot restore snapshot while completions are running");
+    }
+
+    uint32_t n_tokens = 0;
+    if (size < sizeof(n_tokens)) {
+        throw std::runtime_error("invalid snapshot");
+    }
+    memcpy(&n_tokens, src, sizeof(n_tokens));
+    const size_t header_size = sizeof(n_tokens) + (size_t) n_tokens * sizeof(llama_token);
+    if (header_size > size || n_tokens > (uint32_t) parent_ctx->n_ctx) {
+        throw std::runtime_error("invalid snapshot");
+    }
+
+    std::vector<llama_token> tokens(n_tokens);
+    memcpy(tokens.data(), src + sizeof(n_tokens), tokens.size() * sizeof(llama_token));
+
+    // Only sequence 0 is replaced; other sequences keep their cells
+    if (llama_state_seq_set_data(parent_ctx->ctx, src + header_size, size - header_size, 0) == 0) {
+        llama_memory_seq_rm(llama_get_memory(parent_ctx->ctx), 0, -1, -1);
+        embd.clear();
+        n_past = 0;
+        if (parent_ctx->scheduler != nullptr) {
+            parent_ctx->scheduler->resetCaches({});
+        }
+        throw std::runtime_error("failed to restore sequence state");
+    }
+
+    embd = tokens;
+    n_past = tokens.size();
+    if (parent_ctx->scheduler != nullptr) {
+        parent_ctx->scheduler->resetCaches(tokens);
+    }
+    return tokens.size();
+}
+
+// Session files use the llama_state_save_file layout:
+// magic (u32), version (u32), n_token_count (u32), tokens, state data
+std::vector<llama_token> llama_cap_context_completion::loadSession(const std::string &path, int checkpoint)
+{
+    if (is_predicting) {
+        throw std::runtime_error("cannot load session while predicting");
+    }
+    if (parent_ctx->scheduler != nullptr && parent_ctx->scheduler->activeCount() > 0) {
+        throw std::runtime_error("cannot load session while completions are running");
+    }
+    if (is_checkpoint_file(path)) {
+        return loadCheckpoint(path, checkpoint);
+    }
+
+    const int fd = open(path.c_str(), O_RDONLY);
+    if (fd < 0) {
+        throw std::runtime_error("failed to open session file: " + path);
+    }
+    struct stat st;
+    if (fstat(fd, &st) != 0 || st.st_size < (off_t) (3 * sizeof(uint32_t))) {
+        close(fd);
+        throw std::runtime_error("invalid session file: " + path);
+    }
+    const size_t file_size = (size_t) st.st_size;
+    void *mapped = mmap(nullptr, file_size, PROT_READ, MAP_PRIVATE, fd, 0);
+    close(fd);
+    if (mapped == MAP_FAILED) {
+        throw std::runtime_error("failed to map session file: " + path);
+    }
+    // The state blob is read front to back exactly once
+    madvise(mapped, file_size, MADV_SEQUENTIAL);
+
+    const uint8_t *data = static_cast<const uint8_t *>(mapped);
+    uint32_t header[3];
+    memcpy(header, data, sizeof(header));
+    const uint32_t magic = header[0];
+    const uint32_t version = header[1];
+    const uint32_t n_token_count = header[2];
+    const size_t tokens_offset = sizeof(header);
+    const size_t state_offset = tokens_offset + (size_t) n_token_count * sizeof(llama_token);
+
+    std::string error;
+    if (magic != LLAMA_SESSION_MAGIC || version != LLAMA_SESSION_VERSION) {
+        error = "unsupported session file version";
+    } else if (n_token_count > (uint32_t) parent_ctx->n_ctx) {
+        error = "session token count exceeds context size";
+    } else if (state_offset > file_size) {
+        error = "session file is truncated";
+    }
+
+    std::vector<llama_token> tokens;
+    if (error.empty()) {
+        tokens.resize(n_token_count);
+        memcpy(tokens.data(), data + tokens_offset, (size_t) n_token_count * sizeof(llama_token));
+        // Straight from the mapped pages into the KV cache, without a heap copy of the state
+        const size_t n_read = llama_state_set_data(parent_ctx->ctx, data + state_offset, file_size - state_offset);
+        if (n_read == 0) {
+            error = "failed to restore state from session file";
+        }
+    }
+    munmap(mapped, file_size);
+
+    auto * mem = llama_get_memory(parent_ctx->ctx);
+    if (!error.empty()) {
+        // A failed restore can leave the cache half written
+        llama_memory_clear(mem, true);
+        embd.clear();
+        n_past = 0;
+        if (parent_ctx->scheduler != nullptr) {
+            parent_ctx->scheduler->resetCaches({});
+        }
+        throw std::runtime_error(error + ": " + path);
+    }
+
+    // The file may hold KV cells past the saved tokens (saved with a smaller size)
+    llama_memory_seq_rm(mem, 0, tokens.size(), -1);
+    embd = tokens;
+    n_past = tokens.size();
+    if (parent_ctx->scheduler != nullptr) {
+        parent_ctx->scheduler->resetCaches(tokens);
+    }
+    return tokens;
+}
+
+size_t llama_cap_context_completion::saveSession(const std::string &path, int size)
+{
+    if (is_predicting) {
+        throw std::runtime_error("cannot save session while predicting");
+    }
+    if (parent_ctx->scheduler != nullptr && parent_ctx->scheduler->activeCount() > 0) {
+        throw std::runtime_error("cannot save session while completions are running");
+    }
+
+    std::vector<llama_token> tokens = parent_ctx->scheduler != nullptr
+        ? parent_ctx->scheduler->cachedTokens(0)
+        : embd;
+    if (size > 0 && (size_t) size < tokens.size()) {
+        tokens.resize(size);
+    }
+    if (!llama_state_save_file(parent_ctx->ctx, path.c_str(), tokens.data(), tokens.size())) {
+        throw std::runtime_error("failed to save session file: " + path);
+    }
+    return tokens.size();
+}
+
+// Decode tokens into sequence 0 on their own and return the pooled (or last token) embedding
+std::vector<float> llama_cap_context_completion::embed(const std::vector<llama_token> &tokens, common_params &embd_params)
+{
+    if (is_predicting) {
+        throw std::runtime_error("cannot embed while predicting");
+    }
+    if (!parent_ctx->params.embedding) {
+        throw std::runtime_error("embedding disabled, initialize the context with embedding: true");
+    }
+    if (parent_ctx->scheduler != nullptr && parent_ctx->scheduler->activeCount() > 0) {
+        throw std::runtime_error("cannot embed while completions are running");
+    }
+    if (tokens.empty()) {
+        throw std::runtime_error("input is empty");
+    }
+    if (tokens.size() > (size_t) parent_ctx->params.n_batch) {
+        throw std::runtime_error("input has " + std::to_string(tokens.size()) +
+            " tokens, more than n_batch (" + std::to_string(parent_ctx->params.n_batch) + ")");
+    }
+
+    // Sequence 0 is reused for every input, so it no longer mirrors embd
+    auto * mem = llama_get_memory(parent_ctx->ctx);
+    llama_memory_seq_rm(mem, 0, -1, -1);
+    embd.clear();
+    n_past = 0;
+    if (parent_ctx->scheduler != nullptr) {
+        parent_ctx->scheduler->resetCaches({});
+    }
+
+    llama_batch batch = llama_batch_init(tokens.size(), 0, 1);
+    for (size_t i = 0; i < tokens.size(); ++i) {
+        llama_batch_add(&batch, tokens[i], i, {0}, true);
+    }
+    const int ret = llama_decode(parent_ctx->ctx, batch);
+    llama_batch_free(batch);
+    // 1 means no KV slot was found and nothing was computed, so any non-zero result is a failure
+    if (ret != 0) {
+        llama_memory_seq_rm(mem, 0, -1, -1);
+        throw std::runtime_error("failed to decode embedding input, ret: " + std::to_string(ret));
+    }
+
+    std::vector<float> out = getEmbedding(embd_params);
+    llama_memory_seq_rm(mem, 0, -1, -1);
+    return out;
+}
+
+// Pack inputs into shared batches, one sequence per input, and read back one pooled vector per sequence
+void llama_cap_context_completion::embedBatch(const std::vector<std::vector<llama_token>> &inputs, common_params &embd_params, float *out)
+{
+    if (!parent_ctx->params.embedding) {
+        throw std::runtime_error("embedding disabled, initialize the context with embedding: true");
+    }
+
+    const int n_embd = llama_model_n_embd(parent_ctx->model);
+    const bool pooled = llama_pooling_type(parent_ctx->ctx) != LLAMA_POOLING_TYPE_NONE;
+    decodePacked(inputs, [&](size_t input, llama_seq_id seq_id, int32_t last_index) {
+        const float *data = pooled
+            ? llama_get_embeddings_seq(parent_ctx->ctx, seq_id)
+            : llama_get_embeddings_ith(parent_ctx->ctx, last_index);
+        float *row = out + input * n_embd;
+        if (data == nullptr) {
+            std::fill(row, row + n_embd, 0.0f);
+        } else {
+            common_embd_normalize(data, row, n_embd, embd_params.embd_normalize);
+        }
+    });
+}
+
+void llama_cap_context_completion::decodePacked(const std::vector<std::vector<llama_token>> &inputs,
+                                                const std::function<void(size_t, llama_seq_id, int32_t)> &read)
+{
+    if (is_predicting) {
+        throw std::runtime_error("cannot decode embeddings while predicting");
+    }
+    if (parent_ctx->scheduler != nullptr && parent_ctx->scheduler->activeCount() > 0) {
+        throw std::runtime_error("cannot decode embeddings while completions are running");
+    }
+
+    const int32_t n_batch = parent_ctx->params.n_batch;
+    for (size_t i = 0; i < inputs.size(); ++i) {
+        if (inputs[i].empty()) {
+            throw std::runtime_error("input " + std::to_string(i) + " is empty");
+        }
+        if (inputs[i].size() > (size_t) n_batch) {
+            throw std::runtime_error("input " + std::to_string(i) + " has " + std::to_string(inputs[i].size()) +
+                " tokens, more than n_batch (" + std::to_string(n_batch) + ")");
+        }
+    }
+
+    const int n_seq_max = (int) llama_n_seq_max(parent_ctx->ctx);
+    auto * mem = llama_get_memory(parent_ctx->ctx);
+
+    // Every sequence gets reused for packing, so cached completion state is gone
+    llama_memory_clear(mem, true);
+    embd.clear();
+    n_past = 0;
+    if (parent_ctx->scheduler != nullptr) {
+        parent_ctx->scheduler->resetCaches({});
+    }
+
+    llama_batch batch = llama_batch_init(n_batch, 0, 1);
+    std::vector<size_t> packed;        // input index per sequence in the current batch
+    std::vector<int32_t> last_index;   // batch index of each sequence's last token
+    size_t next = 0;
+    try {
+        while (next < inputs.size()) {
+            llama_batch_clear(&batch);
+            packed.clear();
+            last_index.clear();
+            while (next < inputs.size() && (int) packed.size() < n_seq_max &&
+                   batch.n_tokens + inputs[next].size() <= (size_t) n_batch) {
+                const llama_seq_id seq_id = (llama_seq_id) packed.size();
+                const auto &tokens = inputs[next];
+                for (size_t pos = 0; pos < tokens.size(); ++pos) {
+                    llama_batch_add(&batch, tokens[pos], pos, {seq_id}, true);
+                }
+                last_index.push_back(batch.n_tokens - 1);
+                packed.push_back(next++);
+            }
+
+            const int ret = llama_decode(parent_ctx->ctx, batch);
+            // 1 (no KV slot) computes nothing either; never read rows back from a failed decode
+            if (ret != 0) {
+                llama_memory_clear(mem, true);
+                throw std::runtime_error("failed to decode batch, ret: " + std::to_string(ret));
+            }
+
+            for (size_t s = 0; s < packed.size(); ++s) {
+                read(packed[s], (llama_seq_id) s, last_index[s]);
+            }
+            llama_memory_clear(mem, true);
+        }
+    } catch (...) {
+        llama_batch_free(batch);
+        llama_memory_clear(mem, true);
+        throw;
+    }
+    llama_batch_free(batch);
+}
+
 std::vector<float> llama_cap_context_completion::getEmbedding(common_params &embd_params)
 {
-    static const int n_embd = llama_model_n_embd(llama_get_model(parent_ctx->ctx));
+    const int n_embd = llama_model_n_embd(llama_get_model(parent_ctx->ctx));
     if (!embd_params.embedding)
     {
         LOG_WARNING("embedding disabled, embedding: %s", embd_params.embedding);
         return std::vector<float>(n_embd, 0.0f);
     }
-    float *data;
+    const float *data;
 
     const enum llama_pooling_type pooling_type = llama_pooling_type(parent_ctx->ctx);
-    printf("pooling_type: %d\n", pooling_type);
     if (pooling_type == LLAMA_POOLING_TYPE_NONE) {
-        data = llama_get_embeddings(parent_ctx->ctx);
+        data = llama_get_embeddings_ith(parent_ctx->ctx, -1);
     } else {
         data = llama_get_embeddings_seq(parent_ctx->ctx, 0);
     }
@@ -484,15 +1207,13 @@ std::vector<float> llama_cap_context_completion::getEmbedding(common_params &emb
     if (!data) {
         return std::vector<float>(n_embd, 0.0f);
     }
-    std::vector<float> embedding(data, data + n_embd), out(data, data + n_embd);
-    common_embd_normalize(embedding.data(), out.data(), n_embd, embd_params.embd_normalize);
+    std::vector<float> out(n_embd);
+    common_embd_normalize(data, out.data(), n_embd, embd_params.embd_normalize);
     return out;
 }
 
 std::vector<float> llama_cap_context_completion::rerank(const std::string &query, const std::vector<std::string> &documents)
 {
-    std::vector<float> scores;
-
     // Check if this model supports reranking (requires rank pooling type)
     const enum llama_pooling_type pooling_type = llama_pooling_type(parent_ctx->ctx);
     if (pooling_type != LLAMA_POOLING_TYPE_RANK) {
@@ -505,155 +1226,491 @@ std::vector<float> llama_cap_context_completion::rerank(const std::string &query
 
     const llama_vocab * vocab = llama_model_get_vocab(parent_ctx->model);
     std::vector<llama_token> query_tokens = common_tokenize(vocab, query, false, true);
+    const size_t n_batch = (size_t) parent_ctx->params.n_batch;
 
-    scores.reserve(documents.size());
-
+    std::vector<std::vector<llama_token>> inputs;
+    inputs.reserve(documents.size());
     for (size_t i = 0; i < documents.size(); ++i) {
-        rewind();
-        embd = {};
+        std::vector<llama_token> rerank_tokens =
+            format_rerank(vocab, query_tokens, common_tokenize(vocab, documents[i], false, true));
+        if (rerank_tokens.size() > n_batch) {
+            // Keep the query and the start of the document; the pair must fit in one batch
+            LOG_WARNING("rerank input %zu truncated from %zu to %zu tokens", i, rerank_tokens.size(), n_batch);
+            rerank_tokens.resize(n_batch);
+        }
+        inputs.push_back(std::move(rerank_tokens));
+    }
 
-        const std::string & document = documents[i];
+    // Default low score for any sequence whose result is missing
+    std::vector<float> scores(documents.size(), -1e6f);
+    decodePacked(inputs, [&](size_t input, llama_seq_id seq_id, int32_t) {
+        // For rank pooling, the score is the first (and only) dimension
+        const float *data = llama_get_embeddings_seq(parent_ctx->ctx, seq_id);
+        if (data) {
+            scores[input] = data[0];
+        }
+    });
+    return scores;
+}
+
+// Sample mean and standard deviation
+static void mean_std(const std::vector<double> &values, double &mean, double &stddev)
+{
+    mean = 0;
+    stddev = 0;
+    if (values.empty()) {
+        return;
+    }
+    for (double value : values) {
+        mean += value;
+    }
+    mean /= values.size();
+    if (values.size() > 1) {
+        for (double value : values) {
+            stddev += (value - mean) * (value - mean);
+        }
+        stddev = sqrt(stddev / (values.size() - 1));
+    }
+}
 
-        std::vector<llama_token> doc_tokens = common_tokenize(vocab, document, false, true);
+bench_result llama_cap_context_completion::bench(int pp, int tg, int pl, int nr)
+{
+    if (is_predicting) {
+        throw std::runtime_error("cannot benchmark while predicting");
+    }
+    if (parent_ctx->scheduler != nullptr && parent_ctx->scheduler->activeCount() > 0) {
+        throw std::runtime_error("cannot benchmark while completions are running");
+    }
+    llama_context *ctx = parent_ctx->ctx;
+    const int n_ctx = (int) llama_n_ctx(ctx);
+    const int n_seq_max = (int) llama_n_seq_max(ctx);
+    if (pp < 1 || tg < 0 || pl < 1 || nr < 1) {
+        throw std::runtime_error("bench needs pp >= 1, tg >= 0, pl >= 1 and nr >= 1");
+    }
+    if (pl > n_seq_max) {
+        throw std::runtime_error("pl " + std::to_string(pl) + " exceeds the context's " + std::to_string(n_seq_max) + " sequences");
+    }
+    if (pp > n_ctx || (long long) tg * pl > n_ctx) {
+        throw std::runtime_error("bench configuration does not fit in n_ctx " + std::to_string(n_ctx));
+    }
 
-        std::vector<llama_token> rerank_tokens = format_rerank(vocab, query_tokens, doc_tokens);
+    bench_result result;
+    result.pp = pp;
+    result.tg = tg;
+    result.pl = pl;
+    result.nr = nr;
+    result.n_threads = parent_ctx->params.cpuparams.n_threads;
+    result.n_batch = (int) llama_n_batch(ctx);
 
-        llama_memory_clear(llama_get_memory(parent_ctx->ctx), false);
+    is_predicting = true;
+    // The benchmark overwrites the KV cache, so nothing cached can be reused afterwards
+    embd.clear();
+    n_past = 0;
+    if (parent_ctx->scheduler != nullptr) {
+        parent_ctx->scheduler->resetCaches({});
+    }
+    llama_memory_t mem = llama_get_memory(ctx);
+    llama_batch batch = llama_batch_init(std::max(result.n_batch, pl), 0, pl);
 
-        // Process the rerank input
-        try {
-            parent_ctx->params.prompt = tokens_to_str(parent_ctx->ctx, rerank_tokens.begin(), rerank_tokens.end());
-            initSampling();
-            loadPrompt({}); // No media paths for rerank
-            beginCompletion();
-            doCompletion();
-
-            // Get the rerank score (single embedding value for rank pooling)
-            float *data = llama_get_embeddings_seq(parent_ctx->ctx, 0);
-            if (data) {
-                scores.push_back(data[0]); // For rank pooling, the score is the first (and only) dimension
-            } else {
-                scores.push_back(-1e6f); // Default low score if computation failed
+    // The prompt goes in n_batch chunks, as it would for a real completion
+    auto process_prompt = [&]() {
+        for (int start = 0; start < pp; start += result.n_batch) {
+            const int n_tokens = std::min(result.n_batch, pp - start);
+            llama_batch_clear(&batch);
+            for (int i = 0; i < n_tokens; i++) {
+                llama_batch_add(&batch, 0, start + i, {0}, start + i == pp - 1);
+            }
+            if (llama_decode(ctx, batch) != 0) {
+                return false;
             }
-        } catch (const std::exception &e) {
-            LOG_WARNING("rerank computation failed for document %zu: %s", i, e.what());
-            scores.push_back(-1e6f);
         }
-        endCompletion();
+        llama_synchronize(ctx);
+        return true;
+    };
+
+    std::string error;
+    std::vector<double> pp_speeds;
+    std::vector<double> tg_speeds;
+
+    // One unmeasured pass first, so the runs see warm caches and clocked-up cores
+    llama_memory_clear(mem, true);
+    if (!process_prompt()) {
+        error = "llama_decode() failed during prompt processing";
+    }
 
-        // Clear KV cache again to prepare for next document or restore original state
-        llama_memory_clear(llama_get_memory(parent_ctx->ctx), false);
+    for (int run = 0; run < nr && error.empty() && !is_interrupted; run++) {
+        llama_memory_clear(mem, true);
+        const int64_t t_pp_start = llama_time_us();
+        if (!process_prompt()) {
+            error = "llama_decode() failed during prompt processing";
+            break;
+        }
+        const int64_t t_pp_end = llama_time_us();
+
+        llama_memory_clear(mem, true);
+        const int64_t t_tg_start = llama_time_us();
+        for (int i = 0; i < tg && !is_interrupted; i++) {
+            llama_batch_clear(&batch);
+            for (int j = 0; j < pl; j++) {
+                llama_batch_add(&batch, 0, i, {j}, true);
+            }
+            if (llama_decode(ctx, batch) != 0) {
+                error = "llama_decode() failed during text generation";
+                break;
+            }
+        }
+        llama_synchronize(ctx);
+        const int64_t t_tg_end = llama_time_us();
+        if (!error.empty() || is_interrupted) {
+            break;
+        }
+
+        pp_speeds.push_back(pp * 1e6 / std::max<int64_t>(1, t_pp_end - t_pp_start));
+        if (tg > 0) {
+            tg_speeds.push_back((double) pl * tg * 1e6 / std::max<int64_t>(1, t_tg_end - t_tg_start));
+        }
     }
 
-    return scores;
+    llama_batch_free(batch);
+    llama_memory_clear(mem, true);
+    endCompletion();
+    if (!error.empty()) {
+        throw std::runtime_error(error);
+    }
+
+    result.runs = (int) pp_speeds.size();
+    mean_std(pp_speeds, result.pp_avg, result.pp_std);
+    mean_std(tg_speeds, result.tg_avg, result.tg_std);
+    return result;
 }
 
-std::string llama_cap_context_completion::bench(int pp, int tg, int pl, int nr)
-{
-    if (is_predicting) {
-        LOG_ERROR("cannot benchmark while predicting", "");
-        return std::string("[]");
+llama_cap_completion_scheduler::llama_cap_completion_scheduler(llama_cap_context* parent, int n_parallel)
+    : parent_ctx(parent) {
+    slots.resize(n_parallel);
+    for (int i = 0; i < n_parallel; ++i) {
+        slots[i].seq_id = i;
     }
+    // Without a unified KV cache each sequence only gets its share of n_ctx
+    n_ctx_slot = parent_ctx->params.kv_unified ? parent_ctx->n_ctx : parent_ctx->n_ctx / n_parallel;
+    batch = llama_batch_init(std::max(parent_ctx->params.n_batch, n_parallel), 0, n_parallel);
+}
 
-    is_predicting = true;
+llama_cap_completion_scheduler::~llama_cap_completion_scheduler() {
+    for (auto &slot : slots) {
+        if (slot.sampler != nullptr) {
+            common_sampler_free(slot.sampler);
+            slot.sampler = nullptr;
+        }
+    }
+    llama_batch_free(batch);
+}
 
-    double pp_avg = 0;
-    double tg_avg = 0;
+void llama_cap_completion_scheduler::interruptAll() {
+    std::lock_guard<std::mutex> lock(mutex);
+    for (auto &slot : slots) {
+        if (slot.in_use) {
+            slot.interrupted = true;
+        }
+    }
+}
 
-    double pp_std = 0;
-    double tg_std = 0;
+std::vector<llama_token> llama_cap_completion_scheduler::cachedTokens(llama_seq_id seq_id) {
+    std::lock_guard<std::mutex> lock(mutex);
+    if (seq_id < 0 || (size_t) seq_id >= slots.size()) {
+        return {};
+    }
+    return slots[seq_id].cache_tokens;
+}
 
-    // TODO: move batch into llama_cap_context (related https://github.com/mybigday/llama.rn/issues/30)
-    llama_batch batch = llama_batch_init(
-        std::min(pp, parent_ctx->params.n_ubatch), // max n_tokens is limited by n_ubatch
-        0,                         // No embeddings
-        1                          // Single sequence
-    );
+void llama_cap_completion_scheduler::resetCaches(const std::vector<llama_token> &seq0_tokens) {
+    std::lock_guard<std::mutex> lock(mutex);
+    for (auto &slot : slots) {
+        slot.cache_tokens.clear();
+    }
+    if (!slots.empty()) {
+        slots[0].cache_tokens = seq0_tokens;
+    }
+}
 
-    for (int i = 0; i < nr; i++)
-    {
-        llama_batch_clear(&batch);
+size_t llama_cap_completion_scheduler::activeCount() {
+    std::lock_guard<std::mutex> lock(mutex);
+    size_t count = 0;
+    for (const auto &slot : slots) {
+        if (slot.in_use) count++;
+    }
+    return count;
+}
 
-        const int n_tokens = pp;
+void completion_summary::setTimings(int64_t t_start_us, int64_t t_first_token_us, int64_t t_end_us) {
+    // Without a sampled token the whole request was spent on the prompt
+    const int64_t t_split_us = t_first_token_us > 0 ? t_first_token_us : t_end_us;
+    prompt_ms = (t_split_us - t_start_us) / 1000.0;
+    predicted_ms = (t_end_us - t_split_us) / 1000.0;
+}
 
-        for (int i = 0; i < n_tokens; i++)
-        {
-            llama_batch_add(&batch, 0, i, {0}, false);
+completion_summary llama_cap_completion_scheduler::run(completion_slot_request request, const std::function<void(const std::string &)> &on_text) {
+    std::unique_lock<std::mutex> lock(mutex);
+
+    // Prefer the free slot whose cached tokens share the longest prefix with this prompt
+    completion_slot *slot = nullptr;
+    cv.wait(lock, [&] {
+        size_t best_prefix = 0;
+        for (auto &candidate : slots) {
+            if (candidate.in_use) continue;
+            const size_t prefix = common_part(candidate.cache_tokens, request.prompt_tokens);
+            if (slot == nullptr || prefix > best_prefix) {
+                slot = &candidate;
+                best_prefix = prefix;
+            }
         }
-        batch.logits[batch.n_tokens - 1] = 1; // true
+        return slot != nullptr;
+    });
+
+    slot->in_use = true;
+    slot->done = false;
+    slot->interrupted = false;
+    slot->needs_prefix_sync = true;
+    slot->request = std::move(request);
+    slot->n_prompt_fed = 0;
+    slot->pending_token = -1;
+    slot->i_batch = -1;
+    slot->sent_count = 0;
+    slot->pending_text.clear();
+    slot->summary = completion_summary();
+    slot->summary.n_prompt_tokens = slot->request.prompt_tokens.size();
+    slot->t_start_us = llama_time_us();
+    slot->t_first_token_us = 0;
+    // A stop that arrived while this request waited for a slot was not seen by interruptAll()
+    if (slot->request.stop_epoch != nullptr && slot->request.stop_epoch->load() > slot->request.stop_epoch_seen) {
+        slot->interrupted = true;
+    }
 
-        llama_memory_clear(llama_get_memory(parent_ctx->ctx), true);
+    slot->sampler = common_sampler_init(parent_ctx->model, slot->request.sampling);
+    if (slot->sampler == nullptr) {
+        slot->in_use = false;
+        cv.notify_all();
+        throw std::runtime_error("failed to initialize sampling");
+    }
+    for (auto token : slot->request.prompt_tokens) {
+        common_sampler_accept(slot->sampler, token, false);
+    }
 
-        const int64_t t_pp_start = llama_time_us();
-        if (llama_decode(parent_ctx->ctx, batch) != 0)
-        {
-            LOG_ERROR("llama_decode() failed during prompt", "");
-        }
-        const int64_t t_pp_end = llama_time_us();
+    if (slot->request.prompt_tokens.empty()) {
+        slot->summary.failed = true;
+        finish(*slot);
+    } else if (slot->request.prompt_tokens.size() >= (size_t) n_ctx_slot) {
+        slot->summary.context_full = true;
+        finish(*slot);
+    }
 
-        llama_memory_clear(llama_get_memory(parent_ctx->ctx), true);
+    while (true) {
+        while (!slot->pending_text.empty()) {
+            std::string text = std::move(slot->pending_text.front());
+            slot->pending_text.pop_front();
+            lock.unlock();
+            on_text(text);
+            lock.lock();
+        }
+        if (slot->done) {
+            break;
+        }
+        if (stepping) {
+            cv.wait(lock);
+            continue;
+        }
 
-        if (is_interrupted) break;
+        stepping = true;
+        bool progressed = false;
+        try {
+            progressed = step(lock);
+        } catch (...) {
+            stepping = false;
+            cv.notify_all();
+            throw;
+        }
+        stepping = false;
+        cv.notify_all();
 
-        const int64_t t_tg_start = llama_time_us();
+        if (!progressed && !slot->done) {
+            // Nothing left to decode for this request; avoid spinning
+            slot->summary.failed = true;
+            finish(*slot);
+        }
+    }
 
-        for (int i = 0; i < tg; i++)
-        {
-            llama_batch_clear(&batch);
+    completion_summary summary = slot->summary;
+    common_sampler_free(slot->sampler);
+    slot->sampler = nullptr;
+    slot->in_use = false;
+    cv.notify_all();
+    return summary;
+}
 
-            for (int j = 0; j < pl; j++)
-            {
-                llama_batch_add(&batch, 0, i, {j}, true);
+bool llama_cap_completion_scheduler::step(std::unique_lock<std::mutex> &lock) {
+    // state_mutex comes before the scheduler mutex. The caller has set stepping, so other callers
+    // wait instead of stepping while the scheduler lock is dropped to take state_mutex.
+    lock.unlock();
+    std::lock_guard<std::mutex> state_lock(parent_ctx->state_mutex);
+    lock.lock();
+    auto * mem = llama_get_memory(parent_ctx->ctx);
+
+    llama_batch_clear(&batch);
+    const int32_t n_batch = parent_ctx->params.n_batch;
+
+    // Requests that are already generating go first so they advance on every step
+    for (auto &slot : slots) {
+        slot.i_batch = -1;
+        if (!slot.in_use || slot.done) continue;
+        if (slot.interrupted) {
+            slot.summary.interrupted = true;
+            finish(slot);
+            continue;
+        }
+        if (slot.needs_prefix_sync) {
+            const auto &prompt = slot.request.prompt_tokens;
+            size_t n_keep = common_part(slot.cache_tokens, prompt);
+            if (n_keep == prompt.size()) {
+                // at least one prompt token has to be decoded to get logits
+                n_keep--;
             }
-
-            if (llama_decode(parent_ctx->ctx, batch) != 0)
-            {
-                LOG_ERROR("llama_decode() failed during text generation", "");
+            if (!llama_memory_seq_rm(mem, slot.seq_id, n_keep, -1)) {
+                llama_memory_seq_rm(mem, slot.seq_id, -1, -1);
+                n_keep = 0;
             }
-            if (is_interrupted) break;
+            slot.cache_tokens.resize(n_keep);
+            slot.n_prompt_fed = n_keep;
+            slot.summary.n_cached = n_keep;
+            slot.needs_prefix_sync = false;
         }
+        if (slot.pending_token == -1) continue;
+        if (slot.cache_tokens.size() >= (size_t) n_ctx_slot) {
+            slot.summary.context_full = true;
+            finish(slot);
+            continue;
+        }
+        slot.i_batch = batch.n_tokens;
+        llama_batch_add(&batch, slot.pending_token, slot.cache_tokens.size(), {slot.seq_id}, true);
+        slot.cache_tokens.push_back(slot.pending_token);
+        slot.pending_token = -1;
+    }
 
-        const int64_t t_tg_end = llama_time_us();
+    // Fill the remaining batch capacity with prompt chunks of newly joined requests
+    std::vector<completion_slot *> in_batch;
+    for (auto &slot : slots) {
+        if (!slot.in_use || slot.done) continue;
+        if (slot.i_batch >= 0) {
+            in_batch.push_back(&slot);
+            continue;
+        }
+        const auto &prompt = slot.request.prompt_tokens;
+        bool added = false;
+        while (slot.n_prompt_fed < prompt.size() && batch.n_tokens < n_batch) {
+            const bool last = slot.n_prompt_fed + 1 == prompt.size();
+            if (last) {
+                slot.i_batch = batch.n_tokens;
+            }
+            llama_batch_add(&batch, prompt[slot.n_prompt_fed], slot.cache_tokens.size(), {slot.seq_id}, last);
+            slot.cache_tokens.push_back(prompt[slot.n_prompt_fed]);
+            slot.n_prompt_fed++;
+            added = true;
+        }
+        if (added) {
+            in_batch.push_back(&slot);
+        }
+    }
 
-        llama_memory_clear(llama_get_memory(parent_ctx->ctx), true);
+    if (batch.n_tokens == 0) {
+        return false;
+    }
 
-        const double t_pp = (t_pp_end - t_pp_start) / 1000000.0;
-        const double t_tg = (t_tg_end - t_tg_start) / 1000000.0;
+    // Let other callers collect their text while the step runs
+    lock.unlock();
+    const int ret = llama_decode(parent_ctx->ctx, batch);
+    lock.lock();
+
+    if (ret != 0) {
+        LOG_ERROR("failed to decode scheduled batch, n_tokens: %d, ret: %d", batch.n_tokens, ret);
+        for (auto *slot : in_batch) {
+            // The batch may be partially applied, so nothing in these sequences can be trusted
+            llama_memory_seq_rm(mem, slot->seq_id, -1, -1);
+            slot->cache_tokens.clear();
+            slot->summary.failed = true;
+            finish(*slot);
+        }
+        return true;
+    }
 
-        const double speed_pp = pp / t_pp;
-        const double speed_tg = (pl * tg) / t_tg;
+    for (auto *slot : in_batch) {
+        if (slot->done || slot->i_batch < 0) continue;
+        const llama_token token = common_sampler_sample(slot->sampler, parent_ctx->ctx, slot->i_batch);
+        if (slot->t_first_token_us == 0) {
+            slot->t_first_token_us = llama_time_us();
+        }
+        common_sampler_accept(slot->sampler, token, true);
+        processToken(*slot, token);
+    }
+    return true;
+}
 
-        pp_avg += speed_pp;
-        tg_avg += speed_tg;
+void llama_cap_completion_scheduler::processToken(completion_slot &slot, llama_token token) {
+    const llama_vocab* vocab = llama_model_get_vocab(parent_ctx->model);
+    completion_summary &summary = slot.summary;
 
-        pp_std += speed_pp * speed_pp;
-        tg_std += speed_tg * speed_tg;
+    if (llama_vocab_is_eog(vocab, token)) {
+        summary.stopped_eos = true;
+        finish(slot);
+        return;
     }
 
-    pp_avg /= nr;
-    tg_avg /= nr;
+    summary.n_predicted++;
+    const std::string piece = common_token_to_piece(parent_ctx->ctx, token);
+    summary.text += piece;
 
-    if (nr > 1) {
-        pp_std = sqrt(pp_std / (nr - 1) - pp_avg * pp_avg * nr / (nr - 1));
-        tg_std = sqrt(tg_std / (nr - 1) - tg_avg * tg_avg * nr / (nr - 1));
+    bool has_next = slot.request.n_predict < 0 || summary.n_predicted < (size_t) slot.request.n_predict;
+    const bool incomplete = ends_with_incomplete_utf8(summary.text);
+    if (incomplete) {
+        // Finish the multi-byte character before stopping or emitting anything
+        has_next = true;
     } else {
-        pp_std = 0;
-        tg_std = 0;
+        size_t pos = std::min(slot.sent_count, summary.text.size());
+        const std::string str_test = summary.text.substr(pos);
+        bool is_stop_full = false;
+        size_t stop_pos = find_stopping_strings(slot.request.antiprompt, str_test, piece.size(), STOP_FULL, summary.stopping_word);
+        if (stop_pos != std::string::npos) {
+            is_stop_full = true;
+            summary.stopped_word = true;
+            has_next = false;
+            summary.text.erase(summary.text.begin() + pos + stop_pos, summary.text.end());
+            pos = std::min(slot.sent_count, summary.text.size());
+        } else {
+            std::string unused;
+            stop_pos = find_stopping_strings(slot.request.antiprompt, str_test, piece.size(), STOP_PARTIAL, unused);
+        }
+
+        if (stop_pos == std::string::npos || (!has_next && !is_stop_full && stop_pos > 0)) {
+            std::string to_send = summary.text.substr(pos);
+            slot.sent_count += to_send.size();
+            if (!to_send.empty()) {
+                slot.pending_text.push_back(std::move(to_send));
+            }
+        }
     }
 
-    if (is_interrupted) llama_memory_clear(llama_get_memory(parent_ctx->ctx), true);
-    endCompletion();
+    if (!has_next) {
+        if (!summary.stopped_word) {
+            summary.stopped_limit = true;
+        }
+        finish(slot);
+        return;
+    }
+    slot.pending_token = token;
+}
 
-    char model_desc[128];
-    llama_model_desc(parent_ctx->model, model_desc, sizeof(model_desc));
-    return std::string("[\"") + model_desc + std::string("\",") +
-        std::to_string(llama_model_size(parent_ctx->model)) + std::string(",") +
-        std::to_string(llama_model_n_params(parent_ctx->model)) + std::string(",") +
-        std::to_string(pp_avg) + std::string(",") +
-        std::to_string(pp_std) + std::string(",") +
-        std::to_string(tg_avg) + std::string(",") +
-        std::to_string(tg_std) +
-        std::string("]");
+void llama_cap_completion_scheduler::finish(completion_slot &slot) {
+    slot.summary.setTimings(slot.t_start_us, slot.t_first_token_us, llama_time_us());
+    slot.done = true;
+    slot.pending_token = -1;
+    slot.i_batch = -1;
 }
 
 void llama_cap_context_completion::processMedia(
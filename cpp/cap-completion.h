@@ -6,6 +6,11 @@
 #include "sampling.h"
 #include "nlohmann/json.hpp"
 #include "chat.h"
+#include <atomic>
+#include <condition_variable>
+#include <deque>
+#include <functional>
+#include <mutex>
 
 using json = nlohmann::ordered_json;
 
@@ -38,12 +43,68 @@ struct completion_token_output
     llama_token tok;
 };
 
-struct completion_partial_output
+// Outcome of an incremental session save
+struct session_checkpoint_result
 {
-  std::string content;
-  std::string reasoning_content;
-  std::vector<common_chat_tool_call> tool_calls;
-  std::string accumulated_text;
+  size_t n_tokens = 0;      // tokens covered by the checkpoint
+  size_t checkpoint = 0;    // index of the checkpoint in the session file
+  size_t bytes_written = 0; // bytes appended to the session file (0 when nothing changed)
+};
+
+// Throughput of one bench() configuration, in tokens per second over the completed runs
+struct bench_result
+{
+  int pp = 0;          // prompt tokens per run
+  int tg = 0;          // generated tokens per sequence per run
+  int pl = 0;          // parallel sequences during generation
+  int nr = 0;          // runs requested
+  int runs = 0;        // runs completed; fewer than nr when interrupted
+  int n_threads = 0;
+  int n_batch = 0;
+  double pp_avg = 0;
+  double pp_std = 0;
+  double tg_avg = 0;
+  double tg_std = 0;
+};
+
+// Final state of a completion request, shared by the single-sequence and scheduled paths
+struct completion_summary
+{
+  std::string text;
+  size_t n_prompt_tokens = 0;
+  // Prompt tokens reused from the KV cache instead of being evaluated again
+  size_t n_cached = 0;
+  size_t n_predicted = 0;
+  bool truncated = false;
+  bool stopped_eos = false;
+  bool stopped_word = false;
+  bool stopped_limit = false;
+  bool context_full = false;
+  bool interrupted = false;
+  bool failed = false;
+  std::string stopping_word;
+  // Wall time of each phase: prompt processing up to the first sampled token, then generation
+  double prompt_ms = 0;
+  double predicted_ms = 0;
+
+  void setTimings(int64_t t_start_us, int64_t t_first_token_us, int64_t t_end_us);
+};
+
+// Chat message parsed from streamed text. Content-only output is the text itself, so it grows with each
+// delta; other formats are re-parsed once the text has grown by a sixteenth, which keeps the total
+// parsing work linear in the output at the cost of partial content trailing the token stream slightly.
+struct chat_stream_parser
+{
+  void reset(int chat_format, common_reasoning_format reasoning_format, bool thinking_forced_open, const std::string &prefill);
+  const common_chat_msg &append(const std::string &delta);
+  // Prefill plus every delta so far
+  const std::string &text() const { return text_; }
+
+private:
+  common_chat_syntax syntax_;
+  std::string text_;
+  common_chat_msg msg_;
+  size_t parsed_size_ = 0;
 };
 
 // Completion context class
@@ -53,15 +114,21 @@ struct llama_cap_context_completion {
 
     // Completion state fields
     bool is_predicting = false;
-    bool is_interrupted = false;
+    // Set from other threads (stopCompletion / release) while a request runs
+    std::atomic<bool> is_interrupted{false};
     bool has_next_token = false;
     std::string prefill_text;
     std::string generated_text;
     std::vector<completion_token_output> generated_token_probs;
     size_t num_prompt_tokens = 0;
+    size_t num_prompt_cached = 0;
     size_t num_tokens_predicted = 0;
+    // llama_time_us() at beginCompletion and when the first token was sampled (0 until then)
+    int64_t t_start_us = 0;
+    int64_t t_first_token_us = 0;
     llama_pos n_past = 0;
     size_t n_remain = 0;
+    // Tokens currently held in sequence 0 of the KV cache, kept across calls for prefix reuse
     std::vector<llama_token> embd;
     bool incomplete = false;
     bool context_full = false;
@@ -74,6 +141,7 @@ struct llama_cap_context_completion {
     int current_chat_format = COMMON_CHAT_FORMAT_CONTENT_ONLY;
     common_reasoning_format current_reasoning_format = COMMON_REASONING_FORMAT_NONE;
     bool current_thinking_forced_open = false;
+    chat_stream_parser chat_stream;
 
     // Sampling context
     common_sampler *ctx_sampling = nullptr;
@@ -95,14 +163,34 @@ struct llama_cap_context_completion {
     completion_token_output nextToken();
     size_t findStoppingStrings(const std::string &text, const size_t last_token_size, const stop_type type);
     completion_token_output doCompletion();
-    completion_partial_output getPartialOutput(const std::string &token_text);
+    // Message parsed from prefill_text plus the text emitted so far; token_text is the newly emitted part
+    const common_chat_msg &getPartialOutput(const std::string &token_text);
+
+    // Session methods
+    std::vector<llama_token> loadSession(const std::string &path, int checkpoint = -1);
+    size_t saveSession(const std::string &path, int size);
+    session_checkpoint_result saveCheckpoint(const std::string &path, int size);
+    std::vector<llama_token> loadCheckpoint(const std::string &path, int checkpoint);
+
+    // In-memory snapshots of sequence 0: n_tokens (u32), tokens, sequence state
+    size_t snapshotSize();
+    size_t captureSnapshot(uint8_t *dst, size_t size);
+    size_t restoreSnapshot(const uint8_t *src, size_t size);
 
     // Embedding methods
+    std::vector<float> embed(const std::vector<llama_token> &tokens, common_params &embd_params);
+    // Writes inputs.size() rows of n_embd floats to out
+    void embedBatch(const std::vector<std::vector<llama_token>> &inputs, common_params &embd_params, float *out);
     std::vector<float> getEmbedding(common_params &embd_params);
+    // Decodes inputs packed as separate sequences; read(input, seq_id, last batch index) runs after each decode
+    void decodePacked(const std::vector<std::vector<llama_token>> &inputs,
+                      const std::function<void(size_t, llama_seq_id, int32_t)> &read);
+    // One score per document, in document order; documents are scored in packed batches
     std::vector<float> rerank(const std::string &query, const std::vector<std::string> &documents);
 
     // Benchmarking methods
-    std::string bench(int pp, int tg, int pl, int nr);
+    // Clears the KV cache; throws when the context is busy or the configuration does not fit it
+    bench_result bench(int pp, int tg, int pl, int nr);
 
     // Multimodal processing methods
     void processMedia(
@@ -111,6 +199,71 @@ struct llama_cap_context_completion {
     );
 };
 
+// A completion request submitted to the scheduler
+struct completion_slot_request {
+    std::vector<llama_token> prompt_tokens;
+    int32_t n_predict = -1;
+    std::vector<std::string> antiprompt;
+    common_params_sampling sampling;
+    // Owning context's stop epoch and its value when the request was queued; a newer epoch interrupts it
+    const std::atomic<int64_t> *stop_epoch = nullptr;
+    int64_t stop_epoch_seen = 0;
+};
+
+// Per-request decoding state; the slot index doubles as the KV sequence id
+struct completion_slot {
+    llama_seq_id seq_id = 0;
+    bool in_use = false;
+    bool done = false;
+    bool interrupted = false;
+    bool needs_prefix_sync = false;        // trim cache_tokens to the prompt prefix before the next step
+
+    completion_slot_request request;
+    common_sampler *sampler = nullptr;
+
+    std::vector<llama_token> cache_tokens; // tokens whose KV cells belong to seq_id, in position order
+    size_t n_prompt_fed = 0;               // prompt tokens already submitted to a batch
+    llama_token pending_token = -1;        // sampled token waiting to be decoded in the next step
+    int32_t i_batch = -1;                  // logits row of this slot in the current batch
+    size_t sent_count = 0;
+    std::deque<std::string> pending_text;  // text ready to be handed to the request owner
+    int64_t t_start_us = 0;                // llama_time_us() when the request got the slot
+    int64_t t_first_token_us = 0;          // ... and when its first token was sampled
+
+    completion_summary summary;
+};
+
+// Continuous batching: concurrent completions on one context share every llama_decode call.
+// Callers block in run(); whichever caller is free drives the next decode step for all slots.
+struct llama_cap_completion_scheduler {
+    llama_cap_context* parent_ctx;
+    std::vector<completion_slot> slots;
+    int32_t n_ctx_slot = 0;
+
+    llama_cap_completion_scheduler(llama_cap_context* parent, int n_parallel);
+    ~llama_cap_completion_scheduler();
+
+    completion_summary run(completion_slot_request request, const std::function<void(const std::string &)> &on_text);
+    void interruptAll();
+    // These take the scheduler mutex briefly and may be called with state_mutex held, as the
+    // session, snapshot, embedding and bench paths do; run() never holds the scheduler mutex
+    // while it waits for state_mutex
+    size_t activeCount();
+    std::vector<llama_token> cachedTokens(llama_seq_id seq_id);
+    // Called after the whole KV state was replaced; seq 0 now holds seq0_tokens
+    void resetCaches(const std::vector<llama_token> &seq0_tokens);
+
+private:
+    std::mutex mutex;
+    std::condition_variable cv;
+    bool stepping = false;
+    llama_batch batch;
+
+    bool step(std::unique_lock<std::mutex> &lock);
+    void processToken(completion_slot &slot, llama_token token);
+    void finish(completion_slot &slot);
+};
+
 } // namespace capllama
 
 #endif /* CAP_COMPLETION_H */
@@ -8,6 +8,11 @@
 #include "tools/mtmd/mtmd-helper.h"
 #include "tools/mtmd/clip.h"
 
+
+#include <climits>
+#include <cstdlib>
+#include <map>
+
 namespace capllama {
 
 static const std::vector<lm_ggml_type> kv_cache_types = {
@@ -123,6 +128,11 @@ std::string tokens_to_str(llama_context *ctx, const std::vector<llama_token>::co
 
 
 llama_cap_context::~llama_cap_context() {
+    if (scheduler != nullptr) {
+        delete scheduler;
+        scheduler = nullptr;
+    }
+
     if (completion != nullptr) {
         delete completion;
         completion = nullptr;
@@ -132,15 +142,100 @@ llama_cap_context::~llama_cap_context() {
     releaseVocoder();
 }
 
+// Loaded weights are pooled by resolved path and load params. Every context opened on the same
+// model holds a reference; the weights are freed when the last one is released.
+struct model_pool_slot {
+    std::mutex load_mutex;            // one load per key at a time
+    std::weak_ptr<llama_model> model;
+};
+
+static std::mutex model_pool_mutex;
+static std::map<std::string, std::shared_ptr<model_pool_slot>> model_pool;
+
+static std::string model_pool_key(const common_params &params) {
+    char resolved[PATH_MAX];
+    const std::string path = realpath(params.model.path.c_str(), resolved) != nullptr ? resolved : params.model.path;
+    std::ostringstream key;
+    key << path
+        << "|n_gpu_layers=" << params.n_gpu_layers
+        << "|use_mmap=" << params.use_mmap
+        << "|use_mlock=" << params.use_mlock
+        << "|vocab_only=" << params.vocab_only
+        << "|check_tensors=" << params.check_tensors
+        << "|main_gpu=" << params.main_gpu
+        << "|split_mode=" << (int) params.split_mode;
+    return key.str();
+}
+
+static std::shared_ptr<llama_model> share_model(const std::string &key, llama_model *model) {
+    return std::shared_ptr<llama_model>(model, [key](llama_model *m) {
+        llama_model_free(m);
+        std::lock_guard<std::mutex> lock(model_pool_mutex);
+        auto it = model_pool.find(key);
+        if (it != model_pool.end() && it->second->model.expired()) {
+            model_pool.erase(it);
+        }
+        LOG_INFO("freed model weights: %s", key.c_str());
+    });
+}
+
 bool llama_cap_context::loadModel(common_params &params_)
 {
     params = params_;
-    llama_init = common_init_from_params(params);
-    model = llama_init.model.get();
+
+    // Overrides change the loaded tensors themselves, so such models are never shared
+    const bool shareable = params.kv_overrides.empty() && params.tensor_buft_overrides.empty();
+    const std::string key = model_pool_key(params);
+    std::shared_ptr<model_pool_slot> slot;
+    std::unique_lock<std::mutex> load_lock;
+    std::shared_ptr<llama_model> pooled;
+    if (shareable) {
+        {
+            std::lock_guard<std::mutex> lock(model_pool_mutex);
+            auto &entry = model_pool[key];
+            if (!entry) {
+                entry = std::make_shared<model_pool_slot>();
+            }
+            slot = entry;
+        }
+        load_lock = std::unique_lock<std::mutex>(slot->load_mutex);
+        pooled = slot->model.lock();
+    }
+
+    // Release any previous context before its model reference
+    llama_init = common_init_result();
+    model_ref.reset();
+    if (pooled) {
+        // No warmup: the weights are already resident
+        const bool warmup = params.warmup;
+        params.warmup = false;
+        llama_init = common_init_context_from_model(pooled.get(), params);
+        params.warmup = warmup;
+        model_ref = pooled;
+        model_shared = true;
+        LOG_INFO("attached new context to loaded model: %s", key.c_str());
+    } else {
+        llama_init = common_init_from_params(params);
+        if (llama_init.model != nullptr) {
+            model_ref = share_model(key, llama_init.model.release());
+            if (slot) {
+                slot->model = model_ref;
+                // The slot may have been dropped while this load was running
+                std::lock_guard<std::mutex> lock(model_pool_mutex);
+                model_pool[key] = slot;
+            }
+        }
+        model_shared = false;
+    }
+    model = model_ref.get();
     ctx = llama_init.context.get();
-    if (model == nullptr)
+    if (model == nullptr || ctx == nullptr)
     {
         LOG_ERROR("unable to load model: %s", params_.model.path.c_str());
+        llama_init = common_init_result();
+        model_ref.reset();
+        model = nullptr;
+        ctx = nullptr;
         return false;
     }
     templates = common_chat_templates_init(model, params.chat_template);
@@ -152,6 +247,16 @@ bool llama_cap_context::loadModel(common_params &params_)
     }
     completion = new llama_cap_context_completion(this);
 
+    // Concurrent requests get their own sequence ids and share decode steps
+    if (scheduler != nullptr) {
+        delete scheduler;
+        scheduler = nullptr;
+    }
+    if (n_completion_slots > 1) {
+        scheduler = new llama_cap_completion_scheduler(this, n_completion_slots);
+        LOG_INFO("continuous batching enabled, n_parallel: %d", n_completion_slots);
+    }
+
     // Initialize context shift flag
     LOG_INFO("ctx_shift: %s", params.ctx_shift ? "enabled" : "disabled");
 
@@ -342,4 +447,23 @@ void llama_cap_context::releaseVocoder() {
     has_vocoder = false;
 }
 
+size_t llama_cap_context::estimateComputeBytes() const {
+    if (ctx == nullptr) {
+        return 0;
+    }
+    const size_t n_ubatch = llama_n_ubatch(ctx);
+    const size_t n_ctx_size = llama_n_ctx(ctx);
+    const size_t n_embd = llama_model_n_embd(model);
+    const size_t n_head = std::max(1, llama_model_n_head(model));
+    const size_t n_vocab = llama_vocab_n_tokens(llama_model_get_vocab(model));
+    // f32 logits for one micro-batch, a few layer-sized activations, and the attention scores
+    // that flash attention avoids materializing
+    size_t bytes = n_ubatch * n_vocab * sizeof(float);
+    bytes += 8 * n_ubatch * n_embd * sizeof(float);
+    if (!params.flash_attn) {
+        bytes += n_ubatch * n_ctx_size * n_head * sizeof(float);
+    }
+    return bytes;
+}
+
 }
@@ -5,6 +5,9 @@
 #include <iostream>
 #include <thread>
 #include <codecvt>
+#include <atomic>
+#include <memory>
+#include <mutex>
 #include "chat.h"
 #include "common.h"
 #include "ggml.h"
@@ -32,13 +35,14 @@ lm_ggml_type kv_cache_type_from_str(const std::string & s);
 // Forward declarations - actual definitions are in cap-completion.h
 // Note: enum forward declarations not allowed in C++, using include in implementation file
 struct completion_token_output;
-struct completion_partial_output;
 struct llama_cap_context_mtmd;
 
 struct llama_cap_context_tts;
 
 struct llama_cap_context_completion;
 
+struct llama_cap_completion_scheduler;
+
 struct llama_cap_tokenize_result {
   std::vector<llama_token> tokens;
   bool has_media = false;
@@ -54,6 +58,9 @@ struct llama_cap_context {
     float loading_progress = 0;
     bool is_load_interrupted = false;
     common_params params;
+    // Weights shared with other contexts on the same file; declared before llama_init so it is freed last
+    std::shared_ptr<llama_model> model_ref;
+    bool model_shared = false;
     common_init_result llama_init;
     llama_context *ctx = nullptr;
     common_chat_templates_ptr templates;
@@ -62,6 +69,23 @@ struct llama_cap_context {
     // Completion context
     llama_cap_context_completion *completion = nullptr;
 
+    // Multi-sequence scheduler, only created when more than one completion slot is configured
+    llama_cap_completion_scheduler *scheduler = nullptr;
+
+    // Number of scheduler slots for concurrent completions; the scheduler exists when > 1
+    int n_completion_slots = 1;
+
+    // Sequence kept free for staging partial KV state (checkpoints), -1 when the cache has none
+    llama_seq_id scratch_seq_id = -1;
+
+    // Serializes use of ctx / KV memory when requests for this context run on several threads.
+    // Lock order: state_mutex first, then the completion scheduler's mutex; never the other way round.
+    std::mutex state_mutex;
+
+    // Latest stop request from Java. A completion that was queued before it carries a lower epoch and
+    // stops as soon as it starts, even though rewind() clears is_interrupted.
+    std::atomic<int64_t> stop_epoch{0};
+
     ~llama_cap_context();
 
     bool loadModel(common_params &params_);
@@ -107,6 +131,10 @@ struct llama_cap_context {
     bool initVocoder(const std::string &vocoder_model_path, int batch_size = -1);
     bool isVocoderEnabled() const;
     void releaseVocoder();
+
+    // Rough size of the compute buffers from the public context and model parameters; the
+    // scheduler's real allocation is not exposed through the llama.h API
+    size_t estimateComputeBytes() const;
 };
 
 // Utility functions
@@ -912,6 +912,21 @@ struct common_init_result common_init_from_params(common_params & params) {
         return iparams;
     }
 
+    iparams = common_init_context_from_model(model, params);
+    if (iparams.context == nullptr) {
+        iparams.lora.clear();
+        llama_model_free(model);
+        return iparams;
+    }
+
+    iparams.model.reset(model);
+
+    return iparams;
+}
+
+struct common_init_result common_init_context_from_model(llama_model * model, common_params & params) {
+    common_init_result iparams;
+
     const llama_vocab * vocab = llama_model_get_vocab(model);
 
     auto cparams = common_context_params_to_llama(params);
@@ -919,7 +934,6 @@ struct common_init_result common_init_from_params(common_params & params) {
     llama_context * lctx = llama_init_from_model(model, cparams);
     if (lctx == NULL) {
         LOG_ERR("%s: failed to create context with model '%s'\n", __func__, params.model.path.c_str());
-        llama_model_free(model);
         return iparams;
     }
 
@@ -935,7 +949,6 @@ struct common_init_result common_init_from_params(common_params & params) {
         const auto cvec = common_control_vector_load(params.control_vectors);
         if (cvec.n_embd == -1) {
             llama_free(lctx);
-            llama_model_free(model);
 
             return iparams;
         }
@@ -949,7 +962,6 @@ struct common_init_result common_init_from_params(common_params & params) {
                 params.control_vector_layer_end);
         if (err) {
             llama_free(lctx);
-            llama_model_free(model);
 
             return iparams;
         }
@@ -978,7 +990,6 @@ struct common_init_result common_init_from_params(common_params & params) {
 
         if (!ok) {
             llama_free(lctx);
-            llama_model_free(model);
 
             return iparams;
         }
@@ -991,7 +1002,6 @@ struct common_init_result common_init_from_params(common_params & params) {
         if (lora == nullptr) {
             LOG_ERR("%s: failed to apply lora adapter '%s'\n", __func__, la.path.c_str());
             llama_free(lctx);
-            llama_model_free(model);
             return iparams;
         }
 
@@ -1071,7 +1081,6 @@ struct common_init_result common_init_from_params(common_params & params) {
         llama_set_warmup(lctx, false);
     }
 
-    iparams.model.reset(model);
     iparams.context.reset(lctx);
 
     return iparams;
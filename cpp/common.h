@@ -616,6 +616,8 @@ struct common_init_result {
 };
 
 struct common_init_result     common_init_from_params(common_params & params);
+// context half of common_init_from_params, for a model that is already loaded; the result does not own the model
+struct common_init_result     common_init_context_from_model(llama_model * model, common_params & params);
 
 struct llama_model_params     common_model_params_to_llama  (      common_params & params);
 struct llama_context_params   common_context_params_to_llama(const common_params & params);
@@ -85,13 +85,56 @@ export interface NativeContextParams {
    */
   n_cpu_moe?: number;
 
+  /**
+   * Maximum number of requests waiting on this context's worker thread (Android only).
+   * Requests beyond this limit are rejected instead of queued. Default: 32
+   */
+  queue_size?: number;
+
+  /**
+   * Number of completions that may run concurrently on this context (Android only).
+   * Each one gets its own sequence in the KV cache and they share batched decode steps.
+   * Without kv_unified each sequence gets n_ctx / n_parallel tokens. Default: 1
+   */
+  n_parallel?: number;
+
+  /**
+   * Number of most recently used KV snapshots kept in memory; older ones are spilled to app storage (Android only). Default: 2
+   */
+  snapshot_ram_entries?: number;
+  /**
+   * Byte budget for KV snapshots in memory and on disk together; least recently used ones are evicted (Android only). Default: 512 MiB
+   */
+  snapshot_max_bytes?: number;
+  /**
+   * Byte budget of the tokenize cache shared by contexts on the same model (Android only). Default: 8 MiB
+   */
+  token_cache_max_bytes?: number;
+
   // Embedding params
   embedding?: boolean;
   embd_normalize?: number;
+  /**
+   * Sequences available for packing embeddingBatch inputs into one decode (Android only, max 64).
+   * Setting it switches the context to a unified KV cache. Default: unset, one input per decode
+   */
+  n_seq_max?: number;
+
+  /**
+   * Reserve a staging sequence so incremental session saves can append only new KV cells (Android only).
+   * Needs n_parallel = 1 or kv_unified, and switches the context to a unified KV cache.
+   * Without it incremental saves write a full segment each time. Default: false
+   */
+  checkpoints?: boolean;
 }
 
 export interface NativeCompletionParams {
   prompt: string;
+  /**
+   * Conversation this prompt belongs to (Android only). When it differs from the previous call,
+   * the current KV state is parked in the snapshot cache and the conversation's own state is restored.
+   */
+  conversation_id?: string;
   n_threads?: number;
   /**
    * Enable Jinja. Default: true if supported by the model
@@ -258,6 +301,19 @@ export interface NativeCompletionParams {
   guide_tokens?: Array<number>;
 
   emit_partial_completion: boolean;
+
+  /**
+   * Include the whole generated text in every token event as `accumulated_text`.
+   * Copies the full text per token, so long completions get slower.
+   * Default: `false`
+   */
+  emit_accumulated_text?: boolean;
+
+  /**
+   * Echoed as `requestId` in this call's token events, so concurrent completions on one context
+   * can be told apart. Set by `LlamaContext.completion`.
+   */
+  request_id?: number;
 }
 
 export interface NativeCompletionTokenProbItem {
@@ -271,11 +327,23 @@ export interface NativeCompletionTokenProb {
 }
 
 export interface NativeCompletionResultTimings {
+  /**
+   * Prompt tokens evaluated (cached ones excluded)
+   */
   prompt_n: number;
+  /**
+   * Wall time from the start of the request to the first sampled token
+   */
   prompt_ms: number;
   prompt_per_token_ms: number;
   prompt_per_second: number;
+  /**
+   * Tokens generated, same as tokens_predicted
+   */
   predicted_n: number;
+  /**
+   * Wall time from the first sampled token to the end of generation
+   */
   predicted_ms: number;
   predicted_per_token_ms: number;
   predicted_per_second: number;
@@ -308,7 +376,13 @@ export interface NativeCompletionResult {
 
   chat_format: number;
 
+  /**
+   * Tokens actually generated, excluding the end-of-generation token
+   */
   tokens_predicted: number;
+  /**
+   * Prompt tokens that were actually evaluated for this call
+   */
   tokens_evaluated: number;
   truncated: boolean;
   stopped_eos: boolean;
@@ -317,6 +391,9 @@ export interface NativeCompletionResult {
   stopping_word: string;
   context_full: boolean;
   interrupted: boolean;
+  /**
+   * Prompt tokens reused from the KV cache of a previous call (longest common prefix)
+   */
   tokens_cached: number;
   timings: NativeCompletionResultTimings;
 
@@ -348,6 +425,47 @@ export interface NativeEmbeddingResult {
   embedding: Array<number>;
 }
 
+export interface NativeEmbeddingBatchResult {
+  /**
+   * One vector per input text, in input order
+   */
+  embeddings: Array<Array<number>>;
+}
+
+export interface NativeIndexInfo {
+  name: string;
+  /**
+   * Vector width; 0 until the first vectors are added when created without dimensions
+   */
+  dimensions: number;
+  count: number;
+  embd_normalize: number;
+}
+
+export interface NativeIndexAddResult extends NativeIndexInfo {
+  /**
+   * Id of the first added vector; ids are assigned sequentially in input order
+   */
+  firstId: number;
+  added: number;
+}
+
+export interface NativeIndexSearchHit {
+  id: number;
+  /**
+   * Inner product of the normalized vectors (cosine similarity for embd_normalize = 2)
+   */
+  score: number;
+  /**
+   * Source text, when the vector was added from text
+   */
+  text?: string;
+}
+
+export interface NativeIndexSearchResult {
+  results: Array<NativeIndexSearchHit>;
+}
+
 export interface NativeLlamaContext {
   contextId: number;
   model: {
@@ -355,6 +473,17 @@ export interface NativeLlamaContext {
     size: number;
     nEmbd: number;
     nParams: number;
+    /**
+     * From the GGUF header (Android only)
+     */
+    architecture?: string;
+    context_length?: number;
+    quantization?: string;
+    /**
+     * Whether the file was verified when it was downloaded and is unchanged since (Android only)
+     */
+    verified?: boolean;
+    sha256?: string;
     chatTemplates: {
       llamaChat: boolean; // Chat template in llama-chat.cpp
       minja: {
@@ -395,6 +524,221 @@ export interface NativeSessionLoadResult {
   prompt: string;
 }
 
+export interface NativeSnapshotSaveResult {
+  /**
+   * False when the snapshot alone is larger than the cache budget
+   */
+  cached: boolean;
+  bytes: number;
+}
+
+export interface NativeSnapshotRestoreResult {
+  hit: boolean;
+  tokens_restored: number;
+}
+
+export interface NativeSnapshotCacheStats {
+  entries: number;
+  ramEntries: number;
+  diskEntries: number;
+  ramBytes: number;
+  diskBytes: number;
+  maxBytes: number;
+  maxRamEntries: number;
+  hits: number;
+  misses: number;
+  hitRate: number;
+  evictions: number;
+  spills: number;
+}
+
+export interface NativeTokenCacheStats {
+  /**
+   * Model the cache belongs to; contexts on the same model share it
+   */
+  modelPath: string;
+  entries: number;
+  bytes: number;
+  maxBytes: number;
+  hits: number;
+  misses: number;
+  hitRate: number;
+  evictions: number;
+}
+
+export interface NativeContextPoolOptions {
+  /**
+   * Maximum number of live contexts, including pre-warmed ones
+   */
+  limit?: number;
+  /**
+   * Memory budget for weights and KV caches across all contexts; 0 disables it
+   */
+  max_bytes?: number;
+  /**
+   * Save the KV state of evicted contexts as a session file that can be loaded again
+   */
+  snapshot_on_evict?: boolean;
+  /**
+   * Resident size budget for the app process. When it is exceeded, idle contexts are trimmed
+   * in stages, as on system memory pressure; 0 disables it
+   */
+  process_max_bytes?: number;
+}
+
+export interface NativeContextPoolStats {
+  contexts: number;
+  idle: number;
+  prewarmed: number;
+  bytes: number;
+  limit: number;
+  maxBytes: number;
+  snapshotOnEvict: boolean;
+}
+
+export interface NativeContextMemoryStats {
+  contextId: number;
+  modelPath: string;
+  /**
+   * Model weights; shared by every context on the same model
+   */
+  weightsBytes: number;
+  kvBytes: number;
+  /**
+   * Estimated from the batch size, context size and vocabulary; not the measured allocation
+   */
+  computeBytes: number;
+  snapshotRamBytes: number;
+  snapshotDiskBytes: number;
+  idle: boolean;
+  prewarmed: boolean;
+  multimodal: boolean;
+  vocoder: boolean;
+  /**
+   * Session file written by a memory trim, while it still matches the context's KV state
+   */
+  sessionPath?: string;
+}
+
+export interface NativeMemoryStats {
+  contexts: NativeContextMemoryStats[];
+  /**
+   * Weights counted once per model
+   */
+  weightsBytes: number;
+  kvBytes: number;
+  computeBytes: number;
+  /**
+   * Resident size of the app process, -1 when unavailable
+   */
+  residentBytes: number;
+  processMaxBytes: number;
+  /**
+   * Furthest trim stage applied so far: 1 caches, 2 sessions, 3 projectors and vocoders, 4 contexts
+   */
+  lastTrimStage: number;
+}
+
+export interface NativeStoredModel {
+  name: string;
+  path: string;
+  size: number;
+  /**
+   * Modification time of the file, in ms since the epoch
+   */
+  mtime: number;
+  /**
+   * When a context last loaded the model, in ms since the epoch; the disk quota evicts the oldest first
+   */
+  lastUsed: number;
+  /**
+   * Whether the file passed verification when it was downloaded
+   */
+  verified: boolean;
+  sha256?: string;
+  desc?: string;
+  architecture?: string;
+  quantization?: string;
+  nParams?: number;
+  nEmbd?: number;
+  context_length?: number;
+  /**
+   * Set when the GGUF header could not be read
+   */
+  error?: string;
+}
+
+export interface NativeModelStoreOptions {
+  /**
+   * Disk quota for downloaded models; models no context has loaded are deleted least recently used
+   * first to stay within it. 0 disables it
+   */
+  max_bytes?: number;
+}
+
+export interface NativeModelStoreStats {
+  directory: string;
+  models: number;
+  bytes: number;
+  maxBytes: number;
+  /**
+   * Names of the models deleted to meet a new quota
+   */
+  evicted: string[];
+}
+
+export interface NativeDownloadProgress {
+  url: string;
+  localPath: string;
+  status: 'downloading' | 'completed' | 'failed' | 'cancelled';
+  /**
+   * Fraction of the file downloaded, 0 to 1
+   */
+  progress: number;
+  downloadedBytes: number;
+  /**
+   * -1 until the server has reported the size
+   */
+  totalBytes: number;
+  /**
+   * Moving average of the transfer rate
+   */
+  bytesPerSecond: number;
+  /**
+   * -1 while unknown
+   */
+  etaSeconds: number;
+  completed: boolean;
+  failed: boolean;
+  cancelled: boolean;
+  errorMessage?: string;
+  /**
+   * SHA-256 of the file, present once it has been downloaded and verified
+   */
+  sha256?: string;
+  verified?: boolean;
+}
+
+export interface NativeContextEvictedEvent {
+  contextId: number;
+  /**
+   * Session file holding the evicted context's KV state, when snapshot_on_evict is set
+   */
+  sessionPath?: string;
+}
+
+export interface NativeSessionSaveResult {
+  tokensSaved: number;
+  /**
+   * Index of the written checkpoint (incremental saves only)
+   */
+  checkpoint?: number;
+  /**
+   * Bytes appended to the session file; 0 when nothing changed since the last checkpoint (incremental saves only)
+   */
+  bytesWritten?: number;
+}
+
 export interface NativeLlamaMessagePart {
   type: 'text';
   text: string;
@@ -434,6 +778,10 @@ export interface NativeImageProcessingResult {
 
 export interface NativeRerankParams {
   normalize?: number;
+  /**
+   * Return only the best top_n documents (Android only). Default: all documents
+   */
+  top_n?: number;
 }
 
 export interface NativeRerankResult {
@@ -476,9 +824,19 @@ export interface TokenData {
   content?: string;
   reasoning_content?: string;
   tool_calls?: Array<ToolCall>;
+  // Only with `emit_accumulated_text: true`
   accumulated_text?: string;
 }
 
+export interface TokenNativeEvent {
+  contextId: number;
+  /**
+   * `request_id` of the completion this token belongs to
+   */
+  requestId?: number;
+  tokenResult: TokenData;
+}
+
 export interface ContextParams extends Omit<
   NativeContextParams,
   'cache_type_k' | 'cache_type_v' | 'pooling_type'
@@ -508,6 +866,10 @@ export interface EmbeddingParams extends NativeEmbeddingParams {}
 
 export interface RerankParams {
   normalize?: number;
+  /**
+   * Return only the best top_n documents (Android only). Default: all documents
+   */
+  top_n?: number;
 }
 
 export interface RerankResult {
@@ -576,10 +938,29 @@ export interface CompletionParams extends Omit<
   prefill_text?: string;
 }
 
+/**
+ * Speeds are in tokens per second, as mean and sample standard deviation over the completed runs
+ */
 export interface BenchResult {
   modelDesc: string;
   modelSize: number;
   modelNParams: number;
+  /**
+   * From the GGUF header (Android only)
+   */
+  modelPath?: string;
+  architecture?: string;
+  quantization?: string;
+  pp: number;
+  tg: number;
+  pl: number;
+  nr: number;
+  /**
+   * Runs completed; fewer than nr when the benchmark was interrupted
+   */
+  runs: number;
+  nThreads: number;
+  nBatch: number;
   ppAvg: number;
   ppStd: number;
   tgAvg: number;
@@ -591,6 +972,17 @@ export interface LlamaCppPlugin {
   // Core initialization and management
   toggleNativeLog(options: { enabled: boolean }): Promise<void>;
   setContextLimit(options: { limit: number }): Promise<void>;
+  /**
+   * When the pool is full, idle contexts are evicted least recently used first instead of
+   * failing initContext.
+   */
+  setContextPoolOptions(options: NativeContextPoolOptions): Promise<NativeContextPoolStats>;
+  getMemoryStats(): Promise<NativeMemoryStats>;
+  /**
+   * Read GGUF metadata without loading the model. Values of keys in skip are not decoded; an
+   * empty or missing skip leaves out the tokenizer tables. Results that skip the tokenizer tables
+   * are cached until the file's size or modification time changes.
+   */
   modelInfo(options: { path: string; skip?: string[] }): Promise<Object>;
   initContext(options: { contextId: number; params: NativeContextParams }): Promise<NativeLlamaContext>;
   releaseContext(options: { contextId: number }): Promise<void>;
@@ -625,25 +1017,69 @@ export interface LlamaCppPlugin {
   loadSession(options: {
     contextId: number;
     filepath: string;
+    /**
+     * Checkpoint to restore from an incremental session file. Default: latest
+     */
+    checkpoint?: number;
   }): Promise<NativeSessionLoadResult>;
 
   saveSession(options: {
     contextId: number;
     filepath: string;
     size: number;
-  }): Promise<number>;
+    /**
+     * Append only the tokens and KV cells added since the last checkpoint in this file
+     */
+    incremental?: boolean;
+  }): Promise<NativeSessionSaveResult>;
+
+  // KV snapshots
+  saveSnapshot(options: {
+    contextId: number;
+    /**
+     * Conversation id or prompt-prefix hash
+     */
+    key: string;
+  }): Promise<NativeSnapshotSaveResult>;
+
+  restoreSnapshot(options: {
+    contextId: number;
+    key: string;
+  }): Promise<NativeSnapshotRestoreResult>;
+
+  getSnapshotCacheStats(options: { contextId: number }): Promise<NativeSnapshotCacheStats>;
 
   // Tokenization
   tokenize(options: {
     contextId: number;
     text: string;
     imagePaths?: Array<string>;
+    /**
+     * Add BOS/EOS as configured by the model. Default: false
+     */
+    add_special?: boolean;
+    /**
+     * Parse special tokens written in the text. Default: false
+     */
+    parse_special?: boolean;
   }): Promise<NativeTokenizeResult>;
 
   detokenize(options: {
     contextId: number;
     tokens: number[];
-  }): Promise<string>;
+  }): Promise<{ text: string }>;
+
+  /**
+   * Count tokens for each text without returning the tokens themselves
+   */
+  countTokens(options: {
+    contextId: number;
+    texts: Array<string>;
+    add_special?: boolean;
+    parse_special?: boolean;
+  }): Promise<{ counts: Array<number> }>;
+
+  getTokenCacheStats(options: { contextId: number }): Promise<NativeTokenCacheStats>;
 
   // Embeddings and reranking
   embedding(options: {
@@ -652,21 +1088,77 @@ export interface LlamaCppPlugin {
     params: NativeEmbeddingParams;
   }): Promise<NativeEmbeddingResult>;
 
+  /**
+   * Embed many texts at once. Inputs are packed into shared batches as separate sequences
+   * (up to n_batch tokens and n_seq_max sequences per decode).
+   */
+  embeddingBatch(options: {
+    contextId: number;
+    texts: Array<string>;
+    params?: NativeEmbeddingParams;
+  }): Promise<NativeEmbeddingBatchResult>;
+
+  /**
+   * Score query/document pairs in packed batches. Results are sorted by score, best first.
+   */
   rerank(options: {
     contextId: number;
     query: string;
     documents: Array<string>;
     params?: NativeRerankParams;
-  }): Promise<Array<NativeRerankResult>>;
+  }): Promise<{ results: Array<NativeRerankResult> }>;
+
+  // Vector index
+  /**
+   * Create (or replace) an on-device vector index. Vectors are stored in a memory-mapped file
+   * and normalized with embd_normalize (default 2, euclidean).
+   */
+  createIndex(options: {
+    name: string;
+    dimensions?: number;
+    embd_normalize?: number;
+  }): Promise<NativeIndexInfo>;
+
+  /**
+   * Add texts (embedded with the given context) or raw vectors to an index.
+   */
+  addToIndex(options: {
+    name: string;
+    contextId?: number;
+    texts?: Array<string>;
+    vectors?: Array<Array<number>>;
+  }): Promise<NativeIndexAddResult>;
+
+  /**
+   * Return the k nearest vectors to a text query (embedded with the given context) or a raw vector.
+   * Small indexes are scanned exhaustively; larger ones use an HNSW graph.
+   */
+  searchIndex(options: {
+    name: string;
+    contextId?: number;
+    query?: string;
+    vector?: Array<number>;
+    k?: number;
+  }): Promise<NativeIndexSearchResult>;
+
+  saveIndex(options: { name: string }): Promise<NativeIndexInfo>;
+
+  loadIndex(options: { name: string }): Promise<NativeIndexInfo>;
+
+  releaseIndex(options: { name: string }): Promise<void>;
 
   // Benchmarking
+  /**
+   * Measures prompt processing over pp tokens and generation of tg tokens on each of pl sequences,
+   * after one unmeasured warm-up pass. Clears the context's KV cache.
+   */
   bench(options: {
     contextId: number;
     pp: number;
     tg: number;
     pl: number;
     nr: number;
-  }): Promise<string>;
+  }): Promise<BenchResult>;
 
   // LoRA adapters
   applyLoraAdapters(options: {
@@ -737,32 +1229,34 @@ export interface LlamaCppPlugin {
   releaseVocoder(options: { contextId: number }): Promise<void>;
 
   // Model download and management
+  /**
+   * Resolves once the file is complete; follow progress through the download progress event.
+   * A second call for a URL that is still downloading joins the running transfer.
+   */
   downloadModel(options: {
     url: string;
     filename: string;
-  }): Promise<string>;
+    /**
+     * Expected SHA-256 in hex; a file with any other hash is deleted and the call rejects
+     */
+    sha256?: string;
+  }): Promise<{ path: string }>;
 
   getDownloadProgress(options: {
     url: string;
-  }): Promise<{
-    progress: number;
-    completed: boolean;
-    failed: boolean;
-    errorMessage?: string;
-    localPath?: string;
-    downloadedBytes: number;
-    totalBytes: number;
-  }>;
+  }): Promise<NativeDownloadProgress>;
 
   cancelDownload(options: {
     url: string;
-  }): Promise<boolean>;
+  }): Promise<{ cancelled: boolean }>;
 
-  getAvailableModels(): Promise<Array<{
-    name: string;
-    path: string;
-    size: number;
-  }>>;
+  /**
+   * Models in the app's model store, read from its catalog. refresh re-checks the directory for
+   * files added or removed outside the store.
+   */
+  getAvailableModels(options?: { refresh?: boolean }): Promise<{ models: NativeStoredModel[] }>;
+
+  setModelStoreOptions(options: NativeModelStoreOptions): Promise<NativeModelStoreStats>;
 
   // Events
   addListener(eventName: string, listenerFunc: (data: any) => void): Promise<void>;
@@ -7,7 +7,27 @@ import type {
   NativeCompletionResult,
   NativeTokenizeResult,
   NativeEmbeddingResult,
+  NativeEmbeddingBatchResult,
+  NativeIndexInfo,
+  NativeIndexAddResult,
+  NativeIndexSearchHit,
+  NativeIndexSearchResult,
   NativeSessionLoadResult,
+  NativeSessionSaveResult,
+  NativeSnapshotSaveResult,
+  NativeSnapshotRestoreResult,
+  NativeSnapshotCacheStats,
+  NativeTokenCacheStats,
+  NativeContextPoolOptions,
+  NativeContextPoolStats,
+  NativeContextEvictedEvent,
+  TokenNativeEvent,
+  NativeStoredModel,
+  NativeModelStoreOptions,
+  NativeModelStoreStats,
+  NativeDownloadProgress,
+  NativeContextMemoryStats,
+  NativeMemoryStats,
   NativeEmbeddingParams,
   NativeRerankParams,
   NativeRerankResult,
@@ -36,6 +56,8 @@ export const LLAMACPP_MTMD_DEFAULT_MEDIA_MARKER = '<__media__>';
 const EVENT_ON_INIT_CONTEXT_PROGRESS = '@LlamaCpp_onInitContextProgress';
 const EVENT_ON_TOKEN = '@LlamaCpp_onToken';
 const EVENT_ON_NATIVE_LOG = '@LlamaCpp_onNativeLog';
+const EVENT_ON_CONTEXT_EVICTED = '@LlamaCpp_onContextEvicted';
+const EVENT_ON_DOWNLOAD_PROGRESS = '@LlamaCpp_onDownloadProgress';
 
 // Register the plugin
 const LlamaCpp = registerPlugin<LlamaCppPlugin>('LlamaCpp');
@@ -48,6 +70,13 @@ LlamaCpp.addListener(EVENT_ON_NATIVE_LOG, (evt: { level: string; text: string })
   logListeners.forEach((listener) => listener(evt.level, evt.text));
 });
 
+// Context eviction listeners management
+const evictedListeners: Array<(event: NativeContextEvictedEvent) => void> = [];
+
+LlamaCpp.addListener(EVENT_ON_CONTEXT_EVICTED, (evt: NativeContextEvictedEvent) => {
+  evictedListeners.forEach((listener) => listener(evt));
+});
+
 // Trigger unset to use default log callback
 LlamaCpp?.toggleNativeLog?.({ enabled: false })?.catch?.(() => {});
 
@@ -64,7 +93,26 @@ export type {
   NativeCompletionResult,
   NativeTokenizeResult,
   NativeEmbeddingResult,
+  NativeEmbeddingBatchResult,
+  NativeIndexInfo,
+  NativeIndexAddResult,
+  NativeIndexSearchHit,
+  NativeIndexSearchResult,
   NativeSessionLoadResult,
+  NativeSessionSaveResult,
+  NativeSnapshotSaveResult,
+  NativeSnapshotRestoreResult,
+  NativeSnapshotCacheStats,
+  NativeTokenCacheStats,
+  NativeContextPoolOptions,
+  NativeContextPoolStats,
+  NativeContextEvictedEvent,
+  NativeStoredModel,
+  NativeModelStoreOptions,
+  NativeModelStoreStats,
+  NativeDownloadProgress,
+  NativeContextMemoryStats,
+  NativeMemoryStats,
   NativeEmbeddingParams,
   NativeRerankParams,
   NativeRerankResult,
@@ -100,14 +148,10 @@ export type TokenData = {
   content?: string;
   reasoning_content?: string;
   tool_calls?: Array<ToolCall>;
+  // Only with `emit_accumulated_text: true`
   accumulated_text?: string;
 };
 
-type TokenNativeEvent = {
-  contextId: number;
-  tokenResult: TokenData;
-};
-
 const validCacheTypes = [
   'f16',
   'f32',
@@ -146,10 +190,17 @@ export class LlamaContext {
   /**
    * Load cached prompt & completion state from a file.
    */
-  async loadSession(filepath: string): Promise<NativeSessionLoadResult> {
+  async loadSession(
+    filepath: string,
+    options?: { checkpoint?: number },
+  ): Promise<NativeSessionLoadResult> {
     let path = filepath;
     if (path.startsWith('file://')) path = path.slice(7);
-    return LlamaCpp.loadSession({ contextId: this.id, filepath: path });
+    return LlamaCpp.loadSession({
+      contextId: this.id,
+      filepath: path,
+      checkpoint: options?.checkpoint,
+    });
   }
 
   /**
@@ -159,11 +210,50 @@ export class LlamaContext {
     filepath: string,
     options?: { tokenSize: number },
   ): Promise<number> {
-    return LlamaCpp.saveSession({ 
-      contextId: this.id, 
-      filepath, 
-      size: options?.tokenSize || -1 
+    let path = filepath;
+    if (path.startsWith('file://')) path = path.slice(7);
+    const { tokensSaved } = await LlamaCpp.saveSession({
+      contextId: this.id,
+      filepath: path,
+      size: options?.tokenSize || -1,
     });
+    return tokensSaved;
+  }
+
+  /**
+   * Append the state added since the last checkpoint to an incremental session file.
+   * Restore with loadSession(filepath, { checkpoint }).
+   */
+  async saveCheckpoint(
+    filepath: string,
+    options?: { tokenSize: number },
+  ): Promise<NativeSessionSaveResult> {
+    let path = filepath;
+    if (path.startsWith('file://')) path = path.slice(7);
+    return LlamaCpp.saveSession({
+      contextId: this.id,
+      filepath: path,
+      size: options?.tokenSize || -1,
+      incremental: true,
+    });
+  }
+
+  /**
+   * Keep the current KV state in the snapshot cache under a conversation id or prompt-prefix hash.
+   */
+  async saveSnapshot(key: string): Promise<NativeSnapshotSaveResult> {
+    return LlamaCpp.saveSnapshot({ contextId: this.id, key });
+  }
+
+  /**
+   * Restore a cached KV state; resolves with hit: false when it is not cached.
+   */
+  async restoreSnapshot(key: string): Promise<NativeSnapshotRestoreResult> {
+    return LlamaCpp.restoreSnapshot({ contextId: this.id, key });
+  }
+
+  async getSnapshotCacheStats(): Promise<NativeSnapshotCacheStats> {
+    return LlamaCpp.getSnapshotCacheStats({ contextId: this.id });
   }
 
   isLlamaChatSupported(): boolean {
@@ -295,6 +385,7 @@ export class LlamaContext {
       ...params,
       prompt: params.prompt || '',
       emit_partial_completion: !!callback,
+      request_id: ++completionRequestCounter,
     };
 
     if (params.messages) {
@@ -356,8 +447,8 @@ export class LlamaContext {
     let tokenListener: any =
       callback &&
       LlamaCpp.addListener(EVENT_ON_TOKEN, (evt: TokenNativeEvent) => {
-        const { contextId, tokenResult } = evt;
-        if (contextId !== this.id) return;
+        const { contextId, requestId, tokenResult } = evt;
+        if (contextId !== this.id || requestId !== nativeParams.request_id) return;
         callback(tokenResult);
       });
 
@@ -391,15 +482,49 @@ export class LlamaContext {
     text: string,
     {
       media_paths: mediaPaths,
+      add_special: addSpecial,
+      parse_special: parseSpecial,
     }: {
       media_paths?: string[];
+      add_special?: boolean;
+      parse_special?: boolean;
     } = {},
   ): Promise<NativeTokenizeResult> {
-    return LlamaCpp.tokenize({ contextId: this.id, text, imagePaths: mediaPaths });
+    return LlamaCpp.tokenize({
+      contextId: this.id,
+      text,
+      imagePaths: mediaPaths,
+      add_special: addSpecial,
+      parse_special: parseSpecial,
+    });
   }
 
-  detokenize(tokens: number[]): Promise<string> {
-    return LlamaCpp.detokenize({ contextId: this.id, tokens });
+  async detokenize(tokens: number[]): Promise<string> {
+    const { text } = await LlamaCpp.detokenize({ contextId: this.id, tokens });
+    return text;
+  }
+
+  /**
+   * Count tokens per text; cheaper than tokenize() when only lengths are needed
+   */
+  async countTokens(
+    texts: string[],
+    { add_special: addSpecial, parse_special: parseSpecial }: { add_special?: boolean; parse_special?: boolean } = {},
+  ): Promise<number[]> {
+    const { counts } = await LlamaCpp.countTokens({
+      contextId: this.id,
+      texts,
+      add_special: addSpecial,
+      parse_special: parseSpecial,
+    });
+    return counts;
+  }
+
+  /**
+   * Hit rate and size of the tokenize cache for this context's model
+   */
+  getTokenCacheStats(): Promise<NativeTokenCacheStats> {
+    return LlamaCpp.getTokenCacheStats({ contextId: this.id });
   }
 
   embedding(
@@ -409,6 +534,16 @@ export class LlamaContext {
     return LlamaCpp.embedding({ contextId: this.id, text, params: params || {} });
   }
 
+  /**
+   * Embed several texts in packed batches; much faster than calling embedding() per text.
+   */
+  embeddingBatch(
+    texts: string[],
+    params?: EmbeddingParams,
+  ): Promise<NativeEmbeddingBatchResult> {
+    return LlamaCpp.embeddingBatch({ contextId: this.id, texts, params: params || {} });
+  }
+
   /**
    * Rerank documents based on relevance to a query
    * @param query The query text to rank documents against
@@ -421,7 +556,7 @@ export class LlamaContext {
     documents: string[],
     params?: RerankParams,
   ): Promise<RerankResult[]> {
-    const results = await LlamaCpp.rerank({ 
+    const { results } = await LlamaCpp.rerank({ 
       contextId: this.id, 
       query, 
       documents, 
@@ -443,18 +578,7 @@ export class LlamaContext {
     pl: number,
     nr: number,
   ): Promise<BenchResult> {
-    const result = await LlamaCpp.bench({ contextId: this.id, pp, tg, pl, nr });
-    const [modelDesc, modelSize, modelNParams, ppAvg, ppStd, tgAvg, tgStd] =
-      JSON.parse(result);
-    return {
-      modelDesc,
-      modelSize,
-      modelNParams,
-      ppAvg,
-      ppStd,
-      tgAvg,
-      tgStd,
-    };
+    return LlamaCpp.bench({ contextId: this.id, pp, tg, pl, nr });
   }
 
   async applyLoraAdapters(
@@ -625,7 +749,31 @@ export async function setContextLimit(limit: number): Promise<void> {
   return LlamaCpp.setContextLimit({ limit });
 }
 
+export async function setContextPoolOptions(options: NativeContextPoolOptions): Promise<NativeContextPoolStats> {
+  return LlamaCpp.setContextPoolOptions(options);
+}
+
+export async function getMemoryStats(): Promise<NativeMemoryStats> {
+  return LlamaCpp.getMemoryStats();
+}
+
+/**
+ * Called when an idle context is evicted to make room for a new one. The evicted
+ * context's id is no longer valid.
+ */
+export function addContextEvictedListener(
+  listener: (event: NativeContextEvictedEvent) => void,
+): { remove: () => void } {
+  evictedListeners.push(listener);
+  return {
+    remove: () => {
+      evictedListeners.splice(evictedListeners.indexOf(listener), 1);
+    },
+  };
+}
+
 let contextIdCounter = 0;
+let completionRequestCounter = 0;
 const contextIdRandom = () =>
   process.env.NODE_ENV === 'test' ? 0 : Math.floor(Math.random() * 100000);
 
@@ -735,33 +883,99 @@ export async function releaseAllLlama(): Promise<void> {
   return LlamaCpp.releaseAllContexts();
 }
 
+// On-device vector index
+export class LlamaVectorIndex {
+  name: string = '';
+
+  constructor(name: string) {
+    this.name = name;
+  }
+
+  /**
+   * Add texts (embedded with the given context) or precomputed vectors
+   */
+  add(
+    input: { texts: string[]; context: LlamaContext } | { vectors: number[][] },
+  ): Promise<NativeIndexAddResult> {
+    if ('texts' in input) {
+      return LlamaCpp.addToIndex({ name: this.name, contextId: input.context.id, texts: input.texts });
+    }
+    return LlamaCpp.addToIndex({ name: this.name, vectors: input.vectors });
+  }
+
+  /**
+   * Find the k nearest entries to a text query (embedded with the given context) or a vector
+   */
+  async search(
+    query: { text: string; context: LlamaContext } | { vector: number[] },
+    k: number = 10,
+  ): Promise<NativeIndexSearchHit[]> {
+    const { results } = 'text' in query
+      ? await LlamaCpp.searchIndex({ name: this.name, contextId: query.context.id, query: query.text, k })
+      : await LlamaCpp.searchIndex({ name: this.name, vector: query.vector, k });
+    return results;
+  }
+
+  save(): Promise<NativeIndexInfo> {
+    return LlamaCpp.saveIndex({ name: this.name });
+  }
+
+  release(): Promise<void> {
+    return LlamaCpp.releaseIndex({ name: this.name });
+  }
+}
+
+export async function createIndex(
+  name: string,
+  { dimensions, embd_normalize: embdNormalize }: { dimensions?: number; embd_normalize?: number } = {},
+): Promise<LlamaVectorIndex> {
+  await LlamaCpp.createIndex({ name, dimensions, embd_normalize: embdNormalize });
+  return new LlamaVectorIndex(name);
+}
+
+export async function loadIndex(name: string): Promise<LlamaVectorIndex> {
+  await LlamaCpp.loadIndex({ name });
+  return new LlamaVectorIndex(name);
+}
+
 // Model download and management functions
-export async function downloadModel(url: string, filename: string): Promise<string> {
-  return LlamaCpp.downloadModel({ url, filename });
+export async function downloadModel(
+  url: string,
+  filename: string,
+  onProgress?: (progress: NativeDownloadProgress) => void,
+  sha256?: string,
+): Promise<string> {
+  let removeProgressListener: any = null;
+  if (onProgress) {
+    removeProgressListener = LlamaCpp.addListener(EVENT_ON_DOWNLOAD_PROGRESS, (evt: NativeDownloadProgress) => {
+      if (evt.url !== url) return;
+      onProgress(evt);
+    });
+  }
+  try {
+    const { path } = await LlamaCpp.downloadModel({ url, filename, sha256 });
+    return path;
+  } finally {
+    removeProgressListener?.remove();
+  }
 }
 
-export async function getDownloadProgress(url: string): Promise<{
-  progress: number;
-  completed: boolean;
-  failed: boolean;
-  errorMessage?: string;
-  localPath?: string;
-  downloadedBytes: number;
-  totalBytes: number;
-}> {
+export async function getDownloadProgress(url: string): Promise<NativeDownloadProgress> {
   return LlamaCpp.getDownloadProgress({ url });
 }
 
 export async function cancelDownload(url: string): Promise<boolean> {
-  return LlamaCpp.cancelDownload({ url });
+  const { cancelled } = await LlamaCpp.cancelDownload({ url });
+  return cancelled;
+}
+
+export async function getAvailableModels(refresh = false): Promise<NativeStoredModel[]> {
+  const { models } = await LlamaCpp.getAvailableModels({ refresh });
+  return models;
 }
 
-export async function getAvailableModels(): Promise<Array<{
-  name: string;
-  path: string;
-  size: number;
-}>> {
-  return LlamaCpp.getAvailableModels();
+export async function setModelStoreOptions(options: NativeModelStoreOptions): Promise<NativeModelStoreStats> {
+  return LlamaCpp.setModelStoreOptions(options);
 }
 
 export const BuildInfo = {
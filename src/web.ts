@@ -11,6 +11,14 @@ export class LlamaCppWeb implements LlamaCppPlugin {
     console.warn('LlamaCpp: setContextLimit is not supported on web platform');
   }
 
+  async setContextPoolOptions(): Promise<any> {
+    throw new Error('LlamaCpp: setContextPoolOptions is not supported on web platform');
+  }
+
+  async getMemoryStats(): Promise<any> {
+    throw new Error('LlamaCpp: getMemoryStats is not supported on web platform');
+  }
+
   async modelInfo(): Promise<Object> {
     console.warn('LlamaCpp: modelInfo is not supported on web platform');
     return {};
@@ -46,30 +54,80 @@ export class LlamaCppWeb implements LlamaCppPlugin {
     throw new Error('LlamaCpp: loadSession is not supported on web platform');
   }
 
-  async saveSession(): Promise<number> {
+  async saveSession(): Promise<any> {
     throw new Error('LlamaCpp: saveSession is not supported on web platform');
   }
 
+  // KV snapshots
+  async saveSnapshot(): Promise<any> {
+    throw new Error('LlamaCpp: saveSnapshot is not supported on web platform');
+  }
+
+  async restoreSnapshot(): Promise<any> {
+    throw new Error('LlamaCpp: restoreSnapshot is not supported on web platform');
+  }
+
+  async getSnapshotCacheStats(): Promise<any> {
+    throw new Error('LlamaCpp: getSnapshotCacheStats is not supported on web platform');
+  }
+
   // Tokenization
   async tokenize(): Promise<any> {
     throw new Error('LlamaCpp: tokenize is not supported on web platform');
   }
 
-  async detokenize(): Promise<string> {
+  async detokenize(): Promise<any> {
     throw new Error('LlamaCpp: detokenize is not supported on web platform');
   }
 
+  async countTokens(): Promise<any> {
+    throw new Error('LlamaCpp: countTokens is not supported on web platform');
+  }
+
+  async getTokenCacheStats(): Promise<any> {
+    throw new Error('LlamaCpp: getTokenCacheStats is not supported on web platform');
+  }
+
   // Embeddings and reranking
   async embedding(): Promise<any> {
     throw new Error('LlamaCpp: embedding is not supported on web platform');
   }
 
-  async rerank(): Promise<Array<any>> {
+  async embeddingBatch(): Promise<any> {
+    throw new Error('LlamaCpp: embeddingBatch is not supported on web platform');
+  }
+
+  async rerank(): Promise<any> {
     throw new Error('LlamaCpp: rerank is not supported on web platform');
   }
 
+  // Vector index
+  async createIndex(): Promise<any> {
+    throw new Error('LlamaCpp: createIndex is not supported on web platform');
+  }
+
+  async addToIndex(): Promise<any> {
+    throw new Error('LlamaCpp: addToIndex is not supported on web platform');
+  }
+
+  async searchIndex(): Promise<any> {
+    throw new Error('LlamaCpp: searchIndex is not supported on web platform');
+  }
+
+  async saveIndex(): Promise<any> {
+    throw new Error('LlamaCpp: saveIndex is not supported on web platform');
+  }
+
+  async loadIndex(): Promise<any> {
+    throw new Error('LlamaCpp: loadIndex is not supported on web platform');
+  }
+
+  async releaseIndex(): Promise<void> {
+    throw new Error('LlamaCpp: releaseIndex is not supported on web platform');
+  }
+
   // Benchmarking
-  async bench(): Promise<string> {
+  async bench(): Promise<any> {
     throw new Error('LlamaCpp: bench is not supported on web platform');
   }
 
@@ -134,6 +192,27 @@ export class LlamaCppWeb implements LlamaCppPlugin {
     console.warn('LlamaCpp: releaseVocoder is not supported on web platform');
   }
 
+  // Model download and management
+  async downloadModel(): Promise<any> {
+    throw new Error('LlamaCpp: downloadModel is not supported on web platform');
+  }
+
+  async getDownloadProgress(): Promise<any> {
+    throw new Error('LlamaCpp: getDownloadProgress is not supported on web platform');
+  }
+
+  async cancelDownload(): Promise<any> {
+    throw new Error('LlamaCpp: cancelDownload is not supported on web platform');
+  }
+
+  async getAvailableModels(): Promise<any> {
+    throw new Error('LlamaCpp: getAvailableModels is not supported on web platform');
+  }
+
+  async setModelStoreOptions(): Promise<any> {
+    throw new Error('LlamaCpp: setModelStoreOptions is not supported on web platform');
+  }
+
   // Events
   async addListener(): Promise<void> {
     console.warn('LlamaCpp: addListener is not supported on web platform');